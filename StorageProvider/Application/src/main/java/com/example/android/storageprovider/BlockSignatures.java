@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.storageprovider;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The signatures of the fixed-size blocks of one version of a document, as in rsync: a weak
+ * checksum that can be rolled along a byte at a time, and a strong hash to confirm a match.
+ * <p/>
+ * They are kept for the version last sent to the server.  When the document is next uploaded,
+ * {@link Delta} uses them to find the blocks the server already has.
+ */
+class BlockSignatures {
+    static final int BLOCK_SIZE = 8 * 1024;
+
+    static final int STRONG_HASH_BYTES = 16;
+
+    private static final int FILE_MAGIC = 0x53494753;
+
+    // The size of the saved header, and of each saved block.
+    private static final int FILE_HEADER_BYTES = 4 + 8 + 8 + 4;
+    private static final int FILE_BLOCK_BYTES = 4 + STRONG_HASH_BYTES;
+
+    // The version of the document on the server that these describe.
+    final long mLength;
+    final long mLastModified;
+
+    private final int[] mWeak;
+    private final byte[][] mStrong;
+
+    // Block indexes by weak checksum, built on first use.
+    private Map<Integer, int[]> mBlocksByWeak;
+
+    private BlockSignatures(long length, long lastModified, int[] weak, byte[][] strong) {
+        mLength = length;
+        mLastModified = lastModified;
+        mWeak = weak;
+        mStrong = strong;
+    }
+
+    /**
+     * @return true if these describe the given version of the document
+     */
+    boolean describes(CloudBackend.Entry entry) {
+        return entry != null && entry.mLength == mLength && entry.mLastModified == mLastModified;
+    }
+
+    int getBlockCount() {
+        return mWeak.length;
+    }
+
+    /**
+     * @return the length of a block, which is {@link #BLOCK_SIZE} for all but the last
+     */
+    int getBlockLength(int index) {
+        return (int) Math.min(BLOCK_SIZE, mLength - (long) index * BLOCK_SIZE);
+    }
+
+    /**
+     * Finds a block by its contents.
+     *
+     * @param weak   the weak checksum of the data
+     * @param data   holds the data
+     * @param offset where the data starts
+     * @param length how long the data is
+     * @param digest used for the strong hash, if a weak checksum matches
+     * @return the index of a block with the same contents, or -1 if there is none
+     */
+    int find(int weak, byte[] data, int offset, int length, MessageDigest digest) {
+        if (mBlocksByWeak == null) {
+            mBlocksByWeak = new HashMap<Integer, int[]>(mWeak.length * 2);
+            for (int i = 0; i < mWeak.length; i++) {
+                final int[] existing = mBlocksByWeak.get(mWeak[i]);
+                final int[] blocks = existing == null
+                        ? new int[1] : Arrays.copyOf(existing, existing.length + 1);
+                blocks[blocks.length - 1] = i;
+                mBlocksByWeak.put(mWeak[i], blocks);
+            }
+        }
+        final int[] candidates = mBlocksByWeak.get(weak);
+        if (candidates == null) {
+            return -1;
+        }
+        byte[] strong = null;
+        for (int block : candidates) {
+            if (getBlockLength(block) != length) {
+                continue;
+            }
+            if (strong == null) {
+                digest.update(data, offset, length);
+                strong = digest.digest();
+            }
+            if (Arrays.equals(strong, mStrong[block])) {
+                return block;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the rsync weak checksum of a block of data
+     */
+    static int getWeakChecksum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            final int x = data[offset + i] & 0xff;
+            a += x;
+            b += (length - i) * x;
+        }
+        return (a & 0xffff) | (b << 16);
+    }
+
+    /**
+     * Moves a weak checksum one byte along.
+     *
+     * @param weak    the checksum of the block starting at the outgoing byte
+     * @param out     the byte leaving the block
+     * @param in      the byte entering the block
+     * @param length  the length of the block
+     * @return the checksum of the block one byte further on
+     */
+    static int rollWeakChecksum(int weak, byte out, byte in, int length) {
+        final int x = out & 0xff;
+        final int a = ((weak & 0xffff) - x + (in & 0xff)) & 0xffff;
+        final int b = ((weak >>> 16) - length * x + a) & 0xffff;
+        return a | (b << 16);
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Works out the signatures of a document's blocks from its contents, which are fed to it in
+     * order, in pieces of any size.
+     */
+    static class Builder {
+        private final MessageDigest mDigest = newDigest();
+        private final byte[] mBlock = new byte[BLOCK_SIZE];
+        private int mBlockLength;
+        private long mLength;
+        private int[] mWeak = new int[16];
+        private byte[][] mStrong = new byte[16][];
+        private int mCount;
+
+        void update(byte[] data, int offset, int length) {
+            while (length > 0) {
+                final int count = Math.min(length, BLOCK_SIZE - mBlockLength);
+                System.arraycopy(data, offset, mBlock, mBlockLength, count);
+                mBlockLength += count;
+                mLength += count;
+                offset += count;
+                length -= count;
+                if (mBlockLength == BLOCK_SIZE) {
+                    endBlock();
+                }
+            }
+        }
+
+        /**
+         * @param lastModified the version of the document on the server
+         * @return the signatures of everything fed in
+         */
+        BlockSignatures build(long lastModified) {
+            if (mBlockLength > 0) {
+                endBlock();
+            }
+            return new BlockSignatures(mLength, lastModified, Arrays.copyOf(mWeak, mCount),
+                    Arrays.copyOf(mStrong, mCount));
+        }
+
+        private void endBlock() {
+            if (mCount == mWeak.length) {
+                mWeak = Arrays.copyOf(mWeak, mCount * 2);
+                mStrong = Arrays.copyOf(mStrong, mCount * 2);
+            }
+            mWeak[mCount] = getWeakChecksum(mBlock, 0, mBlockLength);
+            mDigest.update(mBlock, 0, mBlockLength);
+            mStrong[mCount] = mDigest.digest();
+            mCount++;
+            mBlockLength = 0;
+        }
+    }
+
+    /**
+     * Reads a file from start to end and works out its signatures.
+     *
+     * @param file         the file
+     * @param lastModified the version of the document on the server
+     */
+    static BlockSignatures compute(File file, long lastModified) throws IOException {
+        final Builder builder = new Builder();
+        final InputStream in = new FileInputStream(file);
+        try {
+            final byte[] buffer = new byte[64 * 1024];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                builder.update(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        return builder.build(lastModified);
+    }
+
+    /**
+     * @return the signatures saved in a file, or null if there are none or they can't be read.
+     * A file whose header doesn't match its size is treated as damaged and deleted, before
+     * anything is allocated for the blocks it claims to have.
+     */
+    static BlockSignatures read(File file) {
+        try {
+            final DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != FILE_MAGIC) {
+                    return null;
+                }
+                final long length = in.readLong();
+                final long lastModified = in.readLong();
+                final int count = in.readInt();
+                if (length < 0 || count != (length + BLOCK_SIZE - 1) / BLOCK_SIZE
+                        || file.length() != FILE_HEADER_BYTES + (long) count * FILE_BLOCK_BYTES) {
+                    throw new IOException("Damaged signatures in " + file);
+                }
+                final int[] weak = new int[count];
+                final byte[][] strong = new byte[count][STRONG_HASH_BYTES];
+                for (int i = 0; i < count; i++) {
+                    weak[i] = in.readInt();
+                    in.readFully(strong[i]);
+                }
+                return new BlockSignatures(length, lastModified, weak, strong);
+            } finally {
+                in.close();
+            }
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Saves the signatures to a file, replacing it in one step.
+     */
+    void write(File file) throws IOException {
+        final File temp = new File(file.getPath() + ".tmp");
+        try {
+            final DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(FILE_MAGIC);
+                out.writeLong(mLength);
+                out.writeLong(mLastModified);
+                out.writeInt(mWeak.length);
+                for (int i = 0; i < mWeak.length; i++) {
+                    out.writeInt(mWeak[i]);
+                    out.write(mStrong[i]);
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Failed to save signatures to " + file);
+            }
+        } finally {
+            temp.delete();
+        }
+    }
+}
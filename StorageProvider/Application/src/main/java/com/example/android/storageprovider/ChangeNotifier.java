@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.storageprovider;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.provider.DocumentsContract;
+
+import com.example.android.common.logger.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tells clients which directories and documents changed, so they can query only those again.
+ * <p/>
+ * Changes are collected for a short while and then sent together from a thread of their own,
+ * so the binder thread that made a change never waits on the resolver.  Each directory is
+ * notified once per batch however many of its children changed, which turns a copy of
+ * thousands of files into a handful of notifications.
+ */
+class ChangeNotifier {
+    private static final String TAG = "ChangeNotifier";
+
+    // How long to collect changes before sending them.
+    private static final long DELAY_MILLIS = 100;
+
+    // Past this many changed children, only their directory is notified.  Clients showing it
+    // query it again anyway, and few watch single documents.
+    private static final int MAX_DOCUMENT_URIS = 32;
+
+    private final ContentResolver mResolver;
+    private final String mAuthority;
+    private final HandlerThread mThread = new HandlerThread(TAG);
+    private Handler mHandler;
+
+    // The documents that changed in each directory since the last batch was sent.  A directory
+    // with no documents only had its listing change.
+    private LinkedHashMap<String, Set<String>> mPending =
+            new LinkedHashMap<String, Set<String>>();
+
+    private final Runnable mSend = new Runnable() {
+        @Override
+        public void run() {
+            send();
+        }
+    };
+
+    /**
+     * @param resolver  delivers the notifications
+     * @param authority the provider's authority, to build URIs with
+     */
+    ChangeNotifier(ContentResolver resolver, String authority) {
+        mResolver = resolver;
+        mAuthority = authority;
+    }
+
+    /**
+     * Starts the thread notifications are sent from.
+     */
+    void start() {
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Notes that a document was created, written, renamed or removed.
+     *
+     * @param parentDocId the ID of the directory the document is or was in, or null if it has
+     *                    none
+     * @param docId       the document's ID, or null if it is no longer known
+     */
+    synchronized void onDocumentChanged(String parentDocId, String docId) {
+        final Set<String> documents = getPending(parentDocId);
+        // One more than the limit is enough to know it was passed.
+        if (docId != null && documents.size() <= MAX_DOCUMENT_URIS) {
+            documents.add(docId);
+        }
+    }
+
+    /**
+     * Notes that the listing of a directory changed.
+     */
+    synchronized void onChildrenChanged(String parentDocId) {
+        getPending(parentDocId);
+    }
+
+    private Set<String> getPending(String parentDocId) {
+        Set<String> documents = mPending.get(parentDocId);
+        if (documents == null) {
+            if (mPending.isEmpty() && mHandler != null) {
+                mHandler.postDelayed(mSend, DELAY_MILLIS);
+            }
+            documents = new LinkedHashSet<String>();
+            mPending.put(parentDocId, documents);
+        }
+        return documents;
+    }
+
+    private void send() {
+        final Map<String, Set<String>> pending;
+        synchronized (this) {
+            pending = mPending;
+            mPending = new LinkedHashMap<String, Set<String>>();
+        }
+        final List<Uri> uris = new ArrayList<Uri>();
+        for (Map.Entry<String, Set<String>> entry : pending.entrySet()) {
+            final String parentDocId = entry.getKey();
+            if (parentDocId != null) {
+                uris.add(DocumentsContract.buildChildDocumentsUri(mAuthority, parentDocId));
+            }
+            final Set<String> documents = entry.getValue();
+            if (documents.size() <= MAX_DOCUMENT_URIS) {
+                for (String docId : documents) {
+                    uris.add(DocumentsContract.buildDocumentUri(mAuthority, docId));
+                }
+            }
+        }
+        if (uris.isEmpty()) {
+            return;
+        }
+        Log.v(TAG, "Notifying " + uris.size() + " URIs for " + pending.size() + " directories");
+        for (Uri uri : uris) {
+            mResolver.notifyChange(uri, null, false);
+        }
+    }
+}
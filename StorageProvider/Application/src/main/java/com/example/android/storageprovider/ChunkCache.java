@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.storageprovider;
+
+import com.example.android.common.logger.Log;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps chunks of downloaded documents in a size-bounded disk cache, so that reading a document
+ * again, or reading the same part of it twice, doesn't go back to the server.
+ * <p/>
+ * As in {@link ThumbnailCache}, which entries exist, their sizes and their order of use are kept
+ * in memory, and the least recently used entries are evicted once the cache grows past its
+ * budget.
+ */
+class ChunkCache {
+    private static final String TAG = "ChunkCache";
+
+    private final File mDir;
+    private final long mMaxBytes;
+
+    // Cache entries by file name, in order of use (least recent first), with their sizes.
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<String, Long>(
+            16, 0.75f, true);
+    private long mTotalBytes;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    /**
+     * @param dir      the directory to keep chunks in; it's created if needed
+     * @param maxBytes the most space the chunks may take up
+     */
+    ChunkCache(File dir, long maxBytes) {
+        mDir = dir;
+        mMaxBytes = maxBytes;
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Log.w(TAG, "Unable to create " + mDir);
+        }
+        loadEntries();
+    }
+
+    /**
+     * @param key the chunk's key, which must be usable as a file name
+     * @return the chunk, or null if it isn't cached
+     */
+    byte[] get(String key) {
+        synchronized (this) {
+            if (mEntries.get(key) == null) {
+                mMisses.incrementAndGet();
+                return null;
+            }
+        }
+        final File file = new File(mDir, key);
+        try {
+            final RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                final byte[] data = new byte[(int) in.length()];
+                in.readFully(data);
+                // Keep the order of use across restarts.
+                file.setLastModified(System.currentTimeMillis());
+                mHits.incrementAndGet();
+                return data;
+            } finally {
+                in.close();
+            }
+        } catch (FileNotFoundException e) {
+            // Evicted in the meantime.
+            mMisses.incrementAndGet();
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read chunk " + key + ": " + e.getMessage());
+            mMisses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * @return how many calls to {@link #get(String)} found the chunk
+     */
+    long getHitCount() {
+        return mHits.get();
+    }
+
+    /**
+     * @return how many calls to {@link #get(String)} didn't find the chunk
+     */
+    long getMissCount() {
+        return mMisses.get();
+    }
+
+    /**
+     * @return true if the chunk is cached
+     */
+    synchronized boolean contains(String key) {
+        return mEntries.containsKey(key);
+    }
+
+    /**
+     * Stores a chunk.  Failures are logged and otherwise ignored, since the chunk can always be
+     * downloaded again.
+     */
+    void put(String key, byte[] data) {
+        final File target = new File(mDir, key);
+        final File temp = new File(mDir, key + ".tmp");
+        try {
+            final OutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(target)) {
+                throw new IOException("Failed to move chunk into place at " + target);
+            }
+            add(key, data.length);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to cache chunk " + key + ": " + e.getMessage());
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Records a new entry and evicts the least recently used ones until the cache is within its
+     * budget.
+     */
+    private synchronized void add(String key, long size) {
+        final Long previous = mEntries.put(key, size);
+        mTotalBytes += size - (previous != null ? previous : 0);
+
+        final Iterator<Map.Entry<String, Long>> it = mEntries.entrySet().iterator();
+        while (mTotalBytes > mMaxBytes && it.hasNext()) {
+            final Map.Entry<String, Long> eldest = it.next();
+            if (eldest.getKey().equals(key)) {
+                continue;
+            }
+            new File(mDir, eldest.getKey()).delete();
+            mTotalBytes -= eldest.getValue();
+            it.remove();
+        }
+    }
+
+    /**
+     * Reads the entries already on disk, oldest first, and drops any half-written ones.
+     */
+    private synchronized void loadEntries() {
+        final File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        final long[] lastModified = new long[files.length];
+        final Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            lastModified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(lastModified[a], lastModified[b]);
+            }
+        });
+        for (int i : order) {
+            final File file = files[i];
+            if (file.getName().endsWith(".tmp")) {
+                file.delete();
+                continue;
+            }
+            final long size = file.length();
+            mEntries.put(file.getName(), size);
+            mTotalBytes += size;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.storageprovider;
+
+import android.os.ParcelFileDescriptor;
+
+import com.example.android.common.logger.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Downloads documents from a {@link CloudBackend} in fixed-size chunks.
+ * <p/>
+ * Chunks are fetched several at a time and kept in a {@link ChunkCache}.  Concurrent requests
+ * for the same chunk share one download.  A document can also be streamed, in which case the
+ * reader gets the first bytes as soon as the first chunk arrives, while the next few are
+ * already on their way.
+ */
+class ChunkFetcher {
+    private static final String TAG = "ChunkFetcher";
+
+    static final int CHUNK_SIZE = 1024 * 1024;
+
+    // How many chunks are downloaded at once, across all documents.
+    private static final int MAX_PARALLEL_FETCHES = 4;
+
+    private final CloudBackend mBackend;
+    private final ChunkCache mCache;
+
+    private final ExecutorService mFetchers =
+            Executors.newFixedThreadPool(MAX_PARALLEL_FETCHES, new NamedThreadFactory("fetch"));
+    // Pipe writers spend most of their time blocked on the reader, so they get their own threads
+    // and never hold up a download.
+    private final ExecutorService mWriters =
+            Executors.newCachedThreadPool(new NamedThreadFactory("pipe"));
+
+    // Chunks being downloaded right now, so that other requests for them can wait.
+    private final ConcurrentHashMap<String, FutureTask<byte[]>> mInFlight =
+            new ConcurrentHashMap<String, FutureTask<byte[]>>();
+
+    /**
+     * @param backend where documents are downloaded from
+     * @param cache   where downloaded chunks are kept
+     */
+    ChunkFetcher(CloudBackend backend, ChunkCache cache) {
+        mBackend = backend;
+        mCache = cache;
+    }
+
+    /**
+     * @return how many chunks a document is split into
+     */
+    static int getChunkCount(CloudBackend.Entry entry) {
+        return (int) ((entry.mLength + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    }
+
+    /**
+     * Returns a chunk, downloading it if it isn't cached.  Blocks until it is available.
+     *
+     * @param path  the document's path on the server
+     * @param entry the version of the document to read
+     * @param index which chunk to return
+     * @return the chunk's bytes; only the last chunk is shorter than {@link #CHUNK_SIZE}
+     * @throws IOException if the chunk couldn't be downloaded
+     */
+    byte[] getChunk(String path, CloudBackend.Entry entry, int index) throws IOException {
+        final byte[] cached = mCache.get(getKey(path, entry, index));
+        if (cached != null) {
+            return cached;
+        }
+        return getResult(fetchChunk(path, entry, index), path);
+    }
+
+    /**
+     * Starts downloading a chunk, unless it is cached or already on its way.
+     *
+     * @return the chunk, once it is available
+     */
+    Future<byte[]> fetchChunk(final String path, final CloudBackend.Entry entry,
+                              final int index) throws IOException {
+        final String key = getKey(path, entry, index);
+        final FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                try {
+                    byte[] data = mCache.get(key);
+                    if (data == null) {
+                        final long offset = (long) index * CHUNK_SIZE;
+                        data = mBackend.read(path, offset,
+                                (int) Math.min(CHUNK_SIZE, entry.mLength - offset));
+                        mCache.put(key, data);
+                    }
+                    return data;
+                } finally {
+                    mInFlight.remove(key);
+                }
+            }
+        });
+        final FutureTask<byte[]> existing = mInFlight.putIfAbsent(key, task);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            mFetchers.execute(task);
+        } catch (RejectedExecutionException e) {
+            mInFlight.remove(key);
+            throw new IOException("Failed to fetch " + path + ": " + e.getMessage());
+        }
+        return task;
+    }
+
+    /**
+     * @return true if the chunk is cached, so reading it won't touch the network
+     */
+    boolean isCached(String path, CloudBackend.Entry entry, int index) {
+        return mCache.contains(getKey(path, entry, index));
+    }
+
+    /**
+     * Streams a document through a pipe, for readers that can't be given a seekable proxy
+     * descriptor.  See {@link #stream(String, CloudBackend.Entry, OutputStream)}.
+     *
+     * @param path  the document's path on the server
+     * @param entry the version of the document to read
+     * @return the reading end of the pipe.  If a download fails, the reader sees an error rather
+     * than a short document.
+     * @throws IOException if the pipe couldn't be created
+     */
+    ParcelFileDescriptor openPipe(final String path, final CloudBackend.Entry entry)
+            throws IOException {
+        final ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createReliablePipe();
+        try {
+            mWriters.execute(new Runnable() {
+                @Override
+                public void run() {
+                    writePipe(path, entry, pipe[1]);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pipe[0].close();
+            pipe[1].close();
+            throw new IOException("Failed to stream " + path + ": " + e.getMessage());
+        }
+        return pipe[0];
+    }
+
+    private void writePipe(String path, CloudBackend.Entry entry, ParcelFileDescriptor sink) {
+        final OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(sink);
+        try {
+            stream(path, entry, out);
+            out.close();
+        } catch (IOException e) {
+            // Also the reader closing its end early.  Chunks already requested still finish
+            // downloading into the cache.
+            Log.w(TAG, "Failed to stream " + path + ": " + e.getMessage());
+            try {
+                sink.closeWithError(e.getMessage());
+            } catch (IOException closeError) {
+                // The reader is gone.
+            }
+        }
+    }
+
+    /**
+     * Writes a whole document to a stream.  Chunks are written in order, with up to
+     * {@link #MAX_PARALLEL_FETCHES} of the following ones downloading meanwhile.
+     *
+     * @param path  the document's path on the server
+     * @param entry the version of the document to read
+     * @param out   where to write the document; not closed
+     * @throws IOException if a chunk couldn't be downloaded or written
+     */
+    void stream(String path, CloudBackend.Entry entry, OutputStream out) throws IOException {
+        final int count = getChunkCount(entry);
+        final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+        int next = 0;
+        for (int i = 0; i < count; i++) {
+            // Keep the next few chunks on their way while this one is written.
+            while (next < count && next < i + MAX_PARALLEL_FETCHES) {
+                pending.add(fetchChunk(path, entry, next++));
+            }
+            out.write(getResult(pending.removeFirst(), path));
+        }
+    }
+
+    private static byte[] getResult(Future<byte[]> future, String path) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while fetching " + path);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to fetch " + path, e.getCause());
+        }
+    }
+
+    /**
+     * @return the cache key of a chunk.  It changes with the document's version, so a stale chunk
+     * is never served; it just ages out of the cache.
+     */
+    private static String getKey(String path, CloudBackend.Entry entry, int index) {
+        final String identity = path + '\n' + entry.mLastModified + '\n' + entry.mLength;
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1")
+                    .digest(identity.getBytes(Charset.forName("UTF-8")));
+            final StringBuilder key = new StringBuilder(digest.length * 2 + 8);
+            for (byte b : digest) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            return key.append('-').append(index).toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String mName;
+
+        NamedThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, TAG + "-" + mName);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
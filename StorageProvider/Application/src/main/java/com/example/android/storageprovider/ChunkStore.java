@@ -0,0 +1,1051 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.storageprovider;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.ParcelFileDescriptor;
+
+import com.example.android.common.logger.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Keeps the contents of documents as content-defined chunks, each stored once however many
+ * documents contain it.
+ * <p/>
+ * Documents are split with {@link ContentDefinedChunker} and each chunk is kept in a file named
+ * by its SHA-256 hash.  A database records the chunks of each document, the manifest, and how
+ * many manifests refer to each chunk.  Once a document's manifest is saved, its file under the
+ * base directory is replaced by a sparse placeholder of the same length and last modified time,
+ * so listings and stats still work but the contents take no space there.
+ * <p/>
+ * Copying a stored document only copies its manifest, however large it is.  Opening one for
+ * writing puts its contents back in the file first, and closing it stores it again; chunks that
+ * didn't change are found already stored.
+ * <p/>
+ * Chunks that no manifest refers to any more stay on disk until {@link #collectGarbage()}.
+ */
+class ChunkStore extends SQLiteOpenHelper {
+    private static final String TAG = "ChunkStore";
+
+    private static final String DATABASE_NAME = "chunk_store.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String TABLE_CHUNKS = "chunks";
+    private static final String TABLE_DOCUMENTS = "documents";
+    private static final String TABLE_DOCUMENT_CHUNKS = "document_chunks";
+
+    private static final String COLUMN_HASH = "hash";
+    private static final String COLUMN_LENGTH = "length";
+    // How many manifest entries refer to the chunk.
+    private static final String COLUMN_REFS = "refs";
+    private static final String COLUMN_PATH = "path";
+    private static final String COLUMN_LAST_MODIFIED = "last_modified";
+    private static final String COLUMN_POSITION = "position";
+    private static final String COLUMN_OFFSET = "offset";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File mBaseDir;
+    private final File mChunkDir;
+    private final File mStagingDir;
+
+    // Chunk files are written before the rows that refer to them, so garbage collection takes
+    // this exclusively and everything that adds chunks takes it shared.
+    private final ReadWriteLock mGcLock = new ReentrantReadWriteLock();
+
+    // Descriptors reading stored documents.  Their chunks may no longer be referred to, so
+    // garbage collection waits until there are none.
+    private final AtomicInteger mOpenReaders = new AtomicInteger();
+
+    // Paths of documents open for writing.  Their files hold the real contents, and must not be
+    // replaced by placeholders until they are closed.
+    private final Set<String> mWriting = new HashSet<String>();
+
+    private final HandlerThread mThread = new HandlerThread(TAG);
+    private Handler mHandler;
+
+    private final ExecutorService mWriters = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, TAG + "-pipe");
+        }
+    });
+
+    /**
+     * The chunks that make up one version of a document.
+     */
+    static class Manifest {
+        final String mPath;
+        final long mLength;
+        final long mLastModified;
+        // Where each chunk starts in the document, in order.
+        final long[] mOffsets;
+        final String[] mHashes;
+
+        Manifest(String path, long length, long lastModified, long[] offsets,
+                 String[] hashes) {
+            mPath = path;
+            mLength = length;
+            mLastModified = lastModified;
+            mOffsets = offsets;
+            mHashes = hashes;
+        }
+
+        int getChunkCount() {
+            return mHashes.length;
+        }
+
+        /**
+         * @return the index of the chunk holding a position in the document
+         */
+        int findChunk(long position) {
+            final int index = Arrays.binarySearch(mOffsets, position);
+            return index >= 0 ? index : -index - 2;
+        }
+
+        int getChunkLength(int index) {
+            final long end = index + 1 < mOffsets.length ? mOffsets[index + 1] : mLength;
+            return (int) (end - mOffsets[index]);
+        }
+    }
+
+    /**
+     * How much space deduplication saves.
+     */
+    static class Report {
+        final int mDocuments;
+        // What the documents would take up as plain files.
+        final long mLogicalBytes;
+        final int mChunks;
+        // What their chunks take up.
+        final long mStoredBytes;
+
+        Report(int documents, long logicalBytes, int chunks, long storedBytes) {
+            mDocuments = documents;
+            mLogicalBytes = logicalBytes;
+            mChunks = chunks;
+            mStoredBytes = storedBytes;
+        }
+
+        double getDedupRatio() {
+            return mStoredBytes == 0 ? 1 : (double) mLogicalBytes / mStoredBytes;
+        }
+
+        @Override
+        public String toString() {
+            return mDocuments + " documents of " + mLogicalBytes + " bytes stored as " + mChunks
+                    + " chunks of " + mStoredBytes + " bytes, dedup ratio "
+                    + String.format(Locale.US, "%.2f", getDedupRatio());
+        }
+    }
+
+    /**
+     * @param context    used to open the database
+     * @param baseDir    the directory document paths are relative to
+     * @param chunkDir   the directory to keep chunks in; it's created if needed
+     * @param stagingDir a directory on the same volume as baseDir, for building placeholders
+     *                   and copies before they are renamed into place
+     */
+    ChunkStore(Context context, File baseDir, File chunkDir, File stagingDir) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mBaseDir = baseDir;
+        mChunkDir = chunkDir;
+        mStagingDir = stagingDir;
+        if (!mChunkDir.isDirectory() && !mChunkDir.mkdirs()) {
+            Log.w(TAG, "Unable to create " + mChunkDir);
+        }
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_CHUNKS + " ("
+                + COLUMN_HASH + " TEXT PRIMARY KEY NOT NULL, "
+                + COLUMN_LENGTH + " INTEGER NOT NULL, "
+                + COLUMN_REFS + " INTEGER NOT NULL)");
+        db.execSQL("CREATE TABLE " + TABLE_DOCUMENTS + " ("
+                + COLUMN_PATH + " TEXT PRIMARY KEY NOT NULL, "
+                + COLUMN_LENGTH + " INTEGER NOT NULL, "
+                + COLUMN_LAST_MODIFIED + " INTEGER NOT NULL)");
+        db.execSQL("CREATE TABLE " + TABLE_DOCUMENT_CHUNKS + " ("
+                + COLUMN_PATH + " TEXT NOT NULL, "
+                + COLUMN_POSITION + " INTEGER NOT NULL, "
+                + COLUMN_OFFSET + " INTEGER NOT NULL, "
+                + COLUMN_HASH + " TEXT NOT NULL, "
+                + "PRIMARY KEY (" + COLUMN_PATH + ", " + COLUMN_POSITION + "))");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Nothing to migrate yet.
+    }
+
+    /**
+     * Starts the store's thread.
+     */
+    void start() {
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * @return a handler on the store's thread, where documents are stored after they change
+     */
+    Handler getHandler() {
+        return mHandler;
+    }
+
+    /**
+     * Stores a document on the store's thread, so the caller doesn't wait for it to be read.
+     */
+    void storeLater(final File file) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    store(file);
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to store " + file + ": " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Stores every document under the base directory that isn't stored yet, such as files
+     * written before the store was turned on.
+     */
+    void storeAll() {
+        final ArrayDeque<File> pending = new ArrayDeque<File>();
+        pending.add(mBaseDir);
+        while (!pending.isEmpty()) {
+            final File file = pending.removeFirst();
+            final File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    pending.add(child);
+                }
+                continue;
+            }
+            try {
+                store(file);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to store " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Splits a document into chunks, keeps any the store doesn't have yet, and replaces the file
+     * with a placeholder.
+     *
+     * @param file a document under the base directory
+     * @return true if the document is now stored; false if it isn't a file, is open for writing,
+     * or changed while it was being read.  Its file then still holds its contents.
+     * @throws IOException if the document couldn't be read or its chunks written
+     */
+    boolean store(File file) throws IOException {
+        final String path = getPath(file);
+        final long length = file.length();
+        final long lastModified = file.lastModified();
+        if (!file.isFile() || isWriting(path)) {
+            return false;
+        }
+        if (isStored(path, length, lastModified)) {
+            return true;
+        }
+
+        mGcLock.readLock().lock();
+        try {
+            final MessageDigest digest = newDigest();
+            final List<Long> offsets = new ArrayList<Long>();
+            final List<String> hashes = new ArrayList<String>();
+            final List<Integer> lengths = new ArrayList<Integer>();
+            final InputStream in = new FileInputStream(file);
+            try {
+                final ContentDefinedChunker chunker = new ContentDefinedChunker(in);
+                long offset = 0;
+                int count;
+                while ((count = chunker.next()) >= 0) {
+                    digest.update(chunker.getBuffer(), chunker.getOffset(), count);
+                    final String hash = toHex(digest.digest());
+                    writeChunk(hash, chunker.getBuffer(), chunker.getOffset(), count);
+                    offsets.add(offset);
+                    hashes.add(hash);
+                    lengths.add(count);
+                    offset += count;
+                }
+            } finally {
+                in.close();
+            }
+
+            final File placeholder = createPlaceholder(length, lastModified);
+            try {
+                synchronized (mWriting) {
+                    if (mWriting.contains(path) || file.length() != length
+                            || file.lastModified() != lastModified) {
+                        // Written again while it was being read.  That write stores it again
+                        // when it's done.
+                        return false;
+                    }
+                    // The file system may not keep the time to the millisecond, so record the
+                    // time the placeholder actually has.
+                    putManifest(path, length, placeholder.lastModified(), offsets, hashes,
+                            lengths);
+                    if (!placeholder.renameTo(file)) {
+                        // The file keeps its contents, which is harmless: the manifest doesn't
+                        // match it, so it is read as it is and stored again later.
+                        Log.w(TAG, "Failed to replace " + file + " with a placeholder");
+                    }
+                }
+            } finally {
+                placeholder.delete();
+            }
+            return true;
+        } finally {
+            mGcLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Copies a document, or a directory and everything in it, by copying manifests rather than
+     * contents.  The copy only appears once it is complete.
+     *
+     * @param source a document under the base directory
+     * @param target where the copy goes, which must not exist
+     * @return true if it was copied; false if the source is a file that couldn't be stored,
+     * which then holds its contents and can be copied as a plain file
+     * @throws IOException if the copy failed; nothing is left behind
+     */
+    boolean copy(File source, File target) throws IOException {
+        if (!source.isDirectory()) {
+            if (!store(source)) {
+                return false;
+            }
+            mGcLock.readLock().lock();
+            try {
+                final Manifest manifest = getManifest(source);
+                if (manifest == null) {
+                    // Opened for writing in the meantime.
+                    return false;
+                }
+                copyFile(manifest, target, target);
+            } finally {
+                mGcLock.readLock().unlock();
+            }
+            return true;
+        }
+
+        final File staged = new File(mStagingDir, "copy-" + System.nanoTime());
+        final List<File> copiedAsFiles = new ArrayList<File>();
+        boolean succeeded = false;
+        try {
+            copyTree(source, staged, target, copiedAsFiles);
+            if (!staged.renameTo(target)) {
+                throw new IOException("Failed to move copy into place at " + target);
+            }
+            succeeded = true;
+        } finally {
+            if (!succeeded) {
+                remove(target);
+                deleteTree(staged);
+            }
+        }
+        for (File file : copiedAsFiles) {
+            storeLater(file);
+        }
+        return true;
+    }
+
+    /**
+     * Copies a directory into the staging area.
+     *
+     * @param source        the directory to copy
+     * @param staged        where the copy is built
+     * @param target        where the copy will end up, which manifests are saved under
+     * @param copiedAsFiles collects the files whose contents were copied, where they will end up
+     */
+    private void copyTree(File source, File staged, File target, List<File> copiedAsFiles)
+            throws IOException {
+        if (!staged.mkdir()) {
+            throw new IOException("Failed to create " + staged);
+        }
+        final File[] children = source.listFiles();
+        if (children == null) {
+            throw new IOException("Failed to list " + source);
+        }
+        for (File child : children) {
+            final File stagedChild = new File(staged, child.getName());
+            final File targetChild = new File(target, child.getName());
+            if (child.isDirectory()) {
+                copyTree(child, stagedChild, targetChild, copiedAsFiles);
+                continue;
+            }
+            Manifest manifest = null;
+            mGcLock.readLock().lock();
+            try {
+                if (store(child)) {
+                    manifest = getManifest(child);
+                }
+                if (manifest != null) {
+                    copyFile(manifest, stagedChild, targetChild);
+                }
+            } finally {
+                mGcLock.readLock().unlock();
+            }
+            if (manifest == null) {
+                // Open for writing, so the file has its contents and can't be stored yet.
+                copyContents(child, stagedChild);
+                copiedAsFiles.add(targetChild);
+            }
+        }
+    }
+
+    /**
+     * Saves a copy of a manifest and puts a placeholder for it in place.  Must be called with
+     * the garbage collection lock held.
+     *
+     * @param staged where to put the placeholder
+     * @param target the path to save the manifest under, where the placeholder will end up
+     */
+    private void copyFile(Manifest manifest, File staged, File target) throws IOException {
+        final File placeholder = createPlaceholder(manifest.mLength, System.currentTimeMillis());
+        try {
+            final String path = getPath(target);
+            final List<Long> offsets = new ArrayList<Long>(manifest.getChunkCount());
+            final List<String> hashes = Arrays.asList(manifest.mHashes);
+            final List<Integer> lengths = new ArrayList<Integer>(manifest.getChunkCount());
+            for (int i = 0; i < manifest.getChunkCount(); i++) {
+                offsets.add(manifest.mOffsets[i]);
+                lengths.add(manifest.getChunkLength(i));
+            }
+            putManifest(path, manifest.mLength, placeholder.lastModified(), offsets, hashes,
+                    lengths);
+            if (!placeholder.renameTo(staged)) {
+                removeManifests(COLUMN_PATH + " = ?", new String[]{path});
+                throw new IOException("Failed to create " + staged);
+            }
+        } finally {
+            placeholder.delete();
+        }
+    }
+
+    /**
+     * Updates manifests after a document, or a directory and everything in it, was renamed.
+     */
+    void move(File source, File target) {
+        final String sourcePath = getPath(source);
+        final String targetPath = getPath(target);
+        final SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (String table : new String[]{TABLE_DOCUMENTS, TABLE_DOCUMENT_CHUNKS}) {
+                // substr() counts characters, where length() would count UTF-16 units.
+                db.execSQL("UPDATE " + table + " SET " + COLUMN_PATH + " = ? || substr("
+                        + COLUMN_PATH + ", ?) WHERE " + getTreeSelection(),
+                        new Object[]{targetPath,
+                                sourcePath.codePointCount(0, sourcePath.length()) + 1,
+                                sourcePath, sourcePath + '/', sourcePath + '0'});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Drops the manifests of a document, or a directory and everything in it, after it was
+     * deleted.  Its chunks stay until garbage collection.
+     */
+    void remove(File file) {
+        final String path = getPath(file);
+        removeManifests(getTreeSelection(), new String[]{path, path + '/', path + '0'});
+    }
+
+    /**
+     * Marks a document as open for writing, and if it is stored, puts its contents back in its
+     * file.  Must be followed by {@link #endWrite(File)}.
+     *
+     * @throws IOException if the contents couldn't be restored
+     */
+    void beginWrite(File file) throws IOException {
+        final String path = getPath(file);
+        synchronized (mWriting) {
+            mWriting.add(path);
+        }
+        try {
+            final Manifest manifest = getManifest(file);
+            if (manifest == null) {
+                return;
+            }
+            final File restored = File.createTempFile("restore", null, mStagingDir);
+            try {
+                restore(manifest, restored);
+                restored.setLastModified(manifest.mLastModified);
+                if (!restored.renameTo(file)) {
+                    throw new IOException("Failed to restore " + file);
+                }
+            } finally {
+                restored.delete();
+            }
+            // The file now has what the manifest describes, so it can go.
+            removeManifests(COLUMN_PATH + " = ?", new String[]{path});
+        } catch (IOException e) {
+            endWrite(file);
+            throw e;
+        }
+    }
+
+    /**
+     * Marks a document as no longer open for writing.  It can then be stored again.
+     */
+    void endWrite(File file) {
+        synchronized (mWriting) {
+            mWriting.remove(getPath(file));
+        }
+    }
+
+    /**
+     * @return the manifest of a document, or null if it isn't stored; that is, if its file holds
+     * its contents
+     */
+    Manifest getManifest(File file) {
+        return getManifest(getPath(file), file.length(), file.lastModified());
+    }
+
+    /**
+     * Writes a stored document's contents to a file.
+     */
+    void restore(Manifest manifest, File target) throws IOException {
+        final OutputStream out = new FileOutputStream(target);
+        try {
+            for (String hash : manifest.mHashes) {
+                out.write(readChunk(hash));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return the contents of a chunk
+     * @throws IOException if the chunk is missing or couldn't be read
+     */
+    byte[] readChunk(String hash) throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(getChunkFile(hash), "r");
+        try {
+            final byte[] data = new byte[(int) file.length()];
+            file.readFully(data);
+            return data;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Streams a stored document through a pipe.
+     *
+     * @return the read end of the pipe
+     */
+    ParcelFileDescriptor openPipe(final Manifest manifest) throws IOException {
+        final ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createReliablePipe();
+        onReaderOpened();
+        try {
+            mWriters.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        writePipe(manifest, pipe[1]);
+                    } finally {
+                        onReaderClosed();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            onReaderClosed();
+            pipe[0].close();
+            pipe[1].close();
+            throw new IOException("Failed to stream " + manifest.mPath + ": " + e.getMessage());
+        }
+        return pipe[0];
+    }
+
+    private void writePipe(Manifest manifest, ParcelFileDescriptor sink) {
+        final OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(sink);
+        try {
+            for (String hash : manifest.mHashes) {
+                out.write(readChunk(hash));
+            }
+            out.close();
+        } catch (IOException e) {
+            // Also the reader closing its end early.
+            Log.w(TAG, "Failed to stream " + manifest.mPath + ": " + e.getMessage());
+            try {
+                sink.closeWithError(e.getMessage());
+            } catch (IOException closeError) {
+                // The reader is gone.
+            }
+        }
+    }
+
+    /**
+     * Called when a descriptor starts reading chunks, so they aren't collected under it.
+     */
+    void onReaderOpened() {
+        mOpenReaders.incrementAndGet();
+    }
+
+    void onReaderClosed() {
+        mOpenReaders.decrementAndGet();
+    }
+
+    /**
+     * Catches up with documents that were deleted or changed behind the store's back, then
+     * deletes the chunks nothing refers to.  Skipped while stored documents are being read.
+     *
+     * @return how many bytes were freed
+     */
+    long collectGarbage() {
+        mGcLock.writeLock().lock();
+        try {
+            if (mOpenReaders.get() > 0) {
+                Log.v(TAG, "Documents are being read, so leaving garbage for later");
+                return 0;
+            }
+            dropStaleManifests();
+
+            long freed = 0;
+            final SQLiteDatabase db = getWritableDatabase();
+            final Cursor cursor = db.query(TABLE_CHUNKS, new String[]{COLUMN_HASH},
+                    COLUMN_REFS + " <= 0", null, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    final File chunk = getChunkFile(cursor.getString(0));
+                    final long length = chunk.length();
+                    if (chunk.delete()) {
+                        freed += length;
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            db.delete(TABLE_CHUNKS, COLUMN_REFS + " <= 0", null);
+            freed += deleteUnknownChunkFiles();
+            Log.v(TAG, "Garbage collection freed " + freed + " bytes");
+            return freed;
+        } finally {
+            mGcLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return how much space the store takes and how much it saves
+     */
+    Report getReport() {
+        final SQLiteDatabase db = getReadableDatabase();
+        final Cursor documents = db.rawQuery("SELECT COUNT(*), IFNULL(SUM(" + COLUMN_LENGTH
+                + "), 0) FROM " + TABLE_DOCUMENTS, null);
+        final Cursor chunks = db.rawQuery("SELECT COUNT(*), IFNULL(SUM(" + COLUMN_LENGTH
+                + "), 0) FROM " + TABLE_CHUNKS + " WHERE " + COLUMN_REFS + " > 0", null);
+        try {
+            documents.moveToFirst();
+            chunks.moveToFirst();
+            return new Report(documents.getInt(0), documents.getLong(1), chunks.getInt(0),
+                    chunks.getLong(1));
+        } finally {
+            documents.close();
+            chunks.close();
+        }
+    }
+
+    /**
+     * Brings the manifests in line with files that no longer match them.  Must be called with
+     * the garbage collection lock held exclusively.
+     * <p/>
+     * A manifest is only dropped once its file is gone.  A placeholder whose time was changed
+     * still stands for the manifest's contents, which nothing else holds, so its manifest is
+     * kept and given the new time.  A file that holds real contents again is stored again.
+     */
+    private void dropStaleManifests() {
+        final List<String> deleted = new ArrayList<String>();
+        final List<File> touched = new ArrayList<File>();
+        final List<File> rewritten = new ArrayList<File>();
+        final Cursor cursor = getReadableDatabase().query(TABLE_DOCUMENTS,
+                new String[]{COLUMN_PATH, COLUMN_LENGTH, COLUMN_LAST_MODIFIED},
+                null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                final File file = new File(mBaseDir, cursor.getString(0));
+                if (!file.isFile()) {
+                    deleted.add(cursor.getString(0));
+                } else if (file.length() != cursor.getLong(1)
+                        || file.lastModified() != cursor.getLong(2)) {
+                    if (file.length() == cursor.getLong(1) && isPlaceholder(file)) {
+                        touched.add(file);
+                    } else {
+                        rewritten.add(file);
+                    }
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        for (String path : deleted) {
+            removeManifests(COLUMN_PATH + " = ?", new String[]{path});
+        }
+        for (File file : touched) {
+            final ContentValues values = new ContentValues();
+            values.put(COLUMN_LAST_MODIFIED, file.lastModified());
+            getWritableDatabase().update(TABLE_DOCUMENTS, values, COLUMN_PATH + " = ?",
+                    new String[]{getPath(file)});
+        }
+        for (File file : rewritten) {
+            try {
+                // Replaces the old manifest, or leaves it if the file is open for writing.
+                // Either way the file is read as it is until then.
+                store(file);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to store " + file + " again: " + e.getMessage());
+            }
+        }
+        if (!deleted.isEmpty() || !touched.isEmpty() || !rewritten.isEmpty()) {
+            Log.v(TAG, "Dropped " + deleted.size() + " manifests of deleted documents, kept "
+                    + touched.size() + " of touched placeholders, stored " + rewritten.size()
+                    + " documents again");
+        }
+    }
+
+    /**
+     * @return true if a file holds nothing but zeros, as a placeholder does.  Placeholders are
+     * sparse, so this reads no data from the disk.
+     */
+    private static boolean isPlaceholder(File file) {
+        try {
+            final InputStream in = new FileInputStream(file);
+            try {
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                int count;
+                while ((count = in.read(buffer)) > 0) {
+                    for (int i = 0; i < count; i++) {
+                        if (buffer[i] != 0) {
+                            return false;
+                        }
+                    }
+                }
+                return true;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Deletes chunk files with no row, left behind if the process died between writing a chunk
+     * and saving the manifest that refers to it.  Must be called with the garbage collection
+     * lock held exclusively.
+     */
+    private long deleteUnknownChunkFiles() {
+        long freed = 0;
+        final File[] dirs = mChunkDir.listFiles();
+        if (dirs == null) {
+            return 0;
+        }
+        for (File dir : dirs) {
+            final File[] files = dir.listFiles();
+            if (files == null) {
+                continue;
+            }
+            // One directory's worth of hashes at a time, so memory doesn't grow with the store.
+            final String prefix = dir.getName();
+            final Set<String> known = new HashSet<String>();
+            final Cursor cursor = getReadableDatabase().query(TABLE_CHUNKS,
+                    new String[]{COLUMN_HASH}, COLUMN_HASH + " >= ? AND " + COLUMN_HASH + " < ?",
+                    new String[]{prefix, prefix + 'g'}, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    known.add(cursor.getString(0));
+                }
+            } finally {
+                cursor.close();
+            }
+            for (File file : files) {
+                if (!known.contains(file.getName())) {
+                    final long length = file.length();
+                    if (file.delete()) {
+                        freed += length;
+                    }
+                }
+            }
+        }
+        return freed;
+    }
+
+    /**
+     * @return true if the document has a manifest for the given version
+     */
+    private boolean isStored(String path, long length, long lastModified) {
+        final Cursor cursor = getReadableDatabase().query(TABLE_DOCUMENTS,
+                new String[]{COLUMN_LENGTH, COLUMN_LAST_MODIFIED}, COLUMN_PATH + " = ?",
+                new String[]{path}, null, null, null);
+        try {
+            return cursor.moveToFirst() && cursor.getLong(0) == length
+                    && cursor.getLong(1) == lastModified;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private Manifest getManifest(String path, long length, long lastModified) {
+        if (!isStored(path, length, lastModified)) {
+            return null;
+        }
+        final Cursor chunks = getReadableDatabase().query(TABLE_DOCUMENT_CHUNKS,
+                new String[]{COLUMN_OFFSET, COLUMN_HASH}, COLUMN_PATH + " = ?",
+                new String[]{path}, null, null, COLUMN_POSITION);
+        try {
+            final long[] offsets = new long[chunks.getCount()];
+            final String[] hashes = new String[chunks.getCount()];
+            for (int i = 0; chunks.moveToNext(); i++) {
+                offsets[i] = chunks.getLong(0);
+                hashes[i] = chunks.getString(1);
+            }
+            return new Manifest(path, length, lastModified, offsets, hashes);
+        } finally {
+            chunks.close();
+        }
+    }
+
+    /**
+     * Saves a manifest in place of any the document had, and counts the references to its
+     * chunks.
+     */
+    private void putManifest(String path, long length, long lastModified, List<Long> offsets,
+                             List<String> hashes, List<Integer> lengths) {
+        final SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            removeManifests(COLUMN_PATH + " = ?", new String[]{path});
+            db.execSQL("INSERT INTO " + TABLE_DOCUMENTS + " (" + COLUMN_PATH + ", "
+                    + COLUMN_LENGTH + ", " + COLUMN_LAST_MODIFIED + ") VALUES (?, ?, ?)",
+                    new Object[]{path, length, lastModified});
+            final SQLiteStatement insertChunk = db.compileStatement("INSERT OR IGNORE INTO "
+                    + TABLE_CHUNKS + " (" + COLUMN_HASH + ", " + COLUMN_LENGTH + ", "
+                    + COLUMN_REFS + ") VALUES (?, ?, 0)");
+            final SQLiteStatement addRef = db.compileStatement("UPDATE " + TABLE_CHUNKS
+                    + " SET " + COLUMN_REFS + " = " + COLUMN_REFS + " + 1 WHERE "
+                    + COLUMN_HASH + " = ?");
+            final SQLiteStatement insertEntry = db.compileStatement("INSERT INTO "
+                    + TABLE_DOCUMENT_CHUNKS + " (" + COLUMN_PATH + ", " + COLUMN_POSITION + ", "
+                    + COLUMN_OFFSET + ", " + COLUMN_HASH + ") VALUES (?, ?, ?, ?)");
+            for (int i = 0; i < hashes.size(); i++) {
+                insertChunk.bindString(1, hashes.get(i));
+                insertChunk.bindLong(2, lengths.get(i));
+                insertChunk.executeInsert();
+                addRef.bindString(1, hashes.get(i));
+                addRef.executeUpdateDelete();
+                insertEntry.bindString(1, path);
+                insertEntry.bindLong(2, i);
+                insertEntry.bindLong(3, offsets.get(i));
+                insertEntry.bindString(4, hashes.get(i));
+                insertEntry.executeInsert();
+            }
+            insertChunk.close();
+            addRef.close();
+            insertEntry.close();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Deletes manifests and takes away their references to chunks.
+     */
+    private void removeManifests(String selection, String[] selectionArgs) {
+        final SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            final Cursor cursor = db.query(TABLE_DOCUMENT_CHUNKS,
+                    new String[]{COLUMN_HASH, "COUNT(*)"}, selection, selectionArgs,
+                    COLUMN_HASH, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    db.execSQL("UPDATE " + TABLE_CHUNKS + " SET " + COLUMN_REFS + " = "
+                            + COLUMN_REFS + " - ? WHERE " + COLUMN_HASH + " = ?",
+                            new Object[]{cursor.getLong(1), cursor.getString(0)});
+                }
+            } finally {
+                cursor.close();
+            }
+            db.delete(TABLE_DOCUMENT_CHUNKS, selection, selectionArgs);
+            db.delete(TABLE_DOCUMENTS, selection, selectionArgs);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * @return a selection matching a path and everything below it, given the path, the path
+     * followed by '/' and the path followed by '0'.  Every descendant path sorts between the
+     * last two, since '0' follows '/'.
+     */
+    private static String getTreeSelection() {
+        return COLUMN_PATH + " = ? OR (" + COLUMN_PATH + " >= ? AND " + COLUMN_PATH + " < ?)";
+    }
+
+    private void writeChunk(String hash, byte[] data, int offset, int length)
+            throws IOException {
+        final File file = getChunkFile(hash);
+        if (file.isFile()) {
+            // Already stored for this or another document.
+            return;
+        }
+        final File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        final File temp = new File(dir, hash + '.' + Thread.currentThread().getId() + ".tmp");
+        try {
+            final OutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(data, offset, length);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Failed to store chunk " + hash);
+            }
+        } finally {
+            temp.delete();
+        }
+    }
+
+    private File getChunkFile(String hash) {
+        // Spread over 256 directories, so none gets too large to list.
+        return new File(new File(mChunkDir, hash.substring(0, 2)), hash);
+    }
+
+    /**
+     * @return a sparse file of the given length, in the staging directory
+     */
+    private File createPlaceholder(long length, long lastModified) throws IOException {
+        final File file = File.createTempFile("placeholder", null, mStagingDir);
+        final RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.setLength(length);
+        } finally {
+            out.close();
+        }
+        file.setLastModified(lastModified);
+        return file;
+    }
+
+    private static void copyContents(File source, File target) throws IOException {
+        final InputStream in = new FileInputStream(source);
+        try {
+            final OutputStream out = new FileOutputStream(target);
+            try {
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                int count;
+                while ((count = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, count);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void deleteTree(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+
+    private boolean isWriting(String path) {
+        synchronized (mWriting) {
+            return mWriting.contains(path);
+        }
+    }
+
+    /**
+     * @return the path of a document relative to the base directory
+     */
+    private String getPath(File file) {
+        final String path = file.getAbsolutePath();
+        final String rootPath = mBaseDir.getPath();
+        if (path.equals(rootPath)) {
+            return "";
+        }
+        return path.substring(rootPath.endsWith("/") ? rootPath.length() : rootPath.length() + 1);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        final StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.storageprovider;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The server side of MyCloud: where document content is stored and fetched from.
+ * <p/>
+ * Documents are named by their path relative to the root, as in their document IDs.  Every call
+ * may block on the network, so none of them may be made on the main thread.
+ */
+interface CloudBackend {
+
+    /**
+     * What the server knows about one document.
+     */
+    class Entry {
+        final long mLength;
+        // Identifies the version of the content.  It changes whenever the content does.
+        final long mLastModified;
+
+        Entry(long length, long lastModified) {
+            mLength = length;
+            mLastModified = lastModified;
+        }
+    }
+
+    /**
+     * @param path the document's path
+     * @return what the server has for the document, or null if it has nothing
+     * @throws IOException if the server couldn't be reached
+     */
+    Entry stat(String path) throws IOException;
+
+    /**
+     * Fetches part of a document.
+     *
+     * @param path   the document's path
+     * @param offset where to start reading
+     * @param length how many bytes to read
+     * @return the bytes read, fewer than length only at the end of the document
+     * @throws IOException if the document doesn't exist or the server couldn't be reached
+     */
+    byte[] read(String path, long offset, int length) throws IOException;
+
+    /**
+     * Replaces the server's copy of a document with the contents of a file.
+     *
+     * @param path   the document's path
+     * @param source the new contents
+     * @return what the server now has for the document
+     * @throws IOException if the upload failed; the server's copy is then unchanged
+     */
+    Entry write(String path, File source) throws IOException;
+
+    /**
+     * Uploads several documents in one request, which saves a round trip for each one after the
+     * first.
+     *
+     * @param paths   the documents' paths
+     * @param sources the new contents, in the same order as the paths
+     * @throws IOException if the upload failed; some of the documents may have been stored
+     */
+    void writeAll(List<String> paths, List<File> sources) throws IOException;
+
+    /**
+     * Updates the server's copy of a document by sending only what changed.
+     *
+     * @param path         the document's path
+     * @param base         the version the delta was computed against
+     * @param delta        how to build the new version from the base
+     * @param lastModified the new version
+     * @return what the server now has for the document
+     * @throws IOException if the server no longer has the base version, or the upload failed;
+     *                     the server's copy is then unchanged
+     */
+    Entry applyDelta(String path, Entry base, Delta delta, long lastModified) throws IOException;
+}
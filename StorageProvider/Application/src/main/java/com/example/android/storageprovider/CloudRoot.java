@@ -0,0 +1,369 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.storageprovider;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+
+import com.example.android.common.logger.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One account's root: its base directory and everything the provider keeps about the files
+ * under it.  Each root has document IDs, an index, totals and caches of its own, so nothing one
+ * account does shows up in another's, and a root can be added or removed on its own.
+ * <p/>
+ * Each root also has its own threads for background work, such as counting and indexing its
+ * tree, and a limit on how many walks of its tree may run on binder threads at once.  A large
+ * sync or search on one account then waits for that account's threads, rather than taking all
+ * of the provider's and leaving none for the picker's queries on the others.  A query that
+ * would go over the limit doesn't wait either; it is told to come back once a walk is done.
+ * <p/>
+ * Calls using a root hold it with {@link #acquire()}, so that removing the root doesn't close
+ * its databases under them: they are closed once the last call has released it.
+ */
+class CloudRoot {
+    private static final String TAG = "CloudRoot";
+
+    // The root that was there before there were accounts.  Its documents keep the IDs they had.
+    static final String DEFAULT_ROOT_ID = "root";
+
+    // Separates a root's ID from the number in the IDs of its documents.  Not allowed in root
+    // IDs, so finding a document's root only needs the first one.
+    static final char ID_SEPARATOR = '~';
+
+    // Threads for each root's background work.  They stop when the root has been idle a while.
+    private static final int IO_THREADS = 2;
+    private static final long IO_THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    // How many tasks may wait for those threads.  Past that, whoever hands in a task runs it.
+    private static final int MAX_QUEUED_TASKS = 32;
+
+    // How many walks of the tree, for searches and recent documents without the index, may run
+    // at once.  Binder threads are shared by all roots, so one busy root mustn't take them all.
+    private static final int MAX_CONCURRENT_WALKS = 2;
+
+    // How much of the cache directory each root's thumbnails may use.
+    private static final long MAX_THUMBNAIL_CACHE_BYTES = 16 * 1024 * 1024;
+
+    // How many children each root's cached directory listings may hold between them.
+    private static final int MAX_SNAPSHOT_ENTRIES = 50000;
+
+    /**
+     * Hears about changes under a root that the provider didn't make itself.
+     */
+    interface Callback {
+        void onFileChanged(CloudRoot root, File file);
+
+        void onFileRemoved(CloudRoot root, File file);
+
+        /**
+         * Events in a directory may have been missed, so anything kept about its direct
+         * children has to be checked.
+         */
+        void onReconcile(CloudRoot root, File dir);
+
+        /**
+         * A directory listing was read again because the directory changed.
+         */
+        void onListingRefreshed(CloudRoot root, File dir);
+    }
+
+    final String mRootId;
+    final String mTitle;
+    final File mBaseDir;
+
+    // Stable document IDs for the files under mBaseDir.
+    final DocumentIdTable mDocIds;
+
+    // Sizes, file counts and MIME types of everything below each directory.
+    final DirectoryStats mStats;
+
+    // The metadata index, or null if the provider doesn't use one.
+    final DocumentIndex mIndex;
+
+    // Keeps the index up to date with changes made behind the provider's back, or null if
+    // there is no index.
+    final DocumentWatcher mWatcher;
+
+    // Sorted listings of recently opened directories, used when the index isn't ready.
+    final DirectorySnapshot.Cache mSnapshots;
+
+    final ThumbnailCache mThumbnails;
+
+    // Holds document contents, or null.  Only the default root uses the chunk store.
+    final ChunkStore mChunkStore;
+
+    // The stand-in server, the downloads from it and the uploads to it, or null.  Only the
+    // default root uses the server; these are set before start().
+    CloudBackend mBackend;
+    ChunkCache mChunkCache;
+    ChunkFetcher mFetcher;
+    UploadQueue mUploads;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final ContentResolver mResolver;
+
+    // How many walks are running, and the queries turned away while there were too many,
+    // which are notified when one finishes.  Guarded by mWaitingWalks.
+    private int mActiveWalks;
+    private final LinkedHashSet<Uri> mWaitingWalks = new LinkedHashSet<Uri>();
+
+    // How many calls hold the root, and whether it has been stopped.  Guarded by this.
+    private int mUsers;
+    private boolean mStopped;
+
+    /**
+     * @param rootId     the root's ID, see {@link #isValidRootId(String)}
+     * @param title      what the user knows the account as
+     * @param baseDir    the directory the root's documents are in
+     * @param useIndex   whether to keep an index of the root's documents
+     * @param chunkStore holds the contents of the root's documents, or null
+     * @param loader     gets the contents of a document for its thumbnail, or null if the file
+     *                   holds them as they are
+     * @param callback   hears about changes made outside the provider
+     */
+    CloudRoot(Context context, String rootId, String title, File baseDir, boolean useIndex,
+              ChunkStore chunkStore, ThumbnailCache.ContentLoader loader,
+              final Callback callback) {
+        mRootId = rootId;
+        mTitle = title;
+        mBaseDir = baseDir;
+        mResolver = context.getContentResolver();
+        final boolean isDefault = isDefault();
+
+        // The default root keeps its databases and cache under their old names, so nothing
+        // stored before there were accounts is lost.
+        mDocIds = new DocumentIdTable(context,
+                isDefault ? DocumentIdTable.DATABASE_NAME : "document_ids_" + rootId + ".db",
+                baseDir, isDefault ? "" : rootId + ID_SEPARATOR);
+        mStats = new DirectoryStats(baseDir);
+        if (useIndex) {
+            mIndex = new DocumentIndex(context,
+                    isDefault ? DocumentIndex.DATABASE_NAME : "document_index_" + rootId + ".db",
+                    baseDir, new DocumentIndex.DocumentIdMapper() {
+                        @Override
+                        public String getDocIdForFile(File file) {
+                            // The index's queries write the IDs out before returning them.
+                            return mDocIds.assignDocId(file);
+                        }
+                    }, mStats);
+            mWatcher = new DocumentWatcher(baseDir, new DocumentWatcher.Callback() {
+                @Override
+                public void onFileChanged(File file) {
+                    callback.onFileChanged(CloudRoot.this, file);
+                }
+
+                @Override
+                public void onFileRemoved(File file) {
+                    callback.onFileRemoved(CloudRoot.this, file);
+                }
+
+                @Override
+                public void onReconcile(File dir) {
+                    callback.onReconcile(CloudRoot.this, dir);
+                }
+            });
+        } else {
+            mIndex = null;
+            mWatcher = null;
+        }
+        mSnapshots = new DirectorySnapshot.Cache(MAX_SNAPSHOT_ENTRIES,
+                new DirectorySnapshot.Cache.RefreshListener() {
+                    @Override
+                    public void onRefreshed(File dir) {
+                        callback.onListingRefreshed(CloudRoot.this, dir);
+                    }
+                });
+        mChunkStore = chunkStore;
+        mThumbnails = new ThumbnailCache(new File(context.getCacheDir(),
+                isDefault ? "thumbnails" : "thumbnails-" + rootId), MAX_THUMBNAIL_CACHE_BYTES,
+                loader);
+
+        mExecutor = new ThreadPoolExecutor(IO_THREADS, IO_THREADS,
+                IO_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_QUEUED_TASKS),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable, TAG + "-" + mRootId);
+                    }
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return true if a string can be a root ID: a letter or digit, then letters, digits and a
+     * few punctuation marks, so it is safe in file names and can't be mistaken for a document ID
+     */
+    static boolean isValidRootId(String rootId) {
+        if (rootId == null || rootId.isEmpty() || rootId.length() > 64) {
+            return false;
+        }
+        for (int i = 0; i < rootId.length(); i++) {
+            final char c = rootId.charAt(i);
+            final boolean isAlphanumeric = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                    || (c >= '0' && c <= '9');
+            // A leading dot would allow "." and "..", which aren't directories of their own.
+            if (!isAlphanumeric && (i == 0 || (c != '.' && c != '_' && c != '-' && c != '@'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean isDefault() {
+        return DEFAULT_ROOT_ID.equals(mRootId);
+    }
+
+    /**
+     * Starts the root's own threads.  Checking the tree is left to the caller, through
+     * {@link #execute(Runnable)}.
+     */
+    void start() {
+        mDocIds.start();
+        if (mWatcher != null) {
+            mWatcher.start();
+        }
+    }
+
+    /**
+     * Stops watching the tree and the root's threads, and closes the databases once no call
+     * holds the root any more.  The files and databases are kept, so adding the root again finds
+     * everything as it was.
+     */
+    void stop() {
+        if (mWatcher != null) {
+            mWatcher.stop();
+        }
+        mExecutor.shutdown();
+        final int users;
+        synchronized (this) {
+            mStopped = true;
+            users = mUsers;
+        }
+        if (users == 0) {
+            close();
+        } else {
+            Log.i(TAG, "Stopping " + mRootId + " once " + users + " calls are done");
+        }
+    }
+
+    /**
+     * Keeps the root's databases open for a call.  Every call that returns true has to be
+     * followed by {@link #release()}.
+     *
+     * @return false if the root has been stopped, so the call mustn't use it
+     */
+    synchronized boolean acquire() {
+        if (mStopped) {
+            return false;
+        }
+        mUsers++;
+        return true;
+    }
+
+    void release() {
+        synchronized (this) {
+            if (--mUsers > 0 || !mStopped) {
+                return;
+            }
+        }
+        close();
+    }
+
+    private void close() {
+        mThumbnails.persistOrder();
+        mDocIds.stop();
+        if (mIndex != null) {
+            mIndex.close();
+        }
+        Log.i(TAG, "Stopped " + mRootId);
+    }
+
+    /**
+     * Runs background work for this root on its own threads.  The task holds the root while it
+     * runs, and is dropped if the root has been stopped by then.
+     */
+    void execute(final Runnable task) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!acquire()) {
+                    return;
+                }
+                try {
+                    task.run();
+                } finally {
+                    release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts another walk of the tree, if the root may run one now.  Every call that returns
+     * true has to be followed by {@link #endWalk()}.
+     *
+     * @param uri what to notify once a walk has finished, if this one can't start now
+     * @return false if too many walks are running
+     */
+    boolean tryBeginWalk(Uri uri) {
+        synchronized (mWaitingWalks) {
+            if (mActiveWalks < MAX_CONCURRENT_WALKS) {
+                mActiveWalks++;
+                return true;
+            }
+            mWaitingWalks.add(uri);
+            return false;
+        }
+    }
+
+    void endWalk() {
+        final ArrayList<Uri> waiting;
+        synchronized (mWaitingWalks) {
+            mActiveWalks--;
+            waiting = new ArrayList<Uri>(mWaitingWalks);
+            mWaitingWalks.clear();
+        }
+        for (Uri uri : waiting) {
+            mResolver.notifyChange(uri, null, false);
+        }
+    }
+
+    /**
+     * @return the document ID of the base directory
+     */
+    String getRootDocId() {
+        return mDocIds.getDocId(mBaseDir);
+    }
+
+    /**
+     * @return the document index if it is enabled and up to date, otherwise null.
+     */
+    DocumentIndex getReadyIndex() {
+        return mIndex != null && mIndex.isReady() ? mIndex : null;
+    }
+}
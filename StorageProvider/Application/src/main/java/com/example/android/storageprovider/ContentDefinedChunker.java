@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.storageprovider;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits a stream into chunks whose boundaries depend on the content, using FastCDC.
+ * <p/>
+ * A boundary falls wherever a gear hash of the last few dozen bytes matches a mask, so inserting
+ * or removing bytes only moves the boundaries near the edit.  The same content therefore splits
+ * into the same chunks wherever it appears, in one document or across many, which is what lets
+ * {@link ChunkStore} keep it once.
+ * <p/>
+ * Chunks are between {@link #MIN_SIZE} and {@link #MAX_SIZE} bytes.  Up to {@link #AVERAGE_SIZE}
+ * the mask is harder to match, and after it easier, which keeps most chunks near the average.
+ */
+class ContentDefinedChunker {
+    static final int MIN_SIZE = 16 * 1024;
+    static final int AVERAGE_SIZE = 64 * 1024;
+    static final int MAX_SIZE = 256 * 1024;
+
+    // AVERAGE_SIZE is 2^16.  The hash shifts left, so its high bits cover the most bytes.
+    private static final long MASK_SMALL = maskOfBits(18);
+    private static final long MASK_LARGE = maskOfBits(14);
+
+    // Any fixed random values will do, but they must never change: chunks already stored were
+    // cut with them, and new content has to be cut the same way to match.
+    private static final long[] GEAR = new long[256];
+
+    static {
+        long seed = 0x4d7943436f756421L;
+        for (int i = 0; i < GEAR.length; i++) {
+            // SplitMix64.
+            seed += 0x9e3779b97f4a7c15L;
+            long z = seed;
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    private final InputStream mIn;
+    private final byte[] mBuffer = new byte[MAX_SIZE * 2];
+    // The unread bytes are from mStart to mEnd.
+    private int mStart;
+    private int mEnd;
+    private boolean mEof;
+
+    // The chunk returned by the last call to next().
+    private int mChunkOffset;
+
+    /**
+     * @param in the stream to split; the caller closes it
+     */
+    ContentDefinedChunker(InputStream in) {
+        mIn = in;
+    }
+
+    /**
+     * Moves on to the next chunk.
+     *
+     * @return its length, or -1 at the end of the stream
+     */
+    int next() throws IOException {
+        if (!mEof && mEnd - mStart < MAX_SIZE) {
+            fill();
+        }
+        final int available = mEnd - mStart;
+        if (available == 0) {
+            return -1;
+        }
+        final int length = findBoundary(mBuffer, mStart, available);
+        mChunkOffset = mStart;
+        mStart += length;
+        return length;
+    }
+
+    /**
+     * @return the buffer holding the current chunk, from {@link #getOffset()}.  It is reused by
+     * the next call to {@link #next()}.
+     */
+    byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    int getOffset() {
+        return mChunkOffset;
+    }
+
+    private void fill() throws IOException {
+        System.arraycopy(mBuffer, mStart, mBuffer, 0, mEnd - mStart);
+        mEnd -= mStart;
+        mStart = 0;
+        while (mEnd < mBuffer.length) {
+            final int count = mIn.read(mBuffer, mEnd, mBuffer.length - mEnd);
+            if (count < 0) {
+                mEof = true;
+                break;
+            }
+            mEnd += count;
+        }
+    }
+
+    /**
+     * @return the length of the chunk starting at offset
+     */
+    private static int findBoundary(byte[] data, int offset, int available) {
+        final int limit = Math.min(available, MAX_SIZE);
+        if (limit <= MIN_SIZE) {
+            return limit;
+        }
+        final int normal = Math.min(limit, AVERAGE_SIZE);
+        long hash = 0;
+        int i = MIN_SIZE;
+        for (; i < normal; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+            if ((hash & MASK_SMALL) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < limit; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+            if ((hash & MASK_LARGE) == 0) {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+
+    private static long maskOfBits(int bits) {
+        return ((1L << bits) - 1) << (64 - bits);
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.storageprovider;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * How to build a new version of a document out of runs of blocks of the old version and new
+ * bytes, so that only the new bytes need to be sent to the server.
+ * <p/>
+ * The new version is scanned with a rolling checksum, as in rsync, so blocks the server has are
+ * found at any offset, not just where they used to be.  An append or a small edit in place
+ * costs about as much as the bytes that changed, however large the document.  The new bytes are
+ * held in memory until the delta is sent, so once they pass a share of the document the delta
+ * is abandoned and the document is sent whole instead.
+ */
+class Delta {
+    // The size of each op as sent: a type byte and two numbers.
+    private static final int OP_HEADER_BYTES = 1 + 8 + 4;
+
+    // Literal runs are cut at this length, so no op needs an unbounded buffer.
+    private static final int MAX_LITERAL_BYTES = 64 * 1024;
+
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+
+    // The share of the document that may be new bytes before sending the delta isn't worth it.
+    private static final int MAX_LITERAL_FRACTION = 2;
+
+    /**
+     * One step of the delta: either copy a run of old blocks, or insert some bytes.
+     */
+    static class Op {
+        // The first block to copy and how many, or -1 and 0 for a literal.
+        final int mBlock;
+        final int mBlockCount;
+        final byte[] mLiteral;
+
+        Op(int block, int blockCount, byte[] literal) {
+            mBlock = block;
+            mBlockCount = blockCount;
+            mLiteral = literal;
+        }
+    }
+
+    final List<Op> mOps = new ArrayList<Op>();
+
+    // The length of the new version.
+    long mLength;
+
+    // The signatures of the new version, for the next delta.
+    BlockSignatures mSignatures;
+
+    private long mLiteralBytes;
+
+    private Delta() {
+    }
+
+    /**
+     * @return how many bytes sending this delta takes
+     */
+    long getEncodedSize() {
+        return mLiteralBytes + (long) mOps.size() * OP_HEADER_BYTES;
+    }
+
+    /**
+     * Works out the delta from the version the signatures describe to the contents of a file,
+     * reading the file once.
+     *
+     * @param file         the new version
+     * @param base         the signatures of the old version
+     * @param lastModified the version the new signatures will be recorded under
+     * @return the delta, or null if more than half the document is new and it should be sent
+     * whole
+     */
+    static Delta compute(File file, BlockSignatures base, long lastModified) throws IOException {
+        final long maxLiteralBytes = file.length() / MAX_LITERAL_FRACTION;
+        final Delta delta = new Delta();
+        final BlockSignatures.Builder signatures = new BlockSignatures.Builder();
+        final MessageDigest digest = BlockSignatures.newDigest();
+        final ByteArrayOutputStream literal = new ByteArrayOutputStream();
+        final int blockSize = BlockSignatures.BLOCK_SIZE;
+        final int blockCount = base.getBlockCount();
+        final int tailLength = blockCount > 0 ? base.getBlockLength(blockCount - 1) : -1;
+
+        final InputStream in = new FileInputStream(file);
+        try {
+            // The window starts at pos; the buffer holds the file up to filled.
+            final byte[] buffer = new byte[READ_BUFFER_SIZE + blockSize];
+            int filled = 0;
+            int pos = 0;
+            boolean eof = false;
+            boolean haveWeak = false;
+            int weak = 0;
+
+            while (true) {
+                // Keep at least a block ahead of pos in the buffer, unless the file has ended.
+                if (!eof && filled - pos < blockSize) {
+                    System.arraycopy(buffer, pos, buffer, 0, filled - pos);
+                    filled -= pos;
+                    pos = 0;
+                    while (filled < buffer.length) {
+                        final int count = in.read(buffer, filled, buffer.length - filled);
+                        if (count < 0) {
+                            eof = true;
+                            break;
+                        }
+                        filled += count;
+                    }
+                }
+                final int available = filled - pos;
+                if (available == 0) {
+                    break;
+                }
+
+                // At the end only a short last block can match, and only exactly.
+                final int length = Math.min(blockSize, available);
+                int block = -1;
+                if (length == blockSize || length == tailLength) {
+                    if (!haveWeak || length < blockSize) {
+                        weak = BlockSignatures.getWeakChecksum(buffer, pos, length);
+                        haveWeak = true;
+                    }
+                    block = base.find(weak, buffer, pos, length, digest);
+                }
+                if (block >= 0) {
+                    delta.addLiteral(literal);
+                    delta.addBlock(block);
+                    signatures.update(buffer, pos, length);
+                    pos += length;
+                    haveWeak = false;
+                    continue;
+                }
+
+                // No match: this byte is new.  Move the window along by one.
+                literal.write(buffer[pos]);
+                signatures.update(buffer, pos, 1);
+                if (literal.size() >= MAX_LITERAL_BYTES) {
+                    delta.addLiteral(literal);
+                    if (delta.mLiteralBytes > maxLiteralBytes) {
+                        return null;
+                    }
+                }
+                if (length == blockSize && available > blockSize) {
+                    weak = BlockSignatures.rollWeakChecksum(weak, buffer[pos],
+                            buffer[pos + blockSize], blockSize);
+                } else {
+                    haveWeak = false;
+                }
+                pos++;
+            }
+        } finally {
+            in.close();
+        }
+        delta.addLiteral(literal);
+        if (delta.mLiteralBytes > maxLiteralBytes) {
+            return null;
+        }
+        delta.mSignatures = signatures.build(lastModified);
+        delta.mLength = delta.mSignatures.mLength;
+        return delta;
+    }
+
+    /**
+     * Builds the new version.
+     *
+     * @param base  the old version, which the delta was computed against
+     * @param out   receives the new version
+     * @throws IOException if the old version couldn't be read or is shorter than expected
+     */
+    void apply(RandomAccessFile base, OutputStream out) throws IOException {
+        final byte[] buffer = new byte[BlockSignatures.BLOCK_SIZE];
+        final long baseLength = base.length();
+        for (Op op : mOps) {
+            if (op.mLiteral != null) {
+                out.write(op.mLiteral);
+                continue;
+            }
+            long offset = (long) op.mBlock * BlockSignatures.BLOCK_SIZE;
+            final long end = Math.min(baseLength,
+                    offset + (long) op.mBlockCount * BlockSignatures.BLOCK_SIZE);
+            base.seek(offset);
+            while (offset < end) {
+                final int count = (int) Math.min(buffer.length, end - offset);
+                base.readFully(buffer, 0, count);
+                out.write(buffer, 0, count);
+                offset += count;
+            }
+        }
+    }
+
+    private void addLiteral(ByteArrayOutputStream literal) {
+        if (literal.size() == 0) {
+            return;
+        }
+        mOps.add(new Op(-1, 0, literal.toByteArray()));
+        mLiteralBytes += literal.size();
+        literal.reset();
+    }
+
+    private void addBlock(int block) {
+        // Runs of consecutive blocks, the common case, become a single op.
+        if (!mOps.isEmpty()) {
+            final Op last = mOps.get(mOps.size() - 1);
+            if (last.mLiteral == null && last.mBlock + last.mBlockCount == block) {
+                mOps.set(mOps.size() - 1, new Op(last.mBlock, last.mBlockCount + 1, null));
+                return;
+            }
+        }
+        mOps.add(new Op(block, 1, null));
+    }
+
+    @Override
+    public String toString() {
+        return "Delta " + mOps.size() + " ops, " + mLiteralBytes + " new bytes of " + mLength;
+    }
+}
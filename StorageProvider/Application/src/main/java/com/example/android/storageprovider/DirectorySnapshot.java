@@ -0,0 +1,364 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.storageprovider;
+
+import android.util.LruCache;
+
+import com.example.android.common.logger.Log;
+
+import java.io.File;
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The children of a directory and their attributes, as they were when the directory was listed,
+ * along with the orders they have been sorted in so far.
+ * <p/>
+ * Paging through a large directory asks for the same sorted listing again and again with a
+ * different offset.  Keeping the snapshot means each page costs only the rows in it, rather than
+ * a stat of every child and a sort.  Collation keys for the names are made once per child, the
+ * first time the snapshot is sorted by name.
+ */
+class DirectorySnapshot {
+    private final long mLastModified;
+    private final File[] mFiles;
+    private final FileAttributes[] mAttributes;
+
+    // Set once a child is known to have changed.
+    private volatile boolean mStale;
+
+    // Filled in as they are needed, under the snapshot's lock.
+    private CollationKey[] mNameKeys;
+    private String[] mMimeTypes;
+    private final int[][] mOrders = new int[DocumentSortOrder.COUNT][];
+
+    private DirectorySnapshot(long lastModified, File[] files, FileAttributes[] attributes) {
+        mLastModified = lastModified;
+        mFiles = files;
+        mAttributes = attributes;
+    }
+
+    /**
+     * Lists a directory and stats each of its children.
+     *
+     * @param dir        the directory
+     * @param attributes the directory's own attributes
+     * @return the snapshot, or null if the directory can't be listed
+     */
+    static DirectorySnapshot read(File dir, FileAttributes attributes) {
+        final File[] children = dir.listFiles();
+        if (children == null) {
+            return null;
+        }
+        final List<File> files = new ArrayList<File>(children.length);
+        final List<FileAttributes> childAttributes = new ArrayList<FileAttributes>(children.length);
+        for (File child : children) {
+            final FileAttributes childAttribute = FileAttributes.read(child);
+            // Skip anything deleted since the directory was listed.
+            if (childAttribute != null) {
+                files.add(child);
+                childAttributes.add(childAttribute);
+            }
+        }
+        return new DirectorySnapshot(attributes.mLastModified,
+                files.toArray(new File[files.size()]),
+                childAttributes.toArray(new FileAttributes[childAttributes.size()]));
+    }
+
+    /**
+     * @return true if the directory has changed since the snapshot was taken
+     */
+    boolean isStale() {
+        return mStale;
+    }
+
+    /**
+     * @return the number of children
+     */
+    int size() {
+        return mFiles.length;
+    }
+
+    File getFile(int index) {
+        return mFiles[index];
+    }
+
+    FileAttributes getAttributes(int index) {
+        return mAttributes[index];
+    }
+
+    /**
+     * @param order how to sort the children
+     * @param stats the total sizes of directories, which is the size their rows show and so the
+     *              one they are sorted by, where known
+     * @return the indexes of the children in that order.  Must not be modified.
+     */
+    synchronized int[] getOrder(final DocumentSortOrder order, DirectoryStats stats) {
+        int[] sorted = mOrders[order.getId()];
+        if (sorted != null) {
+            return sorted;
+        }
+        final CollationKey[] nameKeys = getNameKeys();
+        final String[] mimeTypes =
+                order.mColumn == DocumentSortOrder.BY_MIME_TYPE ? getMimeTypes() : null;
+        final long[] sizes = order.mColumn == DocumentSortOrder.BY_SIZE ? getSizes(stats) : null;
+
+        final Integer[] indexes = new Integer[mFiles.length];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = i;
+        }
+        Arrays.sort(indexes, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int result = 0;
+                switch (order.mColumn) {
+                    case DocumentSortOrder.BY_SIZE:
+                        result = compareLongs(sizes[a], sizes[b]);
+                        break;
+                    case DocumentSortOrder.BY_LAST_MODIFIED:
+                        result = compareLongs(mAttributes[a].mLastModified,
+                                mAttributes[b].mLastModified);
+                        break;
+                    case DocumentSortOrder.BY_MIME_TYPE:
+                        result = mimeTypes[a].compareTo(mimeTypes[b]);
+                        break;
+                    default:
+                        break;
+                }
+                if (result == 0) {
+                    result = nameKeys[a].compareTo(nameKeys[b]);
+                }
+                return order.mDescending ? -result : result;
+            }
+        });
+
+        sorted = new int[indexes.length];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = indexes[i];
+        }
+        mOrders[order.getId()] = sorted;
+        return sorted;
+    }
+
+    private CollationKey[] getNameKeys() {
+        if (mNameKeys == null) {
+            final Collator collator = Collator.getInstance();
+            mNameKeys = new CollationKey[mFiles.length];
+            for (int i = 0; i < mFiles.length; i++) {
+                mNameKeys[i] = collator.getCollationKey(mFiles[i].getName());
+            }
+        }
+        return mNameKeys;
+    }
+
+    private String[] getMimeTypes() {
+        if (mMimeTypes == null) {
+            mMimeTypes = new String[mFiles.length];
+            for (int i = 0; i < mFiles.length; i++) {
+                mMimeTypes[i] =
+                        DocumentRowBuilder.getTypeForFile(mFiles[i].getName(), mAttributes[i]);
+            }
+        }
+        return mMimeTypes;
+    }
+
+    /**
+     * @return the size of each child as its row shows it: a directory's total where it's known,
+     * otherwise what stat says
+     */
+    private long[] getSizes(DirectoryStats stats) {
+        final long[] sizes = new long[mFiles.length];
+        for (int i = 0; i < mFiles.length; i++) {
+            sizes[i] = mAttributes[i].mSize;
+            if (mAttributes[i].mIsDirectory) {
+                final long total = stats.getSize(mFiles[i]);
+                if (total >= 0) {
+                    sizes[i] = total;
+                }
+            }
+        }
+        return sizes;
+    }
+
+    private static int compareLongs(long a, long b) {
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
+    /**
+     * Keeps snapshots of the most recently listed directories.  A snapshot is current for as
+     * long as its directory's last modified time stays the same, which it does until an entry is
+     * added, removed or renamed.  Changes to the children themselves don't touch it, so the
+     * provider invalidates a directory whenever it hears that one of its children changed.
+     * <p/>
+     * A snapshot that is no longer current can still be served while a new one is read in the
+     * background.  Refreshes of the same directory are coalesced: while one is waiting to run,
+     * asking again adds nothing.
+     */
+    static class Cache {
+        private static final String TAG = "DirectorySnapshot";
+
+        /**
+         * Told when a background refresh has replaced a directory's snapshot.  Called on the
+         * refresh thread.
+         */
+        interface RefreshListener {
+            void onRefreshed(File dir);
+        }
+
+        private final LruCache<String, DirectorySnapshot> mSnapshots;
+        private final ExecutorService mExecutor =
+                Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, TAG);
+                    }
+                });
+        // The directories with a refresh waiting to run.
+        private final Set<String> mPendingRefreshes =
+                Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        // The directories invalidated while a refresh was pending, which may have read them
+        // before the change.
+        private final Set<String> mInvalidatedRefreshes =
+                Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        private final RefreshListener mListener;
+
+        /**
+         * @param maxEntries how many children the cached snapshots may hold between them
+         * @param listener   told about each background refresh
+         */
+        Cache(int maxEntries, RefreshListener listener) {
+            mListener = listener;
+            mSnapshots = new LruCache<String, DirectorySnapshot>(maxEntries) {
+                @Override
+                protected int sizeOf(String path, DirectorySnapshot snapshot) {
+                    return snapshot.size() + 1;
+                }
+            };
+        }
+
+        /**
+         * @param dir the directory to list
+         * @return a current snapshot of the directory, or null if it isn't a directory
+         */
+        DirectorySnapshot get(File dir) {
+            final DirectorySnapshot snapshot = mSnapshots.get(dir.getPath());
+            if (snapshot != null && isCurrent(dir, snapshot)) {
+                return snapshot;
+            }
+            return refresh(dir);
+        }
+
+        /**
+         * Returns whatever snapshot of a directory there is, and if it isn't current, marks it
+         * {@link #isStale() stale} and starts reading a new one in the background.
+         *
+         * @param dir the directory to list
+         * @return the cached snapshot, or null if there isn't one
+         */
+        DirectorySnapshot getAndRefresh(File dir) {
+            final DirectorySnapshot snapshot = mSnapshots.get(dir.getPath());
+            if (snapshot != null && !isCurrent(dir, snapshot)) {
+                snapshot.mStale = true;
+                refreshInBackground(dir);
+            }
+            return snapshot;
+        }
+
+        /**
+         * Marks the snapshot of a directory as out of date, if there is one.
+         */
+        void invalidate(File dir) {
+            final String path = dir.getPath();
+            if (mPendingRefreshes.contains(path)) {
+                mInvalidatedRefreshes.add(path);
+            }
+            final DirectorySnapshot snapshot = mSnapshots.get(path);
+            if (snapshot != null) {
+                snapshot.mStale = true;
+            }
+        }
+
+        /**
+         * Drops the snapshot of a directory that no longer exists.
+         */
+        void remove(File dir) {
+            mSnapshots.remove(dir.getPath());
+        }
+
+        private boolean isCurrent(File dir, DirectorySnapshot snapshot) {
+            if (snapshot.mStale) {
+                return false;
+            }
+            final FileAttributes attributes = FileAttributes.read(dir);
+            return attributes != null && attributes.mLastModified == snapshot.mLastModified;
+        }
+
+        private DirectorySnapshot refresh(File dir) {
+            final FileAttributes attributes = FileAttributes.read(dir);
+            if (attributes == null || !attributes.mIsDirectory) {
+                mSnapshots.remove(dir.getPath());
+                return null;
+            }
+            final DirectorySnapshot snapshot = read(dir, attributes);
+            if (snapshot != null) {
+                mSnapshots.put(dir.getPath(), snapshot);
+            } else {
+                mSnapshots.remove(dir.getPath());
+            }
+            return snapshot;
+        }
+
+        private void refreshInBackground(final File dir) {
+            final String path = dir.getPath();
+            if (!mPendingRefreshes.add(path)) {
+                return;
+            }
+            try {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            final DirectorySnapshot snapshot = refresh(dir);
+                            if (mInvalidatedRefreshes.remove(path) && snapshot != null) {
+                                snapshot.mStale = true;
+                            }
+                        } finally {
+                            // Only stop coalescing once the new snapshot is in place, so that a
+                            // query in between doesn't see a stale one and start another read.
+                            mPendingRefreshes.remove(path);
+                        }
+                        mListener.onRefreshed(dir);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                mPendingRefreshes.remove(path);
+                Log.w(TAG, "Failed to refresh " + dir + ": " + e.getMessage());
+            }
+        }
+    }
+}
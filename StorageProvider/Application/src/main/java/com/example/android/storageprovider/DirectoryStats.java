@@ -0,0 +1,403 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.storageprovider;
+
+import com.example.android.common.logger.Log;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Keeps, for every directory under the base directory, the total size of the files below it,
+ * how many there are and which MIME types they have, so none of these needs a walk of the tree.
+ * <p/>
+ * The tree is walked once, in the background, by {@link #build()}.  After that each change the
+ * provider sees adjusts the totals of the directories above it, which costs one step per level
+ * rather than one per file.  Until the first walk is done nothing is known, and callers fall
+ * back to what they did before.
+ */
+class DirectoryStats {
+    private static final String TAG = "DirectoryStats";
+
+    /**
+     * A file, or a directory along with the totals of everything below it.
+     */
+    private static class Node {
+        final String mName;
+        final boolean mIsDirectory;
+        Node mParent;
+
+        // A file's size and 1, or a directory's totals.
+        long mBytes;
+        int mFileCount;
+
+        // A file's MIME type.
+        String mMimeType;
+
+        // A directory's children by name, and how many files below it have each MIME type.
+        HashMap<String, Node> mChildren;
+        HashMap<String, int[]> mTypeCounts;
+
+        Node(String name, boolean isDirectory) {
+            mName = name;
+            mIsDirectory = isDirectory;
+            if (isDirectory) {
+                mChildren = new HashMap<String, Node>();
+                mTypeCounts = new HashMap<String, int[]>();
+            }
+        }
+    }
+
+    private final File mBaseDir;
+
+    // The node for mBaseDir, or null before the first walk.
+    private Node mRoot;
+
+    // Every directory node by its file, so a directory's totals are a single lookup.
+    private HashMap<File, Node> mDirectories = new HashMap<File, Node>();
+
+    // Files that changed while a walk was running, to be looked at again once it's done.
+    private List<File> mPending;
+
+    DirectoryStats(File baseDir) {
+        mBaseDir = baseDir;
+    }
+
+    /**
+     * Walks the whole base directory and replaces the totals with what it finds.  This can take
+     * a while, so call it from a background thread; changes reported in the meantime are
+     * applied afterwards.
+     */
+    void build() {
+        final long start = System.currentTimeMillis();
+        synchronized (this) {
+            mPending = new ArrayList<File>();
+        }
+        final HashMap<File, Node> directories = new HashMap<File, Node>();
+        final Node root = walk(mBaseDir, directories);
+
+        synchronized (this) {
+            mRoot = root != null ? root : new Node(mBaseDir.getName(), true);
+            directories.put(mBaseDir, mRoot);
+            mDirectories = directories;
+            final List<File> pending = mPending;
+            mPending = null;
+            for (File file : pending) {
+                final FileAttributes attributes = FileAttributes.read(file);
+                if (attributes == null) {
+                    remove(file);
+                } else if (attributes.mIsDirectory) {
+                    putTree(file);
+                } else {
+                    put(file);
+                }
+            }
+            Log.i(TAG, "Counted " + mRoot.mFileCount + " files, " + mRoot.mBytes + " bytes in "
+                    + (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+
+    /**
+     * Updates the totals for a file that was created or written.
+     */
+    synchronized void put(File file) {
+        if (!record(file)) {
+            return;
+        }
+        final FileAttributes attributes = FileAttributes.read(file);
+        if (attributes == null) {
+            remove(file);
+            return;
+        }
+        if (attributes.mIsDirectory) {
+            // Its contents, if any, are reported one by one.
+            getOrCreateDirectory(file);
+            return;
+        }
+        final Node parent = getOrCreateDirectory(file.getParentFile());
+        if (parent == null) {
+            return;
+        }
+        detach(file, parent.mChildren.get(file.getName()));
+        final Node node = new Node(file.getName(), false);
+        node.mBytes = attributes.mSize;
+        node.mFileCount = 1;
+        node.mMimeType = MimeTypes.getTypeForName(file.getName());
+        attach(parent, node);
+    }
+
+    /**
+     * Updates the totals for a file or directory that appeared along with its contents.
+     */
+    synchronized void putTree(File root) {
+        if (!record(root)) {
+            return;
+        }
+        if (root.equals(mBaseDir)) {
+            mDirectories.clear();
+            final Node node = walk(mBaseDir, mDirectories);
+            mRoot = node != null ? node : new Node(mBaseDir.getName(), true);
+            mDirectories.put(mBaseDir, mRoot);
+            return;
+        }
+        final Node parent = getOrCreateDirectory(root.getParentFile());
+        if (parent == null) {
+            return;
+        }
+        detach(root, parent.mChildren.get(root.getName()));
+        final Node node = walk(root, mDirectories);
+        if (node != null) {
+            attach(parent, node);
+        }
+    }
+
+    /**
+     * Brings the totals for a directory's direct children back in line with the file system,
+     * after events for them may have been missed.  Directories that appeared are read along with
+     * everything below them; nothing else below the directory is read.
+     */
+    synchronized void reconcileDirectory(File dir) {
+        if (!record(dir)) {
+            return;
+        }
+        final Node node = getOrCreateDirectory(dir);
+        final File[] children = dir.listFiles();
+        if (node == null || children == null) {
+            return;
+        }
+        final Set<String> names = new HashSet<String>();
+        for (File child : children) {
+            final FileAttributes attributes = FileAttributes.read(child);
+            if (attributes == null) {
+                continue;
+            }
+            names.add(child.getName());
+            final Node existing = node.mChildren.get(child.getName());
+            if (attributes.mIsDirectory) {
+                if (existing == null || !existing.mIsDirectory) {
+                    detach(child, existing);
+                    final Node walked = walk(child, mDirectories);
+                    if (walked != null) {
+                        attach(node, walked);
+                    }
+                }
+            } else if (existing == null || existing.mIsDirectory
+                    || existing.mBytes != attributes.mSize) {
+                put(child);
+            }
+        }
+        for (Node child : new ArrayList<Node>(node.mChildren.values())) {
+            if (!names.contains(child.mName)) {
+                detach(new File(dir, child.mName), child);
+            }
+        }
+    }
+
+    /**
+     * Drops a file or directory that no longer exists from the totals.
+     */
+    synchronized void remove(File file) {
+        if (!record(file) || file.equals(mBaseDir)) {
+            return;
+        }
+        final Node parent = mDirectories.get(file.getParentFile());
+        if (parent != null) {
+            detach(file, parent.mChildren.get(file.getName()));
+        }
+    }
+
+    /**
+     * @return the total size of the files below a directory, or -1 if it isn't known
+     */
+    synchronized long getSize(File dir) {
+        final Node node = mRoot != null ? mDirectories.get(dir) : null;
+        return node != null ? node.mBytes : -1;
+    }
+
+    /**
+     * @return how many files there are below a directory, or -1 if it isn't known
+     */
+    synchronized int getFileCount(File dir) {
+        final Node node = mRoot != null ? mDirectories.get(dir) : null;
+        return node != null ? node.mFileCount : -1;
+    }
+
+    /**
+     * @return the MIME types of the files below a directory, in order, or null if they aren't
+     * known
+     */
+    synchronized Set<String> getMimeTypes(File dir) {
+        final Node node = mRoot != null ? mDirectories.get(dir) : null;
+        return node != null ? new TreeSet<String>(node.mTypeCounts.keySet()) : null;
+    }
+
+    /**
+     * Notes a change made while a walk is running, so it isn't lost when the walk's results
+     * replace the current ones.
+     *
+     * @return false if there are no totals to update yet
+     */
+    private boolean record(File file) {
+        if (mPending != null) {
+            mPending.add(file);
+        }
+        return mRoot != null;
+    }
+
+    /**
+     * @return the node for a directory under the base directory, created along with any missing
+     * directories above it, or null if it isn't under the base directory
+     */
+    private Node getOrCreateDirectory(File dir) {
+        if (dir == null) {
+            return null;
+        }
+        Node node = mDirectories.get(dir);
+        if (node != null) {
+            return node;
+        }
+        final Node parent = getOrCreateDirectory(dir.getParentFile());
+        if (parent == null) {
+            return null;
+        }
+        // A file can be replaced by a directory of the same name.
+        detach(dir, parent.mChildren.get(dir.getName()));
+        node = new Node(dir.getName(), true);
+        attach(parent, node);
+        mDirectories.put(dir, node);
+        return node;
+    }
+
+    /**
+     * Reads a file, or a directory and everything below it, into a new detached node.  Any
+     * directories found are added to directories.
+     *
+     * @return the node, or null if the file doesn't exist
+     */
+    private static Node walk(File root, Map<File, Node> directories) {
+        final FileAttributes rootAttributes = FileAttributes.read(root);
+        if (rootAttributes == null) {
+            return null;
+        }
+        final Node top = new Node(root.getName(), rootAttributes.mIsDirectory);
+        if (!rootAttributes.mIsDirectory) {
+            top.mBytes = rootAttributes.mSize;
+            top.mFileCount = 1;
+            top.mMimeType = MimeTypes.getTypeForName(root.getName());
+            return top;
+        }
+        directories.put(root, top);
+
+        final ArrayDeque<File> pending = new ArrayDeque<File>();
+        pending.add(root);
+        while (!pending.isEmpty()) {
+            final File dir = pending.removeFirst();
+            final Node parent = directories.get(dir);
+            final File[] children = dir.listFiles();
+            if (children == null) {
+                continue;
+            }
+            for (File child : children) {
+                final FileAttributes attributes = FileAttributes.read(child);
+                if (attributes == null) {
+                    continue;
+                }
+                final Node node = new Node(child.getName(), attributes.mIsDirectory);
+                if (attributes.mIsDirectory) {
+                    directories.put(child, node);
+                    pending.add(child);
+                } else {
+                    node.mBytes = attributes.mSize;
+                    node.mFileCount = 1;
+                    node.mMimeType = MimeTypes.getTypeForName(child.getName());
+                }
+                // Directories are still empty here, so only files add to the totals.
+                attach(parent, node);
+            }
+        }
+        return top;
+    }
+
+    /**
+     * Makes a node a child of a directory and adds its totals to every directory above it.
+     */
+    private static void attach(Node parent, Node node) {
+        node.mParent = parent;
+        parent.mChildren.put(node.mName, node);
+        addTotals(parent, node, 1);
+    }
+
+    /**
+     * Takes a node, if there is one, out of the tree and its totals out of every directory
+     * above it.
+     */
+    private void detach(File file, Node node) {
+        if (node == null) {
+            return;
+        }
+        node.mParent.mChildren.remove(node.mName);
+        addTotals(node.mParent, node, -1);
+        node.mParent = null;
+        if (node.mIsDirectory) {
+            forgetDirectories(file, node);
+        }
+    }
+
+    private void forgetDirectories(File dir, Node node) {
+        mDirectories.remove(dir);
+        for (Node child : node.mChildren.values()) {
+            if (child.mIsDirectory) {
+                forgetDirectories(new File(dir, child.mName), child);
+            }
+        }
+    }
+
+    private static void addTotals(Node dir, Node node, int sign) {
+        for (Node current = dir; current != null; current = current.mParent) {
+            current.mBytes += sign * node.mBytes;
+            current.mFileCount += sign * node.mFileCount;
+            if (node.mIsDirectory) {
+                for (Map.Entry<String, int[]> entry : node.mTypeCounts.entrySet()) {
+                    addTypeCount(current, entry.getKey(), sign * entry.getValue()[0]);
+                }
+            } else {
+                addTypeCount(current, node.mMimeType, sign);
+            }
+        }
+    }
+
+    private static void addTypeCount(Node dir, String mimeType, int delta) {
+        final int[] count = dir.mTypeCounts.get(mimeType);
+        if (count == null) {
+            if (delta > 0) {
+                dir.mTypeCounts.put(mimeType, new int[]{delta});
+            }
+        } else {
+            count[0] += delta;
+            if (count[0] <= 0) {
+                dir.mTypeCounts.remove(mimeType);
+            }
+        }
+    }
+}
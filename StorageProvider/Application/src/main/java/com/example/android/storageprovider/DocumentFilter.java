@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.storageprovider;
+
+import android.os.Bundle;
+import android.provider.DocumentsContract;
+import android.provider.DocumentsContract.Document;
+
+import java.util.List;
+
+/**
+ * The search filters a client can pass in the query arguments of
+ * {@link android.provider.DocumentsProvider#querySearchDocuments(String, String[], Bundle)}:
+ * MIME types, a minimum last modified time and a minimum size.
+ */
+class DocumentFilter {
+
+    // A filter that lets everything through.
+    static final DocumentFilter NONE = new DocumentFilter(null, -1, -1);
+
+    private final String[] mMimeTypes;
+    private final long mLastModifiedAfter;
+    private final long mSizeOver;
+
+    private DocumentFilter(String[] mimeTypes, long lastModifiedAfter, long sizeOver) {
+        mMimeTypes = mimeTypes;
+        mLastModifiedAfter = lastModifiedAfter;
+        mSizeOver = sizeOver;
+    }
+
+    /**
+     * Reads the filters out of a set of query arguments.
+     *
+     * @param queryArgs the arguments passed to the query, may be null
+     * @return the filter they describe
+     */
+    static DocumentFilter fromQueryArgs(Bundle queryArgs) {
+        if (queryArgs == null) {
+            return NONE;
+        }
+        String[] mimeTypes = queryArgs.getStringArray(DocumentsContract.QUERY_ARG_MIME_TYPES);
+        if (mimeTypes != null && mimeTypes.length == 0) {
+            mimeTypes = null;
+        }
+        return new DocumentFilter(mimeTypes,
+                queryArgs.getLong(DocumentsContract.QUERY_ARG_LAST_MODIFIED_AFTER, -1),
+                queryArgs.getLong(DocumentsContract.QUERY_ARG_FILE_SIZE_OVER, -1));
+    }
+
+    /**
+     * Adds the filter's conditions on the document index's columns to a selection.
+     *
+     * @param selection the selection so far, which must not be empty
+     * @param args      the arguments for the selection so far
+     */
+    void appendSelection(StringBuilder selection, List<String> args) {
+        if (mMimeTypes != null) {
+            selection.append(" AND (");
+            for (int i = 0; i < mMimeTypes.length; i++) {
+                if (i > 0) {
+                    selection.append(" OR ");
+                }
+                final String mimeType = mMimeTypes[i];
+                if (mimeType.endsWith("/*")) {
+                    // A wildcard matches the whole top-level type, e.g. "image/*".
+                    selection.append("substr(").append(Document.COLUMN_MIME_TYPE)
+                            .append(", 1, ?) = ?");
+                    final String prefix = mimeType.substring(0, mimeType.length() - 1);
+                    args.add(Integer.toString(prefix.length()));
+                    args.add(prefix);
+                } else {
+                    selection.append(Document.COLUMN_MIME_TYPE).append(" = ?");
+                    args.add(mimeType);
+                }
+            }
+            selection.append(')');
+        }
+        if (mLastModifiedAfter >= 0) {
+            selection.append(" AND ").append(Document.COLUMN_LAST_MODIFIED).append(" > ?");
+            args.add(Long.toString(mLastModifiedAfter));
+        }
+        if (mSizeOver >= 0) {
+            selection.append(" AND ").append(Document.COLUMN_SIZE).append(" > ?");
+            args.add(Long.toString(mSizeOver));
+        }
+    }
+
+    /**
+     * @return true if a file passes the filter.  Used when there is no index to query.
+     */
+    boolean matches(FileAttributes attributes, String mimeType) {
+        if (mMimeTypes != null && !matchesMimeType(mimeType)) {
+            return false;
+        }
+        if (mLastModifiedAfter >= 0 && attributes.mLastModified <= mLastModifiedAfter) {
+            return false;
+        }
+        return mSizeOver < 0 || attributes.mSize > mSizeOver;
+    }
+
+    private boolean matchesMimeType(String mimeType) {
+        for (String filter : mMimeTypes) {
+            if (filter.endsWith("/*")
+                    ? mimeType.startsWith(filter.substring(0, filter.length() - 1))
+                    : mimeType.equals(filter)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,674 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.storageprovider;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import com.example.android.common.logger.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Hands out document IDs that stay the same when a document is renamed or moved.
+ * <p/>
+ * Each document gets a number when it is first seen.  The table records the number of each
+ * document's parent and its name, rather than its path, so moving a directory changes one entry
+ * however much is below it.  The whole table is kept in memory, in an array indexed by number:
+ * finding the file for an ID, or whether one document is below another, only follows
+ * references, and the file of each document is cached until something is moved or removed.
+ * Looking up a file walks its path in place, without making a string of each name.
+ * <p/>
+ * A new document is written to disk before its ID is handed out, so an ID a client has seen
+ * always finds its document again after a restart.  Callers that give out many IDs at once,
+ * such as a listing, can take them with {@link #assignDocId(File)} and write them all with one
+ * {@link #sync()}.  Moves and removals are written in batches shortly after they happen.
+ * Numbers are reserved on disk a block at a time before any of them is used, so no ID is ever
+ * reused for another document.
+ */
+class DocumentIdTable extends SQLiteOpenHelper {
+    private static final String TAG = "DocumentIdTable";
+
+    static final String DATABASE_NAME = "document_ids.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String TABLE_IDS = "ids";
+    private static final String TABLE_STATE = "state";
+    private static final String COLUMN_ID = "id";
+    private static final String COLUMN_PARENT = "parent";
+    private static final String COLUMN_NAME = "name";
+    private static final String COLUMN_KEY = "key";
+    private static final String COLUMN_VALUE = "value";
+    // The first number not yet reserved.
+    private static final String KEY_NEXT_ID = "next_id";
+
+    private static final int ROOT_ID = 0;
+
+    // How many numbers to reserve at a time.
+    private static final int ID_BLOCK_SIZE = 1024;
+
+    // How long moves and removals wait before they are written, so a large one is one
+    // transaction rather than one per document.
+    private static final long FLUSH_DELAY_MILLIS = 500;
+
+    /**
+     * One document.
+     */
+    private static class Node {
+        final int mId;
+        final String mDocId;
+        Node mParent;
+        String mName;
+        // Created for directories as their children are seen.
+        Children mChildren;
+
+        // The document's file, valid while mFileGeneration is the table's generation.
+        File mFile;
+        int mFileGeneration = -1;
+
+        Node(String prefix, int id, Node parent, String name) {
+            mId = id;
+            mDocId = prefix + id;
+            mParent = parent;
+            mName = name;
+        }
+    }
+
+    /**
+     * The children of a directory by name.  A child can be looked up by a part of a path, which
+     * a map keyed by strings can't do without copying the part out first.
+     */
+    private static class Children {
+        // Open addressing with linear probing; the length is a power of two.
+        private Node[] mSlots = new Node[4];
+        private int mSize;
+
+        /**
+         * @return the child named by path[start, end), or null
+         */
+        Node get(String path, int start, int end) {
+            final int length = end - start;
+            int hash = 0;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + path.charAt(i);
+            }
+            final int mask = mSlots.length - 1;
+            for (int i = slot(hash, mask); ; i = (i + 1) & mask) {
+                final Node node = mSlots[i];
+                if (node == null) {
+                    return null;
+                }
+                // String caches its hash, so this mostly compares numbers.
+                if (node.mName.length() == length && node.mName.hashCode() == hash
+                        && node.mName.regionMatches(0, path, start, length)) {
+                    return node;
+                }
+            }
+        }
+
+        /**
+         * Adds a child, in place of any with the same name.
+         */
+        void put(Node child) {
+            if ((mSize + 1) * 2 > mSlots.length) {
+                final Node[] old = mSlots;
+                mSlots = new Node[old.length * 2];
+                for (Node node : old) {
+                    if (node != null) {
+                        mSlots[findSlot(node.mName)] = node;
+                    }
+                }
+            }
+            final int i = findSlot(child.mName);
+            if (mSlots[i] == null) {
+                mSize++;
+            }
+            mSlots[i] = child;
+        }
+
+        void remove(String name) {
+            int i = findSlot(name);
+            if (mSlots[i] == null) {
+                return;
+            }
+            mSlots[i] = null;
+            mSize--;
+            // Move back any later entries of the run that can no longer be reached past the gap.
+            final int mask = mSlots.length - 1;
+            for (int j = (i + 1) & mask; mSlots[j] != null; j = (j + 1) & mask) {
+                final int home = slot(mSlots[j].mName.hashCode(), mask);
+                final boolean reachable = i <= j ? i < home && home <= j : i < home || home <= j;
+                if (!reachable) {
+                    mSlots[i] = mSlots[j];
+                    mSlots[j] = null;
+                    i = j;
+                }
+            }
+        }
+
+        List<Node> values() {
+            final List<Node> values = new ArrayList<Node>(mSize);
+            for (Node node : mSlots) {
+                if (node != null) {
+                    values.add(node);
+                }
+            }
+            return values;
+        }
+
+        /**
+         * @return the slot holding the child with a name, or the empty one it would go in
+         */
+        private int findSlot(String name) {
+            final int mask = mSlots.length - 1;
+            for (int i = slot(name.hashCode(), mask); ; i = (i + 1) & mask) {
+                if (mSlots[i] == null || mSlots[i].mName.equals(name)) {
+                    return i;
+                }
+            }
+        }
+
+        private static int slot(int hash, int mask) {
+            return (hash ^ (hash >>> 16)) & mask;
+        }
+    }
+
+    private final File mBaseDir;
+
+    // Comes before the number in every ID, so the IDs of different tables never collide.
+    private final String mPrefix;
+
+    // Everything below is guarded by this.
+    private boolean mLoaded;
+    private Node[] mNodes = new Node[ID_BLOCK_SIZE];
+    private int mNextId;
+    private int mReservedUntil;
+    // Goes up whenever a document is moved or removed, which makes every cached file stale.
+    private int mGeneration;
+    // Numbers of documents added, moved or removed since the last write to disk.
+    private final Set<Integer> mDirty = new LinkedHashSet<Integer>();
+    private boolean mFlushScheduled;
+
+    // Held while changes are written, so a sync() waits for a write already under way.  Taken
+    // before this, never while holding it.
+    private final Object mFlushLock = new Object();
+
+    private final HandlerThread mThread = new HandlerThread(TAG);
+    private Handler mHandler;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param context      used to open the database
+     * @param databaseName the database to keep the table in, one per base directory
+     * @param baseDir      the directory at the top of the tree, which gets {@link #ROOT_ID}
+     * @param prefix       put before the number of each ID, may be empty
+     */
+    DocumentIdTable(Context context, String databaseName, File baseDir, String prefix) {
+        super(context, databaseName, null, DATABASE_VERSION);
+        mBaseDir = baseDir;
+        mPrefix = prefix;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_IDS + " ("
+                + COLUMN_ID + " INTEGER PRIMARY KEY NOT NULL, "
+                + COLUMN_PARENT + " INTEGER NOT NULL, "
+                + COLUMN_NAME + " TEXT NOT NULL)");
+        db.execSQL("CREATE TABLE " + TABLE_STATE + " ("
+                + COLUMN_KEY + " TEXT PRIMARY KEY NOT NULL, "
+                + COLUMN_VALUE + " INTEGER NOT NULL)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Nothing to migrate yet.
+    }
+
+    /**
+     * Starts the thread that writes changes to disk.  The table itself is read from disk on
+     * first use.
+     */
+    void start() {
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Writes any changes still waiting and stops the thread.
+     */
+    void stop() {
+        mHandler.removeCallbacks(mFlush);
+        mHandler.post(mFlush);
+        mThread.quitSafely();
+    }
+
+    /**
+     * @param file a file or directory under the base directory, or the base directory itself
+     * @return the document's ID, which is assigned and written to disk now if it doesn't have
+     * one yet
+     */
+    String getDocId(File file) {
+        final String docId = assignDocId(file);
+        sync();
+        return docId;
+    }
+
+    /**
+     * Like {@link #getDocId(File)}, but leaves a new ID to be written later.  The caller must
+     * call {@link #sync()} before the ID leaves the process.
+     */
+    synchronized String assignDocId(File file) {
+        ensureLoaded();
+        return findOrAdd(file).mDocId;
+    }
+
+    /**
+     * Writes every change made so far to disk, including any write already under way.
+     */
+    void sync() {
+        flush();
+    }
+
+    /**
+     * @return the ID of a file, or null if it hasn't been given one or has been removed
+     */
+    synchronized String findDocId(File file) {
+        ensureLoaded();
+        final Node node = find(file);
+        return node != null ? node.mDocId : null;
+    }
+
+    /**
+     * @return the file of a document, or null if the ID isn't one this table handed out or the
+     * document has been removed
+     */
+    synchronized File getFile(String docId) {
+        final Node node = getNode(docId);
+        return node != null ? getFile(node) : null;
+    }
+
+    /**
+     * @return the ID of a document's parent, or null if it has none or the ID is unknown
+     */
+    synchronized String getParentDocId(String docId) {
+        final Node node = getNode(docId);
+        return node != null && node.mParent != null ? node.mParent.mDocId : null;
+    }
+
+    /**
+     * @return true if a document is the given ancestor or somewhere below it
+     */
+    synchronized boolean isAncestor(String ancestorDocId, String docId) {
+        final Node ancestor = getNode(ancestorDocId);
+        if (ancestor == null) {
+            return false;
+        }
+        for (Node node = getNode(docId); node != null; node = node.mParent) {
+            if (node == ancestor) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the IDs from an ancestor down to a document, both included, or null if the
+     * document isn't below the ancestor
+     */
+    synchronized List<String> getPath(String ancestorDocId, String docId) {
+        final Node ancestor = getNode(ancestorDocId);
+        if (ancestor == null) {
+            return null;
+        }
+        final List<String> path = new ArrayList<String>();
+        for (Node node = getNode(docId); node != null; node = node.mParent) {
+            path.add(node.mDocId);
+            if (node == ancestor) {
+                Collections.reverse(path);
+                return path;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Keeps a document's ID, and those of everything below it, after it was renamed or moved.
+     *
+     * @param source the document's old file
+     * @param target its new file
+     */
+    synchronized void move(File source, File target) {
+        ensureLoaded();
+        final Node node = find(source);
+        if (node == null || node.mParent == null) {
+            return;
+        }
+        final Node parent = findOrAdd(target.getParentFile());
+        node.mParent.mChildren.remove(node.mName);
+        // Anything already known at the target was replaced.
+        final String name = target.getName();
+        final Node replaced = getChild(parent, name, 0, name.length());
+        if (replaced != null) {
+            removeTree(replaced);
+        }
+        node.mParent = parent;
+        node.mName = target.getName();
+        addChild(parent, node);
+        mGeneration++;
+        markDirty(node);
+    }
+
+    /**
+     * Forgets a document and everything below it, after it was deleted.
+     */
+    synchronized void remove(File file) {
+        ensureLoaded();
+        final Node node = find(file);
+        if (node == null || node.mParent == null) {
+            return;
+        }
+        node.mParent.mChildren.remove(node.mName);
+        removeTree(node);
+        mGeneration++;
+    }
+
+    private Node getNode(String docId) {
+        ensureLoaded();
+        final int id = parseId(docId);
+        return id >= 0 && id < mNextId ? mNodes[id] : null;
+    }
+
+    /**
+     * @return the number in an ID, or -1 if it isn't one of this table's, without allocating
+     */
+    private int parseId(String docId) {
+        final int start = mPrefix.length();
+        final int length = docId.length();
+        if (length == start || length > start + 9 || !docId.startsWith(mPrefix)) {
+            return -1;
+        }
+        int id = 0;
+        for (int i = start; i < length; i++) {
+            final char c = docId.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            id = id * 10 + (c - '0');
+        }
+        return id;
+    }
+
+    private File getFile(Node node) {
+        if (node.mFileGeneration != mGeneration) {
+            node.mFile = node.mParent == null ? mBaseDir : new File(getFile(node.mParent),
+                    node.mName);
+            node.mFileGeneration = mGeneration;
+        }
+        return node.mFile;
+    }
+
+    /**
+     * @return the node of a file, or null if it hasn't been seen
+     */
+    private Node find(File file) {
+        final String path = file.getAbsolutePath();
+        Node node = mNodes[ROOT_ID];
+        int start = getRelativeStart(path);
+        while (node != null && start < path.length()) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            node = getChild(node, path, start, end);
+            start = end + 1;
+        }
+        return node;
+    }
+
+    private Node findOrAdd(File file) {
+        final String path = file.getAbsolutePath();
+        Node node = mNodes[ROOT_ID];
+        int start = getRelativeStart(path);
+        while (start < path.length()) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = path.length();
+            }
+            Node child = getChild(node, path, start, end);
+            if (child == null) {
+                child = new Node(mPrefix, allocateId(), node, path.substring(start, end));
+                mNodes[child.mId] = child;
+                addChild(node, child);
+                markDirty(child);
+            }
+            node = child;
+            start = end + 1;
+        }
+        return node;
+    }
+
+    private static Node getChild(Node parent, String path, int start, int end) {
+        return parent.mChildren != null ? parent.mChildren.get(path, start, end) : null;
+    }
+
+    private static void addChild(Node parent, Node child) {
+        if (parent.mChildren == null) {
+            parent.mChildren = new Children();
+        }
+        parent.mChildren.put(child);
+    }
+
+    private void removeTree(Node node) {
+        if (node.mChildren != null) {
+            for (Node child : node.mChildren.values()) {
+                removeTree(child);
+            }
+        }
+        mNodes[node.mId] = null;
+        markDirty(node);
+    }
+
+    private int allocateId() {
+        if (mNextId == mReservedUntil) {
+            // Written straight away, so the numbers are never handed out twice.
+            mReservedUntil += ID_BLOCK_SIZE;
+            getWritableDatabase().execSQL("INSERT OR REPLACE INTO " + TABLE_STATE + " ("
+                    + COLUMN_KEY + ", " + COLUMN_VALUE + ") VALUES (?, ?)",
+                    new Object[]{KEY_NEXT_ID, mReservedUntil});
+        }
+        if (mNextId == mNodes.length) {
+            mNodes = Arrays.copyOf(mNodes, mNodes.length * 2);
+        }
+        return mNextId++;
+    }
+
+    private void markDirty(Node node) {
+        mDirty.add(node.mId);
+        if (!mFlushScheduled && mHandler != null) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlush, FLUSH_DELAY_MILLIS);
+        }
+    }
+
+    /**
+     * Writes the changes since the last flush.  Runs on the table's thread, or on the caller's
+     * for {@link #sync()}.
+     */
+    private void flush() {
+        synchronized (mFlushLock) {
+            writeDirty();
+        }
+    }
+
+    private void writeDirty() {
+        final int count;
+        final int[] ids;
+        final int[] parents;
+        final String[] names;
+        synchronized (this) {
+            mFlushScheduled = false;
+            if (mDirty.isEmpty()) {
+                return;
+            }
+            count = mDirty.size();
+            ids = new int[count];
+            parents = new int[count];
+            names = new String[count];
+            int i = 0;
+            for (int id : mDirty) {
+                final Node node = mNodes[id];
+                ids[i] = id;
+                // A removed document is written as having no name.
+                parents[i] = node != null && node.mParent != null ? node.mParent.mId : -1;
+                names[i] = node != null ? node.mName : null;
+                i++;
+            }
+            mDirty.clear();
+        }
+
+        final SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            final SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO "
+                    + TABLE_IDS + " (" + COLUMN_ID + ", " + COLUMN_PARENT + ", " + COLUMN_NAME
+                    + ") VALUES (?, ?, ?)");
+            final SQLiteStatement delete = db.compileStatement("DELETE FROM " + TABLE_IDS
+                    + " WHERE " + COLUMN_ID + " = ?");
+            for (int i = 0; i < count; i++) {
+                if (names[i] == null) {
+                    delete.bindLong(1, ids[i]);
+                    delete.executeUpdateDelete();
+                } else {
+                    insert.bindLong(1, ids[i]);
+                    insert.bindLong(2, parents[i]);
+                    insert.bindString(3, names[i]);
+                    insert.executeInsert();
+                }
+            }
+            insert.close();
+            delete.close();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Reads the table from disk the first time it is needed.
+     */
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        final SQLiteDatabase db = getReadableDatabase();
+        final Cursor state = db.query(TABLE_STATE, new String[]{COLUMN_VALUE},
+                COLUMN_KEY + " = ?", new String[]{KEY_NEXT_ID}, null, null, null);
+        try {
+            // Numbers reserved last time may have been handed out without being written, so
+            // start after all of them.
+            mNextId = state.moveToFirst() ? state.getInt(0) : ROOT_ID + 1;
+            mReservedUntil = mNextId;
+        } finally {
+            state.close();
+        }
+        mNodes = new Node[Math.max(ID_BLOCK_SIZE, Integer.highestOneBit(mNextId) * 2)];
+        mNodes[ROOT_ID] = new Node(mPrefix, ROOT_ID, null, "");
+
+        // Parents can have higher numbers than their children once things move, so create every
+        // node before linking them.
+        final List<int[]> links = new ArrayList<int[]>();
+        final Cursor cursor = db.query(TABLE_IDS,
+                new String[]{COLUMN_ID, COLUMN_PARENT, COLUMN_NAME},
+                null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                final int id = cursor.getInt(0);
+                if (id <= ROOT_ID || id >= mNextId) {
+                    continue;
+                }
+                mNodes[id] = new Node(mPrefix, id, null, cursor.getString(2));
+                links.add(new int[]{id, cursor.getInt(1)});
+            }
+        } finally {
+            cursor.close();
+        }
+        for (int[] link : links) {
+            final Node node = mNodes[link[0]];
+            final Node parent = link[1] >= 0 && link[1] < mNextId ? mNodes[link[1]] : null;
+            if (parent != null) {
+                node.mParent = parent;
+                addChild(parent, node);
+            }
+        }
+        // Anything not connected to the root, for example because its parent's removal was
+        // written but its own wasn't, is dropped.
+        int dropped = 0;
+        for (int[] link : links) {
+            final Node node = mNodes[link[0]];
+            if (node != null && !isConnected(node)) {
+                mNodes[node.mId] = null;
+                markDirty(node);
+                dropped++;
+            }
+        }
+        Log.v(TAG, "Loaded " + (links.size() - dropped) + " document IDs");
+    }
+
+    private boolean isConnected(Node node) {
+        int depth = 0;
+        for (Node current = node; current != null; current = current.mParent) {
+            if (current.mId == ROOT_ID) {
+                return true;
+            }
+            if (mNodes[current.mId] != current || ++depth > mNextId) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return where the path of a file below the base directory starts in its absolute path, or
+     * the path's length for the base directory itself
+     */
+    private int getRelativeStart(String path) {
+        final String rootPath = mBaseDir.getPath();
+        if (path.length() == rootPath.length()) {
+            return path.length();
+        }
+        return rootPath.endsWith("/") ? rootPath.length() : rootPath.length() + 1;
+    }
+}
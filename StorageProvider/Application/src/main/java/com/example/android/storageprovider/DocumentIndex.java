@@ -0,0 +1,812 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.storageprovider;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.provider.DocumentsContract.Document;
+
+import com.example.android.common.logger.Log;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An on-disk table of document metadata, so that listings can be answered with one indexed
+ * range scan instead of a {@link File#listFiles()} plus several stats per row.
+ * <p/>
+ * Rows are keyed by document ID and parent document ID.  The relative path of each document is
+ * stored as well, which lets a whole subtree be found with a single range over the path index.
+ * The index is only a cache of the file system under the base directory: it can always be
+ * thrown away and rebuilt with {@link #rebuild()}, and {@link #verify()} checks it against the
+ * files on disk.
+ * <p/>
+ * Directories are stored with the total size of the files below them, from
+ * {@link DirectoryStats}, rather than the size of the directory file itself.
+ * <p/>
+ * Display names are also indexed by trigram (every run of three characters), which lets a
+ * substring search look up a few short posting lists instead of scanning every name.
+ */
+class DocumentIndex extends SQLiteOpenHelper {
+    private static final String TAG = "DocumentIndex";
+
+    static final String DATABASE_NAME = "document_index.db";
+    // Rows hold their flags, so a change to DocumentRowBuilder.getFlags needs a new version.
+    private static final int DATABASE_VERSION = 5;
+
+    static final String TABLE_DOCUMENTS = "documents";
+    static final String TABLE_TRIGRAMS = "trigrams";
+    static final String TABLE_TRIGRAM_COUNTS = "trigram_counts";
+
+    static final String COLUMN_PARENT_ID = "parent_id";
+    static final String COLUMN_PATH = "path";
+    // The display name folded to lower case, which is what search matches against.
+    static final String COLUMN_NAME_KEY = "name_key";
+    static final String COLUMN_GRAM = "gram";
+    static final String COLUMN_COUNT = "count";
+
+    // A search only needs to intersect the posting lists of its rarest trigrams; every match is
+    // checked against the whole query afterwards anyway.
+    private static final int MAX_SEARCH_TRIGRAMS = 2;
+
+    /**
+     * Maps files under the base directory to the document IDs the provider hands out.
+     */
+    interface DocumentIdMapper {
+        String getDocIdForFile(File file);
+    }
+
+    private final File mBaseDir;
+    private final DocumentIdMapper mMapper;
+
+    // Directory sizes, or null to store the sizes of the directory files.
+    private final DirectoryStats mStats;
+
+    // Set once the index has been verified or rebuilt and can be trusted to answer queries.
+    private volatile boolean mReady;
+
+    DocumentIndex(Context context, String databaseName, File baseDir, DocumentIdMapper mapper,
+                  DirectoryStats stats) {
+        super(context, databaseName, null, DATABASE_VERSION);
+        mBaseDir = baseDir;
+        mMapper = mapper;
+        mStats = stats;
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_DOCUMENTS + " ("
+                + Document.COLUMN_DOCUMENT_ID + " TEXT PRIMARY KEY NOT NULL, "
+                + COLUMN_PARENT_ID + " TEXT, "
+                + COLUMN_PATH + " TEXT NOT NULL UNIQUE, "
+                + Document.COLUMN_DISPLAY_NAME + " TEXT NOT NULL, "
+                + COLUMN_NAME_KEY + " TEXT NOT NULL, "
+                + Document.COLUMN_MIME_TYPE + " TEXT NOT NULL, "
+                + Document.COLUMN_SIZE + " INTEGER NOT NULL, "
+                + Document.COLUMN_LAST_MODIFIED + " INTEGER NOT NULL, "
+                + Document.COLUMN_FLAGS + " INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX documents_parent ON " + TABLE_DOCUMENTS
+                + " (" + COLUMN_PARENT_ID + ")");
+        db.execSQL("CREATE INDEX documents_last_modified ON " + TABLE_DOCUMENTS
+                + " (" + Document.COLUMN_LAST_MODIFIED + ")");
+
+        // One row per distinct trigram of each document's name key.
+        db.execSQL("CREATE TABLE " + TABLE_TRIGRAMS + " ("
+                + COLUMN_GRAM + " TEXT NOT NULL, "
+                + Document.COLUMN_DOCUMENT_ID + " TEXT NOT NULL)");
+        db.execSQL("CREATE UNIQUE INDEX trigrams_gram ON " + TABLE_TRIGRAMS
+                + " (" + COLUMN_GRAM + ", " + Document.COLUMN_DOCUMENT_ID + ")");
+        db.execSQL("CREATE INDEX trigrams_document ON " + TABLE_TRIGRAMS
+                + " (" + Document.COLUMN_DOCUMENT_ID + ")");
+
+        // The length of each posting list, kept up to date by triggers, so a search can start
+        // from the rarest trigrams of its query.
+        db.execSQL("CREATE TABLE " + TABLE_TRIGRAM_COUNTS + " ("
+                + COLUMN_GRAM + " TEXT PRIMARY KEY NOT NULL, "
+                + COLUMN_COUNT + " INTEGER NOT NULL)");
+        db.execSQL("CREATE TRIGGER trigrams_insert AFTER INSERT ON " + TABLE_TRIGRAMS
+                + " BEGIN"
+                + " INSERT OR IGNORE INTO " + TABLE_TRIGRAM_COUNTS
+                + " VALUES (new." + COLUMN_GRAM + ", 0);"
+                + " UPDATE " + TABLE_TRIGRAM_COUNTS + " SET " + COLUMN_COUNT + " = "
+                + COLUMN_COUNT + " + 1 WHERE " + COLUMN_GRAM + " = new." + COLUMN_GRAM + ";"
+                + " END");
+        createDeleteTrigger(db);
+    }
+
+    private static void createDeleteTrigger(SQLiteDatabase db) {
+        db.execSQL("CREATE TRIGGER trigrams_delete AFTER DELETE ON " + TABLE_TRIGRAMS
+                + " BEGIN"
+                + " UPDATE " + TABLE_TRIGRAM_COUNTS + " SET " + COLUMN_COUNT + " = "
+                + COLUMN_COUNT + " - 1 WHERE " + COLUMN_GRAM + " = old." + COLUMN_GRAM + ";"
+                + " END");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // The index only caches what is on disk, so it's always safe to start over.
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_DOCUMENTS);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_TRIGRAMS);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_TRIGRAM_COUNTS);
+        onCreate(db);
+    }
+
+    @Override
+    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        onUpgrade(db, oldVersion, newVersion);
+    }
+
+    /**
+     * @return true once the index matches the base directory and may be used for queries.
+     */
+    boolean isReady() {
+        return mReady;
+    }
+
+    /**
+     * Checks the index against the base directory, rebuilding it if they disagree.  This walks
+     * the whole tree, so call it from a background thread.
+     */
+    void verifyOrRebuild() {
+        if (!verify()) {
+            rebuild();
+        }
+        mReady = true;
+    }
+
+    /**
+     * Throws away every row and indexes the whole base directory again in one transaction.
+     */
+    void rebuild() {
+        final long start = System.currentTimeMillis();
+        final SQLiteDatabase db = getWritableDatabase();
+        int count = 0;
+        db.beginTransaction();
+        try {
+            // With the delete trigger in place, clearing the trigrams would update the counts
+            // once per row.  Without it, each table is emptied in one step.
+            db.execSQL("DROP TRIGGER trigrams_delete");
+            db.execSQL("DELETE FROM " + TABLE_TRIGRAMS);
+            createDeleteTrigger(db);
+            db.execSQL("DELETE FROM " + TABLE_TRIGRAM_COUNTS);
+            db.execSQL("DELETE FROM " + TABLE_DOCUMENTS);
+            final RowWriter writer = new RowWriter(db, true);
+            final ArrayDeque<File> pending = new ArrayDeque<File>();
+            pending.add(mBaseDir);
+            while (!pending.isEmpty()) {
+                final File file = pending.removeFirst();
+                final FileAttributes attributes = FileAttributes.read(file);
+                if (attributes == null) {
+                    continue;
+                }
+                writer.put(file, attributes);
+                count++;
+                final File[] children = attributes.mIsDirectory ? file.listFiles() : null;
+                if (children != null) {
+                    for (File child : children) {
+                        pending.add(child);
+                    }
+                }
+            }
+            writer.close();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        mReady = true;
+        Log.i(TAG, "Rebuilt index of " + count + " documents in "
+                + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Compares every indexed row with the file it describes.
+     *
+     * @return true if every file under the base directory has an up to date row and there are no
+     * rows left over for files that no longer exist.
+     */
+    boolean verify() {
+        return check(false) == 0;
+    }
+
+    /**
+     * Brings the index back in line with the base directory by refreshing only the rows that are
+     * out of date.  This is much cheaper than {@link #rebuild()} when little has changed.
+     *
+     * @return the number of rows that were added, refreshed or removed
+     */
+    int reconcile() {
+        final int fixed = check(true);
+        if (fixed > 0) {
+            Log.i(TAG, "Reconciled " + fixed + " rows");
+        }
+        return fixed;
+    }
+
+    /**
+     * Walks the base directory comparing it with the index.
+     *
+     * @param repair whether to fix the differences found, rather than stopping at the first one
+     * @return the number of differences found
+     */
+    private int check(boolean repair) {
+        final Map<String, long[]> indexed = new HashMap<String, long[]>();
+        final Cursor cursor = getReadableDatabase().query(TABLE_DOCUMENTS,
+                new String[]{COLUMN_PATH, Document.COLUMN_SIZE, Document.COLUMN_LAST_MODIFIED},
+                null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                indexed.put(cursor.getString(0),
+                        new long[]{cursor.getLong(1), cursor.getLong(2)});
+            }
+        } finally {
+            cursor.close();
+        }
+
+        final SQLiteDatabase db = getWritableDatabase();
+        int differences = 0;
+        db.beginTransaction();
+        try {
+            final RowWriter writer = new RowWriter(db, false);
+            final ArrayDeque<File> pending = new ArrayDeque<File>();
+            pending.add(mBaseDir);
+            while (!pending.isEmpty()) {
+                final File file = pending.removeFirst();
+                final long[] row = indexed.remove(getPathForFile(file));
+                final FileAttributes attributes = FileAttributes.read(file);
+                if (attributes == null) {
+                    // Gone since it was listed; the row, if any, is dropped below.
+                    continue;
+                }
+                if (row == null || row[0] != getSize(file, attributes)
+                        || row[1] != attributes.mLastModified) {
+                    differences++;
+                    if (!repair) {
+                        Log.i(TAG, "Index is stale at " + file);
+                        return differences;
+                    }
+                    writer.put(file, attributes);
+                }
+                final File[] children = attributes.mIsDirectory ? file.listFiles() : null;
+                if (children != null) {
+                    for (File child : children) {
+                        pending.add(child);
+                    }
+                }
+            }
+            writer.close();
+
+            // Whatever is left has no file any more.
+            differences += indexed.size();
+            if (repair) {
+                for (String path : indexed.keySet()) {
+                    deleteWhere(db, COLUMN_PATH + " = ?", new String[]{path});
+                }
+            } else if (!indexed.isEmpty()) {
+                Log.i(TAG, "Index has " + indexed.size() + " rows for missing files");
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return differences;
+    }
+
+    /**
+     * Inserts or refreshes the row for a single file.
+     */
+    void put(File file) {
+        final SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            final RowWriter writer = new RowWriter(db, false);
+            final FileAttributes attributes = FileAttributes.read(file);
+            if (attributes != null) {
+                writer.put(file, attributes);
+            }
+            writer.close();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Indexes a file and, if it is a directory, everything below it.
+     */
+    void putTree(File root) {
+        final SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            final RowWriter writer = new RowWriter(db, false);
+            insertTree(writer, root);
+            writer.close();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Brings the rows of a directory's direct children back in line with the file system, after
+     * events for them may have been missed.  Directories that appeared are indexed along with
+     * everything below them, and the rows of children that are gone go along with everything
+     * that was below them.  Nothing else below the directory is read.
+     *
+     * @return the number of rows that were added, refreshed or removed
+     */
+    int reconcileDirectory(File dir) {
+        final FileAttributes dirAttributes = FileAttributes.read(dir);
+        final File[] children = dir.listFiles();
+        if (dirAttributes == null || children == null) {
+            return 0;
+        }
+        final Map<String, long[]> indexed = new HashMap<String, long[]>();
+        final Cursor cursor = getReadableDatabase().query(TABLE_DOCUMENTS,
+                new String[]{Document.COLUMN_DISPLAY_NAME, Document.COLUMN_SIZE,
+                        Document.COLUMN_LAST_MODIFIED},
+                COLUMN_PARENT_ID + " = ?", new String[]{mMapper.getDocIdForFile(dir)},
+                null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                indexed.put(cursor.getString(0),
+                        new long[]{cursor.getLong(1), cursor.getLong(2)});
+            }
+        } finally {
+            cursor.close();
+        }
+
+        final SQLiteDatabase db = getWritableDatabase();
+        int differences = 0;
+        db.beginTransaction();
+        try {
+            final RowWriter writer = new RowWriter(db, false);
+            // Its own row has its modified time, which changed.
+            writer.put(dir, dirAttributes);
+            for (File child : children) {
+                final long[] row = indexed.remove(child.getName());
+                final FileAttributes attributes = FileAttributes.read(child);
+                if (attributes == null) {
+                    continue;
+                }
+                if (row == null) {
+                    differences++;
+                    insertTree(writer, child);
+                } else if (row[0] != getSize(child, attributes)
+                        || row[1] != attributes.mLastModified) {
+                    differences++;
+                    writer.put(child, attributes);
+                }
+            }
+            writer.close();
+            for (String name : indexed.keySet()) {
+                final String path = getPathForFile(new File(dir, name));
+                deleteWhere(db, COLUMN_PATH + " = ? OR (" + COLUMN_PATH + " >= ? AND "
+                        + COLUMN_PATH + " < ?)", new String[]{path, path + '/', path + '0'});
+            }
+            differences += indexed.size();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (differences > 0) {
+            Log.i(TAG, "Reconciled " + differences + " rows in " + dir);
+        }
+        return differences;
+    }
+
+    /**
+     * Writes the rows of a file and everything below it.  Must be called in a transaction.
+     */
+    private void insertTree(RowWriter writer, File root) {
+        final ArrayDeque<File> pending = new ArrayDeque<File>();
+        pending.add(root);
+        while (!pending.isEmpty()) {
+            final File file = pending.removeFirst();
+            final FileAttributes attributes = FileAttributes.read(file);
+            if (attributes == null) {
+                continue;
+            }
+            writer.put(file, attributes);
+            final File[] children = attributes.mIsDirectory ? file.listFiles() : null;
+            if (children != null) {
+                for (File child : children) {
+                    pending.add(child);
+                }
+            }
+        }
+    }
+
+    /**
+     * Refreshes the size of a directory and of every directory above it, after the size of
+     * something below them changed.  Nothing else about them is read again.
+     */
+    void updateDirectorySizes(File dir) {
+        if (mStats == null) {
+            return;
+        }
+        final SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            final SQLiteStatement update = db.compileStatement("UPDATE " + TABLE_DOCUMENTS
+                    + " SET " + Document.COLUMN_SIZE + " = ? WHERE "
+                    + Document.COLUMN_DOCUMENT_ID + " = ?");
+            for (File current = dir; current != null; current = current.getParentFile()) {
+                final long size = mStats.getSize(current);
+                if (size >= 0) {
+                    update.bindLong(1, size);
+                    update.bindString(2, mMapper.getDocIdForFile(current));
+                    update.executeUpdateDelete();
+                }
+                if (current.equals(mBaseDir)) {
+                    break;
+                }
+            }
+            update.close();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Removes the row for a file along with the rows of everything that was below it.
+     */
+    void remove(File file) {
+        final String path = getPathForFile(file);
+        final SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            if (path.isEmpty()) {
+                deleteWhere(db, null, null);
+            } else {
+                // Every descendant path sorts between "path/" and "path0", since '0' follows '/'.
+                deleteWhere(db, COLUMN_PATH + " = ? OR (" + COLUMN_PATH + " >= ? AND "
+                        + COLUMN_PATH + " < ?)", new String[]{path, path + '/', path + '0'});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Deletes document rows along with their trigrams.  Must be called in a transaction.
+     */
+    private static void deleteWhere(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        db.execSQL("DELETE FROM " + TABLE_TRIGRAMS + " WHERE " + Document.COLUMN_DOCUMENT_ID
+                + " IN (SELECT " + Document.COLUMN_DOCUMENT_ID + " FROM " + TABLE_DOCUMENTS
+                + (selection != null ? " WHERE " + selection : "") + ")",
+                selectionArgs != null ? selectionArgs : new String[0]);
+        db.delete(TABLE_DOCUMENTS, selection, selectionArgs);
+    }
+
+    /**
+     * @return a cursor over the document with the given ID, using the requested projection.
+     */
+    Cursor queryDocument(String documentId, String[] projection) {
+        return getReadableDatabase().query(TABLE_DOCUMENTS, buildProjection(projection),
+                Document.COLUMN_DOCUMENT_ID + " = ?", new String[]{documentId},
+                null, null, null);
+    }
+
+    /**
+     * @param order  how to sort the children
+     * @param offset how many children to skip
+     * @param limit  the most children to return
+     * @return a cursor over one page of the direct children of the given directory, read with a
+     * single scan of the parent index.
+     */
+    Cursor queryChildDocuments(String parentDocumentId, String[] projection,
+                               DocumentSortOrder order, int offset, int limit) {
+        return getReadableDatabase().query(TABLE_DOCUMENTS, buildProjection(projection),
+                COLUMN_PARENT_ID + " = ?", new String[]{parentDocumentId},
+                // query() checks the limit against "n" or "offset,n"; SQLite reads the latter
+                // as LIMIT n OFFSET offset.
+                null, null, order.getOrderBy(), offset + "," + limit);
+    }
+
+    /**
+     * @return how many direct children the given directory has.
+     */
+    int countChildDocuments(String parentDocumentId) {
+        return (int) DatabaseUtils.queryNumEntries(getReadableDatabase(), TABLE_DOCUMENTS,
+                COLUMN_PARENT_ID + " = ?", new String[]{parentDocumentId});
+    }
+
+    /**
+     * @return a cursor over the most recently modified files, newest first.
+     */
+    Cursor queryRecentDocuments(String[] projection, int limit) {
+        return getReadableDatabase().query(TABLE_DOCUMENTS, buildProjection(projection),
+                Document.COLUMN_MIME_TYPE + " != ?", new String[]{Document.MIME_TYPE_DIR},
+                null, null, Document.COLUMN_LAST_MODIFIED + " DESC", Integer.toString(limit));
+    }
+
+    /**
+     * Searches the index.  Matches are ranked with exact names first, then names that start with
+     * the query, then names that merely contain it, and newest first within each group.
+     *
+     * @param query      text the display name must contain, ignoring case, or null to match on
+     *                   the filter alone
+     * @param filter     further conditions on the type, size and age of the files
+     * @param projection the columns to return
+     * @param limit      the maximum number of rows
+     * @return a cursor over matching files
+     */
+    Cursor querySearchDocuments(String query, DocumentFilter filter, String[] projection,
+                                int limit) {
+        final StringBuilder selection = new StringBuilder();
+        final List<String> args = new ArrayList<String>();
+        selection.append(Document.COLUMN_MIME_TYPE).append(" != ?");
+        args.add(Document.MIME_TYPE_DIR);
+
+        String orderBy = Document.COLUMN_LAST_MODIFIED + " DESC";
+        final SQLiteDatabase db = getReadableDatabase();
+        final String key = query != null ? getNameKey(query) : "";
+        if (!key.isEmpty()) {
+            // Narrow the candidates down to the documents that have the query's rarest
+            // trigrams, which the index finds without looking at any names.
+            final List<String> grams = getRarestTrigrams(db, key);
+            if (!grams.isEmpty()) {
+                selection.append(" AND ").append(Document.COLUMN_DOCUMENT_ID)
+                        .append(" IN (SELECT ").append(Document.COLUMN_DOCUMENT_ID)
+                        .append(" FROM ").append(TABLE_TRIGRAMS)
+                        .append(" WHERE ").append(COLUMN_GRAM).append(" IN (");
+                for (int i = 0; i < grams.size(); i++) {
+                    selection.append(i == 0 ? "?" : ", ?");
+                    args.add(grams.get(i));
+                }
+                selection.append(") GROUP BY ").append(Document.COLUMN_DOCUMENT_ID)
+                        .append(" HAVING COUNT(*) = ").append(grams.size()).append(')');
+            }
+            // Then check each candidate against the whole query.
+            final String escaped = escapeLike(key);
+            selection.append(" AND ").append(COLUMN_NAME_KEY).append(" LIKE ? ESCAPE '\\'");
+            args.add('%' + escaped + '%');
+
+            orderBy = "CASE WHEN " + COLUMN_NAME_KEY + " = " + DatabaseUtils.sqlEscapeString(key)
+                    + " OR " + COLUMN_NAME_KEY + " LIKE "
+                    + DatabaseUtils.sqlEscapeString(escaped + ".%") + " ESCAPE '\\' THEN 0"
+                    + " WHEN " + COLUMN_NAME_KEY + " LIKE "
+                    + DatabaseUtils.sqlEscapeString(escaped + '%') + " ESCAPE '\\' THEN 1"
+                    + " ELSE 2 END, " + orderBy;
+        }
+        filter.appendSelection(selection, args);
+
+        return db.query(TABLE_DOCUMENTS, buildProjection(projection), selection.toString(),
+                args.toArray(new String[args.size()]), null, null, orderBy,
+                Integer.toString(limit));
+    }
+
+    /**
+     * @return up to {@link #MAX_SEARCH_TRIGRAMS} of the key's trigrams, those with the shortest
+     * posting lists first.  Empty if the key is too short to have any.
+     */
+    private static List<String> getRarestTrigrams(SQLiteDatabase db, String key) {
+        final Set<String> grams = getTrigrams(key);
+        final List<String> rarest = new ArrayList<String>(MAX_SEARCH_TRIGRAMS);
+        if (grams.isEmpty()) {
+            return rarest;
+        }
+        final StringBuilder selection = new StringBuilder(COLUMN_GRAM).append(" IN (");
+        int i = 0;
+        for (String ignored : grams) {
+            selection.append(i++ == 0 ? "?" : ", ?");
+        }
+        selection.append(')');
+        final Map<String, Long> counts = new HashMap<String, Long>();
+        final Cursor cursor = db.query(TABLE_TRIGRAM_COUNTS,
+                new String[]{COLUMN_GRAM, COLUMN_COUNT}, selection.toString(),
+                grams.toArray(new String[grams.size()]), null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                counts.put(cursor.getString(0), cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        final List<String> sorted = new ArrayList<String>(grams);
+        for (String gram : sorted) {
+            final Long count = counts.get(gram);
+            if (count == null || count == 0) {
+                // No name has this trigram, so nothing can match.  Searching for it alone
+                // comes back empty straight away.
+                rarest.add(gram);
+                return rarest;
+            }
+        }
+        Collections.sort(sorted, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return Long.compare(counts.get(a), counts.get(b));
+            }
+        });
+        rarest.addAll(sorted.subList(0, Math.min(MAX_SEARCH_TRIGRAMS, sorted.size())));
+        return rarest;
+    }
+
+    /**
+     * @return the distinct runs of three characters in a name key.
+     */
+    static Set<String> getTrigrams(String key) {
+        final Set<String> grams = new LinkedHashSet<String>();
+        for (int i = 0; i + 3 <= key.length(); i++) {
+            grams.add(key.substring(i, i + 3));
+        }
+        return grams;
+    }
+
+    /**
+     * @return the form of a display name or query that search compares.
+     */
+    static String getNameKey(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    private static String escapeLike(String text) {
+        return text.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+
+    /**
+     * Turns a document projection into SQL columns.  The icon isn't stored, so it is returned as
+     * a constant, and any column the index doesn't know about comes back as null.
+     */
+    private static String[] buildProjection(String[] projection) {
+        final String[] columns = new String[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            final String column = projection[i];
+            if (Document.COLUMN_DOCUMENT_ID.equals(column)
+                    || Document.COLUMN_DISPLAY_NAME.equals(column)
+                    || Document.COLUMN_MIME_TYPE.equals(column)
+                    || Document.COLUMN_SIZE.equals(column)
+                    || Document.COLUMN_LAST_MODIFIED.equals(column)
+                    || Document.COLUMN_FLAGS.equals(column)) {
+                columns[i] = column;
+            } else if (Document.COLUMN_ICON.equals(column)) {
+                columns[i] = R.drawable.ic_launcher + " AS " + column;
+            } else {
+                columns[i] = "NULL AS \"" + column.replace("\"", "\"\"") + "\"";
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * Writes rows along with their trigrams.  The statements are compiled once, so a writer is
+     * made for each transaction and closed before it ends.
+     */
+    private class RowWriter {
+        private final SQLiteStatement mInsert;
+        private final SQLiteStatement mDeleteGrams;
+        private final SQLiteStatement mDeleteReplacedGrams;
+        private final SQLiteStatement mInsertGram;
+        // Whether the tables were just emptied, so no row has trigrams to replace.
+        private final boolean mEmpty;
+
+        RowWriter(SQLiteDatabase db, boolean empty) {
+            mInsert = db.compileStatement("INSERT OR REPLACE INTO " + TABLE_DOCUMENTS + " ("
+                    + Document.COLUMN_DOCUMENT_ID + ", "
+                    + COLUMN_PARENT_ID + ", "
+                    + COLUMN_PATH + ", "
+                    + Document.COLUMN_DISPLAY_NAME + ", "
+                    + COLUMN_NAME_KEY + ", "
+                    + Document.COLUMN_MIME_TYPE + ", "
+                    + Document.COLUMN_SIZE + ", "
+                    + Document.COLUMN_LAST_MODIFIED + ", "
+                    + Document.COLUMN_FLAGS + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+            mDeleteGrams = db.compileStatement("DELETE FROM " + TABLE_TRIGRAMS + " WHERE "
+                    + Document.COLUMN_DOCUMENT_ID + " = ?");
+            // A row for the same path under another ID is replaced along with the new one, since
+            // paths are unique, but its trigrams would stay behind.
+            mDeleteReplacedGrams = db.compileStatement("DELETE FROM " + TABLE_TRIGRAMS + " WHERE "
+                    + Document.COLUMN_DOCUMENT_ID + " = (SELECT " + Document.COLUMN_DOCUMENT_ID
+                    + " FROM " + TABLE_DOCUMENTS + " WHERE " + COLUMN_PATH + " = ? AND "
+                    + Document.COLUMN_DOCUMENT_ID + " != ?)");
+            mInsertGram = db.compileStatement("INSERT OR IGNORE INTO " + TABLE_TRIGRAMS + " ("
+                    + COLUMN_GRAM + ", " + Document.COLUMN_DOCUMENT_ID + ") VALUES (?, ?)");
+            mEmpty = empty;
+        }
+
+        /**
+         * Writes the row for a file and replaces its trigrams.
+         */
+        void put(File file, FileAttributes attributes) {
+            final String mimeType = DocumentRowBuilder.getTypeForFile(file.getName(), attributes);
+            final String documentId = mMapper.getDocIdForFile(file);
+            final String nameKey = getNameKey(file.getName());
+            final String path = getPathForFile(file);
+            if (!mEmpty) {
+                mDeleteReplacedGrams.bindString(1, path);
+                mDeleteReplacedGrams.bindString(2, documentId);
+                mDeleteReplacedGrams.executeUpdateDelete();
+            }
+            mInsert.clearBindings();
+            mInsert.bindString(1, documentId);
+            if (file.equals(mBaseDir)) {
+                mInsert.bindNull(2);
+            } else {
+                mInsert.bindString(2, mMapper.getDocIdForFile(file.getParentFile()));
+            }
+            mInsert.bindString(3, path);
+            mInsert.bindString(4, file.getName());
+            mInsert.bindString(5, nameKey);
+            mInsert.bindString(6, mimeType);
+            mInsert.bindLong(7, getSize(file, attributes));
+            mInsert.bindLong(8, attributes.mLastModified);
+            mInsert.bindLong(9, DocumentRowBuilder.getFlags(attributes, mimeType));
+            mInsert.executeInsert();
+
+            if (!mEmpty) {
+                mDeleteGrams.bindString(1, documentId);
+                mDeleteGrams.executeUpdateDelete();
+            }
+            mInsertGram.bindString(2, documentId);
+            for (String gram : getTrigrams(nameKey)) {
+                mInsertGram.bindString(1, gram);
+                mInsertGram.executeInsert();
+            }
+        }
+
+        void close() {
+            mInsert.close();
+            mDeleteGrams.close();
+            mDeleteReplacedGrams.close();
+            mInsertGram.close();
+        }
+    }
+
+    /**
+     * @return the size to store for a file: its own, or for a directory the total of the files
+     * below it if that is known.
+     */
+    private long getSize(File file, FileAttributes attributes) {
+        if (attributes.mIsDirectory && mStats != null) {
+            final long size = mStats.getSize(file);
+            if (size >= 0) {
+                return size;
+            }
+        }
+        return attributes.mSize;
+    }
+
+    /**
+     * @return the path of a file relative to the base directory, or "" for the base directory.
+     */
+    private String getPathForFile(File file) {
+        final String path = file.getAbsolutePath();
+        final String rootPath = mBaseDir.getAbsolutePath();
+        if (path.length() <= rootPath.length()) {
+            return "";
+        }
+        return path.substring(rootPath.endsWith("/") ? rootPath.length() : rootPath.length() + 1);
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.storageprovider;
+
+import com.example.android.common.logger.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reader/writer locks on documents, so that operations on the same document arriving on
+ * different binder threads take turns while operations on unrelated documents run side by side.
+ * <p/>
+ * Locking a document for reading or writing also takes an intent lock on every directory above
+ * it.  Intent locks don't conflict with each other, but they do conflict with a write lock on
+ * the directory, so renaming, moving or deleting a directory waits for everything going on
+ * below it and keeps new work out until it's done, without anyone having to lock each
+ * descendant.
+ * <p/>
+ * All the locks an operation needs are taken up front, in order of document ID, and released
+ * together, so two operations can never wait for each other.  Locks are kept in a table
+ * striped by document ID; a lock only exists while someone holds or wants it.
+ * <p/>
+ * How long each kind of operation waited is recorded, see {@link #getReport()}.
+ */
+class DocumentLocks {
+    private static final String TAG = "DocumentLocks";
+
+    // Lock modes, weakest first: intent to read below, intent to write below, read, write.
+    private static final int MODE_INTENT_READ = 0;
+    private static final int MODE_INTENT_WRITE = 1;
+    private static final int MODE_READ = 2;
+    private static final int MODE_WRITE = 3;
+    private static final int MODE_COUNT = 4;
+
+    private static final boolean[][] COMPATIBLE = {
+            // INTENT_READ, INTENT_WRITE, READ, WRITE
+            {true, true, true, false},
+            {true, true, false, false},
+            {true, false, true, false},
+            {false, false, false, false},
+    };
+
+    private static final int STRIPES = 16;
+
+    // Waits longer than this are logged as they happen.
+    private static final long SLOW_WAIT_MILLIS = 100;
+
+    /**
+     * Finds the directories above a document.
+     */
+    interface Ancestry {
+        /**
+         * @return the IDs of the directories above a document, or an empty list if it has none
+         * or is unknown
+         */
+        List<String> getAncestors(String docId);
+    }
+
+    /**
+     * The state of one document's lock.  Guarded by its stripe for mUsers, and by itself for
+     * the rest.
+     */
+    private static class Lock {
+        final int[] mHeld = new int[MODE_COUNT];
+        // How many threads hold or are waiting for this lock.
+        int mUsers;
+
+        boolean isCompatible(int mode) {
+            for (int held = 0; held < MODE_COUNT; held++) {
+                if (mHeld[held] > 0 && !COMPATIBLE[mode][held]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * How long one kind of operation has waited for its locks.
+     */
+    private static class WaitStats {
+        final AtomicLong mCount = new AtomicLong();
+        final AtomicLong mTotalNanos = new AtomicLong();
+        final AtomicLong mMaxNanos = new AtomicLong();
+
+        void add(long nanos) {
+            mCount.incrementAndGet();
+            mTotalNanos.addAndGet(nanos);
+            long max = mMaxNanos.get();
+            while (nanos > max && !mMaxNanos.compareAndSet(max, nanos)) {
+                max = mMaxNanos.get();
+            }
+        }
+    }
+
+    /**
+     * The locks one operation wants, collected before any are taken.
+     */
+    class Request {
+        private final String mOperation;
+        // Sorted by document ID, which is the order they are taken in.
+        private final TreeMap<String, Integer> mModes = new TreeMap<String, Integer>();
+
+        private Request(String operation) {
+            mOperation = operation;
+        }
+
+        /**
+         * Adds a read lock on a document, for an operation that only looks at it.
+         */
+        Request read(String docId) {
+            return add(docId, MODE_READ, MODE_INTENT_READ);
+        }
+
+        /**
+         * Adds a write lock on a document, for an operation that changes, moves or removes it
+         * or anything below it.
+         */
+        Request write(String docId) {
+            return add(docId, MODE_WRITE, MODE_INTENT_WRITE);
+        }
+
+        private Request add(String docId, int mode, int intentMode) {
+            for (String ancestor : mAncestry.getAncestors(docId)) {
+                merge(ancestor, intentMode);
+            }
+            merge(docId, mode);
+            return this;
+        }
+
+        private void merge(String docId, int mode) {
+            final Integer current = mModes.get(docId);
+            mModes.put(docId, current == null ? mode : combine(current, mode));
+        }
+
+        /**
+         * Waits for and takes every lock in the request.
+         *
+         * @return the locks, to be released once the operation is done
+         */
+        Held acquire() {
+            final long start = System.nanoTime();
+            final List<String> docIds = new ArrayList<String>(mModes.size());
+            final int[] modes = new int[mModes.size()];
+            boolean interrupted = false;
+            for (Map.Entry<String, Integer> entry : mModes.entrySet()) {
+                modes[docIds.size()] = entry.getValue();
+                docIds.add(entry.getKey());
+                interrupted |= lock(entry.getKey(), entry.getValue());
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            recordWait(mOperation, System.nanoTime() - start);
+            return new Held(docIds, modes);
+        }
+    }
+
+    /**
+     * Locks taken by {@link Request#acquire()}.
+     */
+    class Held {
+        private final List<String> mDocIds;
+        private final int[] mModes;
+        private boolean mReleased;
+
+        private Held(List<String> docIds, int[] modes) {
+            mDocIds = docIds;
+            mModes = modes;
+        }
+
+        /**
+         * Releases the locks.  Calling this more than once does nothing.
+         */
+        void release() {
+            synchronized (this) {
+                if (mReleased) {
+                    return;
+                }
+                mReleased = true;
+            }
+            for (int i = mDocIds.size() - 1; i >= 0; i--) {
+                unlock(mDocIds.get(i), mModes[i]);
+            }
+        }
+    }
+
+    private final Ancestry mAncestry;
+    private final List<HashMap<String, Lock>> mStripes =
+            new ArrayList<HashMap<String, Lock>>(STRIPES);
+    private final ConcurrentHashMap<String, WaitStats> mWaits =
+            new ConcurrentHashMap<String, WaitStats>();
+
+    DocumentLocks(Ancestry ancestry) {
+        mAncestry = ancestry;
+        for (int i = 0; i < STRIPES; i++) {
+            mStripes.add(new HashMap<String, Lock>());
+        }
+    }
+
+    /**
+     * Starts collecting the locks for an operation.
+     *
+     * @param operation what the operation is called in {@link #getReport()}
+     */
+    Request newRequest(String operation) {
+        return new Request(operation);
+    }
+
+    /**
+     * @return how many times each kind of operation took its locks, and how long it waited on
+     * average and at most
+     */
+    String getReport() {
+        final StringBuilder report = new StringBuilder();
+        for (Map.Entry<String, WaitStats> entry : new TreeMap<String, WaitStats>(mWaits)
+                .entrySet()) {
+            final WaitStats stats = entry.getValue();
+            final long count = stats.mCount.get();
+            report.append(entry.getKey())
+                    .append(": ").append(count).append(" locked, wait avg ")
+                    .append(count > 0 ? stats.mTotalNanos.get() / count / 1000 : 0)
+                    .append("us, max ").append(stats.mMaxNanos.get() / 1000).append("us\n");
+        }
+        return report.toString();
+    }
+
+    /**
+     * @return true if the thread was interrupted while waiting
+     */
+    private boolean lock(String docId, int mode) {
+        final HashMap<String, Lock> stripe = getStripe(docId);
+        Lock lock;
+        synchronized (stripe) {
+            lock = stripe.get(docId);
+            if (lock == null) {
+                lock = new Lock();
+                stripe.put(docId, lock);
+            }
+            lock.mUsers++;
+        }
+        boolean interrupted = false;
+        synchronized (lock) {
+            while (!lock.isCompatible(mode)) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    // Give up the interrupt rather than the lock; the caller is told afterwards.
+                    interrupted = true;
+                }
+            }
+            lock.mHeld[mode]++;
+        }
+        return interrupted;
+    }
+
+    private void unlock(String docId, int mode) {
+        final HashMap<String, Lock> stripe = getStripe(docId);
+        final Lock lock;
+        synchronized (stripe) {
+            lock = stripe.get(docId);
+        }
+        synchronized (lock) {
+            lock.mHeld[mode]--;
+            lock.notifyAll();
+        }
+        synchronized (stripe) {
+            if (--lock.mUsers == 0) {
+                stripe.remove(docId);
+            }
+        }
+    }
+
+    private HashMap<String, Lock> getStripe(String docId) {
+        return mStripes.get((docId.hashCode() & 0x7fffffff) % STRIPES);
+    }
+
+    private void recordWait(String operation, long nanos) {
+        WaitStats stats = mWaits.get(operation);
+        if (stats == null) {
+            mWaits.putIfAbsent(operation, new WaitStats());
+            stats = mWaits.get(operation);
+        }
+        stats.add(nanos);
+        final long millis = nanos / 1000000;
+        if (millis >= SLOW_WAIT_MILLIS) {
+            Log.w(TAG, operation + " waited " + millis + "ms for its locks");
+        }
+    }
+
+    /**
+     * @return the weakest mode that grants both
+     */
+    private static int combine(int a, int b) {
+        if (a == b || b == MODE_INTENT_READ) {
+            return a;
+        }
+        if (a == MODE_INTENT_READ) {
+            return b;
+        }
+        // Intent to write below along with reading the whole thing needs the whole thing.
+        return MODE_WRITE;
+    }
+}
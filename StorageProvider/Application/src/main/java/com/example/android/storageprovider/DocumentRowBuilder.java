@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.storageprovider;
+
+import static android.os.Build.VERSION.SDK_INT;
+
+import android.database.MatrixCursor;
+import android.os.Build;
+import android.provider.DocumentsContract.Document;
+
+/**
+ * Fills document rows for one projection, computing only the columns it asks for.
+ * <p/>
+ * The projection is resolved to a list of column kinds once, up front, so adding a row is a
+ * walk over an int array rather than a lookup of every column name.  The MIME type and flags,
+ * the two costly columns, are only worked out if the projection includes them.
+ */
+class DocumentRowBuilder {
+    private static final int COLUMN_UNKNOWN = 0;
+    private static final int COLUMN_DOCUMENT_ID = 1;
+    private static final int COLUMN_DISPLAY_NAME = 2;
+    private static final int COLUMN_SIZE = 3;
+    private static final int COLUMN_MIME_TYPE = 4;
+    private static final int COLUMN_LAST_MODIFIED = 5;
+    private static final int COLUMN_FLAGS = 6;
+    private static final int COLUMN_ICON = 7;
+
+    private final String[] mProjection;
+    private final int[] mColumns;
+    private final boolean mNeedsDocumentId;
+    private final boolean mNeedsMimeType;
+
+    /**
+     * @param projection the document columns to fill, in order
+     */
+    DocumentRowBuilder(String[] projection) {
+        mProjection = projection;
+        mColumns = new int[projection.length];
+        boolean needsDocumentId = false;
+        boolean needsMimeType = false;
+        for (int i = 0; i < projection.length; i++) {
+            final int column = getColumnKind(projection[i]);
+            mColumns[i] = column;
+            needsDocumentId |= column == COLUMN_DOCUMENT_ID;
+            needsMimeType |= column == COLUMN_MIME_TYPE || column == COLUMN_FLAGS;
+        }
+        mNeedsDocumentId = needsDocumentId;
+        mNeedsMimeType = needsMimeType;
+    }
+
+    /**
+     * @return the projection rows are built for
+     */
+    String[] getProjection() {
+        return mProjection;
+    }
+
+    /**
+     * @return true if the projection includes the document ID, which callers may then skip
+     * computing
+     */
+    boolean needsDocumentId() {
+        return mNeedsDocumentId;
+    }
+
+    /**
+     * @return a new, empty cursor with this builder's projection
+     */
+    MatrixCursor newCursor() {
+        return new MatrixCursor(mProjection);
+    }
+
+    /**
+     * Adds a row for a document.
+     *
+     * @param cursor      a cursor with this builder's projection
+     * @param documentId  the document's ID; may be null if {@link #needsDocumentId()} is false
+     * @param displayName the document's name
+     * @param attributes  the attributes of the file behind the document
+     */
+    void addRow(MatrixCursor cursor, String documentId, String displayName,
+                FileAttributes attributes) {
+        final String mimeType = mNeedsMimeType ? getTypeForFile(displayName, attributes) : null;
+        final Object[] values = new Object[mColumns.length];
+        for (int i = 0; i < mColumns.length; i++) {
+            switch (mColumns[i]) {
+                case COLUMN_DOCUMENT_ID:
+                    values[i] = documentId;
+                    break;
+                case COLUMN_DISPLAY_NAME:
+                    values[i] = displayName;
+                    break;
+                case COLUMN_SIZE:
+                    values[i] = attributes.mSize;
+                    break;
+                case COLUMN_MIME_TYPE:
+                    values[i] = mimeType;
+                    break;
+                case COLUMN_LAST_MODIFIED:
+                    values[i] = attributes.mLastModified;
+                    break;
+                case COLUMN_FLAGS:
+                    values[i] = getFlags(attributes, mimeType);
+                    break;
+                case COLUMN_ICON:
+                    // Add a custom icon
+                    values[i] = R.drawable.ic_launcher;
+                    break;
+                default:
+                    break;
+            }
+        }
+        cursor.addRow(values);
+    }
+
+    /**
+     * Get a file's MIME type
+     *
+     * @param name       the file's name
+     * @param attributes the file's attributes
+     * @return the MIME type of the file
+     */
+    static String getTypeForFile(String name, FileAttributes attributes) {
+        return attributes.mIsDirectory ? Document.MIME_TYPE_DIR : MimeTypes.getTypeForName(name);
+    }
+
+    /**
+     * Work out which operations a document supports.
+     *
+     * @param attributes the attributes of the file representing the document
+     * @param mimeType   the MIME type of the document
+     * @return the {@link Document#COLUMN_FLAGS} value for the document
+     */
+    static int getFlags(FileAttributes attributes, String mimeType) {
+        int flags = 0;
+
+        if (attributes.mIsDirectory) {
+            // Request the folder to lay out as a grid rather than a list. This also allows a larger
+            // thumbnail to be displayed for each image.
+            //            flags |= Document.FLAG_DIR_PREFERS_GRID;
+
+            // A writable directory can be created in, and deleted, renamed, moved and copied
+            // along with everything in it.  Deleting and copying a tree need the provider's
+            // TreeOperations, from Lollipop.
+            if (attributes.mIsWritable) {
+                flags |= Document.FLAG_DIR_SUPPORTS_CREATE;
+                if (SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                    flags |= Document.FLAG_SUPPORTS_DELETE;
+                    flags |= Document.FLAG_SUPPORTS_RENAME;
+                }
+                if (SDK_INT >= Build.VERSION_CODES.N) {
+                    flags |= Document.FLAG_SUPPORTS_REMOVE;
+                    flags |= Document.FLAG_SUPPORTS_MOVE;
+                    flags |= Document.FLAG_SUPPORTS_COPY;
+                }
+            }
+        } else if (attributes.mIsWritable) {
+            // If the file is writable set FLAG_SUPPORTS_WRITE and
+            // FLAG_SUPPORTS_DELETE
+            flags |= Document.FLAG_SUPPORTS_WRITE;
+            flags |= Document.FLAG_SUPPORTS_DELETE;
+
+            // Add SDK specific flags if appropriate
+            if (SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                flags |= Document.FLAG_SUPPORTS_RENAME;
+            }
+            if (SDK_INT >= Build.VERSION_CODES.N) {
+                flags |= Document.FLAG_SUPPORTS_REMOVE;
+                flags |= Document.FLAG_SUPPORTS_MOVE;
+                flags |= Document.FLAG_SUPPORTS_COPY;
+            }
+        }
+
+        if (mimeType.startsWith("image/")) {
+            // Allow the image to be represented by a thumbnail rather than an icon
+            flags |= Document.FLAG_SUPPORTS_THUMBNAIL;
+        }
+        return flags;
+    }
+
+    private static int getColumnKind(String column) {
+        if (Document.COLUMN_DOCUMENT_ID.equals(column)) {
+            return COLUMN_DOCUMENT_ID;
+        } else if (Document.COLUMN_DISPLAY_NAME.equals(column)) {
+            return COLUMN_DISPLAY_NAME;
+        } else if (Document.COLUMN_SIZE.equals(column)) {
+            return COLUMN_SIZE;
+        } else if (Document.COLUMN_MIME_TYPE.equals(column)) {
+            return COLUMN_MIME_TYPE;
+        } else if (Document.COLUMN_LAST_MODIFIED.equals(column)) {
+            return COLUMN_LAST_MODIFIED;
+        } else if (Document.COLUMN_FLAGS.equals(column)) {
+            return COLUMN_FLAGS;
+        } else if (Document.COLUMN_ICON.equals(column)) {
+            return COLUMN_ICON;
+        }
+        return COLUMN_UNKNOWN;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.storageprovider;
+
+import android.content.ContentResolver;
+import android.os.Bundle;
+import android.provider.DocumentsContract.Document;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The order a client asked for child documents in: by name, size, last modified time or MIME
+ * type, ascending or descending.  Ties are broken by name.
+ * <p/>
+ * Only the first sort column is honored.  Without a usable sort order, children are listed by
+ * name, so that pages of a listing fit together.
+ */
+class DocumentSortOrder {
+    static final int BY_NAME = 0;
+    static final int BY_SIZE = 1;
+    static final int BY_LAST_MODIFIED = 2;
+    static final int BY_MIME_TYPE = 3;
+
+    // How many distinct orders there are, see getId().
+    static final int COUNT = 8;
+
+    static final DocumentSortOrder DEFAULT = new DocumentSortOrder(BY_NAME, false);
+
+    final int mColumn;
+    final boolean mDescending;
+
+    private DocumentSortOrder(int column, boolean descending) {
+        mColumn = column;
+        mDescending = descending;
+    }
+
+    /**
+     * Reads a SQL-style sort order such as "_size DESC".
+     *
+     * @param sortOrder the sort order passed to the query, may be null
+     * @return the order it describes, or {@link #DEFAULT} if it names no document column
+     */
+    static DocumentSortOrder fromSortOrder(String sortOrder) {
+        final DocumentSortOrder order = parse(sortOrder);
+        return order != null ? order : DEFAULT;
+    }
+
+    /**
+     * Reads the sort order out of a set of query arguments.
+     *
+     * @param queryArgs   the arguments passed to the query, may be null
+     * @param honoredArgs the names of the arguments that were used are added to this list
+     * @return the order they describe, or {@link #DEFAULT} if they don't name one
+     */
+    static DocumentSortOrder fromQueryArgs(Bundle queryArgs, List<String> honoredArgs) {
+        if (queryArgs == null) {
+            return DEFAULT;
+        }
+        final String sqlSortOrder = queryArgs.getString(ContentResolver.QUERY_ARG_SQL_SORT_ORDER);
+        DocumentSortOrder order = parse(sqlSortOrder);
+        if (order != null) {
+            honoredArgs.add(ContentResolver.QUERY_ARG_SQL_SORT_ORDER);
+            return order;
+        }
+
+        final String[] columns = queryArgs.getStringArray(ContentResolver.QUERY_ARG_SORT_COLUMNS);
+        if (columns == null || columns.length == 0) {
+            return DEFAULT;
+        }
+        final int column = getColumn(columns[0]);
+        if (column < 0) {
+            return DEFAULT;
+        }
+        honoredArgs.add(ContentResolver.QUERY_ARG_SORT_COLUMNS);
+        if (queryArgs.containsKey(ContentResolver.QUERY_ARG_SORT_DIRECTION)) {
+            honoredArgs.add(ContentResolver.QUERY_ARG_SORT_DIRECTION);
+        }
+        return new DocumentSortOrder(column, queryArgs.getInt(
+                ContentResolver.QUERY_ARG_SORT_DIRECTION,
+                ContentResolver.QUERY_SORT_DIRECTION_ASCENDING)
+                == ContentResolver.QUERY_SORT_DIRECTION_DESCENDING);
+    }
+
+    /**
+     * @return a number from 0 to {@link #COUNT} - 1 that identifies this order
+     */
+    int getId() {
+        return mColumn * 2 + (mDescending ? 1 : 0);
+    }
+
+    /**
+     * @return the ORDER BY clause for this order in the document index
+     */
+    String getOrderBy() {
+        final String direction = mDescending ? " DESC" : " ASC";
+        final String byName = Document.COLUMN_DISPLAY_NAME + " COLLATE LOCALIZED";
+        switch (mColumn) {
+            case BY_SIZE:
+                return Document.COLUMN_SIZE + direction + ", " + byName;
+            case BY_LAST_MODIFIED:
+                return Document.COLUMN_LAST_MODIFIED + direction + ", " + byName;
+            case BY_MIME_TYPE:
+                return Document.COLUMN_MIME_TYPE + direction + ", " + byName;
+            default:
+                return byName + direction;
+        }
+    }
+
+    private static DocumentSortOrder parse(String sortOrder) {
+        if (sortOrder == null) {
+            return null;
+        }
+        final int comma = sortOrder.indexOf(',');
+        final String first = (comma >= 0 ? sortOrder.substring(0, comma) : sortOrder).trim();
+        if (first.isEmpty()) {
+            return null;
+        }
+        final String[] words = first.split("\\s+");
+        final int column = getColumn(words[0]);
+        if (column < 0) {
+            return null;
+        }
+        final boolean descending =
+                words[words.length - 1].toUpperCase(Locale.ROOT).equals("DESC");
+        return new DocumentSortOrder(column, descending);
+    }
+
+    private static int getColumn(String name) {
+        if (Document.COLUMN_DISPLAY_NAME.equals(name)) {
+            return BY_NAME;
+        } else if (Document.COLUMN_SIZE.equals(name)) {
+            return BY_SIZE;
+        } else if (Document.COLUMN_LAST_MODIFIED.equals(name)) {
+            return BY_LAST_MODIFIED;
+        } else if (Document.COLUMN_MIME_TYPE.equals(name)) {
+            return BY_MIME_TYPE;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.storageprovider;
+
+import static android.os.Build.VERSION.SDK_INT;
+
+import android.os.Build;
+import android.os.FileObserver;
+
+import androidx.annotation.RequiresApi;
+
+import com.example.android.common.logger.Log;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches every directory under the base directory with inotify, through one
+ * {@link FileObserver} per directory, and turns what it sees into calls on a {@link Callback}.
+ * <p/>
+ * inotify isn't recursive, so directories that appear are watched as they are created, and
+ * directories that go away stop being watched.  Events can still be lost (for example when the
+ * kernel's event queue overflows), so a reconciliation pass runs periodically to pick up
+ * anything that was missed.  It only looks into the directories whose modified time moved since
+ * the pass before, so an idle tree costs one stat per directory and no listings.
+ */
+class DocumentWatcher {
+    private static final String TAG = "DocumentWatcher";
+
+    // The events that change what a listing of the directory would show.
+    private static final int EVENTS = FileObserver.CREATE | FileObserver.MOVED_TO
+            | FileObserver.DELETE | FileObserver.MOVED_FROM | FileObserver.CLOSE_WRITE
+            | FileObserver.ATTRIB | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+    private static final long RECONCILE_INTERVAL_MINUTES = 15;
+
+    /**
+     * Receives changes under the watched directory.  Calls are made one at a time on the
+     * watcher's own thread.
+     */
+    interface Callback {
+        /**
+         * A file or directory was created or written.  For a new directory this is called for
+         * the directory itself; its contents are reported separately.
+         */
+        void onFileChanged(File file);
+
+        /**
+         * A file or directory was deleted or moved out of its directory.
+         */
+        void onFileRemoved(File file);
+
+        /**
+         * A directory changed since the last reconciliation, and events for it may have been
+         * missed, so whatever is kept about its direct children has to be checked.
+         */
+        void onReconcile(File dir);
+    }
+
+    /**
+     * A watched directory.
+     */
+    private static class Watch {
+        final FileObserver mObserver;
+        // The directory's modified time as of the last reconciliation.  Only used on the
+        // watcher's thread.
+        long mLastModified;
+
+        Watch(FileObserver observer, long lastModified) {
+            mObserver = observer;
+            mLastModified = lastModified;
+        }
+    }
+
+    private final File mBaseDir;
+    private final Callback mCallback;
+    private final Map<String, Watch> mWatches = new ConcurrentHashMap<String, Watch>();
+
+    // FileObserver delivers events on a thread shared by the whole process, so the callback is
+    // run from a thread of our own.  Using a single thread also keeps events in order.
+    private final ScheduledExecutorService mExecutor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, TAG);
+                }
+            });
+
+    DocumentWatcher(File baseDir, Callback callback) {
+        mBaseDir = baseDir;
+        mCallback = callback;
+    }
+
+    /**
+     * Starts watching every directory under the base directory and schedules reconciliation.
+     */
+    void start() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                watchTree(mBaseDir, false);
+                Log.i(TAG, "Watching " + mWatches.size() + " directories");
+            }
+        });
+        mExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                reconcile();
+            }
+        }, RECONCILE_INTERVAL_MINUTES, RECONCILE_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Stops every observer and the reconciliation pass.
+     */
+    void stop() {
+        mExecutor.shutdownNow();
+        for (Watch watch : mWatches.values()) {
+            watch.mObserver.stopWatching();
+        }
+        mWatches.clear();
+    }
+
+    /**
+     * Has the callback check the directories that changed since the last pass, and watches or
+     * stops watching whatever directories appeared or went away in them.
+     * <p/>
+     * FileObserver doesn't report a queue overflow, and the events still queued when one
+     * happens are older than those lost, so having handled a directory's events doesn't mean it
+     * is current.  Only its modified time moving shows that something may have been missed.
+     */
+    private void reconcile() {
+        final List<File> changed = new ArrayList<File>();
+        for (Map.Entry<String, Watch> entry : new ArrayList<Map.Entry<String, Watch>>(
+                mWatches.entrySet())) {
+            final File dir = new File(entry.getKey());
+            final long lastModified = dir.lastModified();
+            if (lastModified != entry.getValue().mLastModified) {
+                entry.getValue().mLastModified = lastModified;
+                changed.add(dir);
+            }
+        }
+        for (File dir : changed) {
+            if (!dir.isDirectory()) {
+                // Its parent changed as well, and reports it gone.
+                unwatchTree(dir);
+                continue;
+            }
+            final File[] children = dir.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    if (child.isDirectory() && !mWatches.containsKey(child.getAbsolutePath())) {
+                        watchTree(child, false);
+                    }
+                }
+            }
+            mCallback.onReconcile(dir);
+        }
+        if (!changed.isEmpty()) {
+            Log.i(TAG, "Reconciled " + changed.size() + " of " + mWatches.size()
+                    + " directories");
+        }
+    }
+
+    /**
+     * Watches a directory and every directory below it.
+     *
+     * @param root   the directory to start from
+     * @param report whether to tell the callback about everything found, which is needed for
+     *               directories that appeared after the initial scan
+     */
+    private void watchTree(File root, boolean report) {
+        final ArrayDeque<File> pending = new ArrayDeque<File>();
+        pending.add(root);
+        while (!pending.isEmpty()) {
+            final File file = pending.removeFirst();
+            if (file.isDirectory()) {
+                // Watch before listing, so that nothing created in between is missed.
+                watch(file);
+                final File[] children = file.listFiles();
+                if (children != null) {
+                    for (File child : children) {
+                        pending.add(child);
+                    }
+                }
+            }
+            if (report) {
+                mCallback.onFileChanged(file);
+            }
+        }
+    }
+
+    private void watch(File dir) {
+        final String path = dir.getAbsolutePath();
+        if (!mWatches.containsKey(path)) {
+            final FileObserver observer = SDK_INT >= Build.VERSION_CODES.Q
+                    ? new DirectoryObserver(dir) : new LegacyDirectoryObserver(dir);
+            // Read before the directory is listed, so a change in between is reconciled.
+            mWatches.put(path, new Watch(observer, dir.lastModified()));
+            observer.startWatching();
+        }
+    }
+
+    /**
+     * Stops watching a directory and every directory that was below it.
+     */
+    private void unwatchTree(File root) {
+        final String path = root.getAbsolutePath();
+        final String prefix = path + '/';
+        final Iterator<Map.Entry<String, Watch>> it = mWatches.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<String, Watch> entry = it.next();
+            if (entry.getKey().equals(path) || entry.getKey().startsWith(prefix)) {
+                entry.getValue().mObserver.stopWatching();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Handles an event for a single directory on the watcher's thread.
+     */
+    private void onEvent(File dir, int event, String name) {
+        if ((event & (FileObserver.DELETE_SELF | FileObserver.MOVE_SELF)) != 0) {
+            // The parent directory reports the removal itself, so all that's left is cleanup.
+            unwatchTree(dir);
+            return;
+        }
+        if (name == null) {
+            return;
+        }
+        final File file = new File(dir, name);
+        if ((event & (FileObserver.DELETE | FileObserver.MOVED_FROM)) != 0) {
+            unwatchTree(file);
+            if (file.exists()) {
+                // Something has taken its place since the event was sent, such as the same
+                // document moved back or created again.  Removing it would drop the ID of a
+                // live document, so report what is there now instead.
+                watchTree(file, true);
+            } else {
+                mCallback.onFileRemoved(file);
+            }
+        } else if ((event & (FileObserver.CREATE | FileObserver.MOVED_TO)) != 0) {
+            watchTree(file, true);
+        } else {
+            mCallback.onFileChanged(file);
+        }
+    }
+
+    /**
+     * Passes an event from FileObserver's thread on to the watcher's.
+     */
+    private void post(final File dir, int event, final String path) {
+        final int masked = event & FileObserver.ALL_EVENTS;
+        if (masked == 0) {
+            return;
+        }
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    onEvent(dir, masked, path);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The watcher has been stopped.
+        }
+    }
+
+    @RequiresApi(Build.VERSION_CODES.Q)
+    private class DirectoryObserver extends FileObserver {
+        private final File mDir;
+
+        DirectoryObserver(File dir) {
+            super(dir, EVENTS);
+            mDir = dir;
+        }
+
+        @Override
+        public void onEvent(int event, String path) {
+            post(mDir, event, path);
+        }
+    }
+
+    /**
+     * Before Q, FileObserver only takes a path.
+     */
+    private class LegacyDirectoryObserver extends FileObserver {
+        private final File mDir;
+
+        @SuppressWarnings("deprecation")
+        LegacyDirectoryObserver(File dir) {
+            super(dir.getAbsolutePath(), EVENTS);
+            mDir = dir;
+        }
+
+        @Override
+        public void onEvent(int event, String path) {
+            post(mDir, event, path);
+        }
+    }
+}
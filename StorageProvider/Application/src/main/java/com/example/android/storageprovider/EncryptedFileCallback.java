@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.storageprovider;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.ParcelFileDescriptor;
+import android.os.ProxyFileDescriptorCallback;
+import android.os.storage.StorageManager;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+
+import androidx.annotation.RequiresApi;
+
+import com.example.android.common.logger.Log;
+
+import java.io.IOException;
+
+/**
+ * Serves a proxy file descriptor onto a document in an {@link EncryptedStore}, decrypting the
+ * segments that are read and encrypting the ones that are written, so the plaintext never
+ * reaches the disk.
+ */
+@RequiresApi(Build.VERSION_CODES.O)
+class EncryptedFileCallback extends ProxyFileDescriptorCallback {
+    private static final String TAG = "EncryptedFileCallback";
+
+    // Each call decrypts or encrypts at most a few segments, so a couple of threads serve all
+    // the descriptors.
+    private static final ProxyThreads sThreads = new ProxyThreads(TAG, 2);
+
+    private final EncryptedStore mStore;
+    private final EncryptedStore.Document mDocument;
+    private final Handler mHandler;
+    private final Runnable mOnClosed;
+
+    private EncryptedFileCallback(EncryptedStore store, EncryptedStore.Document document,
+                                  Handler handler, Runnable onClosed) {
+        mStore = store;
+        mDocument = document;
+        mHandler = handler;
+        mOnClosed = onClosed;
+    }
+
+    /**
+     * Opens a seekable descriptor onto an encrypted document.  Like
+     * {@link StoredFileCallback}, descriptors share a few threads.
+     * The document is released when the descriptor is closed, or at once if it can't be opened.
+     *
+     * @param storageManager creates the proxy descriptor
+     * @param store          the store the document was opened from
+     * @param document       the document to serve
+     * @param accessMode     the {@link ParcelFileDescriptor} mode the client asked for
+     * @param onClosed       run on the descriptor's thread once it is closed and the changes
+     *                       saved, or null
+     * @return the descriptor
+     * @throws IOException if the descriptor couldn't be created
+     */
+    static ParcelFileDescriptor open(StorageManager storageManager, EncryptedStore store,
+                                     EncryptedStore.Document document, int accessMode,
+                                     Runnable onClosed) throws IOException {
+        final int proxyMode;
+        if ((accessMode & ParcelFileDescriptor.MODE_READ_WRITE)
+                == ParcelFileDescriptor.MODE_READ_WRITE) {
+            proxyMode = ParcelFileDescriptor.MODE_READ_WRITE;
+        } else if ((accessMode & ParcelFileDescriptor.MODE_WRITE_ONLY) != 0) {
+            proxyMode = ParcelFileDescriptor.MODE_WRITE_ONLY;
+        } else {
+            proxyMode = ParcelFileDescriptor.MODE_READ_ONLY;
+        }
+        final Handler handler = sThreads.acquire();
+        try {
+            return storageManager.openProxyFileDescriptor(proxyMode,
+                    new EncryptedFileCallback(store, document, handler, onClosed), handler);
+        } catch (IOException e) {
+            sThreads.release(handler);
+            store.release(document);
+            throw e;
+        }
+    }
+
+    @Override
+    public long onGetSize() {
+        return mDocument.getLength();
+    }
+
+    @Override
+    public int onRead(long offset, int size, byte[] data) throws ErrnoException {
+        try {
+            return mDocument.read(offset, size, data);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read at " + offset + ": " + e.getMessage());
+            throw new ErrnoException("onRead", OsConstants.EIO);
+        }
+    }
+
+    @Override
+    public int onWrite(long offset, int size, byte[] data) throws ErrnoException {
+        try {
+            mDocument.write(offset, size, data);
+            return size;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write at " + offset + ": " + e.getMessage());
+            throw new ErrnoException("onWrite", OsConstants.EIO);
+        }
+    }
+
+    @Override
+    public void onFsync() throws ErrnoException {
+        try {
+            mDocument.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to sync: " + e.getMessage());
+            throw new ErrnoException("onFsync", OsConstants.EIO);
+        }
+    }
+
+    @Override
+    public void onRelease() {
+        try {
+            mStore.release(mDocument);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to save changes: " + e.getMessage());
+        }
+        if (mOnClosed != null) {
+            mOnClosed.run();
+        }
+        sThreads.release(mHandler);
+    }
+}
@@ -0,0 +1,1424 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.storageprovider;
+
+import static android.os.Build.VERSION.SDK_INT;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+
+import androidx.annotation.RequiresApi;
+
+import com.example.android.common.logger.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Keeps documents encrypted at rest, in fixed-size segments that are each encrypted and
+ * authenticated on their own with AES-GCM, so any part of a document can be read or written
+ * without decrypting the rest.
+ * <p/>
+ * A document's file holds its ciphertext and nothing else.  GCM ciphertext is exactly as long as
+ * the plaintext, so the file keeps the document's length, and listings, totals and the index
+ * work as before.  The random nonce and the tag of each segment are kept in a database, with
+ * the length and last modified time the file had when they were saved.  A file without a row
+ * holds plaintext, written before the store was turned on or behind its back, and is encrypted
+ * as the chunk store does with its manifests.  Each tag also covers a random ID for the
+ * document and the segment's index, so segments can't be swapped or moved without the read
+ * failing.
+ * <p/>
+ * Segments are written in place, before the tags that match them are saved, so the new tag of
+ * each segment is first added to a journal of pending tags.  A file that no longer matches its
+ * row is then checked segment by segment against both the saved and the pending tags, and the
+ * row saved again if every segment has a match.  A file with a row is never taken for
+ * plaintext: if it doesn't match, it can't be opened.
+ * <p/>
+ * Documents are encrypted with a key kept in the database, itself encrypted with a key in the
+ * Android Keystore.  Keystore keys never leave the keystore, so each use of one is a call to
+ * another process: fine once at startup, far too slow once per segment.
+ * <p/>
+ * Paths are absolute, so one store serves every root, and documents keep their ciphertext when
+ * they move between roots.
+ */
+class EncryptedStore extends SQLiteOpenHelper {
+    private static final String TAG = "EncryptedStore";
+
+    private static final String DATABASE_NAME = "encrypted_documents.db";
+    private static final int DATABASE_VERSION = 2;
+
+    private static final String TABLE_KEYS = "keys";
+    private static final String TABLE_DOCUMENTS = "documents";
+    private static final String TABLE_SEGMENTS = "segments";
+    private static final String TABLE_PENDING = "pending_segments";
+
+    private static final String COLUMN_ALIAS = "alias";
+    private static final String COLUMN_IV = "iv";
+    private static final String COLUMN_WRAPPED_KEY = "wrapped_key";
+    private static final String COLUMN_PATH = "path";
+    private static final String COLUMN_LENGTH = "length";
+    private static final String COLUMN_LAST_MODIFIED = "last_modified";
+    private static final String COLUMN_FILE_ID = "file_id";
+    private static final String COLUMN_POSITION = "position";
+    private static final String COLUMN_SEGMENTS = "segments";
+    private static final String COLUMN_INDEX = "segment_index";
+
+    // How much of a document each segment holds.
+    static final int SEGMENT_SIZE = 64 * 1024;
+
+    private static final String CIPHER = "AES/GCM/NoPadding";
+    private static final String KEYSTORE = "AndroidKeyStore";
+    private static final String KEY_ALIAS = "document_key";
+    private static final int KEY_BITS = 256;
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_LENGTH = 16;
+    private static final int FILE_ID_LENGTH = 16;
+
+    // The nonce and tag of one segment, as kept in the database.
+    private static final int SEGMENT_INFO_LENGTH = NONCE_LENGTH + TAG_LENGTH;
+
+    // How many segments share a row of nonces and tags.  Writing one segment of a large
+    // document then only saves its own row again, and a row always fits in a cursor window.
+    private static final int SEGMENTS_PER_ROW = 1024;
+
+    // How far apart an encrypted file's modified time is kept from the plaintext's.  Some file
+    // systems only keep the time to a second or two.
+    private static final long MIN_TIME_CHANGE_MILLIS = 2000;
+
+    // How often to try copying a document that keeps being written.
+    private static final int MAX_COPY_ATTEMPTS = 3;
+
+    private final File mStagingDir;
+    private final SecureRandom mRandom = new SecureRandom();
+
+    private final HandlerThread mThread = new HandlerThread(TAG);
+    private Handler mHandler;
+
+    // Decrypts the segment after the one being read, for readers going through a document in
+    // order, so that the next read doesn't wait for it.
+    private final ExecutorService mReadAhead = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, TAG + "-read-ahead");
+        }
+    });
+
+    // Documents open through descriptors, by path.  All descriptors on a document share one, so
+    // readers see a writer's changes at once.  Also guards each document's path and use count,
+    // and every change to the rows.  Never taken before a document's own lock.
+    private final Map<String, Document> mOpen = new HashMap<String, Document>();
+
+    // Loaded on first use.  Guarded by this.
+    private SecretKey mKey;
+
+    private final AtomicLong mSegmentsEncrypted = new AtomicLong();
+    private final AtomicLong mSegmentsDecrypted = new AtomicLong();
+
+    /**
+     * The nonces and tags of one version of a document.
+     */
+    private static class Row {
+        final long mLength;
+        final long mLastModified;
+        final byte[] mFileId;
+        final byte[] mSegments;
+
+        Row(long length, long lastModified, byte[] fileId, byte[] segments) {
+            mLength = length;
+            mLastModified = lastModified;
+            mFileId = fileId;
+            mSegments = segments;
+        }
+    }
+
+    /**
+     * The nonce and tag a segment was, or was about to be, written with before its row was
+     * saved.
+     */
+    private static class PendingSegment {
+        final byte[] mFileId;
+        final byte[] mInfo;
+
+        PendingSegment(byte[] fileId, byte[] info) {
+            mFileId = fileId;
+            mInfo = info;
+        }
+    }
+
+    /**
+     * An encrypted document open through one or more descriptors.  The plaintext of the segment
+     * being read or written is kept in memory, and so are the nonces and tags of every segment,
+     * until they are flushed.
+     */
+    class Document {
+        private final RandomAccessFile mFile;
+        private final FileChannel mChannel;
+        private final byte[] mFileId;
+        private final SecretKey mKey;
+        private final Cipher mCipher;
+
+        // Guarded by mOpen.  Null once the document has been deleted.
+        private String mPath;
+        private int mRefs;
+
+        // The rest is guarded by this.
+        private byte[] mSegments;
+        private long mLength;
+        // Which rows of mSegments changed since they were saved, and whether anything did.
+        private final BitSet mChangedRows = new BitSet();
+        private boolean mChanged;
+        // Counts writes, so that a segment decrypted ahead isn't used if it may have changed.
+        private long mVersion;
+
+        // The plaintext of the current segment, and whether it changed since it was encrypted.
+        private byte[] mPlaintext = new byte[SEGMENT_SIZE];
+        private final byte[] mCiphertext = new byte[SEGMENT_SIZE + TAG_LENGTH];
+        private int mIndex = -1;
+        private int mPlaintextLength;
+        private boolean mDirty;
+
+        // The segment being decrypted ahead of a reader, with its own buffers and cipher.
+        private byte[] mAheadPlaintext = new byte[SEGMENT_SIZE];
+        private final byte[] mAheadCiphertext = new byte[SEGMENT_SIZE + TAG_LENGTH];
+        private final Cipher mAheadCipher;
+        private Future<Integer> mAhead;
+        private int mAheadIndex = -1;
+        private long mAheadVersion;
+        private long mLastReadEnd = -1;
+
+        private Document(String path, Row row, SecretKey key) throws IOException {
+            RandomAccessFile file;
+            try {
+                file = new RandomAccessFile(path, "rw");
+            } catch (IOException e) {
+                // Read-only; writes will fail.
+                file = new RandomAccessFile(path, "r");
+            }
+            mFile = file;
+            mChannel = file.getChannel();
+            mPath = path;
+            mFileId = row.mFileId;
+            mSegments = row.mSegments;
+            mLength = row.mLength;
+            mKey = key;
+            mCipher = newCipher();
+            mAheadCipher = newCipher();
+        }
+
+        synchronized long getLength() {
+            return mLength;
+        }
+
+        /**
+         * Reads from the document, decrypting each segment it touches.
+         *
+         * @return how many bytes were read, 0 at the end of the document
+         * @throws IOException if a segment couldn't be read or failed authentication
+         */
+        synchronized int read(long offset, int size, byte[] data) throws IOException {
+            if (offset >= mLength) {
+                return 0;
+            }
+            final boolean sequential = offset == mLastReadEnd;
+            final int length = (int) Math.min(size, mLength - offset);
+            int copied = 0;
+            while (copied < length) {
+                final long position = offset + copied;
+                load((int) (position / SEGMENT_SIZE));
+                final int segmentOffset = (int) (position % SEGMENT_SIZE);
+                final int count = Math.min(length - copied, mPlaintextLength - segmentOffset);
+                if (count <= 0) {
+                    throw new IOException("Segment " + mIndex + " is truncated");
+                }
+                System.arraycopy(mPlaintext, segmentOffset, data, copied, count);
+                copied += count;
+            }
+            mLastReadEnd = offset + length;
+            if (sequential) {
+                readAhead(mIndex + 1);
+            }
+            return length;
+        }
+
+        /**
+         * @return a stream of the document's plaintext from the start, which never reaches the
+         * disk.  Closing it doesn't release the document.
+         */
+        InputStream newInputStream() {
+            return new InputStream() {
+                private long mPosition;
+                private byte[] mBuffer;
+
+                @Override
+                public int read() throws IOException {
+                    final byte[] one = new byte[1];
+                    return read(one, 0, 1) > 0 ? one[0] & 0xff : -1;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (len == 0) {
+                        return 0;
+                    }
+                    final int size = Math.min(len, SEGMENT_SIZE);
+                    byte[] target = b;
+                    if (off != 0) {
+                        if (mBuffer == null) {
+                            mBuffer = new byte[SEGMENT_SIZE];
+                        }
+                        target = mBuffer;
+                    }
+                    final int count = Document.this.read(mPosition, size, target);
+                    if (count == 0) {
+                        return -1;
+                    }
+                    if (target != b) {
+                        System.arraycopy(target, 0, b, off, count);
+                    }
+                    mPosition += count;
+                    return count;
+                }
+            };
+        }
+
+        /**
+         * Writes to the document.  Changed segments are encrypted once the writer moves on to
+         * another segment or the document is flushed.  Writing past the end fills the gap with
+         * encrypted zeros, as a sparse plain file would read.
+         */
+        synchronized void write(long offset, int size, byte[] data) throws IOException {
+            mVersion++;
+            if (offset > mLength) {
+                writeBytes(mLength, null, offset - mLength);
+            }
+            writeBytes(offset, data, size);
+        }
+
+        /**
+         * Empties the document, for a descriptor opened with
+         * {@link android.os.ParcelFileDescriptor#MODE_TRUNCATE}.
+         */
+        synchronized void truncate() throws IOException {
+            mVersion++;
+            mFile.setLength(0);
+            mLength = 0;
+            mIndex = -1;
+            mDirty = false;
+            mChanged = true;
+        }
+
+        /**
+         * Encrypts the current segment if it changed, and saves the nonces and tags of the
+         * segments that changed since the last flush.
+         */
+        synchronized void flush() throws IOException {
+            flushSegment();
+            if (!mChanged) {
+                return;
+            }
+            // The ciphertext has to be on disk before the tags that match it.
+            mChannel.force(false);
+            synchronized (mOpen) {
+                if (mPath != null) {
+                    putRows(mPath, mLength, new File(mPath).lastModified(), mFileId, mSegments,
+                            mChangedRows);
+                }
+            }
+            mChangedRows.clear();
+            mChanged = false;
+        }
+
+        /**
+         * Copies the ciphertext and the tags, so that the copy can be read with the same key.
+         * Writes wait until it's done.
+         *
+         * @param staged     where to put the copy
+         * @param targetPath the path to save the tags under, where the copy will end up
+         * @return how many bytes were copied
+         */
+        private synchronized long copyTo(File staged, String targetPath) throws IOException {
+            flush();
+            final String path;
+            synchronized (mOpen) {
+                path = mPath;
+            }
+            if (path == null) {
+                throw new IOException("Document was deleted");
+            }
+            final long copied = copyContents(new File(path), staged);
+            final BitSet rows = new BitSet();
+            rows.set(0, getRowCount(mLength));
+            synchronized (mOpen) {
+                putRows(targetPath, mLength, staged.lastModified(), mFileId, mSegments, rows);
+            }
+            return copied;
+        }
+
+        /**
+         * Closes the file once no descriptor uses the document.  Called with mOpen held.
+         */
+        private void close() {
+            final Future<Integer> ahead;
+            synchronized (this) {
+                ahead = mAhead;
+            }
+            if (ahead != null) {
+                try {
+                    ahead.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    // Nobody wants the segment any more.
+                }
+            }
+            try {
+                mFile.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close " + mPath + ": " + e.getMessage());
+            }
+        }
+
+        private void load(int index) throws IOException {
+            if (index == mIndex) {
+                return;
+            }
+            flushSegment();
+            mIndex = -1;
+            if (takeAhead(index)) {
+                return;
+            }
+            int length = 0;
+            if ((long) index * SEGMENT_SIZE < mLength) {
+                length = getSegmentLength(index);
+                readFully(mChannel, mCiphertext, length, (long) index * SEGMENT_SIZE);
+                decryptSegment(mCipher, mKey, mFileId, index, mSegments, mCiphertext, length,
+                        mPlaintext);
+            }
+            // A write past the end must find zeros there.
+            Arrays.fill(mPlaintext, length, SEGMENT_SIZE, (byte) 0);
+            mPlaintextLength = length;
+            mIndex = index;
+        }
+
+        private void writeBytes(long position, byte[] data, long count) throws IOException {
+            long done = 0;
+            while (done < count) {
+                final long at = position + done;
+                load((int) (at / SEGMENT_SIZE));
+                final int segmentOffset = (int) (at % SEGMENT_SIZE);
+                final int n = (int) Math.min(count - done, SEGMENT_SIZE - segmentOffset);
+                if (data != null) {
+                    System.arraycopy(data, (int) done, mPlaintext, segmentOffset, n);
+                } else {
+                    Arrays.fill(mPlaintext, segmentOffset, segmentOffset + n, (byte) 0);
+                }
+                mPlaintextLength = Math.max(mPlaintextLength, segmentOffset + n);
+                mDirty = true;
+                mLength = Math.max(mLength, at + n);
+                done += n;
+            }
+        }
+
+        private void flushSegment() throws IOException {
+            if (!mDirty) {
+                return;
+            }
+            final int needed = (mIndex + 1) * SEGMENT_INFO_LENGTH;
+            if (mSegments.length < needed) {
+                mSegments = Arrays.copyOf(mSegments, Math.max(needed, mSegments.length * 2));
+            }
+            encryptSegment(mCipher, mKey, mFileId, mIndex, mPlaintext, mPlaintextLength,
+                    mCiphertext, mSegments);
+            // The segment is overwritten before its row is saved, so should the process die in
+            // between, the new tag has to be found somewhere.
+            synchronized (mOpen) {
+                if (mPath != null) {
+                    putPending(mPath, mFileId, mSegments, mIndex, mIndex + 1);
+                }
+            }
+            writeFully(mChannel, mCiphertext, mPlaintextLength, (long) mIndex * SEGMENT_SIZE);
+            mChangedRows.set(mIndex / SEGMENTS_PER_ROW);
+            mChanged = true;
+            mDirty = false;
+        }
+
+        /**
+         * Starts decrypting a segment on another thread, unless one already is.
+         */
+        private void readAhead(final int index) {
+            if ((long) index * SEGMENT_SIZE >= mLength || index == mAheadIndex
+                    || (mAhead != null && !mAhead.isDone())) {
+                return;
+            }
+            final int length = getSegmentLength(index);
+            final byte[] info = Arrays.copyOfRange(mSegments, index * SEGMENT_INFO_LENGTH,
+                    (index + 1) * SEGMENT_INFO_LENGTH);
+            final byte[] plaintext = mAheadPlaintext;
+            try {
+                mAhead = mReadAhead.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws IOException {
+                        readFully(mChannel, mAheadCiphertext, length,
+                                (long) index * SEGMENT_SIZE);
+                        decryptSegment(mAheadCipher, mKey, mFileId, index, info, 0,
+                                mAheadCiphertext, length, plaintext);
+                        return length;
+                    }
+                });
+                mAheadIndex = index;
+                mAheadVersion = mVersion;
+            } catch (RejectedExecutionException e) {
+                // Only a hint.
+            }
+        }
+
+        /**
+         * Makes the segment decrypted ahead the current one, if it's the one wanted and nothing
+         * was written since it was read.
+         */
+        private boolean takeAhead(int index) {
+            if (mAhead == null || mAheadIndex != index) {
+                return false;
+            }
+            mAheadIndex = -1;
+            final int length;
+            try {
+                length = mAhead.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException e) {
+                // Read it again, which reports the failure.
+                return false;
+            }
+            if (mAheadVersion != mVersion) {
+                return false;
+            }
+            final byte[] plaintext = mPlaintext;
+            mPlaintext = mAheadPlaintext;
+            mAheadPlaintext = plaintext;
+            Arrays.fill(mPlaintext, length, SEGMENT_SIZE, (byte) 0);
+            mPlaintextLength = length;
+            mIndex = index;
+            return true;
+        }
+
+        private int getSegmentLength(int index) {
+            return (int) Math.min(SEGMENT_SIZE, mLength - (long) index * SEGMENT_SIZE);
+        }
+    }
+
+    /**
+     * @param context    used to open the database
+     * @param stagingDir a directory on the same volume as the documents, for building
+     *                   encrypted files and copies before they are renamed into place
+     */
+    EncryptedStore(Context context, File stagingDir) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mStagingDir = stagingDir;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_KEYS + " ("
+                + COLUMN_ALIAS + " TEXT PRIMARY KEY NOT NULL, "
+                + COLUMN_IV + " BLOB NOT NULL, "
+                + COLUMN_WRAPPED_KEY + " BLOB NOT NULL)");
+        db.execSQL("CREATE TABLE " + TABLE_DOCUMENTS + " ("
+                + COLUMN_PATH + " TEXT PRIMARY KEY NOT NULL, "
+                + COLUMN_LENGTH + " INTEGER NOT NULL, "
+                + COLUMN_LAST_MODIFIED + " INTEGER NOT NULL, "
+                + COLUMN_FILE_ID + " BLOB NOT NULL)");
+        db.execSQL("CREATE TABLE " + TABLE_SEGMENTS + " ("
+                + COLUMN_PATH + " TEXT NOT NULL, "
+                + COLUMN_POSITION + " INTEGER NOT NULL, "
+                + COLUMN_SEGMENTS + " BLOB NOT NULL, "
+                + "PRIMARY KEY (" + COLUMN_PATH + ", " + COLUMN_POSITION + "))");
+        createPendingTable(db);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            createPendingTable(db);
+        }
+    }
+
+    private static void createPendingTable(SQLiteDatabase db) {
+        // Any number of tags per segment, in the order they were written.
+        db.execSQL("CREATE TABLE " + TABLE_PENDING + " ("
+                + COLUMN_PATH + " TEXT NOT NULL, "
+                + COLUMN_INDEX + " INTEGER NOT NULL, "
+                + COLUMN_FILE_ID + " BLOB NOT NULL, "
+                + COLUMN_SEGMENTS + " BLOB NOT NULL)");
+        db.execSQL("CREATE INDEX " + TABLE_PENDING + "_path ON " + TABLE_PENDING + " ("
+                + COLUMN_PATH + ")");
+    }
+
+    /**
+     * Starts the store's thread.
+     */
+    void start() {
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * @return a handler on the store's thread, where documents are encrypted after they are
+     * written behind the store's back
+     */
+    Handler getHandler() {
+        return mHandler;
+    }
+
+    /**
+     * Encrypts a document whose file holds plaintext, such as one written before the store was
+     * turned on or by something other than the provider.  The caller must keep the document
+     * from being written, moved or encrypted by anyone else meanwhile.
+     *
+     * @return true if the document is now encrypted; false if it isn't a file, or changed while
+     * it was being read.  Whatever changed it will have it encrypted again.
+     * @throws IOException if it couldn't be read or the ciphertext written, or it has a row it
+     *                     doesn't match
+     */
+    boolean encrypt(File file) throws IOException {
+        final String path = file.getAbsolutePath();
+        final long length = file.length();
+        final long lastModified = file.lastModified();
+        if (!file.isFile()) {
+            return false;
+        }
+        synchronized (mOpen) {
+            if (mOpen.containsKey(path) || readRow(path, length, lastModified) != null) {
+                return true;
+            }
+        }
+
+        final SecretKey key = getKey();
+        final byte[] fileId = new byte[FILE_ID_LENGTH];
+        mRandom.nextBytes(fileId);
+        final int segmentCount = getSegmentCount(length);
+        final byte[] segments = new byte[segmentCount * SEGMENT_INFO_LENGTH];
+        final File staged = File.createTempFile("encrypt", null, mStagingDir);
+        try {
+            final Cipher cipher = newCipher();
+            final byte[] plaintext = new byte[SEGMENT_SIZE];
+            final byte[] ciphertext = new byte[SEGMENT_SIZE + TAG_LENGTH];
+            final InputStream in = new FileInputStream(file);
+            try {
+                final FileOutputStream out = new FileOutputStream(staged);
+                try {
+                    for (int index = 0; index < segmentCount; index++) {
+                        final int count = (int) Math.min(SEGMENT_SIZE,
+                                length - (long) index * SEGMENT_SIZE);
+                        if (!readFully(in, plaintext, count)) {
+                            return false;
+                        }
+                        encryptSegment(cipher, key, fileId, index, plaintext, count, ciphertext,
+                                segments);
+                        out.write(ciphertext, 0, count);
+                    }
+                    if (in.read() >= 0) {
+                        return false;
+                    }
+                    // The ciphertext has to be on disk before the row that says it's there.
+                    out.getFD().sync();
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+
+            // A different modified time tells anything that noticed the plaintext that the file
+            // changed.
+            long encryptedTime = System.currentTimeMillis();
+            if (Math.abs(encryptedTime - lastModified) < MIN_TIME_CHANGE_MILLIS) {
+                encryptedTime = lastModified + MIN_TIME_CHANGE_MILLIS;
+            }
+            staged.setLastModified(encryptedTime);
+            final long stagedLastModified = staged.lastModified();
+            if (stagedLastModified == lastModified) {
+                return false;
+            }
+            final BitSet rows = new BitSet();
+            rows.set(0, getRowCount(length));
+            synchronized (mOpen) {
+                if (mOpen.containsKey(path)) {
+                    return true;
+                }
+                if (file.length() != length || file.lastModified() != lastModified) {
+                    // Written again while it was being read.
+                    return false;
+                }
+                // Should the process die before the row is saved, the pending tags tell the
+                // ciphertext from the plaintext.
+                putPending(path, fileId, segments, 0, segmentCount);
+                if (!staged.renameTo(file)) {
+                    removePending(path);
+                    throw new IOException("Failed to replace " + file);
+                }
+                putRows(path, length, stagedLastModified, fileId, segments, rows);
+            }
+            return true;
+        } finally {
+            staged.delete();
+        }
+    }
+
+    /**
+     * Opens an encrypted document, or finds it already open.  Must be followed by
+     * {@link #release(Document)}.
+     *
+     * @return the document, or null if it has no row, so its file holds plaintext
+     * @throws IOException if the key or the file couldn't be opened, or the file doesn't match
+     *                     its row
+     */
+    Document open(File file) throws IOException {
+        final String path = file.getAbsolutePath();
+        final SecretKey key = getKey();
+        synchronized (mOpen) {
+            Document document = mOpen.get(path);
+            if (document == null) {
+                final Row row = readRow(path, file.length(), file.lastModified());
+                if (row == null) {
+                    return null;
+                }
+                document = new Document(path, row, key);
+                mOpen.put(path, document);
+            }
+            document.mRefs++;
+            return document;
+        }
+    }
+
+    /**
+     * Saves a document's changes, and closes it once nothing else has it open.
+     */
+    void release(Document document) throws IOException {
+        try {
+            document.flush();
+        } finally {
+            synchronized (mOpen) {
+                if (--document.mRefs == 0) {
+                    if (document.mPath != null && mOpen.get(document.mPath) == document) {
+                        mOpen.remove(document.mPath);
+                    }
+                    document.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies a document, or a directory and everything in it, ciphertext and all, so that the
+     * plaintext never reaches the disk.  Documents that aren't encrypted yet are encrypted
+     * first.  The copy only appears once it is complete.  The caller must keep the source from
+     * being written or moved meanwhile.
+     *
+     * @param target where the copy goes, which must not exist
+     * @return how many bytes were copied
+     * @throws IOException if the copy failed; nothing is left behind
+     */
+    long copy(File source, File target) throws IOException {
+        final File staged = new File(mStagingDir, "copy-" + System.nanoTime());
+        boolean succeeded = false;
+        try {
+            final long copied = copyTree(source, staged, target);
+            if (!staged.renameTo(target)) {
+                throw new IOException("Failed to move copy into place at " + target);
+            }
+            succeeded = true;
+            return copied;
+        } finally {
+            if (!succeeded) {
+                remove(target);
+                deleteTree(staged);
+            }
+        }
+    }
+
+    /**
+     * Updates the rows after a document, or a directory and everything in it, was renamed.
+     */
+    void move(File source, File target) {
+        final String sourcePath = source.getAbsolutePath();
+        final String targetPath = target.getAbsolutePath();
+        synchronized (mOpen) {
+            final SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                // substr() counts characters, not UTF-16 units.
+                final int suffixStart = sourcePath.codePointCount(0, sourcePath.length()) + 1;
+                for (String table
+                        : new String[]{TABLE_DOCUMENTS, TABLE_SEGMENTS, TABLE_PENDING}) {
+                    db.execSQL("UPDATE " + table + " SET " + COLUMN_PATH + " = ? || substr("
+                            + COLUMN_PATH + ", ?) WHERE " + getTreeSelection(),
+                            new Object[]{targetPath, suffixStart, sourcePath,
+                                    sourcePath + '/', sourcePath + '0'});
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            for (String path : getOpenPaths(sourcePath)) {
+                final Document document = mOpen.remove(path);
+                document.mPath = targetPath + path.substring(sourcePath.length());
+                mOpen.put(document.mPath, document);
+            }
+        }
+    }
+
+    /**
+     * Drops the rows of a document, or a directory and everything in it, after it was deleted.
+     */
+    void remove(File file) {
+        final String path = file.getAbsolutePath();
+        synchronized (mOpen) {
+            removeRows(getTreeSelection(), getTreeSelectionArgs(path));
+            for (String openPath : getOpenPaths(path)) {
+                // Still usable by its descriptors, but it has nothing to save to any more.
+                mOpen.remove(openPath).mPath = null;
+            }
+        }
+    }
+
+    /**
+     * @return how many segments have been encrypted
+     */
+    long getSegmentsEncrypted() {
+        return mSegmentsEncrypted.get();
+    }
+
+    /**
+     * @return how many segments have been decrypted, including those read ahead
+     */
+    long getSegmentsDecrypted() {
+        return mSegmentsDecrypted.get();
+    }
+
+    private long copyTree(File source, File staged, File target) throws IOException {
+        if (!source.isDirectory()) {
+            return copyFile(source, staged, target);
+        }
+        if (!staged.mkdir()) {
+            throw new IOException("Failed to create " + staged);
+        }
+        final File[] children = source.listFiles();
+        if (children == null) {
+            throw new IOException("Failed to list " + source);
+        }
+        long copied = 0;
+        for (File child : children) {
+            copied += copyTree(child, new File(staged, child.getName()),
+                    new File(target, child.getName()));
+        }
+        return copied;
+    }
+
+    /**
+     * Copies one document into the staging area.
+     *
+     * @param staged where to put the copy
+     * @param target where the copy will end up, which its rows are saved under
+     * @return how many bytes were copied
+     */
+    private long copyFile(File source, File staged, File target) throws IOException {
+        final String path = source.getAbsolutePath();
+        for (int attempt = 0; attempt < MAX_COPY_ATTEMPTS; attempt++) {
+            Document document;
+            synchronized (mOpen) {
+                document = mOpen.get(path);
+                if (document != null) {
+                    document.mRefs++;
+                }
+            }
+            if (document != null) {
+                // Its row may be behind what a writer has put in the file, so copy from the
+                // document itself.
+                try {
+                    return document.copyTo(staged, target.getAbsolutePath());
+                } finally {
+                    release(document);
+                }
+            }
+            if (!encrypt(source)) {
+                continue;
+            }
+            final Row row;
+            synchronized (mOpen) {
+                row = readRow(path, source.length(), source.lastModified());
+            }
+            if (row == null) {
+                // Opened and written in the meantime.
+                continue;
+            }
+            final long copied = copyContents(source, staged);
+            if (source.length() == row.mLength && source.lastModified() == row.mLastModified) {
+                final BitSet rows = new BitSet();
+                rows.set(0, getRowCount(row.mLength));
+                synchronized (mOpen) {
+                    putRows(target.getAbsolutePath(), row.mLength, staged.lastModified(),
+                            row.mFileId, row.mSegments, rows);
+                }
+                return copied;
+            }
+        }
+        throw new IOException("Failed to copy " + source + ", it kept changing");
+    }
+
+    /**
+     * @return the paths of the open documents at or below a path.  Called with mOpen held.
+     */
+    private List<String> getOpenPaths(String path) {
+        final List<String> paths = new ArrayList<String>();
+        for (String openPath : mOpen.keySet()) {
+            if (openPath.equals(path) || openPath.startsWith(path + '/')) {
+                paths.add(openPath);
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * @return the row of a document, recovered if need be to match the given version of its
+     * file, or null if it has none.  Called with mOpen held.
+     * @throws IOException if it has a row but the file doesn't match it
+     */
+    private Row readRow(String path, long length, long lastModified) throws IOException {
+        final Row saved = loadRow(path);
+        if (saved != null && saved.mLength == length && saved.mLastModified == lastModified) {
+            return saved;
+        }
+        final Map<Integer, List<PendingSegment>> pending = loadPending(path);
+        if (saved == null && pending.isEmpty()) {
+            return null;
+        }
+        // A document keeps its ID however often it's written; only one that was never renamed
+        // into place may have had more than one.
+        final List<byte[]> fileIds = new ArrayList<byte[]>();
+        if (saved != null) {
+            fileIds.add(saved.mFileId);
+        } else {
+            for (List<PendingSegment> tags : pending.values()) {
+                for (PendingSegment tag : tags) {
+                    if (!containsFileId(fileIds, tag.mFileId)) {
+                        fileIds.add(tag.mFileId);
+                    }
+                }
+            }
+        }
+        Row recovered = null;
+        for (int i = 0; i < fileIds.size() && recovered == null; i++) {
+            recovered = recoverRow(path, length, lastModified, fileIds.get(i), saved, pending);
+        }
+        if (recovered != null) {
+            final BitSet rows = new BitSet();
+            rows.set(0, getRowCount(length));
+            putRows(path, length, lastModified, recovered.mFileId, recovered.mSegments, rows);
+            Log.i(TAG, "Recovered the tags of " + path);
+            return recovered;
+        }
+        if (saved == null) {
+            // Encrypted, but never renamed into place.
+            removePending(path);
+            return null;
+        }
+        throw new IOException(path + " doesn't match its tags");
+    }
+
+    /**
+     * @return the row of a document as it was last saved, or null if it has none.  Called with
+     * mOpen held.
+     * @throws IOException if the row is there but some of its segments are missing
+     */
+    private Row loadRow(String path) throws IOException {
+        final SQLiteDatabase db = getReadableDatabase();
+        final long length;
+        final long lastModified;
+        final byte[] fileId;
+        final Cursor document = db.query(TABLE_DOCUMENTS,
+                new String[]{COLUMN_LENGTH, COLUMN_LAST_MODIFIED, COLUMN_FILE_ID},
+                COLUMN_PATH + " = ?", new String[]{path}, null, null, null);
+        try {
+            if (!document.moveToFirst()) {
+                return null;
+            }
+            length = document.getLong(0);
+            lastModified = document.getLong(1);
+            fileId = document.getBlob(2);
+        } finally {
+            document.close();
+        }
+
+        final byte[] segments = new byte[getSegmentCount(length) * SEGMENT_INFO_LENGTH];
+        int found = 0;
+        final Cursor rows = db.query(TABLE_SEGMENTS,
+                new String[]{COLUMN_POSITION, COLUMN_SEGMENTS}, COLUMN_PATH + " = ?",
+                new String[]{path}, null, null, COLUMN_POSITION);
+        try {
+            while (rows.moveToNext()) {
+                final int offset = rows.getInt(0) * SEGMENTS_PER_ROW * SEGMENT_INFO_LENGTH;
+                final byte[] blob = rows.getBlob(1);
+                if (offset + blob.length > segments.length) {
+                    throw new IOException("Too many segments for " + path);
+                }
+                System.arraycopy(blob, 0, segments, offset, blob.length);
+                found += blob.length;
+            }
+        } finally {
+            rows.close();
+        }
+        if (found != segments.length) {
+            throw new IOException("Segments of " + path + " are missing");
+        }
+        return new Row(length, lastModified, fileId, segments);
+    }
+
+    /**
+     * @return the pending tags of a document's segments, by segment.  Called with mOpen held.
+     */
+    private Map<Integer, List<PendingSegment>> loadPending(String path) {
+        final Map<Integer, List<PendingSegment>> pending =
+                new HashMap<Integer, List<PendingSegment>>();
+        final Cursor cursor = getReadableDatabase().query(TABLE_PENDING,
+                new String[]{COLUMN_INDEX, COLUMN_FILE_ID, COLUMN_SEGMENTS},
+                COLUMN_PATH + " = ?", new String[]{path}, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                List<PendingSegment> tags = pending.get(cursor.getInt(0));
+                if (tags == null) {
+                    tags = new ArrayList<PendingSegment>();
+                    pending.put(cursor.getInt(0), tags);
+                }
+                tags.add(new PendingSegment(cursor.getBlob(1), cursor.getBlob(2)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return pending;
+    }
+
+    /**
+     * Finds a saved or pending tag that each segment of a file passes with, after the process
+     * died between writing segments in place and saving their tags.  Either version of each
+     * segment will do.
+     *
+     * @param fileId  the ID the document's tags have to cover
+     * @param saved   the row as last saved, or null if there is none
+     * @param pending the pending tags, by segment
+     * @return the row that matches the file, or null if some segment matches no tag
+     */
+    private Row recoverRow(String path, long length, long lastModified, byte[] fileId,
+                           Row saved, Map<Integer, List<PendingSegment>> pending)
+            throws IOException {
+        final int savedCount = saved != null ? saved.mSegments.length / SEGMENT_INFO_LENGTH : 0;
+        final int segmentCount = getSegmentCount(length);
+        final byte[] segments = new byte[segmentCount * SEGMENT_INFO_LENGTH];
+        final SecretKey key = getKey();
+        final Cipher cipher = newCipher();
+        final byte[] ciphertext = new byte[SEGMENT_SIZE + TAG_LENGTH];
+        final byte[] plaintext = new byte[SEGMENT_SIZE];
+        final RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            if (file.length() != length) {
+                return null;
+            }
+            for (int index = 0; index < segmentCount; index++) {
+                final int count =
+                        (int) Math.min(SEGMENT_SIZE, length - (long) index * SEGMENT_SIZE);
+                final List<byte[]> candidates = new ArrayList<byte[]>();
+                if (index < savedCount) {
+                    candidates.add(Arrays.copyOfRange(saved.mSegments,
+                            index * SEGMENT_INFO_LENGTH, (index + 1) * SEGMENT_INFO_LENGTH));
+                }
+                final List<PendingSegment> tags = pending.get(index);
+                if (tags != null) {
+                    for (PendingSegment tag : tags) {
+                        if (Arrays.equals(tag.mFileId, fileId)) {
+                            candidates.add(tag.mInfo);
+                        }
+                    }
+                }
+                boolean matched = false;
+                for (byte[] info : candidates) {
+                    readFully(file.getChannel(), ciphertext, count, (long) index * SEGMENT_SIZE);
+                    try {
+                        decryptSegment(cipher, key, fileId, index, info, 0, ciphertext, count,
+                                plaintext);
+                    } catch (IOException e) {
+                        continue;
+                    }
+                    System.arraycopy(info, 0, segments, index * SEGMENT_INFO_LENGTH,
+                            SEGMENT_INFO_LENGTH);
+                    matched = true;
+                    break;
+                }
+                if (!matched) {
+                    Log.w(TAG, "Segment " + index + " of " + path + " matches no tag");
+                    return null;
+                }
+            }
+        } finally {
+            file.close();
+        }
+        return new Row(length, lastModified, fileId, segments);
+    }
+
+    private static boolean containsFileId(List<byte[]> fileIds, byte[] fileId) {
+        for (byte[] id : fileIds) {
+            if (Arrays.equals(id, fileId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Saves a document's row and the given rows of its segments, and drops any segments past
+     * its end.  Called with mOpen held.
+     */
+    private void putRows(String path, long length, long lastModified, byte[] fileId,
+                         byte[] segments, BitSet rows) {
+        final int segmentCount = getSegmentCount(length);
+        final int rowCount = getRowCount(length);
+        final SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.execSQL("INSERT OR REPLACE INTO " + TABLE_DOCUMENTS + " (" + COLUMN_PATH + ", "
+                    + COLUMN_LENGTH + ", " + COLUMN_LAST_MODIFIED + ", " + COLUMN_FILE_ID
+                    + ") VALUES (?, ?, ?, ?)", new Object[]{path, length, lastModified, fileId});
+            db.execSQL("DELETE FROM " + TABLE_SEGMENTS + " WHERE " + COLUMN_PATH + " = ? AND "
+                    + COLUMN_POSITION + " >= ?", new Object[]{path, rowCount});
+            for (int row = rows.nextSetBit(0); row >= 0 && row < rowCount;
+                 row = rows.nextSetBit(row + 1)) {
+                final int from = row * SEGMENTS_PER_ROW * SEGMENT_INFO_LENGTH;
+                final int to = Math.min(segmentCount, (row + 1) * SEGMENTS_PER_ROW)
+                        * SEGMENT_INFO_LENGTH;
+                db.execSQL("INSERT OR REPLACE INTO " + TABLE_SEGMENTS + " (" + COLUMN_PATH
+                        + ", " + COLUMN_POSITION + ", " + COLUMN_SEGMENTS + ") VALUES (?, ?, ?)",
+                        new Object[]{path, row, Arrays.copyOfRange(segments, from, to)});
+            }
+            // The file is on disk as saved, so nothing is pending any more.
+            db.delete(TABLE_PENDING, COLUMN_PATH + " = ?", new String[]{path});
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Adds the nonces and tags of some of a document's segments to the pending ones, before the
+     * segments are written.  Called with mOpen held.
+     *
+     * @param from the first segment
+     * @param to   the segment after the last one
+     */
+    private void putPending(String path, byte[] fileId, byte[] segments, int from, int to) {
+        final SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int index = from; index < to; index++) {
+                db.execSQL("INSERT INTO " + TABLE_PENDING + " (" + COLUMN_PATH + ", "
+                        + COLUMN_INDEX + ", " + COLUMN_FILE_ID + ", " + COLUMN_SEGMENTS
+                        + ") VALUES (?, ?, ?, ?)", new Object[]{path, index, fileId,
+                        Arrays.copyOfRange(segments, index * SEGMENT_INFO_LENGTH,
+                                (index + 1) * SEGMENT_INFO_LENGTH)});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private void removePending(String path) {
+        getWritableDatabase().delete(TABLE_PENDING, COLUMN_PATH + " = ?", new String[]{path});
+    }
+
+    private void removeRows(String selection, String[] selectionArgs) {
+        final SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete(TABLE_PENDING, selection, selectionArgs);
+            db.delete(TABLE_SEGMENTS, selection, selectionArgs);
+            db.delete(TABLE_DOCUMENTS, selection, selectionArgs);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * @return the key documents are encrypted with, made the first time it's needed
+     */
+    private synchronized SecretKey getKey() throws IOException {
+        if (mKey != null) {
+            return mKey;
+        }
+        if (SDK_INT < Build.VERSION_CODES.M) {
+            throw new IOException("The Android Keystore has no AES keys before Android M");
+        }
+        try {
+            final KeyStore keyStore = KeyStore.getInstance(KEYSTORE);
+            keyStore.load(null);
+            SecretKey wrappingKey = (SecretKey) keyStore.getKey(KEY_ALIAS, null);
+            final Cursor cursor = getReadableDatabase().query(TABLE_KEYS,
+                    new String[]{COLUMN_IV, COLUMN_WRAPPED_KEY}, COLUMN_ALIAS + " = ?",
+                    new String[]{KEY_ALIAS}, null, null, null);
+            try {
+                if (cursor.moveToFirst()) {
+                    if (wrappingKey == null) {
+                        throw new IOException("The keystore no longer has the document key");
+                    }
+                    final Cipher cipher = Cipher.getInstance(CIPHER);
+                    cipher.init(Cipher.DECRYPT_MODE, wrappingKey,
+                            new GCMParameterSpec(TAG_LENGTH * 8, cursor.getBlob(0)));
+                    mKey = new SecretKeySpec(cipher.doFinal(cursor.getBlob(1)), "AES");
+                    return mKey;
+                }
+            } finally {
+                cursor.close();
+            }
+
+            if (wrappingKey == null) {
+                wrappingKey = createWrappingKey();
+            }
+            final byte[] key = new byte[KEY_BITS / 8];
+            mRandom.nextBytes(key);
+            final Cipher cipher = Cipher.getInstance(CIPHER);
+            // The keystore chooses the IV.
+            cipher.init(Cipher.ENCRYPT_MODE, wrappingKey);
+            getWritableDatabase().execSQL("INSERT INTO " + TABLE_KEYS + " (" + COLUMN_ALIAS
+                    + ", " + COLUMN_IV + ", " + COLUMN_WRAPPED_KEY + ") VALUES (?, ?, ?)",
+                    new Object[]{KEY_ALIAS, cipher.getIV(), cipher.doFinal(key)});
+            mKey = new SecretKeySpec(key, "AES");
+            Log.i(TAG, "Created the document key");
+            return mKey;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to load the document key: " + e.getMessage());
+        }
+    }
+
+    @RequiresApi(Build.VERSION_CODES.M)
+    private static SecretKey createWrappingKey() throws GeneralSecurityException {
+        final KeyGenerator generator =
+                KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEYSTORE);
+        generator.init(new KeyGenParameterSpec.Builder(KEY_ALIAS,
+                KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                .setKeySize(KEY_BITS)
+                .build());
+        return generator.generateKey();
+    }
+
+    /**
+     * Encrypts a segment with a new random nonce.
+     *
+     * @param ciphertext receives the ciphertext followed by the tag
+     * @param segments   receives the nonce and tag at the segment's place
+     */
+    private void encryptSegment(Cipher cipher, SecretKey key, byte[] fileId, int index,
+                                byte[] plaintext, int length, byte[] ciphertext,
+                                byte[] segments) throws IOException {
+        final byte[] nonce = new byte[NONCE_LENGTH];
+        mRandom.nextBytes(nonce);
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+            cipher.updateAAD(getAad(fileId, index));
+            cipher.doFinal(plaintext, 0, length, ciphertext, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to encrypt segment " + index + ": " + e.getMessage());
+        }
+        final int info = index * SEGMENT_INFO_LENGTH;
+        System.arraycopy(nonce, 0, segments, info, NONCE_LENGTH);
+        System.arraycopy(ciphertext, length, segments, info + NONCE_LENGTH, TAG_LENGTH);
+        mSegmentsEncrypted.incrementAndGet();
+    }
+
+    private void decryptSegment(Cipher cipher, SecretKey key, byte[] fileId, int index,
+                                byte[] segments, byte[] ciphertext, int length,
+                                byte[] plaintext) throws IOException {
+        decryptSegment(cipher, key, fileId, index, segments, index * SEGMENT_INFO_LENGTH,
+                ciphertext, length, plaintext);
+    }
+
+    /**
+     * Decrypts a segment and checks its tag.
+     *
+     * @param info       where the segment's nonce and tag start in segments
+     * @param ciphertext the ciphertext, with room for the tag after it
+     */
+    private void decryptSegment(Cipher cipher, SecretKey key, byte[] fileId, int index,
+                                byte[] segments, int info, byte[] ciphertext, int length,
+                                byte[] plaintext) throws IOException {
+        System.arraycopy(segments, info + NONCE_LENGTH, ciphertext, length, TAG_LENGTH);
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key,
+                    new GCMParameterSpec(TAG_LENGTH * 8, segments, info, NONCE_LENGTH));
+            cipher.updateAAD(getAad(fileId, index));
+            cipher.doFinal(ciphertext, 0, length + TAG_LENGTH, plaintext, 0);
+        } catch (AEADBadTagException e) {
+            throw new IOException("Segment " + index + " failed authentication");
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to decrypt segment " + index + ": " + e.getMessage());
+        }
+        mSegmentsDecrypted.incrementAndGet();
+    }
+
+    /**
+     * @return what a segment's tag covers besides its contents: the document it belongs to and
+     * where in it
+     */
+    private static byte[] getAad(byte[] fileId, int index) {
+        return ByteBuffer.allocate(FILE_ID_LENGTH + 8).put(fileId).putLong(index).array();
+    }
+
+    private static Cipher newCipher() throws IOException {
+        try {
+            return Cipher.getInstance(CIPHER);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("No " + CIPHER + ": " + e.getMessage());
+        }
+    }
+
+    private static int getSegmentCount(long length) {
+        return (int) ((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+    }
+
+    private static int getRowCount(long length) {
+        return (getSegmentCount(length) + SEGMENTS_PER_ROW - 1) / SEGMENTS_PER_ROW;
+    }
+
+    /**
+     * @return a selection matching a path and everything below it, given the path, the path
+     * followed by '/' and the path followed by '0'.  Every descendant path sorts between the
+     * last two, since '0' follows '/'.
+     */
+    private static String getTreeSelection() {
+        return COLUMN_PATH + " = ? OR (" + COLUMN_PATH + " >= ? AND " + COLUMN_PATH + " < ?)";
+    }
+
+    private static String[] getTreeSelectionArgs(String path) {
+        return new String[]{path, path + '/', path + '0'};
+    }
+
+    /**
+     * @return false if the stream ended first
+     */
+    private static boolean readFully(InputStream in, byte[] buffer, int length)
+            throws IOException {
+        int read = 0;
+        while (read < length) {
+            final int count = in.read(buffer, read, length - read);
+            if (count < 0) {
+                return false;
+            }
+            read += count;
+        }
+        return true;
+    }
+
+    private static void readFully(FileChannel channel, byte[] buffer, int length, long position)
+            throws IOException {
+        final ByteBuffer target = ByteBuffer.wrap(buffer, 0, length);
+        while (target.hasRemaining()) {
+            if (channel.read(target, position + target.position()) < 0) {
+                throw new IOException("File ends before segment at " + position);
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, byte[] buffer, int length,
+                                   long position) throws IOException {
+        final ByteBuffer source = ByteBuffer.wrap(buffer, 0, length);
+        while (source.hasRemaining()) {
+            channel.write(source, position + source.position());
+        }
+    }
+
+    private static long copyContents(File source, File target) throws IOException {
+        final FileChannel in = new FileInputStream(source).getChannel();
+        try {
+            final FileChannel out = new FileOutputStream(target).getChannel();
+            try {
+                final long size = in.size();
+                long copied = 0;
+                while (copied < size) {
+                    final long count = in.transferTo(copied, size - copied, out);
+                    if (count <= 0) {
+                        // Shrunk; the caller notices.
+                        break;
+                    }
+                    copied += count;
+                }
+                return copied;
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void deleteTree(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+}
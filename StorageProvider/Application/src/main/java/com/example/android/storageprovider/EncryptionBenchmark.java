@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.storageprovider;
+
+import android.os.Build;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.storage.StorageManager;
+
+import androidx.annotation.RequiresApi;
+
+import com.example.android.common.logger.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+/**
+ * Measures what encryption costs, by writing and reading the same data through a plain
+ * descriptor and through an {@link EncryptedFileCallback}: a sequential write including the
+ * fsync, a sequential read, and small reads at random offsets.  Both files are read straight
+ * after they are written, so both are read from the page cache and the difference is the work
+ * of the proxy and the cipher.
+ */
+@RequiresApi(Build.VERSION_CODES.O)
+class EncryptionBenchmark {
+    private static final String TAG = "EncryptionBenchmark";
+
+    // Keys of the results.  Throughput is in MiB per second, random reads in microseconds each,
+    // and the overheads in percent of the plain figure.
+    static final String RESULT_PLAIN_WRITE = "plainWriteMiBPerSecond";
+    static final String RESULT_ENCRYPTED_WRITE = "encryptedWriteMiBPerSecond";
+    static final String RESULT_PLAIN_READ = "plainReadMiBPerSecond";
+    static final String RESULT_ENCRYPTED_READ = "encryptedReadMiBPerSecond";
+    static final String RESULT_PLAIN_RANDOM_READ = "plainRandomReadMicros";
+    static final String RESULT_ENCRYPTED_RANDOM_READ = "encryptedRandomReadMicros";
+    static final String RESULT_WRITE_OVERHEAD = "writeOverheadPercent";
+    static final String RESULT_READ_OVERHEAD = "readOverheadPercent";
+    static final String RESULT_RANDOM_READ_OVERHEAD = "randomReadOverheadPercent";
+
+    private static final int BUFFER_SIZE = 128 * 1024;
+    private static final int RANDOM_READ_SIZE = 4 * 1024;
+    private static final int RANDOM_READS = 1000;
+
+    private final StorageManager mStorageManager;
+    private final EncryptedStore mStore;
+    private final File mDir;
+
+    /**
+     * @param dir where to write the test files, on the same volume as the documents
+     */
+    EncryptionBenchmark(StorageManager storageManager, EncryptedStore store, File dir) {
+        mStorageManager = storageManager;
+        mStore = store;
+        mDir = dir;
+    }
+
+    /**
+     * Runs the benchmark.  Takes a few seconds for each 64 MiB on a typical device.
+     *
+     * @param megabytes how much data to write and read, in MiB
+     * @return the results, see the RESULT_ constants
+     */
+    Bundle run(int megabytes) throws IOException {
+        final long length = megabytes * 1024L * 1024;
+        // Random data, so nothing on the way can compress it.
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        new Random(0).nextBytes(buffer);
+
+        final File plain = File.createTempFile("benchmark", null, mDir);
+        final File encrypted = File.createTempFile("benchmark", null, mDir);
+        try {
+            if (!mStore.encrypt(encrypted)) {
+                throw new IOException("Failed to set up " + encrypted);
+            }
+
+            long start = System.nanoTime();
+            write(ParcelFileDescriptor.open(plain, ParcelFileDescriptor.MODE_WRITE_ONLY),
+                    buffer, length);
+            final long plainWrite = System.nanoTime() - start;
+            start = System.nanoTime();
+            write(open(encrypted, ParcelFileDescriptor.MODE_WRITE_ONLY), buffer, length);
+            final long encryptedWrite = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            read(ParcelFileDescriptor.open(plain, ParcelFileDescriptor.MODE_READ_ONLY), buffer,
+                    length);
+            final long plainRead = System.nanoTime() - start;
+            start = System.nanoTime();
+            read(open(encrypted, ParcelFileDescriptor.MODE_READ_ONLY), buffer, length);
+            final long encryptedRead = System.nanoTime() - start;
+
+            final long plainRandom = readRandomly(
+                    ParcelFileDescriptor.open(plain, ParcelFileDescriptor.MODE_READ_ONLY),
+                    length);
+            final long encryptedRandom = readRandomly(
+                    open(encrypted, ParcelFileDescriptor.MODE_READ_ONLY), length);
+
+            final Bundle result = new Bundle();
+            result.putDouble(RESULT_PLAIN_WRITE, getMiBPerSecond(length, plainWrite));
+            result.putDouble(RESULT_ENCRYPTED_WRITE, getMiBPerSecond(length, encryptedWrite));
+            result.putDouble(RESULT_PLAIN_READ, getMiBPerSecond(length, plainRead));
+            result.putDouble(RESULT_ENCRYPTED_READ, getMiBPerSecond(length, encryptedRead));
+            result.putDouble(RESULT_PLAIN_RANDOM_READ, plainRandom / 1000.0 / RANDOM_READS);
+            result.putDouble(RESULT_ENCRYPTED_RANDOM_READ,
+                    encryptedRandom / 1000.0 / RANDOM_READS);
+            result.putDouble(RESULT_WRITE_OVERHEAD, getOverhead(plainWrite, encryptedWrite));
+            result.putDouble(RESULT_READ_OVERHEAD, getOverhead(plainRead, encryptedRead));
+            result.putDouble(RESULT_RANDOM_READ_OVERHEAD,
+                    getOverhead(plainRandom, encryptedRandom));
+            Log.i(TAG, megabytes + " MiB: write " + result.getDouble(RESULT_PLAIN_WRITE) + " / "
+                    + result.getDouble(RESULT_ENCRYPTED_WRITE) + " MiB/s, read "
+                    + result.getDouble(RESULT_PLAIN_READ) + " / "
+                    + result.getDouble(RESULT_ENCRYPTED_READ) + " MiB/s, random read "
+                    + result.getDouble(RESULT_PLAIN_RANDOM_READ) + " / "
+                    + result.getDouble(RESULT_ENCRYPTED_RANDOM_READ) + " us, plain / encrypted");
+            return result;
+        } finally {
+            plain.delete();
+            mStore.remove(encrypted);
+            encrypted.delete();
+        }
+    }
+
+    private ParcelFileDescriptor open(File file, int mode) throws IOException {
+        final EncryptedStore.Document document = mStore.open(file);
+        if (document == null) {
+            throw new IOException(file + " isn't encrypted");
+        }
+        return EncryptedFileCallback.open(mStorageManager, mStore, document, mode, null);
+    }
+
+    /**
+     * Writes and syncs, so the encrypted figure includes saving the tags.
+     */
+    private static void write(ParcelFileDescriptor pfd, byte[] buffer, long length)
+            throws IOException {
+        final FileOutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pfd);
+        try {
+            for (long written = 0; written < length; written += buffer.length) {
+                out.write(buffer, 0, (int) Math.min(buffer.length, length - written));
+            }
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void read(ParcelFileDescriptor pfd, byte[] buffer, long length)
+            throws IOException {
+        final FileInputStream in = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+        try {
+            long read = 0;
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                read += count;
+            }
+            if (read != length) {
+                throw new IOException("Read " + read + " bytes of " + length);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return how long the reads took, in nanoseconds.  Both files are read at the same offsets.
+     */
+    private static long readRandomly(ParcelFileDescriptor pfd, long length) throws IOException {
+        final FileInputStream in = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+        try {
+            final FileChannel channel = in.getChannel();
+            final ByteBuffer buffer = ByteBuffer.allocate(RANDOM_READ_SIZE);
+            final Random random = new Random(0);
+            final long start = System.nanoTime();
+            for (int i = 0; i < RANDOM_READS; i++) {
+                buffer.clear();
+                final long position = (long) (random.nextDouble() * (length - RANDOM_READ_SIZE));
+                if (channel.read(buffer, position) < 0) {
+                    throw new IOException("Nothing at " + position);
+                }
+            }
+            return System.nanoTime() - start;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static double getMiBPerSecond(long bytes, long nanos) {
+        return bytes / (1024.0 * 1024) / (nanos / 1e9);
+    }
+
+    private static double getOverhead(long plainNanos, long encryptedNanos) {
+        return (encryptedNanos - plainNanos) * 100.0 / plainNanos;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.storageprovider;
+
+import static android.os.Build.VERSION.SDK_INT;
+
+import android.os.Build;
+import android.os.Process;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+
+import java.io.File;
+
+/**
+ * The attributes of a file that a document row needs, read with a single stat(2).
+ * <p/>
+ * Asking a {@link File} for the same information costs a separate system call for each of
+ * {@link File#exists()}, {@link File#isDirectory()}, {@link File#canWrite()},
+ * {@link File#length()} and {@link File#lastModified()}.
+ */
+class FileAttributes {
+    private static final int MY_UID = Process.myUid();
+
+    final boolean mIsDirectory;
+    final boolean mIsWritable;
+    final long mSize;
+    final long mLastModified;
+
+    private FileAttributes(boolean isDirectory, boolean isWritable, long size,
+                           long lastModified) {
+        mIsDirectory = isDirectory;
+        mIsWritable = isWritable;
+        mSize = size;
+        mLastModified = lastModified;
+    }
+
+    /**
+     * @param file the file to look at
+     * @return the file's attributes, or null if it doesn't exist
+     */
+    static FileAttributes read(File file) {
+        if (SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            // android.system.Os isn't available, so fall back to one call per attribute.
+            if (!file.exists()) {
+                return null;
+            }
+            return new FileAttributes(file.isDirectory(), file.canWrite(), file.length(),
+                    file.lastModified());
+        }
+
+        final StructStat stat;
+        try {
+            stat = Os.stat(file.getPath());
+        } catch (ErrnoException e) {
+            return null;
+        }
+        final long lastModified;
+        if (SDK_INT >= Build.VERSION_CODES.O_MR1) {
+            lastModified = stat.st_mtim.tv_sec * 1000 + stat.st_mtim.tv_nsec / 1000000;
+        } else {
+            lastModified = stat.st_mtime * 1000;
+        }
+        return new FileAttributes(OsConstants.S_ISDIR(stat.st_mode), isWritable(file, stat),
+                stat.st_size, lastModified);
+    }
+
+    /**
+     * @return these attributes with another size, such as the total size of a directory's
+     * contents
+     */
+    FileAttributes withSize(long size) {
+        return new FileAttributes(mIsDirectory, mIsWritable, size, mLastModified);
+    }
+
+    private static boolean isWritable(File file, StructStat stat) {
+        // Everything the provider serves belongs to the app, so the owner bits decide.  Only for
+        // anything else is it worth asking the kernel.
+        if (stat.st_uid == MY_UID) {
+            return (stat.st_mode & OsConstants.S_IWUSR) != 0;
+        }
+        return file.canWrite();
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.storageprovider;
+
+import android.os.CancellationSignal;
+
+import com.example.android.common.logger.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Copies files between channels so the kernel can move the bytes itself.
+ * <p/>
+ * {@link FileChannel#transferTo} maps onto sendfile(2) on Android, so the data never passes
+ * through the Java heap.  Where the kernel won't do that for a pair of files, the copy carries
+ * on through large direct buffers that are pooled between copies.
+ * <p/>
+ * The copy is written to a staging file and renamed into place when it is complete, so a
+ * failed or canceled copy never leaves a partial target behind.  The target's name is claimed
+ * with an empty file before the copy starts, so two copies to the same name can't both succeed.
+ * The staging directory must be on the same volume as the targets for the rename to work.
+ */
+class FileCopier {
+    private static final String TAG = "FileCopier";
+
+    private static final String STAGING_PREFIX = "copy-";
+
+    // How much to hand the kernel at once.  Progress is reported and cancellation checked
+    // between chunks.
+    private static final long TRANSFER_CHUNK_BYTES = 8 * 1024 * 1024;
+
+    private static final int BUFFER_BYTES = 1024 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 4;
+
+    private static final ArrayBlockingQueue<ByteBuffer> sBufferPool =
+            new ArrayBlockingQueue<ByteBuffer>(MAX_POOLED_BUFFERS);
+
+    /**
+     * Receives updates as a copy progresses.
+     */
+    interface ProgressListener {
+        /**
+         * @param bytesCopied how many bytes have been copied so far
+         * @param totalBytes  how many bytes will have been copied at the end
+         */
+        void onProgress(long bytesCopied, long totalBytes);
+    }
+
+    private final File mStagingDir;
+
+    /**
+     * @param stagingDir where copies are written until they're complete.  Anything left there
+     *                   by an earlier process is removed.
+     */
+    FileCopier(File stagingDir) {
+        mStagingDir = stagingDir;
+        final File[] leftovers = mStagingDir.listFiles();
+        if (leftovers != null) {
+            for (File leftover : leftovers) {
+                if (leftover.getName().startsWith(STAGING_PREFIX)) {
+                    leftover.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies a file.
+     *
+     * @param source   the file to copy
+     * @param target   where to put the copy, which must not exist yet
+     * @param listener told about progress, may be null
+     * @param signal   used to abandon the copy, may be null
+     * @return the number of bytes copied
+     * @throws IOException                           if the copy failed; the target isn't created
+     * @throws android.os.OperationCanceledException if the signal was canceled; the target isn't
+     *                                               created
+     */
+    long copy(File source, File target, ProgressListener listener, CancellationSignal signal)
+            throws IOException {
+        return copy(source, target, listener, signal, true);
+    }
+
+    /**
+     * Copies a file, optionally leaving it to the caller to flush the copy to disk.
+     *
+     * @param sync whether to flush the copy before it's moved into place.  A caller that
+     *             flushes the copy some other way, or doesn't need it to survive a crash, can
+     *             pass false.
+     * @see #copy(File, File, ProgressListener, CancellationSignal)
+     */
+    long copy(File source, File target, ProgressListener listener, CancellationSignal signal,
+              boolean sync) throws IOException {
+        // Creating the file fails if the name is taken, and nobody else can take it in between;
+        // checking exists() first and renaming later could overwrite a file made in the meantime.
+        if (!target.createNewFile()) {
+            throw new IOException("Target already exists: " + target);
+        }
+        boolean succeeded = false;
+        File staging = null;
+        try {
+            staging = File.createTempFile(STAGING_PREFIX, null, mStagingDir);
+            final long copied = copyContents(source, staging, listener, signal, sync);
+            // Replaces the empty placeholder in one step.
+            if (!staging.renameTo(target)) {
+                throw new IOException("Failed to move copy into place at " + target);
+            }
+            succeeded = true;
+            return copied;
+        } finally {
+            if (!succeeded) {
+                if (staging != null && !staging.delete()) {
+                    Log.w(TAG, "Failed to clean up " + staging);
+                }
+                if (!target.delete()) {
+                    Log.w(TAG, "Failed to release " + target);
+                }
+            }
+        }
+    }
+
+    private static long copyContents(File source, File target, ProgressListener listener,
+                                     CancellationSignal signal, boolean sync) throws IOException {
+        final FileInputStream inStream = new FileInputStream(source);
+        try {
+            final FileOutputStream outStream = new FileOutputStream(target);
+            try {
+                final FileChannel in = inStream.getChannel();
+                final FileChannel out = outStream.getChannel();
+                final long size = in.size();
+                long position = 0;
+                while (position < size) {
+                    if (signal != null) {
+                        signal.throwIfCanceled();
+                    }
+                    final long transferred = in.transferTo(position,
+                            Math.min(TRANSFER_CHUNK_BYTES, size - position), out);
+                    if (transferred <= 0) {
+                        // The kernel won't do this one for us, so finish the copy by hand.
+                        break;
+                    }
+                    position += transferred;
+                    if (listener != null) {
+                        listener.onProgress(position, size);
+                    }
+                }
+                if (position < size) {
+                    in.position(position);
+                    position += copyBuffered(in, out, position, size, listener, signal);
+                }
+                if (sync) {
+                    // Make sure the bytes are on disk before the copy becomes visible.
+                    out.force(false);
+                }
+                return position;
+            } finally {
+                outStream.close();
+            }
+        } finally {
+            inStream.close();
+        }
+    }
+
+    /**
+     * Copies the rest of a channel through a pooled direct buffer.
+     *
+     * @return the number of bytes copied
+     */
+    private static long copyBuffered(FileChannel in, FileChannel out, long position, long size,
+                                     ProgressListener listener, CancellationSignal signal)
+            throws IOException {
+        final ByteBuffer buffer = acquireBuffer();
+        long copied = 0;
+        try {
+            while (in.read(buffer) >= 0 || buffer.position() > 0) {
+                if (signal != null) {
+                    signal.throwIfCanceled();
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    copied += out.write(buffer);
+                }
+                buffer.clear();
+                if (listener != null) {
+                    listener.onProgress(position + copied, Math.max(size, position + copied));
+                }
+            }
+        } finally {
+            releaseBuffer(buffer);
+        }
+        return copied;
+    }
+
+    private static ByteBuffer acquireBuffer() {
+        final ByteBuffer buffer = sBufferPool.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(BUFFER_BYTES);
+    }
+
+    private static void releaseBuffer(ByteBuffer buffer) {
+        buffer.clear();
+        // If the pool is already full the buffer is simply left for the garbage collector.
+        sBufferPool.offer(buffer);
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.storageprovider;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A stand-in for the MyCloud server that keeps documents in a local directory.
+ * <p/>
+ * Every request waits for a fixed round trip time, and data moves no faster than a fixed
+ * bandwidth, so the provider can be tried against something that behaves like a network.
+ */
+class LocalCloudBackend implements CloudBackend {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File mRoot;
+    private final long mLatencyMillis;
+    private final long mBytesPerSecond;
+
+    /**
+     * @param root           the directory the "server" keeps documents in; created if needed
+     * @param latencyMillis  how long each request takes before any data moves
+     * @param bytesPerSecond how fast data moves, in each direction
+     */
+    LocalCloudBackend(File root, long latencyMillis, long bytesPerSecond) {
+        mRoot = root;
+        mLatencyMillis = latencyMillis;
+        mBytesPerSecond = bytesPerSecond;
+        mRoot.mkdirs();
+    }
+
+    @Override
+    public Entry stat(String path) throws IOException {
+        delay(mLatencyMillis);
+        final File file = new File(mRoot, path);
+        if (!file.isFile()) {
+            return null;
+        }
+        return new Entry(file.length(), file.lastModified());
+    }
+
+    @Override
+    public byte[] read(String path, long offset, int length) throws IOException {
+        delay(mLatencyMillis);
+        final RandomAccessFile file;
+        try {
+            file = new RandomAccessFile(new File(mRoot, path), "r");
+        } catch (FileNotFoundException e) {
+            throw new FileNotFoundException("Not on server: " + path);
+        }
+        try {
+            final byte[] buffer = new byte[(int) Math.max(0,
+                    Math.min(length, file.length() - offset))];
+            file.seek(offset);
+            file.readFully(buffer);
+            delayForBytes(buffer.length);
+            return buffer.length == length ? buffer : Arrays.copyOf(buffer, buffer.length);
+        } finally {
+            file.close();
+        }
+    }
+
+    @Override
+    public Entry write(String path, File source) throws IOException {
+        delay(mLatencyMillis);
+        return store(path, source);
+    }
+
+    @Override
+    public void writeAll(List<String> paths, List<File> sources) throws IOException {
+        delay(mLatencyMillis);
+        for (int i = 0; i < paths.size(); i++) {
+            store(paths.get(i), sources.get(i));
+        }
+    }
+
+    @Override
+    public Entry applyDelta(String path, Entry base, Delta delta, long lastModified)
+            throws IOException {
+        delay(mLatencyMillis);
+        delayForBytes(delta.getEncodedSize());
+        final File target = new File(mRoot, path);
+        if (!target.isFile() || target.length() != base.mLength
+                || target.lastModified() != base.mLastModified) {
+            throw new IOException("Server copy of " + path + " has changed");
+        }
+        final File temp = new File(target.getParentFile(), "." + target.getName() + ".upload");
+        try {
+            final RandomAccessFile in = new RandomAccessFile(target, "r");
+            try {
+                final OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
+                try {
+                    delta.apply(in, out);
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+            if (temp.length() != delta.mLength) {
+                throw new IOException("Delta for " + path + " built the wrong length");
+            }
+            temp.setLastModified(lastModified);
+            if (!temp.renameTo(target)) {
+                throw new IOException("Failed to store " + path);
+            }
+        } finally {
+            temp.delete();
+        }
+        return new Entry(target.length(), target.lastModified());
+    }
+
+    private Entry store(String path, File source) throws IOException {
+        final File target = new File(mRoot, path);
+        final File parent = target.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Failed to create " + parent);
+        }
+        // Write beside the target and rename, so a failed upload leaves the old copy alone.
+        final File temp = new File(parent, "." + target.getName() + ".upload");
+        final long lastModified = source.lastModified();
+        try {
+            final InputStream in = new FileInputStream(source);
+            try {
+                final OutputStream out = new FileOutputStream(temp);
+                try {
+                    final byte[] buffer = new byte[BUFFER_SIZE];
+                    int count;
+                    while ((count = in.read(buffer)) > 0) {
+                        out.write(buffer, 0, count);
+                        delayForBytes(count);
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+            // The version is the time the client last changed the document, so the client can
+            // tell whether the server has its latest edit.
+            temp.setLastModified(lastModified);
+            if (!temp.renameTo(target)) {
+                throw new IOException("Failed to store " + path);
+            }
+        } finally {
+            temp.delete();
+        }
+        return new Entry(target.length(), target.lastModified());
+    }
+
+    private void delayForBytes(long bytes) throws InterruptedIOException {
+        if (mBytesPerSecond > 0) {
+            delay(bytes * 1000 / mBytesPerSecond);
+        }
+    }
+
+    private static void delay(long millis) throws InterruptedIOException {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while talking to the server");
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.storageprovider;
+
+import android.webkit.MimeTypeMap;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps file name extensions to MIME types from a table in memory.
+ * <p/>
+ * The table starts out with the types this provider is most likely to see.  Anything else is
+ * looked up in {@link MimeTypeMap} once and remembered, so listing a large directory doesn't
+ * make a trip through MimeTypeMap for every row.
+ */
+final class MimeTypes {
+    static final String DEFAULT_MIME_TYPE = "application/octet-stream";
+
+    // Stop remembering lookups past this many extensions, in case names have random suffixes.
+    private static final int MAX_EXTENSIONS = 1024;
+
+    private static final ConcurrentHashMap<String, String> sTypesByExtension =
+            new ConcurrentHashMap<String, String>();
+
+    static {
+        sTypesByExtension.put("jpg", "image/jpeg");
+        sTypesByExtension.put("jpeg", "image/jpeg");
+        sTypesByExtension.put("png", "image/png");
+        sTypesByExtension.put("gif", "image/gif");
+        sTypesByExtension.put("webp", "image/webp");
+        sTypesByExtension.put("heic", "image/heic");
+        sTypesByExtension.put("txt", "text/plain");
+        sTypesByExtension.put("html", "text/html");
+        sTypesByExtension.put("pdf", "application/pdf");
+        sTypesByExtension.put("zip", "application/zip");
+        sTypesByExtension.put("docx",
+                "application/vnd.openxmlformats-officedocument.wordprocessingml.document");
+        sTypesByExtension.put("mp3", "audio/mpeg");
+        sTypesByExtension.put("mp4", "video/mp4");
+    }
+
+    private MimeTypes() {
+    }
+
+    /**
+     * Get the MIME data type of a document, given its filename.
+     *
+     * @param name the filename of the document
+     * @return the MIME data type of a document
+     */
+    static String getTypeForName(String name) {
+        final int lastDot = name.lastIndexOf('.');
+        if (lastDot < 0) {
+            return DEFAULT_MIME_TYPE;
+        }
+        final String extension = name.substring(lastDot + 1);
+        String mime = sTypesByExtension.get(extension);
+        if (mime == null) {
+            mime = MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
+            if (mime == null) {
+                mime = DEFAULT_MIME_TYPE;
+            }
+            if (sTypesByExtension.size() < MAX_EXTENSIONS) {
+                sTypesByExtension.put(extension, mime);
+            }
+        }
+        return mime;
+    }
+}
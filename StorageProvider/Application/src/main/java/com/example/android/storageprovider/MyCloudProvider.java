@@ -19,38 +19,55 @@ package com.example.android.storageprovider;
 
 import static android.os.Build.VERSION.SDK_INT;
 
+import android.Manifest;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.content.pm.ProviderInfo;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.TypedArray;
 import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.graphics.Point;
+import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
 import android.os.CancellationSignal;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.ParcelFileDescriptor;
+import android.os.storage.StorageManager;
+import android.provider.DocumentsContract;
 import android.provider.DocumentsContract.Document;
 import android.provider.DocumentsContract.Root;
 import android.provider.DocumentsProvider;
-import android.webkit.MimeTypeMap;
+
+import androidx.annotation.RequiresApi;
 
 import com.example.android.common.logger.Log;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashSet;
 import java.util.LinkedList;
-import java.util.PriorityQueue;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Manages documents and exposes them to the Android system for sharing.
@@ -68,7 +85,8 @@ public class MyCloudProvider extends DocumentsProvider {
             Root.COLUMN_TITLE,
             Root.COLUMN_SUMMARY,
             Root.COLUMN_DOCUMENT_ID,
-            Root.COLUMN_AVAILABLE_BYTES
+            Root.COLUMN_AVAILABLE_BYTES,
+            Root.COLUMN_CAPACITY_BYTES
     };
 
     // Use these as the default columns to return information about a document if no specific
@@ -87,47 +105,392 @@ public class MyCloudProvider extends DocumentsProvider {
     private static final int MAX_SEARCH_RESULTS = 20;
     private static final int MAX_LAST_MODIFIED = 5;
 
-    private static final String ROOT = "root";
+    // When true, documents opened for reading are streamed from a stand-in server rather than
+    // read straight from local storage, as a real cloud provider would download them.  The
+    // server keeps a full copy of the default root in the app's private storage.
+    private static final boolean USE_CLOUD_BACKEND = false;
+
+    // How the stand-in server behaves by default: the time each request takes, and its
+    // bandwidth.  Both can be changed through the preferences, see getBackendLatencyMillis().
+    private static final long DEFAULT_SIMULATED_LATENCY_MILLIS = 50;
+    private static final long DEFAULT_SIMULATED_BYTES_PER_SECOND = 4 * 1024 * 1024;
+
+    // The largest stored document put back together, or encrypted one decrypted, to make a
+    // thumbnail.
+    private static final long MAX_THUMBNAIL_SOURCE_BYTES = 32 * 1024 * 1024;
+
+    // How much of the cache directory downloaded chunks may use.
+    private static final long MAX_CHUNK_CACHE_BYTES = 64 * 1024 * 1024;
+
+    // How often to log progress while copying a directory, in files.
+    private static final int PROGRESS_LOG_INTERVAL = 1000;
+
+    // When true, document contents are kept in a content-addressed chunk store, so identical
+    // content is stored once and copies don't copy any bytes.  The files under the default
+    // root become empty placeholders of the right size.  The stand-in server uploads those
+    // files, so it isn't used when this is on.
+    private static final boolean USE_CHUNK_STORE = false;
+
+    // When true, documents are kept encrypted at rest, see EncryptedStore, and are read and
+    // written through proxy descriptors that decrypt and encrypt them as they go.  Needs Android
+    // O for the descriptors.  The chunk store and the stand-in server work on the files
+    // themselves, so neither is used when this is on.
+    private static final boolean USE_ENCRYPTION = false;
+
+    // Methods for call(): get the metrics as a Bundle, and reset them.
+    static final String METHOD_GET_METRICS = "getMetrics";
+    static final String METHOD_RESET_METRICS = "resetMetrics";
+
+    // Method for call() that generates a tree of documents for load testing, see SyntheticTree.
+    // The argument names the new directory under the root given by EXTRA_ROOT_ID, or the
+    // default root; the extras describe the tree.  Returns the new directory's document ID
+    // straight away; clients watching the root's top level are told once the tree is there.
+    static final String METHOD_GENERATE_TREE = "generateTree";
+    static final String EXTRA_ROOT_ID = "rootId";
+    static final String RESULT_DOCUMENT_ID = "documentId";
+    private static final String DEFAULT_SYNTHETIC_TREE_NAME = "synthetic";
+
+    // Methods for call() that add and remove an account's root.  The argument is the root's ID;
+    // adding takes the account's name as EXTRA_TITLE and returns the root's document ID.
+    static final String METHOD_ADD_ROOT = "addRoot";
+    static final String METHOD_REMOVE_ROOT = "removeRoot";
+    static final String EXTRA_TITLE = "title";
+
+    // Method for call() that compares writing and reading through encryption with plain files,
+    // see EncryptionBenchmark.  The argument is how many MiB to use, at most
+    // MAX_BENCHMARK_MEGABYTES, since it is written to the app's storage twice over.  Needs
+    // USE_ENCRYPTION.
+    static final String METHOD_BENCHMARK_ENCRYPTION = "benchmarkEncryption";
+    private static final int DEFAULT_BENCHMARK_MEGABYTES = 64;
+    private static final int MAX_BENCHMARK_MEGABYTES = 256;
+
+    // When true, document metadata is kept in an on-disk index so listings don't need to stat
+    // every file.  Turn it off to answer every query straight from the file system.
+    private static final boolean USE_DOCUMENT_INDEX = true;
+
+    // The roots, one per account, each with a base directory at the top of its file hierarchy.
+    // Depending on your implementation, a root does not need to be an existing file system
+    // directory.  For example, a tag-based document provider might return a directory
+    // containing all tags, represented as child directories.
+    private RootRegistry mRegistry;
+
+    // Latency of each entry point, and counts of the work they do.
+    private final ProviderMetrics mMetrics = new ProviderMetrics();
+
+    // Keeps operations on the same document from running at once.  Document IDs are unique
+    // across roots, so one set of locks covers them all.
+    private DocumentLocks mLocks;
+
+    // The authority this provider is registered under, used to build notification URIs.
+    private String mAuthority;
+
+    // Tells clients which directories and documents changed.
+    private ChangeNotifier mNotifier;
+
+    // The rows queryRoots() returns, and what keeps them current.  The preferences only hold
+    // their listeners weakly, so the listener is kept here.
+    private RootCache mRoots;
+    private SharedPreferences.OnSharedPreferenceChangeListener mPreferenceListener;
+
+    private FileCopier mCopier;
+
+    // Runs the close listeners of documents opened for writing.  They wait for the document's
+    // write lock, which mustn't hold up the main thread or a thread with other work to do.
+    private final HandlerThread mCloseThread = new HandlerThread("CloseListeners");
+    private Handler mCloseHandler;
+
+    // Recursive copies and deletes, or null before Lollipop where only files can be copied and
+    // deleted.
+    private TreeOperations mTreeOperations;
+
+    // Generates load-testing trees, created on first use.  They are written one at a time on
+    // a thread of their own, not on the binder thread that asked for them.
+    private SyntheticTree mSyntheticTree;
+    private final ExecutorService mTreeGenerator =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "SyntheticTree");
+                }
+            });
+
+    // Keeps documents encrypted at rest, or null if they are stored as they are.  Serves every
+    // root.
+    private EncryptedStore mEncryption;
 
-    // A file object at the root of the file hierarchy.  Depending on your implementation, the root
-    // does not need to be an existing file system directory.  For example, a tag-based document
-    // provider might return a directory containing all tags, represented as child directories.
-    private File mBaseDir;
+    @Override
+    public void attachInfo(Context context, ProviderInfo info) {
+        mAuthority = info.authority;
+        super.attachInfo(context, info);
+    }
 
     @Override
     public boolean onCreate() {
         Log.v(TAG, "onCreate");
 
-        mBaseDir = getContext().getFilesDir();
+        mLocks = new DocumentLocks(new DocumentLocks.Ancestry() {
+            @Override
+            public List<String> getAncestors(String docId) {
+                final CloudRoot root = mRegistry.getRootForDocId(docId);
+                if (root == null || !root.acquire()) {
+                    return Collections.emptyList();
+                }
+                try {
+                    final List<String> path = root.mDocIds.getPath(root.getRootDocId(), docId);
+                    return path != null
+                            ? path.subList(0, path.size() - 1) : Collections.<String>emptyList();
+                } finally {
+                    root.release();
+                }
+            }
+        });
+        mNotifier = new ChangeNotifier(getContext().getContentResolver(), mAuthority);
+        mNotifier.start();
+        mRoots = new RootCache(getContext().getContentResolver(), mAuthority,
+                new RootCache.Loader() {
+                    @Override
+                    public RootCache.Snapshot load() {
+                        return loadRoots();
+                    }
+                });
+        mRoots.start();
+        mPreferenceListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+            @Override
+            public void onSharedPreferenceChanged(SharedPreferences preferences, String key) {
+                // Logging in or out adds or removes the roots.
+                if (getContext().getString(R.string.key_logged_in).equals(key)) {
+                    mRoots.invalidate();
+                }
+            }
+        };
+        getPreferences().registerOnSharedPreferenceChangeListener(mPreferenceListener);
+        // Copies are staged in a private directory on the same volume as the roots, so they can
+        // be renamed into place once complete.
+        final File stagingDir = getContext().getDir("staging", Context.MODE_PRIVATE);
+        mCopier = new FileCopier(stagingDir);
+        mCloseThread.start();
+        mCloseHandler = new Handler(mCloseThread.getLooper());
+        if (SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            mTreeOperations = new TreeOperations(mCopier, stagingDir);
+        }
+        if (USE_ENCRYPTION && SDK_INT >= Build.VERSION_CODES.O) {
+            mEncryption = new EncryptedStore(getContext(), stagingDir);
+            mEncryption.start();
+        }
 
-        writeTestFilesToStorage();
+        mRegistry = new RootRegistry(getContext(), new RootRegistry.Factory() {
+            @Override
+            public CloudRoot open(String rootId, String title) {
+                return openRoot(rootId, title);
+            }
+        }, new RootRegistry.Listener() {
+            @Override
+            public void onRootsChanged() {
+                mRoots.invalidate();
+            }
+        });
+        mRegistry.load(getContext().getString(R.string.root_summary));
 
         return true;
     }
 
+    /**
+     * Opens a root and starts checking its tree in the background.  Queries are answered from
+     * the file system until that's done.
+     */
+    private CloudRoot openRoot(String rootId, String title) {
+        final boolean isDefault = CloudRoot.DEFAULT_ROOT_ID.equals(rootId);
+        final File baseDir = isDefault ? getContext().getFilesDir()
+                : new File(getContext().getDir("accounts", Context.MODE_PRIVATE), rootId);
+        if (!baseDir.isDirectory() && !baseDir.mkdirs()) {
+            Log.w(TAG, "Failed to create " + baseDir);
+        }
+        ChunkStore chunkStore = null;
+        ThumbnailCache.ContentLoader thumbnailLoader = null;
+        // With encryption, thumbnails are made in memory and never cached, see
+        // openEncryptedThumbnail().
+        if (mEncryption == null && isDefault && USE_CHUNK_STORE) {
+            chunkStore = new ChunkStore(getContext(), baseDir,
+                    getContext().getDir("chunk_store", Context.MODE_PRIVATE),
+                    getContext().getDir("staging", Context.MODE_PRIVATE));
+            chunkStore.start();
+            final ChunkStore store = chunkStore;
+            thumbnailLoader = new ThumbnailCache.ContentLoader() {
+                @Override
+                public File load(File source) throws IOException {
+                    final ChunkStore.Manifest manifest = store.getManifest(source);
+                    if (manifest == null) {
+                        return source;
+                    }
+                    if (manifest.mLength > MAX_THUMBNAIL_SOURCE_BYTES) {
+                        throw new IOException("Too large to restore for a thumbnail: "
+                                + manifest.mLength + " bytes");
+                    }
+                    final File content = File.createTempFile("thumbnail", null,
+                            getContext().getCacheDir());
+                    store.restore(manifest, content);
+                    return content;
+                }
+            };
+        }
+        final CloudRoot root = new CloudRoot(getContext(), rootId, title, baseDir,
+                USE_DOCUMENT_INDEX, chunkStore, thumbnailLoader, new CloudRoot.Callback() {
+                    @Override
+                    public void onFileChanged(CloudRoot root, File file) {
+                        MyCloudProvider.this.onFileChanged(file);
+                    }
+
+                    @Override
+                    public void onFileRemoved(CloudRoot root, File file) {
+                        MyCloudProvider.this.onFileRemoved(file);
+                    }
+
+                    @Override
+                    public void onReconcile(CloudRoot root, File dir) {
+                        if (!root.acquire()) {
+                            return;
+                        }
+                        try {
+                            // Events may have been missed, so the totals and the listing may be
+                            // off as well.
+                            root.mStats.reconcileDirectory(dir);
+                            mRoots.onStorageChanged();
+                            root.mSnapshots.invalidate(dir);
+                            if (root.mIndex.reconcileDirectory(dir) > 0) {
+                                root.mIndex.updateDirectorySizes(dir);
+                                mNotifier.onChildrenChanged(root.mDocIds.getDocId(dir));
+                            }
+                        } finally {
+                            root.release();
+                        }
+                    }
+
+                    @Override
+                    public void onListingRefreshed(CloudRoot root, File dir) {
+                        if (!root.acquire()) {
+                            return;
+                        }
+                        try {
+                            // Any cursor still showing the old listing will be queried again.
+                            mNotifier.onChildrenChanged(root.mDocIds.getDocId(dir));
+                        } finally {
+                            root.release();
+                        }
+                    }
+                });
+        if (isDefault && chunkStore == null && mEncryption == null && USE_CLOUD_BACKEND) {
+            root.mBackend = new LocalCloudBackend(
+                    getContext().getDir("cloud", Context.MODE_PRIVATE),
+                    getBackendLatencyMillis(), getBackendBytesPerSecond());
+            root.mChunkCache = new ChunkCache(new File(getContext().getCacheDir(), "chunks"),
+                    MAX_CHUNK_CACHE_BYTES);
+            root.mFetcher = new ChunkFetcher(root.mBackend, root.mChunkCache);
+            root.mUploads = new UploadQueue(getContext(), baseDir, root.mBackend);
+            root.mUploads.start();
+        }
+        root.start();
+
+        // Writing the sample files and checking the index both take a while, so they run on
+        // the root's own threads.  The index stores directory sizes, so count them first.
+        root.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mEncryption != null) {
+                    // Anything cached was made from the plaintext before encryption was on.
+                    root.mThumbnails.clear();
+                }
+                if (root.isDefault()) {
+                    writeTestFilesToStorage(root);
+                }
+                if (root.mChunkStore != null) {
+                    root.mChunkStore.getHandler().post(new Runnable() {
+                        @Override
+                        public void run() {
+                            // Nothing is being read yet, so this is a good time to clear out
+                            // garbage.
+                            root.mChunkStore.storeAll();
+                            root.mChunkStore.collectGarbage();
+                            Log.i(TAG, "Chunk store: " + root.mChunkStore.getReport());
+                        }
+                    });
+                } else if (root.mUploads != null) {
+                    root.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            uploadMissingFiles(root);
+                        }
+                    });
+                } else if (mEncryption != null) {
+                    // Anything written before encryption was turned on, or while the provider
+                    // wasn't running, is still plaintext.
+                    encryptTreeLater(root.mBaseDir);
+                }
+                root.mStats.build();
+                // The root can show the MIME types actually stored now.
+                mRoots.onStorageChanged();
+                if (root.mIndex != null) {
+                    root.mIndex.verifyOrRebuild();
+                }
+            }
+        });
+        return root;
+    }
+
     // BEGIN_INCLUDE(query_roots)
     @Override
     public Cursor queryRoots(String[] projection) throws FileNotFoundException {
-        Log.v(TAG, "queryRoots");
+        final long start = ProviderMetrics.start();
+        try {
+            Log.v(TAG, "queryRoots");
+
+            // Create a cursor with either the requested fields, or the default projection.  This
+            // cursor is returned to the Android system picker UI and used to display all roots
+            // from this provider.  The system asks often, so the rows are built ahead of time
+            // by loadRoots() and only copied here.
+            final String[] columns = resolveRootProjection(projection);
+            final MatrixCursor result = new MatrixCursor(columns);
+            mRoots.get().addTo(result, columns);
+            return countRows(null, result);
+        } finally {
+            mMetrics.record(ProviderMetrics.OP_QUERY_ROOTS, start);
+        }
+    }
 
-        // Create a cursor with either the requested fields, or the default projection.  This
-        // cursor is returned to the Android system picker UI and used to display all roots from
-        // this provider.
-        final MatrixCursor result = new MatrixCursor(resolveRootProjection(projection));
+    /**
+     * Builds the rows {@link #queryRoots(String[])} returns, with every default column.  Called
+     * by {@link RootCache} whenever they may have changed.
+     */
+    private RootCache.Snapshot loadRoots() {
+        final RootCache.Snapshot.Builder result =
+                new RootCache.Snapshot.Builder(DEFAULT_ROOT_PROJECTION);
 
-        // If user is not logged in, return an empty root cursor.  This removes our provider from
-        // the list entirely.
+        // If user is not logged in, return no roots.  This removes our provider from the list
+        // entirely.
         if (!isUserLoggedIn()) {
-            return result;
+            return result.build();
         }
 
         // It's possible to have multiple roots (e.g. for multiple accounts in the same app) -
-        // just add multiple cursor rows.
-        // Construct one row for a root called "MyCloud".
-        final MatrixCursor.RowBuilder row = result.newRow();
+        // just add multiple rows.  Here there is one row for each account, with the default
+        // root first.
+        for (CloudRoot root : mRegistry.getRoots()) {
+            if (!root.acquire()) {
+                // Removed meanwhile, and the roots will be loaded again.
+                continue;
+            }
+            try {
+                addRoot(result.newRow(), root);
+            } finally {
+                root.release();
+            }
+        }
+        return result.build();
+    }
 
-        row.add(Root.COLUMN_ROOT_ID, ROOT);
-        row.add(Root.COLUMN_SUMMARY, getContext().getString(R.string.root_summary));
+    private void addRoot(RootCache.Snapshot.RowBuilder row, CloudRoot root) {
+        row.add(Root.COLUMN_ROOT_ID, root.mRootId);
+        // The summary tells the accounts apart; the default root's is R.string.root_summary.
+        row.add(Root.COLUMN_SUMMARY, root.mTitle);
 
         // FLAG_SUPPORTS_CREATE means at least one directory under the root supports creating
         // documents.  FLAG_SUPPORTS_RECENTS means your application's most recently used
@@ -145,20 +508,24 @@ public class MyCloudProvider extends DocumentsProvider {
                     Root.FLAG_SUPPORTS_IS_CHILD);
         }
 
-        // COLUMN_TITLE is the root title (e.g. what will be displayed to identify your provider).
+        // COLUMN_TITLE is the root title (e.g. what will be displayed to identify your
+        // provider).
         row.add(Root.COLUMN_TITLE, getContext().getString(R.string.app_name));
 
         // This document id must be unique within this provider and consistent across time.  The
         // system picker UI may save it and refer to it later.
-        row.add(Root.COLUMN_DOCUMENT_ID, getDocIdForFile(mBaseDir));
+        row.add(Root.COLUMN_DOCUMENT_ID, root.getRootDocId());
 
         // The child MIME types are used to filter the roots and only present to the user roots
         // that contain the desired type somewhere in their file hierarchy.
-        row.add(Root.COLUMN_MIME_TYPES, getChildMimeTypes(mBaseDir));
-        row.add(Root.COLUMN_AVAILABLE_BYTES, mBaseDir.getFreeSpace());
+        row.add(Root.COLUMN_MIME_TYPES, getChildMimeTypes(root, root.mBaseDir));
+        // Both come from a single statfs(2); the space this app may use is less than what is
+        // free, since some is reserved for the system.
+        row.add(Root.COLUMN_AVAILABLE_BYTES, root.mBaseDir.getUsableSpace());
+        if (SDK_INT >= Build.VERSION_CODES.N) {
+            row.add(Root.COLUMN_CAPACITY_BYTES, root.mBaseDir.getTotalSpace());
+        }
         row.add(Root.COLUMN_ICON, R.drawable.ic_launcher);
-
-        return result;
     }
     // END_INCLUDE(query_roots)
 
@@ -166,53 +533,58 @@ public class MyCloudProvider extends DocumentsProvider {
     @Override
     public Cursor queryRecentDocuments(String rootId, String[] projection)
             throws FileNotFoundException {
-        Log.v(TAG, "queryRecentDocuments");
-
-        // This example implementation walks a local file structure to find the most recently
-        // modified files.  Other implementations might include making a network call to query a
-        // server.
+        return queryRecentDocuments(rootId, projection, null, null);
+    }
 
-        // Create a cursor with the requested projection, or the default projection.
-        final MatrixCursor result = new MatrixCursor(resolveDocumentProjection(projection));
+    @Override
+    public Cursor queryRecentDocuments(String rootId, String[] projection, Bundle queryArgs,
+                                       CancellationSignal signal)
+            throws FileNotFoundException {
+        final long start = ProviderMetrics.start();
+        final CloudRoot root = acquireRoot(rootId);
+        try {
+            Log.v(TAG, "queryRecentDocuments");
 
-        final File parent = getFileForDocId(rootId);
+            // This example implementation walks a local file structure to find the most recently
+            // modified files.  Other implementations might include making a network call to query a
+            // server.
 
-        // Create a queue to store the most recent documents, which orders by last modified.
-        PriorityQueue<File> lastModifiedFiles = new PriorityQueue<File>(5, new Comparator<File>() {
-            public int compare(File i, File j) {
-                return Long.compare(i.lastModified(), j.lastModified());
+            final DocumentIndex index = root.getReadyIndex();
+            if (index != null) {
+                mMetrics.count(ProviderMetrics.COUNTER_INDEX_QUERIES, 1);
+                return countRows(root, index.queryRecentDocuments(
+                        resolveDocumentProjection(projection), MAX_LAST_MODIFIED));
             }
-        });
-
-        // Iterate through all files and directories in the file structure under the root.  If
-        // the file is more recent than the least recently modified, add it to the queue,
-        // limiting the number of results.
-        final LinkedList<File> pending = new LinkedList<File>();
 
-        // Start by adding the parent to the list of files to be processed
-        pending.add(parent);
-
-        // Do while we still have unexamined files
-        while (!pending.isEmpty()) {
-            // Take a file from the list of unprocessed files
-            final File file = pending.removeFirst();
-            if (file.isDirectory()) {
-                // If it's a directory, add all its children to the unprocessed list
-                Collections.addAll(pending, file.listFiles());
-            } else {
-                // If it's a file, add it to the ordered queue.
-                lastModifiedFiles.add(file);
+            // Create a cursor with the requested projection, or the default projection.
+            final DocumentRowBuilder rows =
+                    new DocumentRowBuilder(resolveDocumentProjection(projection));
+            final MatrixCursor result = rows.newCursor();
+
+            // Iterate through all files under the root, keeping only the most recently modified
+            // ones, and add them to the cursor newest first.  Walks share the binder threads with
+            // every other root, so each root may only run a few at once; past that the picker
+            // gets nothing yet, and is told when to ask again.
+            final Uri notificationUri =
+                    DocumentsContract.buildRecentDocumentsUri(mAuthority, rootId);
+            if (!root.tryBeginWalk(notificationUri)) {
+                return countRows(root, withLoading(result, notificationUri));
             }
+            final List<File> recentFiles;
+            try {
+                recentFiles = new RecentDocumentsCollector(MAX_LAST_MODIFIED)
+                        .collect(root.mBaseDir, signal);
+            } finally {
+                root.endWalk();
+            }
+            for (File file : recentFiles) {
+                includeFile(result, rows, null, file);
+            }
+            return countRows(root, result);
+        } finally {
+            root.release();
+            mMetrics.record(ProviderMetrics.OP_QUERY_RECENT_DOCUMENTS, start);
         }
-
-        // Add the most recent files to the cursor, not exceeding the max number of results.
-        int includedCount = 0;
-        while (includedCount < MAX_LAST_MODIFIED + 1 && !lastModifiedFiles.isEmpty()) {
-            final File file = lastModifiedFiles.remove();
-            includeFile(result, null, file);
-            includedCount++;
-        }
-        return result;
     }
     // END_INCLUDE(query_recent_documents)
 
@@ -220,39 +592,94 @@ public class MyCloudProvider extends DocumentsProvider {
     @Override
     public Cursor querySearchDocuments(String rootId, String query, String[] projection)
             throws FileNotFoundException {
-        Log.v(TAG, "querySearchDocuments");
-
-        // Create a cursor with the requested projection, or the default projection.
-        final MatrixCursor result = new MatrixCursor(resolveDocumentProjection(projection));
-        final File parent = getFileForDocId(rootId);
-
-        // This example implementation searches file names for the query and doesn't rank search
-        // results, so we can stop as soon as we find a sufficient number of matches.  Other
-        // implementations might use other data about files, rather than the file name, to
-        // produce a match; it might also require a network call to query a remote server.
+        return querySearchDocuments(rootId, query, projection, DocumentFilter.NONE);
+    }
 
-        // Iterate through all files in the file structure under the root until we reach the
-        // desired number of matches.
-        final LinkedList<File> pending = new LinkedList<File>();
+    @Override
+    public Cursor querySearchDocuments(String rootId, String[] projection, Bundle queryArgs)
+            throws FileNotFoundException {
+        // From Android 10 a search may also filter by MIME type, size and last modified time, and
+        // may not include a display name at all.
+        return querySearchDocuments(rootId,
+                queryArgs.getString(DocumentsContract.QUERY_ARG_DISPLAY_NAME), projection,
+                DocumentFilter.fromQueryArgs(queryArgs));
+    }
 
-        // Start by adding the parent to the list of files to be processed
-        pending.add(parent);
+    private Cursor querySearchDocuments(String rootId, String query, String[] projection,
+                                        DocumentFilter filter) throws FileNotFoundException {
+        final long start = ProviderMetrics.start();
+        final CloudRoot root = acquireRoot(rootId);
+        try {
+            Log.v(TAG, "querySearchDocuments");
+
+            // With the index, matches are found through the trigrams of their names and come back
+            // ranked, without looking at the file system at all.
+            final DocumentIndex index = root.getReadyIndex();
+            if (index != null) {
+                mMetrics.count(ProviderMetrics.COUNTER_INDEX_QUERIES, 1);
+                return countRows(root, index.querySearchDocuments(query, filter,
+                        resolveDocumentProjection(projection), MAX_SEARCH_RESULTS));
+            }
 
-        // Do while we still have unexamined files, and fewer than the max search results
-        while (!pending.isEmpty() && result.getCount() < MAX_SEARCH_RESULTS) {
-            // Take a file from the list of unprocessed files
-            final File file = pending.removeFirst();
-            if (file.isDirectory()) {
-                // If it's a directory, add all its children to the unprocessed list
-                Collections.addAll(pending, file.listFiles());
-            } else {
-                // If it's a file and it matches, add it to the result cursor.
-                if (file.getName().toLowerCase().contains(query)) {
-                    includeFile(result, null, file);
+            // Create a cursor with the requested projection, or the default projection.
+            final DocumentRowBuilder rows =
+                    new DocumentRowBuilder(resolveDocumentProjection(projection));
+            final MatrixCursor result = rows.newCursor();
+            final String key = query != null ? DocumentIndex.getNameKey(query) : "";
+
+            // This example implementation searches file names for the query and doesn't rank search
+            // results, so we can stop as soon as we find a sufficient number of matches.  Other
+            // implementations might use other data about files, rather than the file name, to
+            // produce a match; it might also require a network call to query a remote server.
+
+            // Iterate through all files in the file structure under the root until we reach the
+            // desired number of matches.
+            final LinkedList<File> pending = new LinkedList<File>();
+
+            // Start by adding the root to the list of files to be processed
+            pending.add(root.mBaseDir);
+
+            // Do while we still have unexamined files, and fewer than the max search results.
+            // Like the recent documents, only a few walks of each root run at once.
+            final Uri notificationUri = DocumentsContract.buildSearchDocumentsUri(mAuthority,
+                    rootId, query != null ? query : "");
+            if (!root.tryBeginWalk(notificationUri)) {
+                return countRows(root, withLoading(result, notificationUri));
+            }
+            try {
+                while (!pending.isEmpty() && result.getCount() < MAX_SEARCH_RESULTS) {
+                    // Take a file from the list of unprocessed files
+                    final File file = pending.removeFirst();
+                    final FileAttributes attributes = FileAttributes.read(file);
+                    if (attributes == null) {
+                        // Deleted since its directory was listed.
+                        continue;
+                    }
+                    if (attributes.mIsDirectory) {
+                        // If it's a directory, add all its children to the unprocessed list
+                        final File[] children = file.listFiles();
+                        if (children != null) {
+                            Collections.addAll(pending, children);
+                        }
+                    } else {
+                        // If it's a file and it matches, add it to the result cursor.
+                        final String name = file.getName();
+                        if (DocumentIndex.getNameKey(name).contains(key)
+                                && filter.matches(attributes,
+                                        DocumentRowBuilder.getTypeForFile(name, attributes))) {
+                            rows.addRow(result, root.mDocIds.assignDocId(file), name,
+                                    attributes);
+                        }
+                    }
                 }
+            } finally {
+                root.endWalk();
             }
+            return countRows(root, result);
+        } finally {
+            root.release();
+            mMetrics.record(ProviderMetrics.OP_QUERY_SEARCH_DOCUMENTS, start);
         }
-        return result;
     }
     // END_INCLUDE(query_search_documents)
 
@@ -263,23 +690,145 @@ public class MyCloudProvider extends DocumentsProvider {
             throws FileNotFoundException {
         Log.v(TAG, "openDocumentThumbnail");
 
+        final long start = ProviderMetrics.start();
+        final List<CloudRoot> roots = acquireRoots(documentId);
+        DocumentLocks.Held locks = null;
+        try {
+            locks = mLocks.newRequest("openDocumentThumbnail").read(normalizeDocId(documentId))
+                    .acquire();
+            return openThumbnail(documentId, sizeHint, signal);
+        } finally {
+            if (locks != null) {
+                locks.release();
+            }
+            releaseRoots(roots);
+            mMetrics.record(ProviderMetrics.OP_OPEN_DOCUMENT_THUMBNAIL, start);
+        }
+    }
+    // END_INCLUDE(open_document_thumbnail)
+
+    private AssetFileDescriptor openThumbnail(String documentId, Point sizeHint,
+                                              CancellationSignal signal)
+            throws FileNotFoundException {
+        final CloudRoot root = getRootForDocId(documentId);
         final File file = getFileForDocId(documentId);
-        final ParcelFileDescriptor pfd =
-                ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+
+        // Hand back a small image sized for sizeHint rather than the original, so the picker
+        // doesn't have to decode a full-size photo for every cell of its grid.
+        try {
+            if (mEncryption == null) {
+                final ParcelFileDescriptor thumbnail =
+                        root.mThumbnails.openThumbnail(file, sizeHint, signal);
+                if (thumbnail != null) {
+                    return new AssetFileDescriptor(thumbnail, 0,
+                            AssetFileDescriptor.UNKNOWN_LENGTH);
+                }
+            } else if (SDK_INT >= Build.VERSION_CODES.O) {
+                final AssetFileDescriptor encrypted = openEncryptedThumbnail(file, sizeHint);
+                if (encrypted != null) {
+                    return encrypted;
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to make thumbnail for " + documentId + ": " + e.getMessage());
+        }
+
+        ParcelFileDescriptor pfd = openEncrypted(file, ParcelFileDescriptor.MODE_READ_ONLY, null);
+        if (pfd == null) {
+            pfd = openFromStore(root, file);
+        }
+        if (pfd == null) {
+            pfd = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+        }
         return new AssetFileDescriptor(pfd, 0, AssetFileDescriptor.UNKNOWN_LENGTH);
     }
-    // END_INCLUDE(open_document_thumbnail)
+
+    /**
+     * Makes a thumbnail while documents are encrypted.  The image is decoded from its plaintext
+     * in memory and the thumbnail is handed over through a pipe, so neither reaches the disk in
+     * the clear, and it isn't cached.
+     *
+     * @return the thumbnail, or null if the image couldn't be decoded
+     * @throws IOException if the document couldn't be read
+     */
+    @RequiresApi(Build.VERSION_CODES.O)
+    private AssetFileDescriptor openEncryptedThumbnail(final File file, Point sizeHint)
+            throws IOException {
+        if (file.length() > MAX_THUMBNAIL_SOURCE_BYTES) {
+            throw new IOException("Too large to decrypt for a thumbnail: " + file.length()
+                    + " bytes");
+        }
+        final EncryptedStore.Document document = mEncryption.open(file);
+        final byte[] thumbnail;
+        try {
+            thumbnail = ThumbnailCache.makeUncachedThumbnail(new ThumbnailCache.ContentStream() {
+                @Override
+                public InputStream open() throws IOException {
+                    // Not encrypted yet, so the file holds the image as it is.
+                    return document != null ? document.newInputStream()
+                            : new FileInputStream(file);
+                }
+            }, sizeHint);
+        } finally {
+            if (document != null) {
+                mEncryption.release(document);
+            }
+        }
+        if (thumbnail == null) {
+            return null;
+        }
+        final ParcelFileDescriptor pipe = openPipeHelper(null, "image/jpeg", null, thumbnail,
+                new PipeDataWriter<byte[]>() {
+                    @Override
+                    public void writeDataToPipe(ParcelFileDescriptor output, Uri uri,
+                                                String mimeType, Bundle opts, byte[] data) {
+                        // The helper closes the descriptor afterwards.
+                        try {
+                            new FileOutputStream(output.getFileDescriptor()).write(data);
+                        } catch (IOException e) {
+                            Log.w(TAG, "Failed to send thumbnail: " + e.getMessage());
+                        }
+                    }
+                });
+        return new AssetFileDescriptor(pipe, 0, thumbnail.length);
+    }
 
     // BEGIN_INCLUDE(query_document)
     @Override
     public Cursor queryDocument(String documentId, String[] projection)
             throws FileNotFoundException {
-        Log.v(TAG, "queryDocument");
+        final long start = ProviderMetrics.start();
+        final List<CloudRoot> roots = acquireRoots(documentId);
+        try {
+            Log.v(TAG, "queryDocument");
+
+            final String docId = normalizeDocId(documentId);
+            final Uri notificationUri = DocumentsContract.buildDocumentUri(mAuthority, docId);
+            final CloudRoot root = getRootForDocId(docId);
+            final DocumentIndex index = root.getReadyIndex();
+            if (index != null) {
+                final Cursor cursor = index.queryDocument(docId,
+                        resolveDocumentProjection(projection));
+                if (cursor.getCount() > 0) {
+                    cursor.setNotificationUri(getContext().getContentResolver(), notificationUri);
+                    mMetrics.count(ProviderMetrics.COUNTER_INDEX_QUERIES, 1);
+                    return countRows(root, cursor);
+                }
+                // Not indexed yet, so fall back to the file system.
+                cursor.close();
+            }
 
-        // Create a cursor with the requested projection, or the default projection.
-        final MatrixCursor result = new MatrixCursor(resolveDocumentProjection(projection));
-        includeFile(result, documentId, null);
-        return result;
+            // Create a cursor with the requested projection, or the default projection.
+            final DocumentRowBuilder rows =
+                    new DocumentRowBuilder(resolveDocumentProjection(projection));
+            final MatrixCursor result = rows.newCursor();
+            includeFile(result, rows, documentId, null);
+            result.setNotificationUri(getContext().getContentResolver(), notificationUri);
+            return countRows(root, result);
+        } finally {
+            releaseRoots(roots);
+            mMetrics.record(ProviderMetrics.OP_QUERY_DOCUMENT, start);
+        }
     }
     // END_INCLUDE(query_document)
 
@@ -292,13 +841,125 @@ public class MyCloudProvider extends DocumentsProvider {
                 " sortOrder: " +
                 sortOrder);
 
-        final MatrixCursor result = new MatrixCursor(resolveDocumentProjection(projection));
-        final File parent = getFileForDocId(parentDocumentId);
-        for (File file : parent.listFiles()) {
-            includeFile(result, null, file);
+        final Bundle extras = new Bundle();
+        final Cursor result = queryChildDocuments(parentDocumentId, projection,
+                DocumentSortOrder.fromSortOrder(sortOrder), 0, Integer.MAX_VALUE, extras);
+        // Before Marshmallow a cursor can't carry extras, so EXTRA_LOADING is lost and the
+        // picker only sees the new listing when the refresh notifies it.
+        if (SDK_INT >= Build.VERSION_CODES.M) {
+            result.setExtras(extras);
+        }
+        return result;
+    }
+
+    @Override
+    public Cursor queryChildDocuments(String parentDocumentId, String[] projection,
+                                      Bundle queryArgs) throws FileNotFoundException {
+        // From Android O a client can page through a large directory rather than receive all of
+        // it in one cursor.
+        final List<String> honoredArgs = new ArrayList<String>();
+        final DocumentSortOrder order = DocumentSortOrder.fromQueryArgs(queryArgs, honoredArgs);
+        int offset = 0;
+        int limit = Integer.MAX_VALUE;
+        if (queryArgs != null) {
+            offset = queryArgs.getInt(ContentResolver.QUERY_ARG_OFFSET, 0);
+            limit = queryArgs.getInt(ContentResolver.QUERY_ARG_LIMIT, Integer.MAX_VALUE);
+            if (queryArgs.containsKey(ContentResolver.QUERY_ARG_OFFSET)) {
+                honoredArgs.add(ContentResolver.QUERY_ARG_OFFSET);
+            }
+            if (queryArgs.containsKey(ContentResolver.QUERY_ARG_LIMIT)) {
+                honoredArgs.add(ContentResolver.QUERY_ARG_LIMIT);
+            }
+        }
+        Log.v(TAG, "queryChildDocuments with Bundle, parentDocumentId: " + parentDocumentId +
+                ", offset: " + offset + ", limit: " + limit);
+        if (offset < 0) {
+            throw new IllegalArgumentException("Offset must not be less than 0");
+        }
+        if (limit < 0) {
+            throw new IllegalArgumentException("Limit must not be less than 0");
         }
+
+        final Bundle extras = new Bundle();
+        final Cursor result =
+                queryChildDocuments(parentDocumentId, projection, order, offset, limit, extras);
+        extras.putStringArray(ContentResolver.EXTRA_HONORED_ARGS,
+                honoredArgs.toArray(new String[honoredArgs.size()]));
+        result.setExtras(extras);
         return result;
     }
+
+    /**
+     * Lists one page of a directory.
+     *
+     * @param order  how to sort the children
+     * @param offset how many children to skip
+     * @param limit  the most children to return
+     * @param extras receives the total number of children as {@link ContentResolver#EXTRA_SIZE},
+     *               and {@link DocumentsContract#EXTRA_LOADING} if a newer listing is on its way
+     */
+    private Cursor queryChildDocuments(String parentDocumentId, String[] projection,
+                                       DocumentSortOrder order, int offset, int limit,
+                                       Bundle extras) throws FileNotFoundException {
+        final long start = ProviderMetrics.start();
+        final List<CloudRoot> roots = acquireRoots(parentDocumentId);
+        try {
+            final String parentId = normalizeDocId(parentDocumentId);
+            final Uri notificationUri =
+                    DocumentsContract.buildChildDocumentsUri(mAuthority, parentId);
+
+            final CloudRoot root = getRootForDocId(parentId);
+            final DocumentIndex index = root.getReadyIndex();
+            if (index != null) {
+                extras.putInt(ContentResolver.EXTRA_SIZE, index.countChildDocuments(parentId));
+                final Cursor cursor = index.queryChildDocuments(parentId,
+                        resolveDocumentProjection(projection), order, offset, limit);
+                cursor.setNotificationUri(getContext().getContentResolver(), notificationUri);
+                mMetrics.count(ProviderMetrics.COUNTER_INDEX_QUERIES, 1);
+                return countRows(root, cursor);
+            }
+
+            // Only the columns in the projection are worked out.  The listing is kept, sorted, for
+            // as long as the directory doesn't change, so the next page costs only its own rows.
+            final DocumentRowBuilder rows =
+                    new DocumentRowBuilder(resolveDocumentProjection(projection));
+            final MatrixCursor result = rows.newCursor();
+            // Watch for the refresh before starting it, so its notification can't be missed.
+            result.setNotificationUri(getContext().getContentResolver(), notificationUri);
+            final File parent = getFileForDocId(parentDocumentId);
+
+            // If the directory has changed since it was last listed, answer with the old listing
+            // straight away and tell the picker that a new one is loading.  Only a directory that
+            // has never been listed is read while the caller waits.
+            DirectorySnapshot snapshot = root.mSnapshots.getAndRefresh(parent);
+            if (snapshot != null) {
+                mMetrics.count(ProviderMetrics.COUNTER_SNAPSHOT_HITS, 1);
+            } else {
+                mMetrics.count(ProviderMetrics.COUNTER_SNAPSHOT_MISSES, 1);
+                snapshot = root.mSnapshots.get(parent);
+                if (snapshot == null) {
+                    throw new FileNotFoundException("Failed to list " + parentDocumentId);
+                }
+            }
+            extras.putInt(ContentResolver.EXTRA_SIZE, snapshot.size());
+            if (snapshot.isStale()) {
+                extras.putBoolean(DocumentsContract.EXTRA_LOADING, true);
+            }
+            final int[] sorted = snapshot.getOrder(order, root.mStats);
+            final int end = (int) Math.min((long) offset + limit, sorted.length);
+            for (int i = offset; i < end; i++) {
+                final File file = snapshot.getFile(sorted[i]);
+                rows.addRow(result,
+                        rows.needsDocumentId() ? root.mDocIds.assignDocId(file) : null,
+                        file.getName(),
+                        withDirectorySize(root, file, snapshot.getAttributes(sorted[i])));
+            }
+            return countRows(root, result);
+        } finally {
+            releaseRoots(roots);
+            mMetrics.record(ProviderMetrics.OP_QUERY_CHILD_DOCUMENTS, start);
+        }
+    }
     // END_INCLUDE(query_child_documents)
 
 
@@ -313,35 +974,205 @@ public class MyCloudProvider extends DocumentsProvider {
         // transfer from the network, a better solution may be pipes or sockets
         // (see ParcelFileDescriptor for helper methods).
 
-        final File file = getFileForDocId(documentId);
         final int accessMode = ParcelFileDescriptor.parseMode(mode);
-
         final boolean isWrite = (mode.indexOf('w') != -1);
-        if (isWrite) {
-            // Attach a close listener if the document is opened in write mode.
-            try {
-                Handler handler = new Handler(getContext().getMainLooper());
-                return ParcelFileDescriptor.open(file, accessMode, handler,
-                        new ParcelFileDescriptor.OnCloseListener() {
-                    @Override
-                    public void onClose(IOException e) {
 
-                        // Update the file with the cloud server.  The client is done writing.
-                        Log.i(TAG, "A file with id " + documentId + " has been closed!  Time to " +
-                                "update the server.");
+        // The lock covers getting the document ready, not the client's use of the descriptor,
+        // so a reader never waits for a writer that keeps its descriptor open.
+        final long start = ProviderMetrics.start();
+        final List<CloudRoot> roots = acquireRoots(documentId);
+        DocumentLocks.Held locks = null;
+        try {
+            final String docId = normalizeDocId(documentId);
+            locks = isWrite
+                    ? mLocks.newRequest("openDocument for writing").write(docId).acquire()
+                    : mLocks.newRequest("openDocument").read(docId).acquire();
+            final CloudRoot root = getRootForDocId(docId);
+            final File file = getFileForDocId(docId);
+            if (isWrite) {
+                final ParcelFileDescriptor encrypted = openEncrypted(file, accessMode,
+                        new Runnable() {
+                            @Override
+                            public void run() {
+                                final DocumentLocks.Held closeLocks =
+                                        mLocks.newRequest("closeDocument").write(docId).acquire();
+                                try {
+                                    onFileChanged(file);
+                                } finally {
+                                    closeLocks.release();
+                                }
+                            }
+                        });
+                if (encrypted != null) {
+                    return encrypted;
+                }
+                // Attach a close listener if the document is opened in write mode.  It runs on a
+                // thread of its own, since it waits for the document's write lock.
+                try {
+                    if (root.mChunkStore != null) {
+                        // The contents have to be back in the file before the client can change
+                        // it.
+                        root.mChunkStore.beginWrite(file);
                     }
-
-                });
-            } catch (IOException e) {
-                throw new FileNotFoundException("Failed to open document with id " + documentId +
-                        " and mode " + mode);
+                    return ParcelFileDescriptor.open(file, accessMode, mCloseHandler,
+                            new ParcelFileDescriptor.OnCloseListener() {
+                        @Override
+                        public void onClose(IOException e) {
+
+                            // Update the file with the cloud server.  The client is done
+                            // writing.
+                            Log.i(TAG, "A file with id " + documentId + " has been closed!  " +
+                                    "Time to update the server.");
+                            final DocumentLocks.Held closeLocks =
+                                    mLocks.newRequest("closeDocument").write(docId).acquire();
+                            try {
+                                if (root.mChunkStore != null) {
+                                    root.mChunkStore.endWrite(file);
+                                }
+                                onFileChanged(file);
+                            } finally {
+                                closeLocks.release();
+                            }
+                        }
+
+                    });
+                } catch (IOException e) {
+                    if (root.mChunkStore != null) {
+                        root.mChunkStore.endWrite(file);
+                    }
+                    throw new FileNotFoundException("Failed to open document with id " +
+                            documentId + " and mode " + mode);
+                }
+            } else {
+                final ParcelFileDescriptor decrypted = openEncrypted(file, accessMode, null);
+                if (decrypted != null) {
+                    return decrypted;
+                }
+                final ParcelFileDescriptor stored = openFromStore(root, file);
+                if (stored != null) {
+                    return stored;
+                }
+                final ParcelFileDescriptor download = openFromBackend(root, file);
+                if (download != null) {
+                    return download;
+                }
+                return ParcelFileDescriptor.open(file, accessMode);
             }
-        } else {
-            return ParcelFileDescriptor.open(file, accessMode);
+        } finally {
+            if (locks != null) {
+                locks.release();
+            }
+            releaseRoots(roots);
+            mMetrics.record(ProviderMetrics.OP_OPEN_DOCUMENT, start);
         }
     }
     // END_INCLUDE(open_document)
 
+    /**
+     * Opens a document on the server for reading.  From Android O this is a seekable proxy
+     * descriptor that downloads only the chunks that are read.  Before that the document is
+     * streamed through a pipe, a few chunks at a time, so the reader can start before the whole
+     * document has arrived, but can't seek: a real cloud provider has no local copy to fall back
+     * on.
+     *
+     * @param file the local copy of the document
+     * @return the descriptor, or null if the server doesn't have the same version as the local
+     * copy and the local copy should be read instead
+     */
+    private ParcelFileDescriptor openFromBackend(CloudRoot root, File file) {
+        if (root.mFetcher == null) {
+            return null;
+        }
+        final String path = getBackendPath(root, file);
+        try {
+            final CloudBackend.Entry entry = root.mBackend.stat(path);
+            if (entry == null || entry.mLength != file.length()
+                    || entry.mLastModified != file.lastModified()) {
+                return null;
+            }
+            if (SDK_INT >= Build.VERSION_CODES.O) {
+                return RemoteFileCallback.open(getContext().getSystemService(StorageManager.class),
+                        root.mFetcher, path, entry);
+            }
+            return root.mFetcher.openPipe(path, entry);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to open " + path + " on the server: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Opens an encrypted document through a proxy descriptor, which decrypts the segments that
+     * are read and encrypts those that are written.  A document opened for writing that is
+     * still plaintext is encrypted first, so the caller must hold its write lock.
+     *
+     * @param accessMode the mode the client asked for
+     * @param onClosed   run once the descriptor is closed and the changes are saved, or null
+     * @return the descriptor, or null if documents aren't encrypted, or this one isn't yet and
+     * its file should be read instead
+     * @throws FileNotFoundException if the document couldn't be encrypted or opened
+     */
+    private ParcelFileDescriptor openEncrypted(File file, int accessMode, Runnable onClosed)
+            throws FileNotFoundException {
+        if (mEncryption == null || SDK_INT < Build.VERSION_CODES.O) {
+            return null;
+        }
+        final boolean isWrite = (accessMode & ParcelFileDescriptor.MODE_WRITE_ONLY) != 0;
+        try {
+            if (isWrite && file.isFile() && !mEncryption.encrypt(file)) {
+                throw new IOException("It changed while being encrypted");
+            }
+            final EncryptedStore.Document document = mEncryption.open(file);
+            if (document == null) {
+                if (isWrite) {
+                    throw new IOException("It isn't encrypted");
+                }
+                return null;
+            }
+            if ((accessMode & ParcelFileDescriptor.MODE_TRUNCATE) != 0) {
+                try {
+                    document.truncate();
+                } catch (IOException e) {
+                    mEncryption.release(document);
+                    throw e;
+                }
+            }
+            return EncryptedFileCallback.open(getContext().getSystemService(StorageManager.class),
+                    mEncryption, document, accessMode, onClosed);
+        } catch (IOException e) {
+            throw new FileNotFoundException("Failed to open " + file + ". " + e.getMessage());
+        }
+    }
+
+    /**
+     * Opens a document in the chunk store for reading.  From Android O this is a seekable proxy
+     * descriptor; before that the chunks are streamed through a pipe.
+     *
+     * @param file the document's placeholder
+     * @return the descriptor, or null if the document isn't in the store and its file should be
+     * read instead
+     * @throws FileNotFoundException if the document is in the store but couldn't be opened
+     */
+    private ParcelFileDescriptor openFromStore(CloudRoot root, File file)
+            throws FileNotFoundException {
+        if (root.mChunkStore == null) {
+            return null;
+        }
+        final ChunkStore.Manifest manifest = root.mChunkStore.getManifest(file);
+        if (manifest == null) {
+            return null;
+        }
+        try {
+            if (SDK_INT >= Build.VERSION_CODES.O) {
+                return StoredFileCallback.open(
+                        getContext().getSystemService(StorageManager.class), root.mChunkStore,
+                        manifest);
+            }
+            return root.mChunkStore.openPipe(manifest);
+        } catch (IOException e) {
+            throw new FileNotFoundException("Failed to open " + file + ". " + e.getMessage());
+        }
+    }
 
     public boolean isChildFile(File parentFile, File childFile){
         File realFileParent = childFile.getParentFile();
@@ -351,45 +1182,122 @@ public class MyCloudProvider extends DocumentsProvider {
     // BEGIN_INCLUDE(is_child_document)
     @Override
     public boolean isChildDocument(String parentDocumentId, String documentId) {
-        Log.v(TAG, "isChildDocument");
+        final long start = ProviderMetrics.start();
         try {
-            File parentFile = getFileForDocId(parentDocumentId);
-            File childFile = getFileForDocId(documentId);
-            return isChildFile(parentFile, childFile);
-        } catch (FileNotFoundException e) {
-            Log.e(TAG, "FileNotFound in isChildDocument: " + e.getMessage());
-            e.printStackTrace();
+            Log.v(TAG, "isChildDocument");
+            try {
+                // True for the parent itself and anything below it.  The ID table knows every
+                // document's parent, so this needs no file system access.  A document in another
+                // root isn't in this root's table, so it is never a child.
+                final List<CloudRoot> roots = acquireRoots(documentId);
+                try {
+                    final String docId = normalizeDocId(documentId);
+                    return getRootForDocId(docId).mDocIds.isAncestor(
+                            normalizeDocId(parentDocumentId), docId);
+                } finally {
+                    releaseRoots(roots);
+                }
+            } catch (FileNotFoundException e) {
+                Log.e(TAG, "FileNotFound in isChildDocument: " + e.getMessage());
+                e.printStackTrace();
+            }
+            return false;
+        } finally {
+            mMetrics.record(ProviderMetrics.OP_IS_CHILD_DOCUMENT, start);
         }
-        return false;
     }
     // END_INCLUDE(is_child_document)
 
+    /**
+     * @return true if a document is directly inside the given parent
+     */
+    private boolean isDirectChild(String parentDocumentId, String documentId)
+            throws FileNotFoundException {
+        final List<CloudRoot> roots = acquireRoots(documentId);
+        try {
+            final String docId = normalizeDocId(documentId);
+            return normalizeDocId(parentDocumentId).equals(
+                    getRootForDocId(docId).mDocIds.getParentDocId(docId));
+        } finally {
+            releaseRoots(roots);
+        }
+    }
+
+    @RequiresApi(Build.VERSION_CODES.O)
+    @Override
+    public DocumentsContract.Path findDocumentPath(String parentDocumentId,
+                                                  String childDocumentId)
+            throws FileNotFoundException {
+        final long start = ProviderMetrics.start();
+        final List<CloudRoot> roots = acquireRoots(childDocumentId);
+        try {
+            Log.v(TAG, "findDocumentPath");
+            final String childId = normalizeDocId(childDocumentId);
+            final CloudRoot root = getRootForDocId(childId);
+            final String parentId = parentDocumentId != null
+                    ? normalizeDocId(parentDocumentId) : root.getRootDocId();
+            final List<String> path = root.mDocIds.getPath(parentId, childId);
+            if (path == null) {
+                throw new FileNotFoundException("Document " + childDocumentId + " is not under "
+                        + parentId);
+            }
+            // The root is only named when the caller didn't say where to start.
+            return new DocumentsContract.Path(parentDocumentId == null ? root.mRootId : null,
+                    path);
+        } finally {
+            releaseRoots(roots);
+            mMetrics.record(ProviderMetrics.OP_FIND_DOCUMENT_PATH, start);
+        }
+    }
+
     // BEGIN_INCLUDE(create_document)
     @Override
     public String createDocument(String documentId, String mimeType, String displayName)
             throws FileNotFoundException {
         Log.v(TAG, "createDocument");
 
-        File parent = getFileForDocId(documentId);
-        File file = new File(parent.getPath(), displayName);
+        final long start = ProviderMetrics.start();
+        final List<CloudRoot> roots = acquireRoots(documentId);
+        String newDocumentId = null;
+        DocumentLocks.Held locks = null;
+        boolean succeeded = false;
         try {
-            // Create the new File to copy into
-            boolean wasNewFileCreated = false;
-            if (file.createNewFile()) {
-                if (file.setWritable(true) && file.setReadable(true)) {
-                    wasNewFileCreated = true;
+            // The new document's ID is handed out before the file exists, so that it can be
+            // locked.
+            File parent = getFileForDocId(documentId);
+            newDocumentId = getDocIdForFile(new File(parent.getPath(), displayName));
+            locks = mLocks.newRequest("createDocument").write(newDocumentId).acquire();
+            File file = getFileForDocId(newDocumentId, false);
+            try {
+                // Create the new File to copy into
+                boolean wasNewFileCreated = false;
+                if (file.createNewFile()) {
+                    if (file.setWritable(true) && file.setReadable(true)) {
+                        wasNewFileCreated = true;
+                    }
                 }
-            }
 
-            if (!wasNewFileCreated) {
+                if (!wasNewFileCreated) {
+                    throw new FileNotFoundException("Failed to create document with name " +
+                            displayName +" and documentId " + documentId);
+                }
+            } catch (IOException e) {
                 throw new FileNotFoundException("Failed to create document with name " +
                         displayName +" and documentId " + documentId);
             }
-        } catch (IOException e) {
-            throw new FileNotFoundException("Failed to create document with name " +
-                    displayName +" and documentId " + documentId);
+            onFileChanged(file);
+            succeeded = true;
+            return newDocumentId;
+        } finally {
+            if (locks != null) {
+                if (!succeeded) {
+                    releaseReservedDocId(newDocumentId);
+                }
+                locks.release();
+            }
+            releaseRoots(roots);
+            mMetrics.record(ProviderMetrics.OP_CREATE_DOCUMENT, start);
         }
-        return getDocIdForFile(file);
     }
     // END_INCLUDE(create_document)
 
@@ -402,26 +1310,50 @@ public class MyCloudProvider extends DocumentsProvider {
             throw new FileNotFoundException("Failed to rename document, new name is null");
         }
 
-        // Create the destination file in the same directory as the source file
-        File sourceFile = getFileForDocId(documentId);
-        File sourceParentFile = sourceFile.getParentFile();
-        if (sourceParentFile == null) {
-            throw new FileNotFoundException("Failed to rename document. File has no parent.");
-        }
-        File destFile = new File(sourceParentFile.getPath(), displayName);
-
-        // Try to do the rename
+        final long start = ProviderMetrics.start();
+        final List<CloudRoot> roots = acquireRoots(documentId);
+        DocumentLocks.Held locks = null;
         try {
-            boolean renameSucceeded = sourceFile.renameTo(destFile);
-            if (!renameSucceeded) {
-                throw new FileNotFoundException("Failed to rename document. Renamed failed.");
+            locks = mLocks.newRequest("renameDocument").write(normalizeDocId(documentId)).acquire();
+            // Create the destination file in the same directory as the source file
+            File sourceFile = getFileForDocId(documentId);
+            File sourceParentFile = sourceFile.getParentFile();
+            if (sourceParentFile == null) {
+                throw new FileNotFoundException("Failed to rename document. File has no parent.");
             }
-        } catch (Exception e) {
-            Log.w(TAG, "Rename exception : " + e.getLocalizedMessage() + e.getCause());
-            throw new FileNotFoundException("Failed to rename document. Error: " + e.getMessage());
-        }
+            File destFile = new File(sourceParentFile.getPath(), displayName);
 
-        return getDocIdForFile(destFile);
+            // Try to do the rename
+            try {
+                boolean renameSucceeded = sourceFile.renameTo(destFile);
+                if (!renameSucceeded) {
+                    throw new FileNotFoundException("Failed to rename document. Renamed failed.");
+                }
+            } catch (Exception e) {
+                Log.w(TAG, "Rename exception : " + e.getLocalizedMessage() + e.getCause());
+                throw new FileNotFoundException("Failed to rename document. Error: " +
+                        e.getMessage());
+            }
+
+            // The document keeps its ID, so tell the caller it is unchanged.
+            final CloudRoot root = getRootForDocId(documentId);
+            root.mDocIds.move(sourceFile, destFile);
+            if (root.mChunkStore != null) {
+                root.mChunkStore.move(sourceFile, destFile);
+            }
+            if (mEncryption != null) {
+                mEncryption.move(sourceFile, destFile);
+            }
+            onFileRemoved(sourceFile);
+            onTreeChanged(destFile);
+            return null;
+        } finally {
+            if (locks != null) {
+                locks.release();
+            }
+            releaseRoots(roots);
+            mMetrics.record(ProviderMetrics.OP_RENAME_DOCUMENT, start);
+        }
     }
     // END_INCLUDE(rename_document)
 
@@ -429,11 +1361,25 @@ public class MyCloudProvider extends DocumentsProvider {
     @Override
     public void deleteDocument(String documentId) throws FileNotFoundException {
         Log.v(TAG, "deleteDocument");
-        File file = getFileForDocId(documentId);
-        if (file.delete()) {
-            Log.i(TAG, "Deleted file with id " + documentId);
-        } else {
-            throw new FileNotFoundException("Failed to delete document with id " + documentId);
+        final long start = ProviderMetrics.start();
+        final List<CloudRoot> roots = acquireRoots(documentId);
+        DocumentLocks.Held locks = null;
+        try {
+            locks = mLocks.newRequest("deleteDocument").write(normalizeDocId(documentId)).acquire();
+            File file = getFileForDocId(documentId);
+            if (deleteFile(file)) {
+                Log.i(TAG, "Deleted file with id " + documentId);
+                onFileRemoved(file);
+            } else {
+                throw new FileNotFoundException("Failed to delete document with id " +
+                        documentId);
+            }
+        } finally {
+            if (locks != null) {
+                locks.release();
+            }
+            releaseRoots(roots);
+            mMetrics.record(ProviderMetrics.OP_DELETE_DOCUMENT, start);
         }
     }
     // END_INCLUDE(delete_document)
@@ -443,31 +1389,45 @@ public class MyCloudProvider extends DocumentsProvider {
     public void removeDocument(String documentId, String parentDocumentId)
             throws FileNotFoundException {
         Log.v(TAG, "removeDocument");
-        File parent = getFileForDocId(parentDocumentId);
-        File file = getFileForDocId(documentId);
+        final long start = ProviderMetrics.start();
+        final List<CloudRoot> roots = acquireRoots(documentId);
+        DocumentLocks.Held locks = null;
+        try {
+            locks = mLocks.newRequest("removeDocument").write(normalizeDocId(documentId)).acquire();
+            File parent = getFileForDocId(parentDocumentId);
+            File file = getFileForDocId(documentId);
 
-        if (file == null) {
-            throw new FileNotFoundException("Failed to delete document with id " + documentId);
-        }
+            if (file == null) {
+                throw new FileNotFoundException("Failed to delete document with id " + documentId);
+            }
 
-        // removeDocument is the same as deleteDocument but allows the parent to be specified
-        // Check here if the specified parentDocumentId matches the true parent of documentId
-        boolean doesFileParentMatch = false;
-        File fileParent = file.getParentFile();
+            // removeDocument is the same as deleteDocument but allows the parent to be specified
+            // Check here if the specified parentDocumentId matches the true parent of documentId
+            boolean doesFileParentMatch = false;
+            File fileParent = file.getParentFile();
 
-        if (fileParent == null || fileParent.equals(parent)) {
-            doesFileParentMatch = true;
-        }
+            if (fileParent == null || fileParent.equals(parent)) {
+                doesFileParentMatch = true;
+            }
 
-        // Remove the file if parent matches or file and parent are equal
-        if (parent.equals(file) || doesFileParentMatch) {
-            if (file.delete()) {
-                Log.i(TAG, "Deleted file with id " + documentId);
+            // Remove the file if parent matches or file and parent are equal
+            if (parent.equals(file) || doesFileParentMatch) {
+                if (deleteFile(file)) {
+                    Log.i(TAG, "Deleted file with id " + documentId);
+                    onFileRemoved(file);
+                } else {
+                    throw new FileNotFoundException("Failed to delete document with id " +
+                            documentId);
+                }
             } else {
                 throw new FileNotFoundException("Failed to delete document with id " + documentId);
             }
-        } else {
-            throw new FileNotFoundException("Failed to delete document with id " + documentId);
+        } finally {
+            if (locks != null) {
+                locks.release();
+            }
+            releaseRoots(roots);
+            mMetrics.record(ProviderMetrics.OP_REMOVE_DOCUMENT, start);
         }
     }
     // END_INCLUDE(remove_document)
@@ -478,7 +1438,7 @@ public class MyCloudProvider extends DocumentsProvider {
     public String copyDocument(String sourceDocumentId, String sourceParentDocumentId,
                                String targetParentDocumentId) throws FileNotFoundException {
         Log.v(TAG, "copyDocument with document parent");
-        if (!isChildDocument(sourceParentDocumentId, sourceDocumentId)) {
+        if (!isDirectChild(sourceParentDocumentId, sourceDocumentId)) {
             throw new FileNotFoundException("Failed to copy document with id " +
                     sourceDocumentId + ". Parent is not: " + sourceParentDocumentId);
         }
@@ -491,40 +1451,165 @@ public class MyCloudProvider extends DocumentsProvider {
             throws FileNotFoundException {
         Log.v(TAG, "copyDocument");
 
-        File parent = getFileForDocId(targetParentDocumentId);
-        File oldFile = getFileForDocId(sourceDocumentId);
-        File newFile = new File(parent.getPath(), oldFile.getName());
+        final long start = ProviderMetrics.start();
+        final List<CloudRoot> roots = acquireRoots(sourceDocumentId, targetParentDocumentId);
+        String newDocumentId = null;
+        DocumentLocks.Held locks = null;
+        boolean succeeded = false;
         try {
-            // Create the new File to copy into
-            boolean wasNewFileCreated = false;
-            if (newFile.createNewFile()) {
-                if (newFile.setWritable(true) && newFile.setReadable(true)) {
-                    wasNewFileCreated = true;
+            // The copy's ID is handed out before it exists, so that it can be locked.
+            newDocumentId = getDocIdForFile(new File(getFileForDocId(targetParentDocumentId),
+                    getFileForDocId(sourceDocumentId).getName()));
+            locks = mLocks.newRequest("copyDocument")
+                    .read(normalizeDocId(sourceDocumentId)).write(newDocumentId).acquire();
+            final String copiedId = copyFile(sourceDocumentId, getFileForDocId(sourceDocumentId),
+                    getFileForDocId(targetParentDocumentId),
+                    getFileForDocId(newDocumentId, false));
+            succeeded = true;
+            return copiedId;
+        } finally {
+            if (locks != null) {
+                if (!succeeded) {
+                    releaseReservedDocId(newDocumentId);
                 }
+                locks.release();
             }
+            releaseRoots(roots);
+            mMetrics.record(ProviderMetrics.OP_COPY_DOCUMENT, start);
+        }
+    }
 
-            if (!wasNewFileCreated) {
-                throw new FileNotFoundException("Failed to copy document " + sourceDocumentId +
-                        ". Could not create new file.");
+    /**
+     * Copies a file or directory.  The caller holds the locks.
+     */
+    private String copyFile(String sourceDocumentId, File oldFile, File parent, File newFile)
+            throws FileNotFoundException {
+        if (newFile.exists()) {
+            throw new FileNotFoundException("Failed to copy document " + sourceDocumentId +
+                    ". Could not create new file.");
+        }
+        if (mEncryption != null) {
+            return copyEncrypted(sourceDocumentId, oldFile, parent, newFile);
+        }
+        final ChunkStore chunkStore = getChunkStoreForCopy(sourceDocumentId, oldFile, newFile);
+        if (oldFile.isDirectory()) {
+            return copyDirectory(sourceDocumentId, oldFile, parent, newFile, chunkStore);
+        }
+        try {
+            if (chunkStore != null && chunkStore.copy(oldFile, newFile)) {
+                Log.i(TAG, "Copied " + newFile + " without copying its contents");
+                onFileChanged(newFile);
+                return getDocIdForFile(newFile);
             }
+            // Copy the bytes into the new file.  The copier lets the kernel move the data, and
+            // only creates the new file once all of it has been written.
+            final long copied = mCopier.copy(oldFile, newFile, null, null);
+            mMetrics.count(ProviderMetrics.COUNTER_BYTES_COPIED, copied);
+            Log.i(TAG, "Copied " + copied + " bytes to " + newFile);
+        } catch (IOException e) {
+            throw new FileNotFoundException("Failed to copy document: " + sourceDocumentId +
+                    ". " + e.getMessage());
+        }
+        onFileChanged(newFile);
+        return getDocIdForFile(newFile);
+    }
 
-            // Copy the bytes into the new file
-            try (InputStream inStream = new FileInputStream(oldFile)) {
-                try (OutputStream outStream = new FileOutputStream(newFile)) {
-                    // Transfer bytes from in to out
-                    byte[] buf = new byte[4096]; // ideal range for network: 2-8k, disk: 8-64k
-                    int len;
-                    while ((len = inStream.read(buf)) > 0) {
-                        outStream.write(buf, 0, len);
+    /**
+     * Copies a directory and everything in it.  The files are copied in parallel, and the new
+     * directory only appears once all of them are there.
+     */
+    private String copyDirectory(String sourceDocumentId, File oldDir, File parent, File newDir,
+                                 ChunkStore chunkStore) throws FileNotFoundException {
+        if (chunkStore != null) {
+            if (isAncestorFile(oldDir, parent)) {
+                throw new FileNotFoundException("Failed to copy document " + sourceDocumentId +
+                        " into itself.");
+            }
+            try {
+                // Only manifests are copied, however much the directory holds.
+                chunkStore.copy(oldDir, newDir);
+            } catch (IOException e) {
+                throw new FileNotFoundException("Failed to copy document: " + sourceDocumentId +
+                        ". " + e.getMessage());
+            }
+            onTreeChanged(newDir);
+            return getDocIdForFile(newDir);
+        }
+        if (mTreeOperations == null) {
+            throw new FileNotFoundException("Failed to copy document " + sourceDocumentId +
+                    ". Directories can't be copied on this version of Android.");
+        }
+        if (isAncestorFile(oldDir, parent)) {
+            throw new FileNotFoundException("Failed to copy document " + sourceDocumentId +
+                    " into itself.");
+        }
+        // Progress is reported from several threads, so the last report isn't always the total.
+        final AtomicLong copied = new AtomicLong();
+        try {
+            mTreeOperations.copyTree(oldDir, newDir, new TreeOperations.ProgressListener() {
+                @Override
+                public void onProgress(int files, long bytes) {
+                    if (files % PROGRESS_LOG_INTERVAL == 0) {
+                        Log.v(TAG, "Copied " + files + " files, " + bytes + " bytes");
+                    }
+                    long total = copied.get();
+                    while (bytes > total && !copied.compareAndSet(total, bytes)) {
+                        total = copied.get();
                     }
                 }
-            }
+                // copyDocument() isn't given a CancellationSignal to pass on.
+            }, null);
+            mMetrics.count(ProviderMetrics.COUNTER_BYTES_COPIED, copied.get());
+        } catch (IOException e) {
+            throw new FileNotFoundException("Failed to copy document: " + sourceDocumentId +
+                    ". " + e.getMessage());
+        }
+        onTreeChanged(newDir);
+        return getDocIdForFile(newDir);
+    }
+
+    /**
+     * Copies an encrypted file or directory, ciphertext and tags, so the plaintext never
+     * reaches the disk.  The caller holds the locks.
+     */
+    private String copyEncrypted(String sourceDocumentId, File oldFile, File parent,
+                                 File newFile) throws FileNotFoundException {
+        final boolean isDirectory = oldFile.isDirectory();
+        if (isDirectory && isAncestorFile(oldFile, parent)) {
+            throw new FileNotFoundException("Failed to copy document " + sourceDocumentId +
+                    " into itself.");
+        }
+        try {
+            final long copied = mEncryption.copy(oldFile, newFile);
+            mMetrics.count(ProviderMetrics.COUNTER_BYTES_COPIED, copied);
+            Log.i(TAG, "Copied " + copied + " encrypted bytes to " + newFile);
         } catch (IOException e) {
             throw new FileNotFoundException("Failed to copy document: " + sourceDocumentId +
                     ". " + e.getMessage());
         }
+        if (isDirectory) {
+            onTreeChanged(newFile);
+        } else {
+            onFileChanged(newFile);
+        }
         return getDocIdForFile(newFile);
     }
+
+    /**
+     * @return the chunk store a copy goes through, or null if the bytes are copied
+     * @throws FileNotFoundException if the source's contents are in a chunk store that the
+     *                               target's root doesn't use, since its file is only a
+     *                               placeholder
+     */
+    private ChunkStore getChunkStoreForCopy(String sourceDocumentId, File oldFile, File newFile)
+            throws FileNotFoundException {
+        final CloudRoot sourceRoot = getRootForFile(oldFile);
+        if (sourceRoot.mChunkStore != null && sourceRoot != getRootForFile(newFile)) {
+            throw new FileNotFoundException("Failed to copy document " + sourceDocumentId +
+                    ". Its contents can't leave the chunk store.");
+        }
+        return sourceRoot.mChunkStore;
+    }
     // END_INCLUDE(copyDocument)
 
     // BEGIN_INCLUDE(moveDocument)
@@ -532,83 +1617,432 @@ public class MyCloudProvider extends DocumentsProvider {
     public String moveDocument(String sourceDocumentId, String sourceParentDocumentId,
                                String targetParentDocumentId) throws FileNotFoundException {
         Log.v(TAG, "moveDocument");
+
+        final long start = ProviderMetrics.start();
+        final List<CloudRoot> roots = acquireRoots(sourceDocumentId, targetParentDocumentId);
+        String targetId = null;
+        DocumentLocks.Held locks = null;
+        boolean succeeded = false;
         try {
-            // Copy document, insisting that the parent is correct
-            String newDocumentId = copyDocument(sourceDocumentId, sourceParentDocumentId,
-                    targetParentDocumentId);
-            // Remove old document
-            removeDocument(sourceDocumentId,sourceParentDocumentId);
-            return newDocumentId;
+            // Where the document will be gets an ID of its own, so that it can be locked.  The
+            // document takes its own ID along once it's there.
+            final String sourceId = normalizeDocId(sourceDocumentId);
+            targetId = getDocIdForFile(new File(getFileForDocId(targetParentDocumentId),
+                    getFileForDocId(sourceDocumentId).getName()));
+            locks = mLocks.newRequest("moveDocument").write(sourceId).write(targetId).acquire();
+            final String movedId = moveFile(sourceDocumentId, sourceParentDocumentId,
+                    getFileForDocId(targetId, false));
+            succeeded = true;
+            return movedId;
+        } finally {
+            if (locks != null) {
+                if (!succeeded) {
+                    releaseReservedDocId(targetId);
+                }
+                locks.release();
+            }
+            releaseRoots(roots);
+            mMetrics.record(ProviderMetrics.OP_MOVE_DOCUMENT, start);
+        }
+    }
+
+    /**
+     * Moves a file or directory.  The caller holds the locks.
+     */
+    private String moveFile(String sourceDocumentId, String sourceParentDocumentId,
+                            File targetFile) throws FileNotFoundException {
+        // Insist that the parent is correct
+        if (!isDirectChild(sourceParentDocumentId, sourceDocumentId)) {
+            throw new FileNotFoundException("Failed to move document with id " +
+                    sourceDocumentId + ". Parent is not: " + sourceParentDocumentId);
+        }
+
+        final File sourceFile = getFileForDocId(sourceDocumentId);
+        final File targetParent = targetFile.getParentFile();
+        if (targetFile.exists()) {
+            throw new FileNotFoundException("Failed to move document " + sourceDocumentId +
+                    ". Target already exists.");
+        }
+        if (isAncestorFile(sourceFile, targetParent)) {
+            throw new FileNotFoundException("Failed to move document " + sourceDocumentId +
+                    " into itself.");
+        }
+
+        final CloudRoot sourceRoot = getRootForFile(sourceFile);
+        final CloudRoot targetRoot = getRootForFile(targetFile);
+        if (sourceRoot != targetRoot) {
+            // Fails with a chunk store, as a copy would.
+            getChunkStoreForCopy(sourceDocumentId, sourceFile, targetFile);
+        }
+
+        // Within one volume a move is just a rename, which takes the same time for a 2 GB file
+        // or a whole directory as for an empty file, and needs no extra space.
+        if (renameFile(sourceFile, targetFile)) {
+            // Within a root the document keeps its ID.  Moved to another root, it gets an ID
+            // from that root, since each root hands out its own.
+            if (sourceRoot == targetRoot) {
+                sourceRoot.mDocIds.move(sourceFile, targetFile);
+                if (sourceRoot.mChunkStore != null) {
+                    sourceRoot.mChunkStore.move(sourceFile, targetFile);
+                }
+            }
+            // One store serves every root, so the ciphertext can go anywhere.
+            if (mEncryption != null) {
+                mEncryption.move(sourceFile, targetFile);
+            }
+            onFileRemoved(sourceFile);
+            onTreeChanged(targetFile);
+            return getDocIdForFile(targetFile);
+        }
+
+        // Otherwise copy the document across and remove the original.  The locks are already
+        // held, so this can't go through copyDocument and removeDocument.
+        final String newDocumentId;
+        try {
+            newDocumentId = copyFile(sourceDocumentId, sourceFile, targetParent, targetFile);
         } catch (FileNotFoundException e) {
-            throw new FileNotFoundException("Failed to move document " + sourceDocumentId);
+            throw new FileNotFoundException("Failed to move document " + sourceDocumentId +
+                    ". " + e.getMessage());
         }
+        if (!deleteFile(sourceFile) && sourceFile.exists()) {
+            // Undo the copy, so the document is only in one place.  A tree that was already
+            // taken out of view is as good as deleted, and the move stands.
+            if (!deleteFile(targetFile)) {
+                Log.w(TAG, "Failed to remove the copy at " + targetFile);
+            }
+            onFileRemoved(targetFile);
+            throw new FileNotFoundException("Failed to move document " + sourceDocumentId +
+                    ". Failed to delete " + sourceFile);
+        }
+        onFileRemoved(sourceFile);
+        return newDocumentId;
     }
     // END_INCLUDE(moveDocument)
 
 
+    /**
+     * Deletes a file, or a directory along with everything in it.
+     *
+     * @return true if it was deleted
+     */
+    private boolean deleteFile(File file) {
+        boolean deleted;
+        if (file.isDirectory() && mTreeOperations != null) {
+            try {
+                mTreeOperations.deleteTree(file, null, null);
+                deleted = true;
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to delete " + file + ": " + e.getMessage());
+                deleted = false;
+            }
+        } else {
+            deleted = file.delete();
+        }
+        final CloudRoot root = mRegistry.getRootForFile(file);
+        if (deleted && root != null && root.mChunkStore != null) {
+            // The chunks stay until the next garbage collection, in case they are being read.
+            root.mChunkStore.remove(file);
+        }
+        return deleted;
+    }
+
+    /**
+     * Atomically renames a file or directory, if source and target are on the same volume.
+     *
+     * @param source the existing file
+     * @param target the new name, which must not exist
+     * @return true if the file was renamed, false if it has to be copied instead
+     * @throws FileNotFoundException if the rename failed for any other reason
+     */
+    private static boolean renameFile(File source, File target) throws FileNotFoundException {
+        if (SDK_INT >= Build.VERSION_CODES.O) {
+            try {
+                Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                return true;
+            } catch (AtomicMoveNotSupportedException e) {
+                // The target is on another volume.
+                return false;
+            } catch (IOException e) {
+                throw new FileNotFoundException("Failed to move " + source + ". " +
+                        e.getMessage());
+            }
+        }
+        // File.renameTo is rename(2) as well, but doesn't say why it failed, so let the copy
+        // find out.
+        return source.renameTo(target);
+    }
+
+    /**
+     * @return true if ancestor is file itself or one of the directories above it.
+     */
+    private static boolean isAncestorFile(File ancestor, File file) {
+        for (File current = file; current != null; current = current.getParentFile()) {
+            if (current.equals(ancestor)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public String getDocumentType(String documentId) throws FileNotFoundException {
-        File file = getFileForDocId(documentId);
-        return getTypeForFile(file);
+        final long start = ProviderMetrics.start();
+        final List<CloudRoot> roots = acquireRoots(documentId);
+        try {
+            final File file = getFileForDocId(documentId, false);
+            final FileAttributes attributes = FileAttributes.read(file);
+            if (attributes == null) {
+                throw new FileNotFoundException("Missing file for " + documentId + " at " + file);
+            }
+            return DocumentRowBuilder.getTypeForFile(file.getName(), attributes);
+        } finally {
+            releaseRoots(roots);
+            mMetrics.record(ProviderMetrics.OP_GET_DOCUMENT_TYPE, start);
+        }
     }
 
     /**
-     * @param projection the requested root column projection
-     * @return either the requested root column projection, or the default projection if the
-     * requested projection is null.
+     * Returns the provider's metrics for {@link #METHOD_GET_METRICS}, so a test can collect them
+     * through {@link ContentResolver#call}, and starts them again from zero for
+     * {@link #METHOD_RESET_METRICS}.  {@link #METHOD_GENERATE_TREE} starts writing a tree
+     * and returns, since a large one can take minutes.  {@link #METHOD_ADD_ROOT} and
+     * {@link #METHOD_REMOVE_ROOT} add and remove an account, and clients watching the roots are
+     * told.  Only callers holding {@link Manifest.permission#MANAGE_DOCUMENTS}, and the app
+     * itself, may use these methods.
      */
-    private static String[] resolveRootProjection(String[] projection) {
-        return projection != null ? projection : DEFAULT_ROOT_PROJECTION;
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (METHOD_GET_METRICS.equals(method)) {
+            enforceManageDocuments(method);
+            updateCacheMetrics();
+            return mMetrics.toBundle();
+        } else if (METHOD_RESET_METRICS.equals(method)) {
+            enforceManageDocuments(method);
+            mMetrics.reset();
+            return Bundle.EMPTY;
+        } else if (METHOD_GENERATE_TREE.equals(method)) {
+            enforceManageDocuments(method);
+            final String rootId = extras != null ? extras.getString(EXTRA_ROOT_ID) : null;
+            final CloudRoot root = rootId != null
+                    ? mRegistry.getRoot(rootId) : mRegistry.getDefaultRoot();
+            if (root == null) {
+                throw new IllegalArgumentException("Unknown root " + rootId);
+            }
+            return generateTree(root, arg != null ? arg : DEFAULT_SYNTHETIC_TREE_NAME,
+                    SyntheticTree.Spec.fromBundle(extras));
+        } else if (METHOD_ADD_ROOT.equals(method)) {
+            enforceManageDocuments(method);
+            final CloudRoot root = mRegistry.add(arg,
+                    extras != null ? extras.getString(EXTRA_TITLE) : null);
+            final Bundle result = new Bundle();
+            result.putString(RESULT_DOCUMENT_ID, root.getRootDocId());
+            return result;
+        } else if (METHOD_REMOVE_ROOT.equals(method)) {
+            enforceManageDocuments(method);
+            if (!mRegistry.remove(arg)) {
+                throw new IllegalArgumentException("Unknown root " + arg);
+            }
+            return Bundle.EMPTY;
+        } else if (METHOD_BENCHMARK_ENCRYPTION.equals(method)) {
+            enforceManageDocuments(method);
+            if (mEncryption == null || SDK_INT < Build.VERSION_CODES.O) {
+                throw new IllegalStateException("Documents aren't encrypted");
+            }
+            final int megabytes =
+                    arg != null ? Integer.parseInt(arg) : DEFAULT_BENCHMARK_MEGABYTES;
+            if (megabytes < 1 || megabytes > MAX_BENCHMARK_MEGABYTES) {
+                throw new IllegalArgumentException("Bad size " + arg);
+            }
+            try {
+                return new EncryptionBenchmark(getContext().getSystemService(StorageManager.class),
+                        mEncryption, getContext().getDir("staging", Context.MODE_PRIVATE))
+                        .run(megabytes);
+            } catch (IOException e) {
+                throw new IllegalStateException("Encryption benchmark failed: " + e.getMessage());
+            }
+        }
+        return super.call(method, arg, extras);
     }
 
-    private static String[] resolveDocumentProjection(String[] projection) {
-        return projection != null ? projection : DEFAULT_DOCUMENT_PROJECTION;
+    /**
+     * Throws a SecurityException unless the caller holds
+     * {@link Manifest.permission#MANAGE_DOCUMENTS} or is this app.  The methods of
+     * {@link #call} that are the provider's own read and change its state on behalf of tests
+     * and tools, and aren't for other apps; the ones DocumentsProvider handles check for
+     * themselves.
+     */
+    private void enforceManageDocuments(String method) {
+        getContext().enforceCallingOrSelfPermission(Manifest.permission.MANAGE_DOCUMENTS,
+                "Not allowed to call " + method);
     }
 
     /**
-     * Get a file's MIME type
+     * Starts generating a tree of documents in a new directory under a root.  Bad arguments are
+     * reported to the caller; the tree itself is written in the background, and only the new
+     * directory is locked meanwhile, so the rest of the provider stays usable.
      *
-     * @param file the File object whose type we want
-     * @return the MIME type of the file
+     * @return the new directory's document ID
      */
-    private static String getTypeForFile(File file) {
-        if (file.isDirectory()) {
-            return Document.MIME_TYPE_DIR;
-        } else {
-            return getTypeForName(file.getName());
+    private Bundle generateTree(final CloudRoot root, final String displayName,
+                                final SyntheticTree.Spec spec) {
+        // The name comes from the caller; it must not lead out of the root.
+        if (displayName.isEmpty() || displayName.indexOf('/') != -1
+                || ".".equals(displayName) || "..".equals(displayName)) {
+            throw new IllegalArgumentException("Bad directory name " + displayName);
+        }
+        spec.validate();
+        final File target = new File(root.mBaseDir, displayName);
+        if (target.exists()) {
+            throw new IllegalArgumentException(displayName + " already exists");
+        }
+        if (!root.acquire()) {
+            throw new IllegalArgumentException("Root " + root.mRootId + " has been removed");
+        }
+        final String documentId = root.mDocIds.getDocId(target);
+        // The root stays open until the tree is written.
+        mTreeGenerator.execute(new Runnable() {
+            @Override
+            public void run() {
+                final DocumentLocks.Held locks =
+                        mLocks.newRequest("generateTree").write(documentId).acquire();
+                try {
+                    getSyntheticTree().generate(spec, target);
+                    onTreeChanged(target);
+                    if (root.mChunkStore != null) {
+                        root.mChunkStore.getHandler().post(new Runnable() {
+                            @Override
+                            public void run() {
+                                root.mChunkStore.storeAll();
+                            }
+                        });
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to generate " + displayName, e);
+                } finally {
+                    locks.release();
+                    root.release();
+                }
+            }
+        });
+        final Bundle result = new Bundle();
+        result.putString(RESULT_DOCUMENT_ID, documentId);
+        return result;
+    }
+
+    private synchronized SyntheticTree getSyntheticTree() {
+        if (mSyntheticTree == null) {
+            mSyntheticTree =
+                    new SyntheticTree(getContext().getDir("staging", Context.MODE_PRIVATE));
+        }
+        return mSyntheticTree;
+    }
+
+    /**
+     * Prints the latency of each entry point, the counters and how long each kind of operation
+     * has waited for its locks, for {@code adb shell dumpsys activity provider <authority>}.
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        updateCacheMetrics();
+        writer.println("Roots:");
+        for (CloudRoot root : mRegistry.getRoots()) {
+            writer.println("  " + root.mRootId + " at " + root.mBaseDir);
         }
+        writer.println("Metrics:");
+        mMetrics.dump(writer);
+        writer.println("Lock waits:");
+        writer.print(mLocks.getReport());
     }
 
     /**
-     * Get the MIME data type of a document, given its filename.
+     * The caches count their own hits and misses, and the encrypted store its segments.  Each
+     * root has its own thumbnails, so theirs are added up.
+     */
+    private void updateCacheMetrics() {
+        long thumbnailHits = 0;
+        long thumbnailMisses = 0;
+        for (CloudRoot root : mRegistry.getRoots()) {
+            thumbnailHits += root.mThumbnails.getHitCount();
+            thumbnailMisses += root.mThumbnails.getMissCount();
+        }
+        mMetrics.set(ProviderMetrics.COUNTER_THUMBNAIL_HITS, thumbnailHits);
+        mMetrics.set(ProviderMetrics.COUNTER_THUMBNAIL_MISSES, thumbnailMisses);
+        final ChunkCache chunkCache = mRegistry.getDefaultRoot().mChunkCache;
+        if (chunkCache != null) {
+            mMetrics.set(ProviderMetrics.COUNTER_CHUNK_HITS, chunkCache.getHitCount());
+            mMetrics.set(ProviderMetrics.COUNTER_CHUNK_MISSES, chunkCache.getMissCount());
+        }
+        if (mEncryption != null) {
+            mMetrics.set(ProviderMetrics.COUNTER_SEGMENTS_ENCRYPTED,
+                    mEncryption.getSegmentsEncrypted());
+            mMetrics.set(ProviderMetrics.COUNTER_SEGMENTS_DECRYPTED,
+                    mEncryption.getSegmentsDecrypted());
+        }
+    }
+
+    /**
+     * Counts the rows a query returns, and writes any IDs given out for them to disk before they
+     * leave the process.  Asking a database cursor for its count runs the query, which would
+     * happen when it's sent to the client anyway.
      *
-     * @param name the filename of the document
-     * @return the MIME data type of a document
+     * @param root the root the rows come from, which the caller holds, or null if they aren't
+     *             documents
      */
-    private static String getTypeForName(String name) {
-        final int lastDot = name.lastIndexOf('.');
-        if (lastDot >= 0) {
-            final String extension = name.substring(lastDot + 1);
-            final String mime = MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
-            if (mime != null) {
-                return mime;
-            }
+    private Cursor countRows(CloudRoot root, Cursor cursor) {
+        mMetrics.count(ProviderMetrics.COUNTER_ROWS, cursor.getCount());
+        // Only this root's IDs can be in the rows, so no other account's writes are waited for.
+        if (root != null) {
+            root.mDocIds.sync();
+        }
+        return cursor;
+    }
+
+    /**
+     * Marks a cursor as incomplete, for a query that can't run yet, and has it watch the URI
+     * that is notified once it can.
+     */
+    private Cursor withLoading(MatrixCursor cursor, Uri notificationUri) {
+        cursor.setNotificationUri(getContext().getContentResolver(), notificationUri);
+        // Before Marshmallow a cursor can't carry extras, so only the notification arrives.
+        if (SDK_INT >= Build.VERSION_CODES.M) {
+            final Bundle extras = new Bundle();
+            extras.putBoolean(DocumentsContract.EXTRA_LOADING, true);
+            cursor.setExtras(extras);
         }
-        return "application/octet-stream";
+        return cursor;
+    }
+
+    /**
+     * @param projection the requested root column projection
+     * @return either the requested root column projection, or the default projection if the
+     * requested projection is null.
+     */
+    private static String[] resolveRootProjection(String[] projection) {
+        return projection != null ? projection : DEFAULT_ROOT_PROJECTION;
+    }
+
+    private static String[] resolveDocumentProjection(String[] projection) {
+        return projection != null ? projection : DEFAULT_DOCUMENT_PROJECTION;
     }
 
     /**
-     * Gets a string of unique MIME data types a directory supports, separated by newlines.  This
-     * should not change.
+     * Gets a string of unique MIME data types a directory supports, separated by newlines.  These
+     * are the types of the files below it, once they have been counted.
      *
      * @param parent the File for the parent directory
      * @return a string of the unique MIME data types the parent directory supports
      */
-    private String getChildMimeTypes(File parent) {
-        Set<String> mimeTypes = new HashSet<String>();
-        mimeTypes.add("image/*");
-        mimeTypes.add("text/*");
-        mimeTypes.add("application/vnd.openxmlformats-officedocument.wordprocessingml.document");
+    private String getChildMimeTypes(CloudRoot root, File parent) {
+        Set<String> mimeTypes = root.mStats.getMimeTypes(parent);
+        if (mimeTypes == null || mimeTypes.isEmpty()) {
+            // Not counted yet, or nothing there: fall back to the types the sample ships with,
+            // so the root isn't hidden from every picker.
+            mimeTypes = new HashSet<String>();
+            mimeTypes.add("image/*");
+            mimeTypes.add("text/*");
+            mimeTypes.add(
+                    "application/vnd.openxmlformats-officedocument.wordprocessingml.document");
+        }
 
         // Flatten the list into a string and insert newlines between the MIME type strings.
         StringBuilder mimeTypesString = new StringBuilder();
@@ -623,19 +2057,110 @@ public class MyCloudProvider extends DocumentsProvider {
      * Get the document ID given a File.  The document id must be consistent across time.  Other
      * applications may save the ID and use it to reference documents later.
      * <p/>
-     * This implementation is specific to this demo.  It assumes only one root and is built
-     * directly from the file structure.  However, it is possible for a document to be a child of
+     * IDs come from a {@link DocumentIdTable}, so they stay the same when a document is renamed
+     * or moved within the provider.  However, it is possible for a document to be a child of
      * multiple directories (for example "android" and "images"), in which case the file must have
      * the same consistent, unique document ID in both cases.
+     * <p/>
+     * Each root hands out the IDs of its own files, so a document moved to another account gets
+     * a new ID there.
      *
      * @param file the File whose document ID you want
      * @return the corresponding document ID
+     * @throws IllegalArgumentException if the file isn't under any root
      */
     private String getDocIdForFile(File file) {
+        final CloudRoot root = mRegistry.getRootForFile(file);
+        if (root == null) {
+            throw new IllegalArgumentException(file + " is not in any root");
+        }
+        return root.mDocIds.getDocId(file);
+    }
+
+    /**
+     * @return the root with the given ID, held for the caller until it calls
+     * {@link CloudRoot#release()}
+     * @throws FileNotFoundException if there is no such root, for instance because it has been
+     *                               removed
+     */
+    private CloudRoot acquireRoot(String rootId) throws FileNotFoundException {
+        final CloudRoot root = mRegistry.getRoot(rootId);
+        if (root == null || !root.acquire()) {
+            throw new FileNotFoundException("Missing root " + rootId);
+        }
+        return root;
+    }
+
+    /**
+     * Holds the roots of some documents for a call, so they aren't closed while it uses them.
+     *
+     * @return the roots, to be released with {@link #releaseRoots(List)} once the call is done
+     * @throws FileNotFoundException if the root of a document has been removed
+     */
+    private List<CloudRoot> acquireRoots(String... docIds) throws FileNotFoundException {
+        final List<CloudRoot> roots = new ArrayList<CloudRoot>(docIds.length);
+        for (String docId : docIds) {
+            final CloudRoot root = mRegistry.getRootForDocId(docId);
+            if (root == null || !root.acquire()) {
+                releaseRoots(roots);
+                throw new FileNotFoundException("Missing root for document " + docId);
+            }
+            roots.add(root);
+        }
+        return roots;
+    }
+
+    private static void releaseRoots(List<CloudRoot> roots) {
+        for (CloudRoot root : roots) {
+            root.release();
+        }
+    }
+
+    /**
+     * Forgets the ID handed out ahead of time for a document that an operation then failed to
+     * create, so it doesn't stay in the table.  Anything that did get created keeps its ID.  The
+     * caller holds the ID's write lock.
+     */
+    private void releaseReservedDocId(String docId) {
+        final CloudRoot root = mRegistry.getRootForDocId(docId);
+        final File file = root != null ? root.mDocIds.getFile(docId) : null;
+        if (file != null && !file.exists()) {
+            root.mDocIds.remove(file);
+        }
+    }
+
+    /**
+     * @return the root a document is in
+     * @throws FileNotFoundException if its root has been removed
+     */
+    private CloudRoot getRootForDocId(String docId) throws FileNotFoundException {
+        final CloudRoot root = mRegistry.getRootForDocId(docId);
+        if (root == null) {
+            throw new FileNotFoundException("Missing root for document " + docId);
+        }
+        return root;
+    }
+
+    /**
+     * @return the root a file is in
+     * @throws FileNotFoundException if it isn't in any root
+     */
+    private CloudRoot getRootForFile(File file) throws FileNotFoundException {
+        final CloudRoot root = mRegistry.getRootForFile(file);
+        if (root == null) {
+            throw new FileNotFoundException(file + " is not in any root");
+        }
+        return root;
+    }
+
+    /**
+     * @return the path of a file relative to the base directory of its root
+     */
+    private static String getRelativePath(CloudRoot root, File file) {
         String path = file.getAbsolutePath();
 
         // Start at first char of path under root
-        final String rootPath = mBaseDir.getPath();
+        final String rootPath = root.mBaseDir.getPath();
         if (rootPath.equals(path)) {
             path = "";
         } else if (rootPath.endsWith("/")) {
@@ -643,72 +2168,265 @@ public class MyCloudProvider extends DocumentsProvider {
         } else {
             path = path.substring(rootPath.length() + 1);
         }
-
-        return "root" + ':' + path;
+        return path;
     }
 
     /**
      * Add a representation of a file to a cursor.
      *
      * @param result the cursor to modify
+     * @param rows   fills in the columns of the cursor's projection
      * @param docId  the document ID representing the desired file (may be null if given file)
      * @param file   the File object representing the desired file (may be null if given docID)
      * @throws FileNotFoundException
      */
-    private void includeFile(MatrixCursor result, String docId, File file)
-            throws FileNotFoundException {
+    private void includeFile(MatrixCursor result, DocumentRowBuilder rows, String docId,
+                             File file) throws FileNotFoundException {
         if (docId == null) {
             docId = getDocIdForFile(file);
         } else {
-            file = getFileForDocId(docId);
+            // The stat below tells whether it exists, so don't check twice.
+            file = getFileForDocId(docId, false);
+        }
+
+        final FileAttributes attributes = FileAttributes.read(file);
+        if (attributes == null) {
+            throw new FileNotFoundException("Missing file for " + docId + " at " + file);
+        }
+        rows.addRow(result, docId, file.getName(),
+                withDirectorySize(getRootForDocId(docId), file, attributes));
+    }
+
+    /**
+     * A directory's own size means nothing to the user, so report the total size of the files
+     * below it instead, if it is known.
+     */
+    private static FileAttributes withDirectorySize(CloudRoot root, File file,
+                                                    FileAttributes attributes) {
+        if (attributes.mIsDirectory) {
+            final long size = root.mStats.getSize(file);
+            if (size >= 0) {
+                return attributes.withSize(size);
+            }
+        }
+        return attributes;
+    }
+
+    /**
+     * The legacy root ID "root" and the root's own document ID name the same directory, and IDs
+     * handed out before IDs were stable name documents by path.  The index and the ID table
+     * only know the stable IDs.
+     */
+    private String normalizeDocId(String docId) throws FileNotFoundException {
+        if (docId.equals(CloudRoot.DEFAULT_ROOT_ID) || docId.indexOf(':') >= 0) {
+            return getDocIdForFile(getFileForDocId(docId, false));
+        }
+        return docId;
+    }
+
+    /**
+     * Called after a document has been created or written, so that any cached metadata about it
+     * is refreshed.  Writes made outside the provider arrive here through the DocumentWatcher.
+     *
+     * @param file the File that changed
+     */
+    private void onFileChanged(File file) {
+        // A root that is being removed may still report changes.
+        final CloudRoot root = mRegistry.getRootForFile(file);
+        if (root == null || !root.acquire()) {
+            return;
+        }
+        try {
+            onFileChanged(root, file);
+        } finally {
+            root.release();
         }
+    }
 
-        int flags = 0;
+    private void onFileChanged(CloudRoot root, File file) {
+        root.mStats.put(file);
+        mRoots.onStorageChanged();
+        notifyChanged(root, file);
+        invalidateParent(root, file);
+        if (root.mIndex != null) {
+            root.mIndex.put(file);
+            refreshParent(root, file);
+        }
+        if (root.mUploads != null && file.isFile()) {
+            // Repeated writes are collapsed by the queue, so this is cheap to call often.
+            root.mUploads.enqueue(getBackendPath(root, file));
+        }
+        if (root.mChunkStore != null && file.isFile()) {
+            // Finds it already stored if it hasn't changed, such as a placeholder just copied.
+            root.mChunkStore.storeLater(file);
+        }
+        if (mEncryption != null && file.isFile()) {
+            // Finds it already encrypted, unless it was written behind the provider's back.
+            encryptLater(file);
+        }
+    }
 
-        if (file.isDirectory()) {
-            // Request the folder to lay out as a grid rather than a list. This also allows a larger
-            // thumbnail to be displayed for each image.
-            //            flags |= Document.FLAG_DIR_PREFERS_GRID;
+    /**
+     * Like {@link #onFileChanged(File)}, for a directory that appeared along with its contents.
+     *
+     * @param top the File at the top of the tree that changed
+     */
+    private void onTreeChanged(File top) {
+        final CloudRoot root = mRegistry.getRootForFile(top);
+        if (root == null || !root.acquire()) {
+            return;
+        }
+        try {
+            onTreeChanged(root, top);
+        } finally {
+            root.release();
+        }
+    }
 
-            // Add FLAG_DIR_SUPPORTS_CREATE if the file is a writable directory.
-            if (file.isDirectory() && file.canWrite()) {
-                flags |= Document.FLAG_DIR_SUPPORTS_CREATE;
+    private void onTreeChanged(CloudRoot root, File top) {
+        root.mStats.putTree(top);
+        mRoots.onStorageChanged();
+        notifyChanged(root, top);
+        invalidateParent(root, top);
+        if (root.mIndex != null) {
+            root.mIndex.putTree(top);
+            refreshParent(root, top);
+        }
+        if (mEncryption != null) {
+            encryptTreeLater(top);
+        }
+    }
+
+    /**
+     * Called after a document has been deleted or moved away, so that any cached metadata about
+     * it and its descendants is dropped.
+     *
+     * @param file the File that no longer exists
+     */
+    private void onFileRemoved(File file) {
+        final CloudRoot root = mRegistry.getRootForFile(file);
+        if (root == null || !root.acquire()) {
+            return;
+        }
+        try {
+            onFileRemoved(root, file);
+        } finally {
+            root.release();
+        }
+    }
+
+    private void onFileRemoved(CloudRoot root, File file) {
+        // After a rename or move the ID has gone with the document, so only the directory it
+        // left is notified here.
+        final File parent = file.getParentFile();
+        mNotifier.onDocumentChanged(parent != null ? root.mDocIds.findDocId(parent) : null,
+                root.mDocIds.findDocId(file));
+        root.mDocIds.remove(file);
+        root.mStats.remove(file);
+        mRoots.onStorageChanged();
+        root.mSnapshots.remove(file);
+        invalidateParent(root, file);
+        if (root.mIndex != null) {
+            root.mIndex.remove(file);
+            refreshParent(root, file);
+        }
+        // A rename has already taken the rows along, and something new may be there by now.
+        if (mEncryption != null && !file.exists()) {
+            mEncryption.remove(file);
+        }
+    }
+
+    /**
+     * Encrypts a document on the encrypted store's thread, if it is still plaintext.  Takes
+     * the document's write lock, so nobody opens it meanwhile.
+     */
+    private void encryptLater(final File file) {
+        mEncryption.getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                encryptNow(file);
             }
-        } else if (file.canWrite()) {
-            // If the file is writable set FLAG_SUPPORTS_WRITE and
-            // FLAG_SUPPORTS_DELETE
-            flags |= Document.FLAG_SUPPORTS_WRITE;
-            flags |= Document.FLAG_SUPPORTS_DELETE;
+        });
+    }
 
-            // Add SDK specific flags if appropriate
-            if (SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-                flags |= Document.FLAG_SUPPORTS_RENAME;
+    /**
+     * Like {@link #encryptLater(File)}, for every document in a tree.
+     */
+    private void encryptTreeLater(final File top) {
+        mEncryption.getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                final ArrayDeque<File> pending = new ArrayDeque<File>();
+                pending.push(top);
+                while (!pending.isEmpty()) {
+                    final File file = pending.pop();
+                    final File[] children = file.listFiles();
+                    if (children != null) {
+                        for (File child : children) {
+                            pending.push(child);
+                        }
+                    } else if (file.isFile()) {
+                        encryptNow(file);
+                    }
+                }
             }
-            if (SDK_INT >= Build.VERSION_CODES.N) {
-                flags |= Document.FLAG_SUPPORTS_REMOVE;
-                flags |= Document.FLAG_SUPPORTS_MOVE;
-                flags |= Document.FLAG_SUPPORTS_COPY;
+        });
+    }
+
+    private void encryptNow(File file) {
+        final CloudRoot root = mRegistry.getRootForFile(file);
+        if (root == null || !root.acquire()) {
+            // Its root has been removed.
+            return;
+        }
+        final DocumentLocks.Held locks =
+                mLocks.newRequest("encrypt").write(root.mDocIds.getDocId(file)).acquire();
+        try {
+            final long lastModified = file.lastModified();
+            if (mEncryption.encrypt(file) && file.lastModified() != lastModified) {
+                // The ciphertext has a modified time of its own.
+                onFileChanged(file);
             }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to encrypt " + file + ": " + e.getMessage());
+        } finally {
+            locks.release();
+            root.release();
         }
+    }
 
-        final String displayName = file.getName();
-        final String mimeType = getTypeForFile(file);
+    /**
+     * Tells clients showing a document, or the directory it is in, to query it again.
+     */
+    private void notifyChanged(CloudRoot root, File file) {
+        final File parent = file.getParentFile();
+        mNotifier.onDocumentChanged(parent != null && !file.equals(root.mBaseDir)
+                ? root.mDocIds.getDocId(parent) : null, root.mDocIds.getDocId(file));
+    }
 
-        if (mimeType.startsWith("image/")) {
-            // Allow the image to be represented by a thumbnail rather than an icon
-            flags |= Document.FLAG_SUPPORTS_THUMBNAIL;
+    /**
+     * A change to a child's size or last modified time doesn't change its directory's, so the
+     * directory's listing has to be dropped explicitly.
+     */
+    private static void invalidateParent(CloudRoot root, File file) {
+        final File parent = file.getParentFile();
+        if (parent != null) {
+            root.mSnapshots.invalidate(parent);
         }
+    }
 
-        final MatrixCursor.RowBuilder row = result.newRow();
-        row.add(Document.COLUMN_DOCUMENT_ID, docId);
-        row.add(Document.COLUMN_DISPLAY_NAME, displayName);
-        row.add(Document.COLUMN_SIZE, file.length());
-        row.add(Document.COLUMN_MIME_TYPE, mimeType);
-        row.add(Document.COLUMN_LAST_MODIFIED, file.lastModified());
-        row.add(Document.COLUMN_FLAGS, flags);
-
-        // Add a custom icon
-        row.add(Document.COLUMN_ICON, R.drawable.ic_launcher);
+    /**
+     * Adding or removing an entry changes the last modified time of its directory, so keep the
+     * directory's row current as well.  The total size of every directory above it changes too.
+     */
+    private static void refreshParent(CloudRoot root, File file) {
+        final File parent = file.getParentFile();
+        if (parent != null && !file.equals(root.mBaseDir)) {
+            root.mIndex.put(parent);
+            if (!parent.equals(root.mBaseDir)) {
+                root.mIndex.updateDirectorySizes(parent.getParentFile());
+            }
+        }
     }
 
     /**
@@ -719,20 +2437,65 @@ public class MyCloudProvider extends DocumentsProvider {
      * @throws java.io.FileNotFoundException
      */
     private File getFileForDocId(String docId) throws FileNotFoundException {
-        File target = mBaseDir;
-        if (docId.equals(ROOT)) {
-            return target;
+        return getFileForDocId(docId, true);
+    }
+
+    /**
+     * @param docId     the document ID representing the desired file
+     * @param mustExist whether to check that the file exists, which costs a system call
+     * @return a File represented by the given document ID
+     * @throws java.io.FileNotFoundException
+     */
+    private File getFileForDocId(String docId, boolean mustExist) throws FileNotFoundException {
+        final CloudRoot root = getRootForDocId(docId);
+        if (docId.equals(CloudRoot.DEFAULT_ROOT_ID)) {
+            return root.mBaseDir;
         }
-        final int splitIndex = docId.indexOf(':', 1);
-        if (splitIndex < 0) {
-            throw new FileNotFoundException("Missing root for " + docId);
-        } else {
-            final String path = docId.substring(splitIndex + 1);
-            target = new File(target, path);
-            if (!target.exists()) {
-                throw new FileNotFoundException("Missing file for " + docId + " at " + target);
+        File target = root.mDocIds.getFile(docId);
+        if (target == null) {
+            // IDs handed out before IDs were stable are "root:" followed by the path, and are
+            // all in the default root.
+            final int splitIndex = docId.indexOf(':', 1);
+            if (splitIndex < 0) {
+                throw new FileNotFoundException("Missing document " + docId);
+            }
+            target = new File(root.mBaseDir, docId.substring(splitIndex + 1));
+        }
+        if (mustExist && !target.exists()) {
+            throw new FileNotFoundException("Missing file for " + docId + " at " + target);
+        }
+        return target;
+    }
+
+    /**
+     * @return the path of a document on the server
+     */
+    private static String getBackendPath(CloudRoot root, File file) {
+        return getRelativePath(root, file);
+    }
+
+    /**
+     * Queues an upload of every local file the server doesn't have yet, such as the sample
+     * files.
+     */
+    private void uploadMissingFiles(CloudRoot root) {
+        final ArrayDeque<File> pending = new ArrayDeque<File>();
+        pending.add(root.mBaseDir);
+        while (!pending.isEmpty()) {
+            final File file = pending.removeFirst();
+            final File[] children = file.listFiles();
+            if (children != null) {
+                Collections.addAll(pending, children);
+                continue;
+            }
+            final String path = getBackendPath(root, file);
+            try {
+                if (root.mBackend.stat(path) == null) {
+                    root.mUploads.enqueue(path);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to check " + path + " on the server: " + e.getMessage());
             }
-            return target;
         }
     }
 
@@ -740,52 +2503,71 @@ public class MyCloudProvider extends DocumentsProvider {
      * Preload sample files packaged in the apk into the internal storage directory.  This is a
      * test function specific to this demo.  The MyCloud mock cloud service doesn't actually
      * have a backend, so it simulates by reading content from the device's internal storage.
+     * <p/>
+     * Called on a background thread, so the files may appear while the root is being shown.
      */
-    private void writeTestFilesToStorage() {
-        if (mBaseDir.list().length > 0) {
+    private void writeTestFilesToStorage(CloudRoot root) {
+        final String[] existing = root.mBaseDir.list();
+        if (existing == null || existing.length > 0) {
             return;
         }
 
         int[] imageResIds = getResourceIdArray(R.array.image_res_ids);
         for (int resId : imageResIds) {
-            writeFileToInternalStorage(resId, ".jpeg");
+            writeFileToInternalStorage(root, resId, ".jpeg");
         }
 
         int[] textResIds = getResourceIdArray(R.array.text_res_ids);
         for (int resId : textResIds) {
-            writeFileToInternalStorage(resId, ".txt");
+            writeFileToInternalStorage(root, resId, ".txt");
         }
 
         int[] docxResIds = getResourceIdArray(R.array.docx_res_ids);
         for (int resId : docxResIds) {
-            writeFileToInternalStorage(resId, ".docx");
+            writeFileToInternalStorage(root, resId, ".docx");
         }
+
+        mNotifier.onChildrenChanged(root.getRootDocId());
     }
 
     /**
      * Write a file to internal storage.  Used to set up our simple "cloud server".
      *
+     * @param root      the root to write the file to
      * @param resId     the resource ID of the file to write to internal storage
      * @param extension the file extension (ex. .png, .mp3)
      */
-    private void writeFileToInternalStorage(int resId, String extension) {
-        InputStream ins = getContext().getResources().openRawResource(resId);
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        int size;
-        byte[] buffer = new byte[1024];
+    private void writeFileToInternalStorage(CloudRoot root, int resId, String extension) {
+        String filename = getContext().getResources().getResourceEntryName(resId) + extension;
+        // Streamed through a small buffer into the staging directory, and renamed into place
+        // once complete so a half-written file is never listed.
+        File staging = null;
         try {
-            while ((size = ins.read(buffer, 0, 1024)) >= 0) {
-                outputStream.write(buffer, 0, size);
+            staging = File.createTempFile("seed", null,
+                    getContext().getDir("staging", Context.MODE_PRIVATE));
+            InputStream ins = getContext().getResources().openRawResource(resId);
+            try {
+                FileOutputStream fos = new FileOutputStream(staging);
+                try {
+                    int size;
+                    byte[] buffer = new byte[8192];
+                    while ((size = ins.read(buffer)) >= 0) {
+                        fos.write(buffer, 0, size);
+                    }
+                } finally {
+                    fos.close();
+                }
+            } finally {
+                ins.close();
+            }
+            if (!staging.renameTo(new File(root.mBaseDir, filename))) {
+                throw new IOException("Failed to move " + filename + " into place");
             }
-            ins.close();
-            buffer = outputStream.toByteArray();
-            String filename = getContext().getResources().getResourceEntryName(resId) + extension;
-            FileOutputStream fos = getContext().openFileOutput(filename, Context.MODE_PRIVATE);
-            fos.write(buffer);
-            fos.close();
-
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.w(TAG, "Failed to write " + filename + ": " + e.getMessage());
+            if (staging != null) {
+                staging.delete();
+            }
         }
     }
 
@@ -804,9 +2586,27 @@ public class MyCloudProvider extends DocumentsProvider {
      * Placeholder function to determine whether the user is logged in.
      */
     private boolean isUserLoggedIn() {
-        final SharedPreferences sharedPreferences =
-                getContext().getSharedPreferences(getContext().getString(R.string.app_name),
-                        Context.MODE_PRIVATE);
-        return sharedPreferences.getBoolean(getContext().getString(R.string.key_logged_in), false);
+        return getPreferences().getBoolean(getContext().getString(R.string.key_logged_in), false);
+    }
+
+    /**
+     * @return how long each request to the stand-in server takes, in milliseconds
+     */
+    private long getBackendLatencyMillis() {
+        return getPreferences().getLong(getContext().getString(R.string.key_backend_latency),
+                DEFAULT_SIMULATED_LATENCY_MILLIS);
+    }
+
+    /**
+     * @return the stand-in server's bandwidth, in bytes per second
+     */
+    private long getBackendBytesPerSecond() {
+        return getPreferences().getLong(getContext().getString(R.string.key_backend_bandwidth),
+                DEFAULT_SIMULATED_BYTES_PER_SECOND);
+    }
+
+    private SharedPreferences getPreferences() {
+        return getContext().getSharedPreferences(getContext().getString(R.string.app_name),
+                Context.MODE_PRIVATE);
     }
 }
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.storageprovider;
+
+import android.os.Bundle;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms for each provider entry point, and counters for the work they do.
+ * <p/>
+ * Recording is a few atomic adds into arrays allocated up front: no locks and no allocation, so
+ * it can stay on all the time.  Each histogram has four buckets per power of two of
+ * microseconds, so a percentile read from it is within 25% of the true value.
+ */
+class ProviderMetrics {
+    static final int OP_QUERY_ROOTS = 0;
+    static final int OP_QUERY_RECENT_DOCUMENTS = 1;
+    static final int OP_QUERY_SEARCH_DOCUMENTS = 2;
+    static final int OP_QUERY_DOCUMENT = 3;
+    static final int OP_QUERY_CHILD_DOCUMENTS = 4;
+    static final int OP_OPEN_DOCUMENT = 5;
+    static final int OP_OPEN_DOCUMENT_THUMBNAIL = 6;
+    static final int OP_IS_CHILD_DOCUMENT = 7;
+    static final int OP_FIND_DOCUMENT_PATH = 8;
+    static final int OP_CREATE_DOCUMENT = 9;
+    static final int OP_RENAME_DOCUMENT = 10;
+    static final int OP_DELETE_DOCUMENT = 11;
+    static final int OP_REMOVE_DOCUMENT = 12;
+    static final int OP_COPY_DOCUMENT = 13;
+    static final int OP_MOVE_DOCUMENT = 14;
+    static final int OP_GET_DOCUMENT_TYPE = 15;
+
+    private static final String[] OP_NAMES = {
+            "queryRoots",
+            "queryRecentDocuments",
+            "querySearchDocuments",
+            "queryDocument",
+            "queryChildDocuments",
+            "openDocument",
+            "openDocumentThumbnail",
+            "isChildDocument",
+            "findDocumentPath",
+            "createDocument",
+            "renameDocument",
+            "deleteDocument",
+            "removeDocument",
+            "copyDocument",
+            "moveDocument",
+            "getDocumentType",
+    };
+
+    static final int COUNTER_ROWS = 0;
+    static final int COUNTER_BYTES_COPIED = 1;
+    static final int COUNTER_INDEX_QUERIES = 2;
+    static final int COUNTER_SNAPSHOT_HITS = 3;
+    static final int COUNTER_SNAPSHOT_MISSES = 4;
+    static final int COUNTER_THUMBNAIL_HITS = 5;
+    static final int COUNTER_THUMBNAIL_MISSES = 6;
+    static final int COUNTER_CHUNK_HITS = 7;
+    static final int COUNTER_CHUNK_MISSES = 8;
+    static final int COUNTER_SEGMENTS_ENCRYPTED = 9;
+    static final int COUNTER_SEGMENTS_DECRYPTED = 10;
+
+    private static final String[] COUNTER_NAMES = {
+            "rows",
+            "bytesCopied",
+            "indexQueries",
+            "snapshotHits",
+            "snapshotMisses",
+            "thumbnailHits",
+            "thumbnailMisses",
+            "chunkHits",
+            "chunkMisses",
+            "segmentsEncrypted",
+            "segmentsDecrypted",
+    };
+
+    // Values below 8us get a bucket each; above that, four per power of two, up to 2^40us.
+    private static final int LINEAR_BUCKETS = 8;
+    private static final int MAX_BIT = 40;
+    static final int BUCKETS = (MAX_BIT - 1) * 4 + 4;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(OP_NAMES.length * BUCKETS);
+    private final AtomicLongArray mTotalMicros = new AtomicLongArray(OP_NAMES.length);
+    private final AtomicLongArray mMaxMicros = new AtomicLongArray(OP_NAMES.length);
+    private final AtomicLongArray mCounters = new AtomicLongArray(COUNTER_NAMES.length);
+    private final AtomicLong mSince = new AtomicLong(System.currentTimeMillis());
+
+    /**
+     * @return the time to pass to {@link #record(int, long)} once the operation is done
+     */
+    static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records how long one call to an entry point took.
+     *
+     * @param op    one of the OP_ constants
+     * @param start what {@link #start()} returned when the call began
+     */
+    void record(int op, long start) {
+        final long micros = (System.nanoTime() - start) / 1000;
+        mBuckets.incrementAndGet(op * BUCKETS + getBucket(micros));
+        mTotalMicros.addAndGet(op, micros);
+        long max = mMaxMicros.get(op);
+        while (micros > max && !mMaxMicros.compareAndSet(op, max, micros)) {
+            max = mMaxMicros.get(op);
+        }
+    }
+
+    /**
+     * Adds to one of the COUNTER_ constants.
+     */
+    void count(int counter, long delta) {
+        mCounters.addAndGet(counter, delta);
+    }
+
+    /**
+     * Sets one of the COUNTER_ constants, for counts kept elsewhere, such as by a cache.
+     */
+    void set(int counter, long value) {
+        mCounters.set(counter, value);
+    }
+
+    /**
+     * Starts counting again from zero.  Counters set with {@link #set(int, long)} are left
+     * alone.
+     */
+    void reset() {
+        for (int i = 0; i < mBuckets.length(); i++) {
+            mBuckets.set(i, 0);
+        }
+        for (int op = 0; op < OP_NAMES.length; op++) {
+            mTotalMicros.set(op, 0);
+            mMaxMicros.set(op, 0);
+        }
+        mCounters.set(COUNTER_ROWS, 0);
+        mCounters.set(COUNTER_BYTES_COPIED, 0);
+        mCounters.set(COUNTER_INDEX_QUERIES, 0);
+        mCounters.set(COUNTER_SNAPSHOT_HITS, 0);
+        mCounters.set(COUNTER_SNAPSHOT_MISSES, 0);
+        mSince.set(System.currentTimeMillis());
+    }
+
+    /**
+     * @return every counter and, for each entry point that has been called, "name.count",
+     * "name.p50Micros", "name.p99Micros", "name.meanMicros" and "name.maxMicros"
+     */
+    Bundle toBundle() {
+        final Bundle bundle = new Bundle();
+        bundle.putLong("sinceMillis", mSince.get());
+        for (int counter = 0; counter < COUNTER_NAMES.length; counter++) {
+            bundle.putLong(COUNTER_NAMES[counter], mCounters.get(counter));
+        }
+        for (int op = 0; op < OP_NAMES.length; op++) {
+            final long count = getCount(op);
+            if (count == 0) {
+                continue;
+            }
+            final String name = OP_NAMES[op];
+            bundle.putLong(name + ".count", count);
+            bundle.putLong(name + ".p50Micros", getPercentile(op, count, 50));
+            bundle.putLong(name + ".p99Micros", getPercentile(op, count, 99));
+            bundle.putLong(name + ".meanMicros", mTotalMicros.get(op) / count);
+            bundle.putLong(name + ".maxMicros", mMaxMicros.get(op));
+        }
+        return bundle;
+    }
+
+    /**
+     * Prints the same as {@link #toBundle()} as a table.
+     */
+    void dump(PrintWriter writer) {
+        writer.println("Since " + mSince.get() + ":");
+        writer.printf("  %-24s %8s %10s %10s %10s %10s%n", "operation", "count", "p50 us",
+                "p99 us", "mean us", "max us");
+        for (int op = 0; op < OP_NAMES.length; op++) {
+            final long count = getCount(op);
+            if (count == 0) {
+                continue;
+            }
+            writer.printf("  %-24s %8d %10d %10d %10d %10d%n", OP_NAMES[op], count,
+                    getPercentile(op, count, 50), getPercentile(op, count, 99),
+                    mTotalMicros.get(op) / count, mMaxMicros.get(op));
+        }
+        for (int counter = 0; counter < COUNTER_NAMES.length; counter++) {
+            writer.println("  " + COUNTER_NAMES[counter] + ": " + mCounters.get(counter));
+        }
+    }
+
+    private long getCount(int op) {
+        long count = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            count += mBuckets.get(op * BUCKETS + bucket);
+        }
+        return count;
+    }
+
+    /**
+     * @return the upper bound of the bucket holding the given percentile
+     */
+    private long getPercentile(int op, long count, int percentile) {
+        // The rank of the sample at the percentile, counting from 1.
+        final long rank = Math.max(1, (count * percentile + 99) / 100);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += mBuckets.get(op * BUCKETS + bucket);
+            if (seen >= rank) {
+                return Math.min(getUpperBound(bucket), mMaxMicros.get(op));
+            }
+        }
+        return mMaxMicros.get(op);
+    }
+
+    static int getBucket(long micros) {
+        if (micros < LINEAR_BUCKETS) {
+            return (int) Math.max(micros, 0);
+        }
+        final int bit = 63 - Long.numberOfLeadingZeros(micros);
+        if (bit > MAX_BIT) {
+            return BUCKETS - 1;
+        }
+        // The two bits after the highest one pick the quarter of the power of two.
+        return (bit - 1) * 4 + (int) ((micros >>> (bit - 2)) & 3);
+    }
+
+    static long getUpperBound(int bucket) {
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+        final int bit = bucket / 4 + 1;
+        return ((4L + bucket % 4 + 1) << (bit - 2)) - 1;
+    }
+}
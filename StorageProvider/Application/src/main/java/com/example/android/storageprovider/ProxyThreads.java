@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.storageprovider;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+/**
+ * A small set of handler threads that proxy file descriptors share, rather than each one
+ * starting a thread of its own.
+ * <p/>
+ * A new descriptor goes to the thread serving the fewest open ones, so a read that waits on
+ * the network or the disk only holds up the few descriptors it shares a thread with.  Threads
+ * are started when first needed and then kept for the life of the process.
+ */
+class ProxyThreads {
+    private final String mName;
+    private final HandlerThread[] mThreads;
+    private final Handler[] mHandlers;
+    // How many descriptors each thread is serving.
+    private final int[] mOpen;
+
+    /**
+     * @param name  the threads' name
+     * @param count the most threads to start
+     */
+    ProxyThreads(String name, int count) {
+        mName = name;
+        mThreads = new HandlerThread[count];
+        mHandlers = new Handler[count];
+        mOpen = new int[count];
+    }
+
+    /**
+     * @return the handler for a new descriptor to use.  It must be handed back with
+     * {@link #release(Handler)} once the descriptor is closed.
+     */
+    synchronized Handler acquire() {
+        int least = 0;
+        for (int i = 1; i < mOpen.length; i++) {
+            if (mOpen[i] < mOpen[least]) {
+                least = i;
+            }
+        }
+        if (mThreads[least] == null) {
+            mThreads[least] = new HandlerThread(mName + "-" + least);
+            mThreads[least].start();
+            mHandlers[least] = new Handler(mThreads[least].getLooper());
+        }
+        mOpen[least]++;
+        return mHandlers[least];
+    }
+
+    /**
+     * Records that a descriptor using the handler has been closed, or was never opened.
+     */
+    synchronized void release(Handler handler) {
+        for (int i = 0; i < mHandlers.length; i++) {
+            if (mHandlers[i] == handler) {
+                mOpen[i]--;
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.storageprovider;
+
+import android.os.CancellationSignal;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Finds the most recently modified files under a directory in a single pass, keeping no more
+ * than the requested number of candidates in memory at any time.
+ * <p/>
+ * Candidates live in a min-heap ordered by last modified time, so the oldest of the current
+ * candidates is always at the head and can be replaced cheaply when something newer turns up.
+ * Each file's last modified time is read once, when it is visited, rather than on every
+ * comparison.
+ * <p/>
+ * Note that a directory's own last modified time only changes when entries are added, removed or
+ * renamed, not when a file inside it is rewritten, so it can't be used to skip a subtree.
+ */
+class RecentDocumentsCollector {
+
+    // Check for cancellation after visiting this many entries.
+    private static final int CANCELLATION_CHECK_INTERVAL = 256;
+
+    private static final Comparator<Candidate> OLDEST_FIRST = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate a, Candidate b) {
+            return Long.compare(a.mLastModified, b.mLastModified);
+        }
+    };
+
+    private final int mLimit;
+
+    /**
+     * @param limit the maximum number of files to return
+     */
+    RecentDocumentsCollector(int limit) {
+        mLimit = limit;
+    }
+
+    /**
+     * Walks everything under a directory.
+     *
+     * @param root   the directory to search
+     * @param signal used to stop the walk early, may be null
+     * @return up to the limit of files, newest first
+     * @throws android.os.OperationCanceledException if the signal was canceled
+     */
+    List<File> collect(File root, CancellationSignal signal) {
+        final PriorityQueue<Candidate> newest = new PriorityQueue<Candidate>(
+                Math.max(1, mLimit), OLDEST_FIRST);
+        final ArrayDeque<File> pending = new ArrayDeque<File>();
+        pending.push(root);
+
+        int visited = 0;
+        while (!pending.isEmpty()) {
+            final File dir = pending.pop();
+            final File[] children = dir.listFiles();
+            if (children == null) {
+                continue;
+            }
+            for (File child : children) {
+                if (signal != null && ++visited % CANCELLATION_CHECK_INTERVAL == 0) {
+                    signal.throwIfCanceled();
+                }
+                if (child.isDirectory()) {
+                    pending.push(child);
+                    continue;
+                }
+                final long lastModified = child.lastModified();
+                if (newest.size() < mLimit) {
+                    newest.add(new Candidate(child, lastModified));
+                } else if (mLimit > 0 && lastModified > newest.peek().mLastModified) {
+                    newest.poll();
+                    newest.add(new Candidate(child, lastModified));
+                }
+            }
+        }
+
+        final List<Candidate> sorted = new ArrayList<Candidate>(newest);
+        Collections.sort(sorted, Collections.reverseOrder(OLDEST_FIRST));
+        final List<File> result = new ArrayList<File>(sorted.size());
+        for (Candidate candidate : sorted) {
+            result.add(candidate.mFile);
+        }
+        return result;
+    }
+
+    private static class Candidate {
+        final File mFile;
+        final long mLastModified;
+
+        Candidate(File file, long lastModified) {
+            mFile = file;
+            mLastModified = lastModified;
+        }
+    }
+}
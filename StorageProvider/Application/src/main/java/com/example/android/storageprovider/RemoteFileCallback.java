@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.storageprovider;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.ParcelFileDescriptor;
+import android.os.ProxyFileDescriptorCallback;
+import android.os.storage.StorageManager;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+
+import androidx.annotation.RequiresApi;
+
+import com.example.android.common.logger.Log;
+
+import java.io.IOException;
+
+/**
+ * Serves reads from a proxy file descriptor out of the chunks of a document on the server.
+ * <p/>
+ * Unlike a pipe, a proxy descriptor can seek, so a video player or zip reader only downloads the
+ * chunks it actually touches.  Once reads look sequential, the next few chunks are fetched ahead
+ * of the reader so that it rarely waits on the network.
+ */
+@RequiresApi(Build.VERSION_CODES.O)
+class RemoteFileCallback extends ProxyFileDescriptorCallback {
+    private static final String TAG = "RemoteFileCallback";
+
+    // How many chunks to fetch ahead of a sequential reader.
+    private static final int READ_AHEAD_CHUNKS = 4;
+
+    // How many reads in a row must follow on from each other before reading ahead.
+    private static final int SEQUENTIAL_READS = 2;
+
+    // Shared by all the descriptors, which mostly sit idle between reads.
+    private static final ProxyThreads sThreads = new ProxyThreads(TAG, 4);
+
+    private final ChunkFetcher mFetcher;
+    private final String mPath;
+    private final CloudBackend.Entry mEntry;
+    private final int mChunkCount;
+    private final Handler mHandler;
+
+    // Calls come one at a time on the handler thread, so these need no locking.
+    private long mLastReadEnd = -1;
+    private int mSequentialReads;
+    private int mReadAheadUntil;
+
+    // The chunk read last.  Reads are usually much smaller than a chunk, so most of them are
+    // served from here without touching the cache.
+    private int mCurrentIndex = -1;
+    private byte[] mCurrentChunk;
+
+    private RemoteFileCallback(ChunkFetcher fetcher, String path, CloudBackend.Entry entry,
+                               Handler handler) {
+        mFetcher = fetcher;
+        mPath = path;
+        mEntry = entry;
+        mChunkCount = ChunkFetcher.getChunkCount(entry);
+        mHandler = handler;
+    }
+
+    /**
+     * Opens a read-only, seekable descriptor onto a document on the server.
+     * <p/>
+     * Descriptors are served by a few shared threads, so a read waiting on the network holds up
+     * only the readers of the documents that share its thread.
+     *
+     * @param storageManager creates the proxy descriptor
+     * @param fetcher        downloads and caches the chunks
+     * @param path           the document's path on the server
+     * @param entry          the version of the document to serve
+     * @return the descriptor
+     * @throws IOException if the descriptor couldn't be created
+     */
+    static ParcelFileDescriptor open(StorageManager storageManager, ChunkFetcher fetcher,
+                                     String path, CloudBackend.Entry entry) throws IOException {
+        final Handler handler = sThreads.acquire();
+        try {
+            return storageManager.openProxyFileDescriptor(ParcelFileDescriptor.MODE_READ_ONLY,
+                    new RemoteFileCallback(fetcher, path, entry, handler), handler);
+        } catch (IOException e) {
+            sThreads.release(handler);
+            throw e;
+        }
+    }
+
+    @Override
+    public long onGetSize() {
+        return mEntry.mLength;
+    }
+
+    @Override
+    public int onRead(long offset, int size, byte[] data) throws ErrnoException {
+        if (offset >= mEntry.mLength) {
+            return 0;
+        }
+        final int length = (int) Math.min(size, mEntry.mLength - offset);
+        updateReadAhead(offset, length);
+
+        int copied = 0;
+        try {
+            while (copied < length) {
+                final long position = offset + copied;
+                final int index = (int) (position / ChunkFetcher.CHUNK_SIZE);
+                final int chunkOffset = (int) (position % ChunkFetcher.CHUNK_SIZE);
+                final byte[] chunk = getChunk(index);
+                final int count = Math.min(length - copied, chunk.length - chunkOffset);
+                if (count <= 0) {
+                    // The server's copy is shorter than it said.
+                    break;
+                }
+                System.arraycopy(chunk, chunkOffset, data, copied, count);
+                copied += count;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read " + mPath + " at " + offset + ": " + e.getMessage());
+            throw new ErrnoException("onRead", OsConstants.EIO);
+        }
+        return copied;
+    }
+
+    @Override
+    public void onRelease() {
+        Log.v(TAG, "Released " + mPath);
+        sThreads.release(mHandler);
+    }
+
+    private byte[] getChunk(int index) throws IOException {
+        if (index != mCurrentIndex) {
+            mCurrentChunk = mFetcher.getChunk(mPath, mEntry, index);
+            mCurrentIndex = index;
+        }
+        return mCurrentChunk;
+    }
+
+    /**
+     * Notices whether reads follow on from each other, and if so keeps the chunks after the
+     * current one downloading.
+     */
+    private void updateReadAhead(long offset, int length) {
+        if (offset == mLastReadEnd) {
+            mSequentialReads++;
+        } else {
+            // A seek.  Anything fetched ahead of the old position is left to the cache.
+            mSequentialReads = 0;
+            mReadAheadUntil = 0;
+        }
+        mLastReadEnd = offset + length;
+        if (mSequentialReads < SEQUENTIAL_READS) {
+            return;
+        }
+
+        final int current = (int) ((mLastReadEnd - 1) / ChunkFetcher.CHUNK_SIZE);
+        final int last = Math.min(mChunkCount - 1, current + READ_AHEAD_CHUNKS);
+        for (int index = Math.max(current + 1, mReadAheadUntil + 1); index <= last; index++) {
+            if (mFetcher.isCached(mPath, mEntry, index)) {
+                continue;
+            }
+            try {
+                mFetcher.fetchChunk(mPath, mEntry, index);
+            } catch (IOException e) {
+                // Only a hint; the read itself will try again.
+                break;
+            }
+        }
+        mReadAheadUntil = Math.max(mReadAheadUntil, last);
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.storageprovider;
+
+import android.content.ContentResolver;
+import android.database.MatrixCursor;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.provider.DocumentsContract;
+import android.provider.DocumentsContract.Root;
+
+import com.example.android.common.logger.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keeps the provider's roots as prebuilt rows, so answering {@code queryRoots} doesn't read
+ * preferences, collect MIME types or statfs the volume each time.
+ * <p/>
+ * The rows are built again when something they show may have changed: at once when told to
+ * with {@link #invalidate()}, and after a short delay when told the stored files changed.  In
+ * that case clients are only told if a value they show changed, and the free space has to move
+ * by more than a threshold first, so a stream of small writes doesn't keep the picker
+ * refreshing.  Rebuilds happen on a thread of their own.
+ */
+class RootCache {
+    private static final String TAG = "RootCache";
+
+    // How long to wait after a change to the stored files before checking the roots.
+    private static final long CHECK_DELAY_MILLIS = 1000;
+
+    // The free space shown is only updated once it moves by this much, or by one percent of
+    // the capacity if that is more.
+    private static final long MIN_SPACE_CHANGE_BYTES = 1024 * 1024;
+
+    /**
+     * Builds the roots.  Called on the cache's thread, except for the very first time.
+     */
+    interface Loader {
+        Snapshot load();
+    }
+
+    /**
+     * The roots at one point in time.  Never changed once built.
+     */
+    static final class Snapshot {
+        private final String[] mColumns;
+        private final Object[][] mRows;
+
+        private Snapshot(String[] columns, Object[][] rows) {
+            mColumns = columns;
+            mRows = rows;
+        }
+
+        /**
+         * Collects the rows of a snapshot, like a {@link MatrixCursor} does.
+         */
+        static class Builder {
+            private final String[] mColumns;
+            private final List<Object[]> mRows = new ArrayList<Object[]>();
+
+            /**
+             * @param columns the columns of each row, which must include every column a client
+             *                may ask for
+             */
+            Builder(String[] columns) {
+                mColumns = columns;
+            }
+
+            /**
+             * Adds a root, with every column null until set.
+             */
+            RowBuilder newRow() {
+                final Object[] row = new Object[mColumns.length];
+                mRows.add(row);
+                return new RowBuilder(mColumns, row);
+            }
+
+            /**
+             * @return the rows added so far; none means no roots are shown
+             */
+            Snapshot build() {
+                return new Snapshot(mColumns, mRows.toArray(new Object[mRows.size()][]));
+            }
+        }
+
+        /**
+         * Sets the columns of one row.
+         */
+        static class RowBuilder {
+            private final String[] mColumns;
+            private final Object[] mRow;
+
+            private RowBuilder(String[] columns, Object[] row) {
+                mColumns = columns;
+                mRow = row;
+            }
+
+            RowBuilder add(String column, Object value) {
+                for (int i = 0; i < mColumns.length; i++) {
+                    if (mColumns[i].equals(column)) {
+                        mRow[i] = value;
+                        return this;
+                    }
+                }
+                throw new IllegalArgumentException("Unknown column " + column);
+            }
+        }
+
+        /**
+         * Adds a copy of each row to a cursor, with only the columns it has.
+         */
+        void addTo(MatrixCursor cursor, String[] projection) {
+            final int[] indexes = new int[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                indexes[i] = indexOf(projection[i]);
+            }
+            for (Object[] row : mRows) {
+                final Object[] values = new Object[projection.length];
+                for (int i = 0; i < projection.length; i++) {
+                    values[i] = indexes[i] >= 0 ? row[indexes[i]] : null;
+                }
+                cursor.addRow(values);
+            }
+        }
+
+        /**
+         * @return true if a client would see a difference between this and other
+         */
+        boolean differsFrom(Snapshot other) {
+            if (other == null || mRows.length != other.mRows.length
+                    || !Arrays.equals(mColumns, other.mColumns)) {
+                return true;
+            }
+            final int available = indexOf(Root.COLUMN_AVAILABLE_BYTES);
+            final int capacity = indexOf(Root.COLUMN_CAPACITY_BYTES);
+            for (int r = 0; r < mRows.length; r++) {
+                for (int c = 0; c < mColumns.length; c++) {
+                    final Object value = mRows[r][c];
+                    final Object otherValue = other.mRows[r][c];
+                    if (c == available && value instanceof Long && otherValue instanceof Long) {
+                        long threshold = MIN_SPACE_CHANGE_BYTES;
+                        if (capacity >= 0 && mRows[r][capacity] instanceof Long) {
+                            threshold = Math.max(threshold, (Long) mRows[r][capacity] / 100);
+                        }
+                        if (Math.abs((Long) value - (Long) otherValue) >= threshold) {
+                            return true;
+                        }
+                    } else if (value == null ? otherValue != null : !value.equals(otherValue)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private int indexOf(String column) {
+            for (int i = 0; i < mColumns.length; i++) {
+                if (mColumns[i].equals(column)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private final String mAuthority;
+    private final Loader mLoader;
+    private final HandlerThread mThread = new HandlerThread(TAG);
+    private Handler mHandler;
+
+    private volatile Snapshot mSnapshot;
+
+    // Whether mCheck is waiting to run.  Guarded by this.
+    private boolean mCheckPending;
+
+    private final Runnable mRebuild = new Runnable() {
+        @Override
+        public void run() {
+            rebuild(true);
+        }
+    };
+
+    private final Runnable mCheck = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (RootCache.this) {
+                mCheckPending = false;
+            }
+            rebuild(false);
+        }
+    };
+
+    /**
+     * @param resolver  used to tell clients the roots changed
+     * @param authority the provider's authority, to build the roots URI with
+     * @param loader    builds the roots
+     */
+    RootCache(ContentResolver resolver, String authority, Loader loader) {
+        mResolver = resolver;
+        mAuthority = authority;
+        mLoader = loader;
+    }
+
+    /**
+     * Starts the thread rebuilds happen on.
+     */
+    void start() {
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * @return the current roots, built now if they never have been
+     */
+    Snapshot get() {
+        Snapshot snapshot = mSnapshot;
+        if (snapshot == null) {
+            synchronized (this) {
+                if (mSnapshot == null) {
+                    mSnapshot = mLoader.load();
+                }
+                snapshot = mSnapshot;
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Rebuilds the roots soon and tells clients, for changes such as a different set of roots
+     * or the user logging in or out.
+     */
+    void invalidate() {
+        synchronized (this) {
+            mHandler.removeCallbacks(mCheck);
+            mCheckPending = false;
+        }
+        mHandler.post(mRebuild);
+    }
+
+    /**
+     * Notes that stored files changed, which may change the free space and MIME types shown.
+     * Changes arriving close together are checked once.
+     */
+    void onStorageChanged() {
+        synchronized (this) {
+            // Nothing has been shown yet, so there's nothing to keep current.
+            if (mSnapshot == null || mCheckPending) {
+                return;
+            }
+            mCheckPending = true;
+        }
+        mHandler.postDelayed(mCheck, CHECK_DELAY_MILLIS);
+    }
+
+    private void rebuild(boolean force) {
+        final Snapshot snapshot = mLoader.load();
+        final boolean changed;
+        synchronized (this) {
+            changed = force || snapshot.differsFrom(mSnapshot);
+            if (changed) {
+                mSnapshot = snapshot;
+            }
+        }
+        if (changed) {
+            Log.v(TAG, "Roots changed");
+            mResolver.notifyChange(DocumentsContract.buildRootsUri(mAuthority), null, false);
+        }
+    }
+}
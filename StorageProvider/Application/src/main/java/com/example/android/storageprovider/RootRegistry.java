@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.storageprovider;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.example.android.common.logger.Log;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The provider's roots, one per account, which can be added and removed while the provider
+ * runs.  The accounts are remembered across restarts.
+ * <p/>
+ * Finding the root of a document ID or a file takes no lock: the maps are replaced, never
+ * changed, when a root is added or removed.  A document ID names its root before
+ * {@link CloudRoot#ID_SEPARATOR}, so that is one lookup, and a file's root is found in at most
+ * one lookup per directory above it.
+ */
+class RootRegistry {
+    private static final String TAG = "RootRegistry";
+
+    private static final String PREFERENCES_NAME = "roots";
+    private static final String KEY_ROOT_IDS = "root_ids";
+    private static final String KEY_TITLE_PREFIX = "title.";
+
+    /**
+     * Opens a root, with its databases and threads.
+     */
+    interface Factory {
+        CloudRoot open(String rootId, String title);
+    }
+
+    /**
+     * Hears about roots being added or removed.
+     */
+    interface Listener {
+        void onRootsChanged();
+    }
+
+    private final SharedPreferences mPreferences;
+    private final Factory mFactory;
+    private final Listener mListener;
+
+    // Never changed once published; a change replaces them.
+    private volatile Map<String, CloudRoot> mRoots = new LinkedHashMap<String, CloudRoot>();
+    private volatile Map<File, CloudRoot> mRootsByDir = new HashMap<File, CloudRoot>();
+    private volatile CloudRoot mDefaultRoot;
+
+    RootRegistry(Context context, Factory factory, Listener listener) {
+        mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        mFactory = factory;
+        mListener = listener;
+    }
+
+    /**
+     * Opens the default root and every account added earlier.
+     *
+     * @param defaultTitle what to call the default root
+     */
+    synchronized void load(String defaultTitle) {
+        final Map<String, CloudRoot> roots = new LinkedHashMap<String, CloudRoot>();
+        mDefaultRoot = mFactory.open(CloudRoot.DEFAULT_ROOT_ID, defaultTitle);
+        roots.put(CloudRoot.DEFAULT_ROOT_ID, mDefaultRoot);
+        for (String rootId : new TreeSet<String>(
+                mPreferences.getStringSet(KEY_ROOT_IDS, new TreeSet<String>()))) {
+            if (CloudRoot.isValidRootId(rootId) && !roots.containsKey(rootId)) {
+                roots.put(rootId, mFactory.open(rootId,
+                        mPreferences.getString(KEY_TITLE_PREFIX + rootId, rootId)));
+            }
+        }
+        publish(roots);
+        Log.i(TAG, "Loaded " + roots.size() + " roots");
+    }
+
+    /**
+     * Adds an account's root, or returns it if it is already there.
+     *
+     * @throws IllegalArgumentException if the ID isn't one {@link CloudRoot#isValidRootId}
+     *                                  accepts
+     */
+    CloudRoot add(String rootId, String title) {
+        if (!CloudRoot.isValidRootId(rootId)) {
+            throw new IllegalArgumentException("Bad root ID: " + rootId);
+        }
+        final CloudRoot root;
+        synchronized (this) {
+            final CloudRoot existing = mRoots.get(rootId);
+            if (existing != null) {
+                return existing;
+            }
+            root = mFactory.open(rootId, title != null ? title : rootId);
+            final Map<String, CloudRoot> roots = new LinkedHashMap<String, CloudRoot>(mRoots);
+            roots.put(rootId, root);
+            mPreferences.edit().putString(KEY_TITLE_PREFIX + rootId, root.mTitle).apply();
+            save(roots);
+            publish(roots);
+        }
+        Log.i(TAG, "Added " + rootId);
+        mListener.onRootsChanged();
+        return root;
+    }
+
+    /**
+     * Removes an account's root and stops its threads.  Its files are left where they are.
+     *
+     * @return false if there is no such root
+     * @throws IllegalArgumentException for the default root, which can't be removed
+     */
+    boolean remove(String rootId) {
+        if (CloudRoot.DEFAULT_ROOT_ID.equals(rootId)) {
+            throw new IllegalArgumentException("The default root can't be removed");
+        }
+        final CloudRoot root;
+        synchronized (this) {
+            root = mRoots.get(rootId);
+            if (root == null) {
+                return false;
+            }
+            final Map<String, CloudRoot> roots = new LinkedHashMap<String, CloudRoot>(mRoots);
+            roots.remove(rootId);
+            mPreferences.edit().remove(KEY_TITLE_PREFIX + rootId).apply();
+            save(roots);
+            publish(roots);
+        }
+        root.stop();
+        Log.i(TAG, "Removed " + rootId);
+        mListener.onRootsChanged();
+        return true;
+    }
+
+    /**
+     * @return every root, the default root first
+     */
+    Collection<CloudRoot> getRoots() {
+        return mRoots.values();
+    }
+
+    CloudRoot getDefaultRoot() {
+        return mDefaultRoot;
+    }
+
+    /**
+     * @return the root with the given ID, or null if there is none
+     */
+    CloudRoot getRoot(String rootId) {
+        return mRoots.get(rootId);
+    }
+
+    /**
+     * @return the root a document is in, or null if its root has been removed
+     */
+    CloudRoot getRootForDocId(String docId) {
+        // IDs without a root before the separator are the default root's, and so are the old
+        // "root:path" IDs, whose paths may contain anything.
+        final int split = docId.indexOf(CloudRoot.ID_SEPARATOR);
+        if (split < 0 || docId.indexOf(':') >= 0) {
+            return mDefaultRoot;
+        }
+        return mRoots.get(docId.substring(0, split));
+    }
+
+    /**
+     * @return the root whose base directory a file is in or is, or null if it is in none
+     */
+    CloudRoot getRootForFile(File file) {
+        final Map<File, CloudRoot> rootsByDir = mRootsByDir;
+        for (File current = file; current != null; current = current.getParentFile()) {
+            final CloudRoot root = rootsByDir.get(current);
+            if (root != null) {
+                return root;
+            }
+        }
+        return null;
+    }
+
+    private void save(Map<String, CloudRoot> roots) {
+        final Set<String> rootIds = new TreeSet<String>(roots.keySet());
+        rootIds.remove(CloudRoot.DEFAULT_ROOT_ID);
+        mPreferences.edit().putStringSet(KEY_ROOT_IDS, rootIds).apply();
+    }
+
+    private void publish(Map<String, CloudRoot> roots) {
+        final Map<File, CloudRoot> rootsByDir = new HashMap<File, CloudRoot>();
+        for (CloudRoot root : roots.values()) {
+            rootsByDir.put(root.mBaseDir, root);
+        }
+        mRoots = roots;
+        mRootsByDir = rootsByDir;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.storageprovider;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.ParcelFileDescriptor;
+import android.os.ProxyFileDescriptorCallback;
+import android.os.storage.StorageManager;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+
+import androidx.annotation.RequiresApi;
+
+import com.example.android.common.logger.Log;
+
+import java.io.IOException;
+
+/**
+ * Serves reads from a proxy file descriptor out of the chunks of a document in a
+ * {@link ChunkStore}, so readers can seek without the document being put back together first.
+ */
+@RequiresApi(Build.VERSION_CODES.O)
+class StoredFileCallback extends ProxyFileDescriptorCallback {
+    private static final String TAG = "StoredFileCallback";
+
+    // Reads come from local chunk files, so a couple of threads serve all the descriptors.
+    private static final ProxyThreads sThreads = new ProxyThreads(TAG, 2);
+
+    private final ChunkStore mStore;
+    private final ChunkStore.Manifest mManifest;
+    private final Handler mHandler;
+
+    // The chunk read last.  Calls come one at a time on the handler thread, so it needs no
+    // locking.
+    private int mCurrentIndex = -1;
+    private byte[] mCurrentChunk;
+
+    private StoredFileCallback(ChunkStore store, ChunkStore.Manifest manifest,
+                               Handler handler) {
+        mStore = store;
+        mManifest = manifest;
+        mHandler = handler;
+    }
+
+    /**
+     * Opens a read-only, seekable descriptor onto a stored document.  Like
+     * {@link RemoteFileCallback}, descriptors share a few threads.
+     *
+     * @param storageManager creates the proxy descriptor
+     * @param store          holds the document's chunks
+     * @param manifest       the version of the document to serve
+     * @return the descriptor
+     * @throws IOException if the descriptor couldn't be created
+     */
+    static ParcelFileDescriptor open(StorageManager storageManager, ChunkStore store,
+                                     ChunkStore.Manifest manifest) throws IOException {
+        final Handler handler = sThreads.acquire();
+        store.onReaderOpened();
+        try {
+            return storageManager.openProxyFileDescriptor(ParcelFileDescriptor.MODE_READ_ONLY,
+                    new StoredFileCallback(store, manifest, handler), handler);
+        } catch (IOException e) {
+            store.onReaderClosed();
+            sThreads.release(handler);
+            throw e;
+        }
+    }
+
+    @Override
+    public long onGetSize() {
+        return mManifest.mLength;
+    }
+
+    @Override
+    public int onRead(long offset, int size, byte[] data) throws ErrnoException {
+        if (offset >= mManifest.mLength) {
+            return 0;
+        }
+        final int length = (int) Math.min(size, mManifest.mLength - offset);
+        int copied = 0;
+        try {
+            while (copied < length) {
+                final long position = offset + copied;
+                final int index = mManifest.findChunk(position);
+                final byte[] chunk = getChunk(index);
+                final int chunkOffset = (int) (position - mManifest.mOffsets[index]);
+                final int count = Math.min(length - copied, chunk.length - chunkOffset);
+                if (count <= 0) {
+                    // The chunk is shorter than the manifest says.
+                    throw new IOException("Chunk " + index + " is truncated");
+                }
+                System.arraycopy(chunk, chunkOffset, data, copied, count);
+                copied += count;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read " + mManifest.mPath + " at " + offset + ": "
+                    + e.getMessage());
+            throw new ErrnoException("onRead", OsConstants.EIO);
+        }
+        return copied;
+    }
+
+    @Override
+    public void onRelease() {
+        mStore.onReaderClosed();
+        sThreads.release(mHandler);
+    }
+
+    private byte[] getChunk(int index) throws IOException {
+        if (index != mCurrentIndex) {
+            mCurrentChunk = mStore.readChunk(mManifest.mHashes[index]);
+            mCurrentIndex = index;
+        }
+        return mCurrentChunk;
+    }
+}
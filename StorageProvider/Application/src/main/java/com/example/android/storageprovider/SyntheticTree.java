@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.storageprovider;
+
+import android.os.Bundle;
+
+import com.example.android.common.logger.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Generates a large tree of documents for load testing: directories nested to a given depth,
+ * each holding some files of random sizes and types.
+ * <p/>
+ * The same {@link Spec} always gives the same tree, names, sizes and contents included, however
+ * the writes happen to be scheduled, so benchmarks on different devices see the same data.
+ * Files are written by a few threads, each with one buffer of its own, and the directories are
+ * walked no faster than the files get written, so memory use doesn't grow with the tree.
+ * <p/>
+ * Like a copy, the tree is built in the staging directory and renamed into place once it's
+ * complete.
+ */
+class SyntheticTree {
+    private static final String TAG = "SyntheticTree";
+
+    private static final String STAGING_PREFIX = "synthetic-";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // How many files may wait for a writer before the walk stops to let them catch up.
+    private static final int QUEUED_FILES_PER_THREAD = 4;
+
+    /**
+     * What to generate.  Read from the extras of a {@code call()}, see {@link #fromBundle}.
+     */
+    static class Spec {
+        static final String EXTRA_DEPTH = "depth";
+        static final String EXTRA_FAN_OUT = "fanOut";
+        static final String EXTRA_FILES_PER_DIRECTORY = "filesPerDirectory";
+        static final String EXTRA_MIN_FILE_BYTES = "minFileBytes";
+        static final String EXTRA_MAX_FILE_BYTES = "maxFileBytes";
+        static final String EXTRA_EXTENSIONS = "extensions";
+        static final String EXTRA_WEIGHTS = "weights";
+        static final String EXTRA_MAX_DOCUMENTS = "maxDocuments";
+        static final String EXTRA_SEED = "seed";
+        static final String EXTRA_THREADS = "threads";
+
+        // Levels of directories below the top one.
+        int mDepth = 3;
+        // Subdirectories in each directory above the last level.
+        int mFanOut = 10;
+        int mFilesPerDirectory = 20;
+        // File sizes are spread evenly on a log scale between these, so small files are common
+        // and large ones rare, as on a real device.
+        long mMinFileBytes = 1024;
+        long mMaxFileBytes = 1024 * 1024;
+        // The extensions to give files, each picked in proportion to its weight.
+        String[] mExtensions = {"jpeg", "png", "txt", "pdf", "mp3", "mp4", "docx"};
+        int[] mWeights = {40, 10, 20, 10, 10, 5, 5};
+        // The most documents to create, directories included, however many the shape allows.
+        int mMaxDocuments = Integer.MAX_VALUE;
+        long mSeed = 1;
+        int mThreads = 4;
+
+        /**
+         * @param extras the values to change from the defaults, or null for none
+         */
+        static Spec fromBundle(Bundle extras) {
+            final Spec spec = new Spec();
+            if (extras == null) {
+                return spec;
+            }
+            spec.mDepth = extras.getInt(EXTRA_DEPTH, spec.mDepth);
+            spec.mFanOut = extras.getInt(EXTRA_FAN_OUT, spec.mFanOut);
+            spec.mFilesPerDirectory =
+                    extras.getInt(EXTRA_FILES_PER_DIRECTORY, spec.mFilesPerDirectory);
+            spec.mMinFileBytes = extras.getLong(EXTRA_MIN_FILE_BYTES, spec.mMinFileBytes);
+            spec.mMaxFileBytes = extras.getLong(EXTRA_MAX_FILE_BYTES, spec.mMaxFileBytes);
+            final String[] extensions = extras.getStringArray(EXTRA_EXTENSIONS);
+            if (extensions != null) {
+                spec.mExtensions = extensions;
+                spec.mWeights = extras.getIntArray(EXTRA_WEIGHTS);
+                if (spec.mWeights == null) {
+                    spec.mWeights = new int[extensions.length];
+                    Arrays.fill(spec.mWeights, 1);
+                }
+            }
+            spec.mMaxDocuments = extras.getInt(EXTRA_MAX_DOCUMENTS, spec.mMaxDocuments);
+            spec.mSeed = extras.getLong(EXTRA_SEED, spec.mSeed);
+            spec.mThreads = extras.getInt(EXTRA_THREADS, spec.mThreads);
+            return spec;
+        }
+
+        void validate() {
+            if (mDepth < 0 || mFanOut < 0 || mFilesPerDirectory < 0 || mMaxDocuments < 0) {
+                throw new IllegalArgumentException("Counts must not be negative");
+            }
+            if (mMinFileBytes < 0 || mMaxFileBytes < mMinFileBytes) {
+                throw new IllegalArgumentException("Bad file size range " + mMinFileBytes
+                        + ".." + mMaxFileBytes);
+            }
+            if (mExtensions.length == 0 || mWeights.length != mExtensions.length) {
+                throw new IllegalArgumentException("Need one weight for each extension");
+            }
+            long totalWeight = 0;
+            for (int weight : mWeights) {
+                if (weight < 0) {
+                    throw new IllegalArgumentException("Weights must not be negative");
+                }
+                totalWeight += weight;
+            }
+            if (totalWeight == 0 || totalWeight > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Bad total weight " + totalWeight);
+            }
+            if (mThreads < 1) {
+                throw new IllegalArgumentException("Need at least one thread");
+            }
+        }
+    }
+
+    private final File mStagingDir;
+
+    /**
+     * @param stagingDir where trees are built; must be on the same volume as their targets.
+     *                   Trees left half built by an earlier process are removed.
+     */
+    SyntheticTree(File stagingDir) {
+        mStagingDir = stagingDir;
+        final File[] leftovers = mStagingDir.listFiles();
+        if (leftovers != null) {
+            for (File leftover : leftovers) {
+                if (leftover.getName().startsWith(STAGING_PREFIX)) {
+                    deleteTree(leftover);
+                }
+            }
+        }
+    }
+
+    /**
+     * Generates a tree.  This writes every file, so call it from a background thread.
+     *
+     * @param spec   what to generate
+     * @param target where to put the tree, which must not exist yet
+     * @return how many bytes were written
+     * @throws IOException if the tree couldn't be written; nothing is left behind
+     */
+    long generate(final Spec spec, File target) throws IOException {
+        spec.validate();
+        if (target.exists()) {
+            throw new IOException("Target already exists: " + target);
+        }
+        final long startTime = System.currentTimeMillis();
+        final File staging = File.createTempFile(STAGING_PREFIX, null, mStagingDir);
+        if (!staging.delete() || !staging.mkdir()) {
+            throw new IOException("Failed to reserve " + staging);
+        }
+
+        final AtomicInteger files = new AtomicInteger();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+        final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+            @Override
+            protected byte[] initialValue() {
+                return new byte[BUFFER_SIZE];
+            }
+        };
+        // A full queue has the walk write the next file itself, which holds it back.
+        final ThreadPoolExecutor writers = new ThreadPoolExecutor(spec.mThreads, spec.mThreads,
+                0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(spec.mThreads * QUEUED_FILES_PER_THREAD),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        boolean succeeded = false;
+        try {
+            // Directories in the order they're created, with their depth.  Files are numbered
+            // in the same order, which is what makes the tree the same every time.
+            final ArrayDeque<File> dirs = new ArrayDeque<File>();
+            final ArrayDeque<Integer> depths = new ArrayDeque<Integer>();
+            dirs.add(staging);
+            depths.add(0);
+            int documents = 0;
+            long fileIndex = 0;
+            while (!dirs.isEmpty() && documents < spec.mMaxDocuments
+                    && failure.get() == null) {
+                final File dir = dirs.removeFirst();
+                final int depth = depths.removeFirst();
+                for (int i = 0; i < spec.mFilesPerDirectory && documents < spec.mMaxDocuments;
+                        i++) {
+                    final long index = fileIndex++;
+                    final Random random = new Random(spec.mSeed * 1000003 + index);
+                    final File file = new File(dir, "file-" + index + "."
+                            + pickExtension(spec, random));
+                    final long size = pickSize(spec, random);
+                    final long contentSeed = random.nextLong();
+                    documents++;
+                    writers.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (failure.get() != null) {
+                                return;
+                            }
+                            try {
+                                writeFile(file, size, contentSeed, buffers.get());
+                                files.incrementAndGet();
+                                bytes.addAndGet(size);
+                            } catch (IOException e) {
+                                failure.compareAndSet(null, e);
+                            }
+                        }
+                    });
+                }
+                if (depth >= spec.mDepth) {
+                    continue;
+                }
+                for (int i = 0; i < spec.mFanOut && documents < spec.mMaxDocuments; i++) {
+                    final File child = new File(dir, "dir-" + i);
+                    if (!child.mkdir()) {
+                        throw new IOException("Failed to create " + child);
+                    }
+                    documents++;
+                    dirs.add(child);
+                    depths.add(depth + 1);
+                }
+            }
+            writers.shutdown();
+            try {
+                while (!writers.awaitTermination(1, TimeUnit.SECONDS)) {
+                    Log.v(TAG, "Generated " + files.get() + " files, " + bytes.get() + " bytes");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while generating " + target);
+            }
+            if (failure.get() != null) {
+                throw failure.get();
+            }
+            if (!staging.renameTo(target)) {
+                throw new IOException("Failed to move tree into place at " + target);
+            }
+            succeeded = true;
+            Log.i(TAG, "Generated " + documents + " documents, " + bytes.get() + " bytes in "
+                    + (System.currentTimeMillis() - startTime) + "ms at " + target);
+            return bytes.get();
+        } finally {
+            if (!succeeded) {
+                // Let any writes still running finish before their files are deleted.
+                writers.shutdownNow();
+                try {
+                    writers.awaitTermination(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                deleteTree(staging);
+            }
+        }
+    }
+
+    private static String pickExtension(Spec spec, Random random) {
+        int total = 0;
+        for (int weight : spec.mWeights) {
+            total += weight;
+        }
+        int pick = random.nextInt(Math.max(total, 1));
+        for (int i = 0; i < spec.mWeights.length; i++) {
+            pick -= spec.mWeights[i];
+            if (pick < 0) {
+                return spec.mExtensions[i];
+            }
+        }
+        return spec.mExtensions[spec.mExtensions.length - 1];
+    }
+
+    private static long pickSize(Spec spec, Random random) {
+        if (spec.mMaxFileBytes == spec.mMinFileBytes) {
+            return spec.mMinFileBytes;
+        }
+        final double min = Math.log(spec.mMinFileBytes + 1);
+        final double max = Math.log(spec.mMaxFileBytes + 1);
+        return Math.min(spec.mMaxFileBytes,
+                (long) Math.exp(min + random.nextDouble() * (max - min)) - 1);
+    }
+
+    /**
+     * Writes a file of pseudo-random bytes, a buffer at a time.
+     */
+    private static void writeFile(File file, long size, long seed, byte[] buffer)
+            throws IOException {
+        // A xorshift generator fills the buffer far faster than Random would.
+        long state = seed != 0 ? seed : 1;
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            long remaining = size;
+            while (remaining > 0) {
+                final int count = (int) Math.min(buffer.length, remaining);
+                for (int i = 0; i < count; i += 8) {
+                    state ^= state << 13;
+                    state ^= state >>> 7;
+                    state ^= state << 17;
+                    for (int j = 0; j < 8 && i + j < count; j++) {
+                        buffer[i + j] = (byte) (state >>> (j * 8));
+                    }
+                }
+                out.write(buffer, 0, count);
+                remaining -= count;
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void deleteTree(File root) {
+        final ArrayDeque<File> pending = new ArrayDeque<File>();
+        final ArrayDeque<File> dirs = new ArrayDeque<File>();
+        pending.add(root);
+        while (!pending.isEmpty()) {
+            final File file = pending.removeFirst();
+            final File[] children = file.listFiles();
+            if (children == null) {
+                file.delete();
+                continue;
+            }
+            dirs.push(file);
+            for (File child : children) {
+                pending.add(child);
+            }
+        }
+        // Deepest first, now that the files are gone.
+        while (!dirs.isEmpty()) {
+            dirs.pop().delete();
+        }
+    }
+}
@@ -0,0 +1,581 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.storageprovider;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Point;
+import android.media.ExifInterface;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.ParcelFileDescriptor;
+
+import androidx.annotation.RequiresApi;
+
+import com.example.android.common.logger.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Produces small JPEG thumbnails of images and keeps them in a size-bounded disk cache.
+ * <p/>
+ * Thumbnails are made in a handful of size buckets, so a grid asking for slightly different
+ * sizes still shares cache entries.  If a JPEG has a thumbnail embedded in its EXIF data that is
+ * large enough, it is used as is.  Otherwise the image is decoded with a sample size that reads
+ * no more pixels than the bucket needs.
+ * <p/>
+ * The cache files live under the app's cache directory.  Which entries exist, their sizes and
+ * their order of use are kept in memory, so a hit costs no disk access and the least recently
+ * used entries can be evicted when the cache grows past its budget.  The order of use is written
+ * back to the files' modification times now and then, so it survives a restart.  Concurrent
+ * requests for the same thumbnail wait for a single decode.
+ * <p/>
+ * Images whose contents mustn't reach the disk in the clear, such as encrypted documents, are
+ * decoded from a stream instead, see {@link #makeUncachedThumbnail(ContentStream, Point)}, and
+ * their thumbnails aren't cached.
+ */
+class ThumbnailCache {
+    private static final String TAG = "ThumbnailCache";
+
+    private static final int MIN_BUCKET_SIZE = 128;
+    private static final int MAX_BUCKET_SIZE = 1024;
+    private static final int JPEG_QUALITY = 85;
+    // How many hits to remember before writing the order of use back to the files.
+    private static final int PERSIST_BATCH = 64;
+
+    private final File mDir;
+    private final long mMaxBytes;
+
+    // Cache entries by file name, in order of use (least recent first), with their sizes.
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<String, Long>(
+            16, 0.75f, true);
+    private long mTotalBytes;
+    // Entries used since the order of use was last written back.
+    private final HashSet<String> mTouched = new HashSet<String>();
+
+    // Thumbnails being made right now, so that other requests for them can wait.
+    private final ConcurrentHashMap<String, FutureTask<File>> mInFlight =
+            new ConcurrentHashMap<String, FutureTask<File>>();
+
+    // Finds the contents of images whose files don't hold them, or null if they all do.
+    private final ContentLoader mLoader;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    /**
+     * Finds the contents of an image whose file doesn't hold them, such as a placeholder for a
+     * document in a {@link ChunkStore}.
+     */
+    interface ContentLoader {
+        /**
+         * @return a file with the image's contents: the source itself, or a temporary copy that
+         * the cache deletes once it has made the thumbnail
+         */
+        File load(File source) throws IOException;
+    }
+
+    /**
+     * Opens the contents of an image, as many times as making its thumbnail needs.
+     */
+    interface ContentStream {
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * Where an image is decoded from.
+     */
+    private interface Source {
+        /**
+         * @return the thumbnail embedded in the image's EXIF data, or null if it has none
+         */
+        byte[] readExifThumbnail();
+
+        Bitmap decode(BitmapFactory.Options options) throws IOException;
+    }
+
+    /**
+     * @param dir      the directory to keep thumbnails in; it's created if needed
+     * @param maxBytes the most space the thumbnails may take up
+     */
+    ThumbnailCache(File dir, long maxBytes) {
+        this(dir, maxBytes, null);
+    }
+
+    /**
+     * @param dir      the directory to keep thumbnails in; it's created if needed
+     * @param maxBytes the most space the thumbnails may take up
+     * @param loader   finds the contents of images, only needed on a cache miss; may be null
+     */
+    ThumbnailCache(File dir, long maxBytes, ContentLoader loader) {
+        mDir = dir;
+        mMaxBytes = maxBytes;
+        mLoader = loader;
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Log.w(TAG, "Unable to create " + mDir);
+        }
+        loadEntries();
+    }
+
+    /**
+     * Opens a thumbnail of an image, making it if it isn't cached.  An entry can be evicted by
+     * another thread as soon as the lock is let go, so it's opened under the lock, and made
+     * again if it has gone in the meantime.
+     *
+     * @return a read-only descriptor onto the thumbnail, or null if the image couldn't be
+     * decoded
+     * @throws IOException if the thumbnail couldn't be written
+     * @see #getThumbnail(File, Point, CancellationSignal)
+     */
+    ParcelFileDescriptor openThumbnail(File source, Point sizeHint, CancellationSignal signal)
+            throws IOException {
+        // Once to find or make it, and once more if it was evicted before it could be opened.
+        for (int attempt = 0; attempt < 2; attempt++) {
+            final File thumbnail = getThumbnail(source, sizeHint, signal);
+            if (thumbnail == null) {
+                return null;
+            }
+            synchronized (this) {
+                final Long size = mEntries.get(thumbnail.getName());
+                if (size == null) {
+                    continue;
+                }
+                try {
+                    return ParcelFileDescriptor.open(thumbnail,
+                            ParcelFileDescriptor.MODE_READ_ONLY);
+                } catch (FileNotFoundException e) {
+                    // Deleted behind the cache's back, such as by the system clearing caches.
+                    mEntries.remove(thumbnail.getName());
+                    mTouched.remove(thumbnail.getName());
+                    mTotalBytes -= size;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns a thumbnail of an image, making it if it isn't cached.
+     *
+     * @param source   the image
+     * @param sizeHint the size the caller wants, which the thumbnail will be at least as big as
+     *                 where the image allows
+     * @param signal   used to abandon the request, may be null
+     * @return the cached thumbnail file, or null if the image couldn't be decoded
+     * @throws IOException if the thumbnail couldn't be written
+     */
+    private File getThumbnail(final File source, Point sizeHint, CancellationSignal signal)
+            throws IOException {
+        final int bucket = getBucketSize(sizeHint);
+        final String key = getKey(source, bucket);
+
+        final boolean hit;
+        boolean persist = false;
+        synchronized (this) {
+            hit = mEntries.get(key) != null;
+            if (hit) {
+                mTouched.add(key);
+                persist = mTouched.size() >= PERSIST_BATCH;
+            }
+        }
+        if (hit) {
+            if (persist) {
+                persistOrder();
+            }
+            mHits.incrementAndGet();
+            return new File(mDir, key);
+        }
+        mMisses.incrementAndGet();
+
+        FutureTask<File> task = new FutureTask<File>(new Callable<File>() {
+            @Override
+            public File call() throws IOException {
+                return makeThumbnail(source, bucket, key);
+            }
+        });
+        final FutureTask<File> existing = mInFlight.putIfAbsent(key, task);
+        if (existing != null) {
+            task = existing;
+        } else {
+            try {
+                task.run();
+            } finally {
+                mInFlight.remove(key);
+            }
+        }
+
+        if (signal != null) {
+            signal.throwIfCanceled();
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for thumbnail of " + source);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to make thumbnail of " + source, e.getCause());
+        }
+    }
+
+    /**
+     * Makes a thumbnail of an image without writing it, or anything decoded on the way, to the
+     * disk.
+     *
+     * @param content  the image's contents
+     * @param sizeHint the size the caller wants, as for
+     *                 {@link #openThumbnail(File, Point, CancellationSignal)}
+     * @return the thumbnail as a JPEG, or null if the image couldn't be decoded
+     * @throws IOException if the image couldn't be read
+     */
+    @RequiresApi(Build.VERSION_CODES.N)
+    static byte[] makeUncachedThumbnail(ContentStream content, Point sizeHint)
+            throws IOException {
+        final Source source = new StreamSource(content);
+        final int bucket = getBucketSize(sizeHint);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!writeExifThumbnail(source, bucket, out)
+                && !writeDecodedThumbnail(source, bucket, out)) {
+            return null;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Deletes every cached thumbnail, such as ones left from before their images were
+     * encrypted.
+     */
+    synchronized void clear() {
+        for (String key : mEntries.keySet()) {
+            new File(mDir, key).delete();
+        }
+        mEntries.clear();
+        mTouched.clear();
+        mTotalBytes = 0;
+    }
+
+    /**
+     * @return how many thumbnails were found in the cache
+     */
+    long getHitCount() {
+        return mHits.get();
+    }
+
+    /**
+     * @return how many thumbnails weren't in the cache and had to be made or waited for
+     */
+    long getMissCount() {
+        return mMisses.get();
+    }
+
+    /**
+     * Writes the order in which entries have been used back to their files' modification times,
+     * so {@link #loadEntries()} finds it after a restart.  Hits only record it in memory, and this
+     * runs once a batch of them has built up, or when the cache is no longer needed.
+     */
+    void persistOrder() {
+        final List<String> touched;
+        synchronized (this) {
+            if (mTouched.isEmpty()) {
+                return;
+            }
+            touched = new ArrayList<String>(mTouched.size());
+            for (String key : mEntries.keySet()) {
+                if (mTouched.contains(key)) {
+                    touched.add(key);
+                }
+            }
+            mTouched.clear();
+        }
+        // Space the times apart so the entries keep their relative order as well.
+        long time = System.currentTimeMillis() - touched.size();
+        for (String key : touched) {
+            new File(mDir, key).setLastModified(++time);
+        }
+    }
+
+    /**
+     * Makes and caches a thumbnail.
+     */
+    private File makeThumbnail(File source, int bucket, String key) throws IOException {
+        final File target = new File(mDir, key);
+        final File temp = new File(mDir, key + ".tmp");
+        final File content = mLoader != null ? mLoader.load(source) : source;
+        try {
+            final Source decoded = new FileSource(content);
+            final OutputStream out = new FileOutputStream(temp);
+            final boolean written;
+            try {
+                written = writeExifThumbnail(decoded, bucket, out)
+                        || writeDecodedThumbnail(decoded, bucket, out);
+            } finally {
+                out.close();
+            }
+            if (!written) {
+                return null;
+            }
+            if (!temp.renameTo(target)) {
+                throw new IOException("Failed to move thumbnail into place at " + target);
+            }
+        } finally {
+            temp.delete();
+            if (content != source) {
+                content.delete();
+            }
+        }
+        add(key, target.length());
+        return target;
+    }
+
+    /**
+     * Copies out the thumbnail embedded in a JPEG's EXIF data, if it has one big enough.
+     *
+     * @return true if a thumbnail was written
+     */
+    private static boolean writeExifThumbnail(Source source, int bucket, OutputStream target)
+            throws IOException {
+        final byte[] thumbnail = source.readExifThumbnail();
+        if (thumbnail == null) {
+            return false;
+        }
+
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length, options);
+        // EXIF thumbnails are usually around 160 pixels across, which will do for the smaller
+        // buckets but would look blurry in the larger ones.
+        if (Math.max(options.outWidth, options.outHeight) < bucket / 2) {
+            return false;
+        }
+
+        target.write(thumbnail);
+        return true;
+    }
+
+    /**
+     * Decodes the image at the smallest sample size that still fills the bucket, and writes it as
+     * a JPEG.
+     *
+     * @return true if a thumbnail was written
+     */
+    private static boolean writeDecodedThumbnail(Source source, int bucket, OutputStream target)
+            throws IOException {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        source.decode(options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return false;
+        }
+
+        // Decoding can only sample by powers of two.  Pick the largest that keeps the shorter
+        // edge at least as big as the bucket.
+        int sampleSize = 1;
+        final int shortEdge = Math.min(options.outWidth, options.outHeight);
+        while (shortEdge / (sampleSize * 2) >= bucket) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        final Bitmap bitmap = source.decode(options);
+        if (bitmap == null) {
+            return false;
+        }
+        try {
+            return bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, target);
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * An image in a file that holds its contents as they are.
+     */
+    private static class FileSource implements Source {
+        private final String mPath;
+
+        FileSource(File file) {
+            mPath = file.getAbsolutePath();
+        }
+
+        @Override
+        public byte[] readExifThumbnail() {
+            try {
+                final ExifInterface exif = new ExifInterface(mPath);
+                return exif.hasThumbnail() ? exif.getThumbnail() : null;
+            } catch (IOException e) {
+                // Not a format ExifInterface understands.
+                return null;
+            }
+        }
+
+        @Override
+        public Bitmap decode(BitmapFactory.Options options) {
+            return BitmapFactory.decodeFile(mPath, options);
+        }
+    }
+
+    /**
+     * An image read from a stream, opened again for each pass over it.
+     */
+    @RequiresApi(Build.VERSION_CODES.N)
+    private static class StreamSource implements Source {
+        private final ContentStream mContent;
+
+        StreamSource(ContentStream content) {
+            mContent = content;
+        }
+
+        @Override
+        public byte[] readExifThumbnail() {
+            try {
+                final InputStream in = mContent.open();
+                try {
+                    // A stream can't be read again, so the thumbnail is kept as it goes by.
+                    final ExifInterface exif = new ExifInterface(in);
+                    return exif.hasThumbnail() ? exif.getThumbnail() : null;
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                // Not a format ExifInterface understands, or the contents couldn't be read;
+                // decoding will find out which.
+                return null;
+            }
+        }
+
+        @Override
+        public Bitmap decode(BitmapFactory.Options options) throws IOException {
+            final InputStream in = mContent.open();
+            try {
+                return BitmapFactory.decodeStream(in, null, options);
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Records a new entry and evicts the least recently used ones until the cache is within its
+     * budget.
+     */
+    private synchronized void add(String key, long size) {
+        final Long previous = mEntries.put(key, size);
+        mTotalBytes += size - (previous != null ? previous : 0);
+
+        final Iterator<Map.Entry<String, Long>> it = mEntries.entrySet().iterator();
+        while (mTotalBytes > mMaxBytes && it.hasNext()) {
+            final Map.Entry<String, Long> eldest = it.next();
+            if (eldest.getKey().equals(key)) {
+                continue;
+            }
+            new File(mDir, eldest.getKey()).delete();
+            mTouched.remove(eldest.getKey());
+            mTotalBytes -= eldest.getValue();
+            it.remove();
+        }
+    }
+
+    /**
+     * Reads the entries already on disk, oldest first, and drops any half-written ones.
+     */
+    private synchronized void loadEntries() {
+        final File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        final long[] lastModified = new long[files.length];
+        final Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            lastModified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(lastModified[a], lastModified[b]);
+            }
+        });
+        for (int i : order) {
+            final File file = files[i];
+            if (file.getName().endsWith(".tmp")) {
+                file.delete();
+                continue;
+            }
+            final long size = file.length();
+            mEntries.put(file.getName(), size);
+            mTotalBytes += size;
+        }
+    }
+
+    /**
+     * @return the size bucket for a requested thumbnail size: the smallest power of two that
+     * covers it, within the supported range.
+     */
+    private static int getBucketSize(Point sizeHint) {
+        final int wanted = sizeHint != null ? Math.max(sizeHint.x, sizeHint.y) : 0;
+        int bucket = MIN_BUCKET_SIZE;
+        while (bucket < wanted && bucket < MAX_BUCKET_SIZE) {
+            bucket *= 2;
+        }
+        return bucket;
+    }
+
+    /**
+     * @return the name of the cache file for a thumbnail.  It changes whenever the image does, so
+     * stale thumbnails are never served; they just age out of the cache.
+     */
+    private static String getKey(File source, int bucket) {
+        final String identity = source.getAbsolutePath() + '\n' + source.lastModified() + '\n'
+                + source.length() + '\n' + bucket;
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1")
+                    .digest(identity.getBytes(Charset.forName("UTF-8")));
+            final StringBuilder key = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.storageprovider;
+
+import android.os.Build;
+import android.os.CancellationSignal;
+
+import androidx.annotation.RequiresApi;
+
+import com.example.android.common.logger.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies and deletes whole directory trees, spreading the work over a fork-join pool so that
+ * idle threads steal subdirectories from busy ones.
+ * <p/>
+ * Both operations are all or nothing as far as anyone looking at the tree can tell.  A copy is
+ * built in the staging directory and renamed into place when every file is there, and is thrown
+ * away if it fails or is canceled.  A delete first renames the tree into the staging directory,
+ * so it disappears at once, and then removes its contents.
+ * <p/>
+ * Neither operation follows symbolic links, which could lead out of the tree.  A copy leaves
+ * them out and a delete removes the link itself.
+ */
+@RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+class TreeOperations {
+    private static final String TAG = "TreeOperations";
+
+    private static final String COPY_PREFIX = "tree-";
+    private static final String TRASH_PREFIX = "trash-";
+
+    // Each file copy holds two descriptors open, so this bounds how many the copy uses at once.
+    private static final int MAX_CONCURRENT_FILE_COPIES = 8;
+
+    /**
+     * Receives updates as a tree operation progresses.  Calls come from the pool's threads.
+     */
+    interface ProgressListener {
+        /**
+         * @param files how many files have been copied or deleted so far
+         * @param bytes how many bytes have been copied so far
+         */
+        void onProgress(int files, long bytes);
+    }
+
+    private final FileCopier mCopier;
+    private final File mStagingDir;
+    private final ForkJoinPool mPool = new ForkJoinPool(
+            Math.min(MAX_CONCURRENT_FILE_COPIES, Runtime.getRuntime().availableProcessors() * 2));
+    private final Semaphore mCopyPermits = new Semaphore(MAX_CONCURRENT_FILE_COPIES);
+
+    /**
+     * @param copier     used for the individual files
+     * @param stagingDir where trees are assembled and thrown away; must be on the same volume as
+     *                   the trees being worked on.  Anything left there by an earlier process is
+     *                   removed.
+     */
+    TreeOperations(FileCopier copier, File stagingDir) {
+        mCopier = copier;
+        mStagingDir = stagingDir;
+        final File[] leftovers = mStagingDir.listFiles();
+        if (leftovers != null) {
+            for (final File leftover : leftovers) {
+                final String name = leftover.getName();
+                if (name.startsWith(COPY_PREFIX) || name.startsWith(TRASH_PREFIX)) {
+                    mPool.execute(new DeleteTask(leftover, null, new Progress(null)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies a directory and everything in it.
+     *
+     * @param source   the directory to copy
+     * @param target   where to put the copy, which must not exist yet
+     * @param listener told about progress, may be null
+     * @param signal   used to abandon the copy, may be null
+     * @throws IOException                           if the copy failed; nothing is left behind
+     * @throws android.os.OperationCanceledException if the signal was canceled; nothing is left
+     *                                               behind
+     */
+    void copyTree(File source, File target, ProgressListener listener, CancellationSignal signal)
+            throws IOException {
+        if (target.exists()) {
+            throw new IOException("Target already exists: " + target);
+        }
+        if (isSymbolicLink(source)) {
+            throw new IOException("Won't copy symbolic link " + source);
+        }
+        final File staging = File.createTempFile(COPY_PREFIX, null, mStagingDir);
+        boolean succeeded = false;
+        try {
+            if (!staging.delete()) {
+                throw new IOException("Failed to reserve " + staging);
+            }
+            final Progress progress = new Progress(listener);
+            invoke(new CopyTask(source, staging, signal, progress));
+            if (signal != null) {
+                signal.throwIfCanceled();
+            }
+            if (!staging.renameTo(target)) {
+                throw new IOException("Failed to move copy into place at " + target);
+            }
+            succeeded = true;
+            Log.i(TAG, "Copied " + progress.mFiles.get() + " files, " + progress.mBytes.get()
+                    + " bytes to " + target);
+        } finally {
+            if (!succeeded && staging.exists()) {
+                invoke(new DeleteTask(staging, null, new Progress(null)));
+            }
+        }
+    }
+
+    /**
+     * Deletes a file or a directory and everything in it.
+     *
+     * @param root     what to delete
+     * @param listener told about progress, may be null
+     * @param signal   used to abandon the delete before it starts; once the tree has been
+     *                 detached the delete always runs to completion
+     * @throws IOException if the tree couldn't be deleted
+     */
+    void deleteTree(File root, ProgressListener listener, CancellationSignal signal)
+            throws IOException {
+        if (signal != null) {
+            signal.throwIfCanceled();
+        }
+        // Take the whole tree out of view in one step.  If that isn't possible, delete it where
+        // it is.
+        File trash = File.createTempFile(TRASH_PREFIX, null, mStagingDir);
+        if (!trash.delete() || !root.renameTo(trash)) {
+            trash.delete();
+            trash = root;
+        }
+        invoke(new DeleteTask(trash, null, new Progress(listener)));
+        if (trash.exists()) {
+            throw new IOException("Failed to delete " + root);
+        }
+    }
+
+    /**
+     * Runs a task in the pool and unwraps any I/O failure.
+     */
+    private void invoke(RecursiveAction task) throws IOException {
+        try {
+            mPool.invoke(task);
+        } catch (TreeOperationException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Copies one directory level, forking a task for each subdirectory and each file.
+     */
+    private class CopyTask extends RecursiveAction {
+        private final File mSource;
+        private final File mTarget;
+        private final CancellationSignal mSignal;
+        private final Progress mProgress;
+
+        CopyTask(File source, File target, CancellationSignal signal, Progress progress) {
+            mSource = source;
+            mTarget = target;
+            mSignal = signal;
+            mProgress = progress;
+        }
+
+        @Override
+        protected void compute() {
+            if (mSignal != null) {
+                mSignal.throwIfCanceled();
+            }
+            try {
+                if (isSymbolicLink(mSource)) {
+                    Log.w(TAG, "Not copying symbolic link " + mSource);
+                    return;
+                }
+                if (!mSource.isDirectory()) {
+                    copyFile();
+                    return;
+                }
+                if (!mTarget.mkdir()) {
+                    throw new IOException("Failed to create " + mTarget);
+                }
+                final File[] children = mSource.listFiles();
+                if (children == null) {
+                    throw new IOException("Failed to list " + mSource);
+                }
+                final List<CopyTask> tasks = new ArrayList<CopyTask>(children.length);
+                for (File child : children) {
+                    tasks.add(new CopyTask(child, new File(mTarget, child.getName()), mSignal,
+                            mProgress));
+                }
+                invokeAll(tasks);
+            } catch (IOException e) {
+                throw new TreeOperationException(e);
+            }
+        }
+
+        private void copyFile() throws IOException {
+            try {
+                // Lets the pool add a thread while this one waits, so the other tasks keep going.
+                ForkJoinPool.managedBlock(new CopyPermit());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while copying " + mSource);
+            }
+            try {
+                // Flushed here, while the other threads copy, so every file is on disk by the
+                // time the tree becomes visible.
+                final long bytes = mCopier.copy(mSource, mTarget, null, mSignal, true);
+                mProgress.add(1, bytes);
+            } finally {
+                mCopyPermits.release();
+            }
+        }
+    }
+
+    /**
+     * Waits for one of the permits to copy a file.
+     */
+    private class CopyPermit implements ForkJoinPool.ManagedBlocker {
+        private boolean mAcquired;
+
+        @Override
+        public boolean block() throws InterruptedException {
+            if (!mAcquired) {
+                mCopyPermits.acquire();
+                mAcquired = true;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isReleasable() {
+            if (!mAcquired) {
+                mAcquired = mCopyPermits.tryAcquire();
+            }
+            return mAcquired;
+        }
+    }
+
+    /**
+     * Deletes a directory's contents depth first, forking a task for each subdirectory, and then
+     * the directory itself.
+     */
+    private class DeleteTask extends RecursiveAction {
+        private final File mRoot;
+        private final File[] mChildren;
+        private final Progress mProgress;
+
+        DeleteTask(File root, File[] children, Progress progress) {
+            mRoot = root;
+            mChildren = children;
+            mProgress = progress;
+        }
+
+        @Override
+        protected void compute() {
+            final File[] children = mChildren != null ? mChildren : mRoot.listFiles();
+            if (children != null) {
+                final List<DeleteTask> subdirectories = new ArrayList<DeleteTask>();
+                for (File child : children) {
+                    // A link is deleted itself, never what it points to.
+                    final File[] grandchildren = isSymbolicLink(child) ? null : child.listFiles();
+                    if (grandchildren != null) {
+                        subdirectories.add(new DeleteTask(child, grandchildren, mProgress));
+                    } else if (child.delete()) {
+                        mProgress.add(1, 0);
+                    }
+                }
+                invokeAll(subdirectories);
+            }
+            mRoot.delete();
+        }
+    }
+
+    /**
+     * Counts the files and bytes done so far and passes them on to a listener.
+     */
+    private static class Progress {
+        final AtomicInteger mFiles = new AtomicInteger();
+        final AtomicLong mBytes = new AtomicLong();
+        private final ProgressListener mListener;
+
+        Progress(ProgressListener listener) {
+            mListener = listener;
+        }
+
+        void add(int files, long bytes) {
+            final int totalFiles = mFiles.addAndGet(files);
+            final long totalBytes = mBytes.addAndGet(bytes);
+            if (mListener != null) {
+                mListener.onProgress(totalFiles, totalBytes);
+            }
+        }
+    }
+
+    /**
+     * @return whether a file is a symbolic link.  Before O, where {@link Files} isn't available,
+     * a link is recognized by its canonical path differing from that of its parent plus its name.
+     * A file that can't be checked counts as a link, so it isn't followed.
+     */
+    private static boolean isSymbolicLink(File file) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            return Files.isSymbolicLink(file.toPath());
+        }
+        final File parent = file.getParentFile();
+        if (parent == null) {
+            return false;
+        }
+        try {
+            final File resolved = new File(parent.getCanonicalFile(), file.getName());
+            return !resolved.getCanonicalFile().equals(resolved);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to resolve " + file + ": " + e.getMessage());
+            return true;
+        }
+    }
+
+    /**
+     * Carries an IOException out of a fork-join task.
+     */
+    private static class TreeOperationException extends RuntimeException {
+        TreeOperationException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+}
@@ -0,0 +1,438 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.storageprovider;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import com.example.android.common.logger.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Uploads changed documents to the server in the background.
+ * <p/>
+ * Each document waiting to be uploaded has a row in a journal on disk, so uploads that haven't
+ * happened when the process dies, for example because the device was offline, happen after it
+ * restarts.  The journal names exactly the documents that changed, so nothing else needs to be
+ * read to find them.
+ * <p/>
+ * The journal has one row per document, so however many times a document is written before its
+ * upload starts, it is uploaded once.  Uploads wait a moment before starting, so a burst of
+ * writes settles first.  Small documents are then sent together in one request, and only a few
+ * requests run at once.  A failed upload is tried again later, waiting twice as long each time.
+ * <p/>
+ * Large documents are sent as a {@link Delta} against the server's copy when possible, so a
+ * small edit to a large document costs about as much as the edit.
+ * <p/>
+ * The scheduling runs on a thread of its own, which callers can also use for their own work
+ * through {@link #getHandler()}.
+ */
+class UploadQueue extends SQLiteOpenHelper {
+    private static final String TAG = "UploadQueue";
+
+    private static final String DATABASE_NAME = "upload_queue.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String TABLE_UPLOADS = "uploads";
+    private static final String COLUMN_PATH = "path";
+    // Increases with every enqueue, so an upload only clears the row if nothing was written
+    // since it started.
+    private static final String COLUMN_SEQUENCE = "sequence";
+    private static final String COLUMN_ATTEMPTS = "attempts";
+    private static final String COLUMN_NEXT_ATTEMPT = "next_attempt";
+
+    // How long to wait after a write before uploading, so that repeated writes collapse.
+    private static final long UPLOAD_DELAY_MILLIS = 2000;
+
+    private static final int MAX_CONCURRENT_UPLOADS = 2;
+
+    // Documents smaller than this are sent together, up to the limits of a batch.
+    private static final long SMALL_FILE_BYTES = 256 * 1024;
+    private static final long MAX_BATCH_BYTES = 1024 * 1024;
+    private static final int MAX_BATCH_FILES = 32;
+
+    private static final long INITIAL_BACKOFF_MILLIS = 5 * 1000;
+    private static final long MAX_BACKOFF_MILLIS = 15 * 60 * 1000;
+
+    private final File mBaseDir;
+    private final CloudBackend mBackend;
+    // Block signatures of the server's copy of each large document, for sending deltas.
+    private final File mSignatureDir;
+
+    private final HandlerThread mThread = new HandlerThread(TAG);
+    private Handler mHandler;
+    private final ExecutorService mUploaders =
+            Executors.newFixedThreadPool(MAX_CONCURRENT_UPLOADS, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, TAG + "-upload");
+                }
+            });
+    private final Random mRandom = new Random();
+
+    // Only touched on the queue's thread.
+    private final Set<String> mInFlight = new HashSet<String>();
+    private int mActiveBatches;
+
+    private final Runnable mSchedule = new Runnable() {
+        @Override
+        public void run() {
+            schedule();
+        }
+    };
+
+    /**
+     * @param context used to open the journal
+     * @param baseDir the directory document paths are relative to
+     * @param backend where documents are uploaded to
+     */
+    UploadQueue(Context context, File baseDir, CloudBackend backend) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mBaseDir = baseDir;
+        mBackend = backend;
+        mSignatureDir = context.getDir("signatures", Context.MODE_PRIVATE);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_UPLOADS + " ("
+                + COLUMN_PATH + " TEXT PRIMARY KEY NOT NULL, "
+                + COLUMN_SEQUENCE + " INTEGER NOT NULL, "
+                + COLUMN_ATTEMPTS + " INTEGER NOT NULL DEFAULT 0, "
+                + COLUMN_NEXT_ATTEMPT + " INTEGER NOT NULL DEFAULT 0)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Nothing to migrate yet.
+    }
+
+    /**
+     * Starts the queue's thread and uploads whatever the journal held from before.
+     */
+    void start() {
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mHandler.post(mSchedule);
+    }
+
+    /**
+     * @return a handler on the queue's thread
+     */
+    Handler getHandler() {
+        return mHandler;
+    }
+
+    /**
+     * Records that a document needs uploading.  If it is already waiting, the upload is pushed
+     * back a little rather than queued twice.
+     *
+     * @param path the document's path, relative to the base directory
+     */
+    void enqueue(String path) {
+        getWritableDatabase().execSQL("INSERT OR REPLACE INTO " + TABLE_UPLOADS + " ("
+                + COLUMN_PATH + ", " + COLUMN_SEQUENCE + ", " + COLUMN_ATTEMPTS + ", "
+                + COLUMN_NEXT_ATTEMPT + ") VALUES (?, (SELECT IFNULL(MAX(" + COLUMN_SEQUENCE
+                + "), 0) + 1 FROM " + TABLE_UPLOADS + "), 0, ?)",
+                new Object[]{path, System.currentTimeMillis() + UPLOAD_DELAY_MILLIS});
+        mHandler.removeCallbacks(mSchedule);
+        mHandler.postDelayed(mSchedule, UPLOAD_DELAY_MILLIS);
+    }
+
+    /**
+     * Starts uploads for the documents that are due, and arranges to come back when the next one
+     * is.  Runs on the queue's thread.
+     */
+    private void schedule() {
+        mHandler.removeCallbacks(mSchedule);
+        final long now = System.currentTimeMillis();
+        long nextAttempt = Long.MAX_VALUE;
+        final List<Batch> batches = new ArrayList<Batch>();
+        Batch small = null;
+
+        final Cursor cursor = getReadableDatabase().query(TABLE_UPLOADS,
+                new String[]{COLUMN_PATH, COLUMN_SEQUENCE, COLUMN_ATTEMPTS, COLUMN_NEXT_ATTEMPT},
+                null, null, null, null, COLUMN_SEQUENCE);
+        try {
+            while (cursor.moveToNext()) {
+                final String path = cursor.getString(0);
+                if (mInFlight.contains(path)) {
+                    continue;
+                }
+                final long due = cursor.getLong(3);
+                if (due > now) {
+                    nextAttempt = Math.min(nextAttempt, due);
+                    continue;
+                }
+                if (mActiveBatches + batches.size() >= MAX_CONCURRENT_UPLOADS) {
+                    // Picked up again when an upload finishes.
+                    break;
+                }
+
+                final long sequence = cursor.getLong(1);
+                final File file = new File(mBaseDir, path);
+                final FileAttributes attributes = FileAttributes.read(file);
+                if (attributes == null || attributes.mIsDirectory) {
+                    // Deleted since it was written, so there's nothing to send.
+                    remove(path, sequence);
+                    continue;
+                }
+
+                final Upload upload = new Upload(path, file, sequence, cursor.getInt(2),
+                        attributes);
+                if (attributes.mSize >= SMALL_FILE_BYTES) {
+                    batches.add(new Batch(upload));
+                    continue;
+                }
+                if (small == null || !small.canAdd(upload)) {
+                    small = new Batch(upload);
+                    batches.add(small);
+                } else {
+                    small.mUploads.add(upload);
+                    small.mBytes += attributes.mSize;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        for (final Batch batch : batches) {
+            for (Upload upload : batch.mUploads) {
+                mInFlight.add(upload.mPath);
+            }
+            mActiveBatches++;
+            mUploaders.execute(new Runnable() {
+                @Override
+                public void run() {
+                    upload(batch);
+                }
+            });
+        }
+        if (nextAttempt != Long.MAX_VALUE) {
+            mHandler.postDelayed(mSchedule, Math.max(0, nextAttempt - now));
+        }
+    }
+
+    /**
+     * Sends one batch to the server.  Runs on an upload thread.
+     */
+    private void upload(final Batch batch) {
+        IOException failure = null;
+        try {
+            if (batch.mUploads.size() == 1) {
+                final Upload upload = batch.mUploads.get(0);
+                // A large document may already be on the server, for example if the process
+                // died after uploading it.  Asking is much cheaper than sending it again.
+                final CloudBackend.Entry entry = mBackend.stat(upload.mPath);
+                if (entry == null || entry.mLength != upload.mAttributes.mSize
+                        || entry.mLastModified != upload.mAttributes.mLastModified) {
+                    if (upload.mAttributes.mSize >= SMALL_FILE_BYTES) {
+                        send(upload, entry);
+                    } else {
+                        mBackend.write(upload.mPath, upload.mFile);
+                    }
+                }
+            } else {
+                final List<String> paths = new ArrayList<String>(batch.mUploads.size());
+                final List<File> files = new ArrayList<File>(batch.mUploads.size());
+                for (Upload upload : batch.mUploads) {
+                    paths.add(upload.mPath);
+                    files.add(upload.mFile);
+                }
+                mBackend.writeAll(paths, files);
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+
+        final IOException result = failure;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                onUploadFinished(batch, result);
+            }
+        });
+    }
+
+    /**
+     * Sends a large document, as a delta against the server's copy if its block signatures are
+     * at hand, and otherwise whole.  Either way, keeps the signatures of what the server now has
+     * for next time.  Runs on an upload thread.
+     *
+     * @param entry what the server has for the document, or null
+     */
+    private void send(Upload upload, CloudBackend.Entry entry) throws IOException {
+        final File signatureFile = getSignatureFile(upload.mPath);
+        final BlockSignatures base = BlockSignatures.read(signatureFile);
+        if (base != null && base.describes(entry)) {
+            // Taken before reading, so a write during the upload leaves the server's version
+            // older than the file, and the document is sent again.
+            final long lastModified = upload.mFile.lastModified();
+            final long start = SystemClock.elapsedRealtime();
+            final Delta delta = Delta.compute(upload.mFile, base, lastModified);
+            final long elapsed = SystemClock.elapsedRealtime() - start;
+            if (delta != null && delta.getEncodedSize() < delta.mLength) {
+                Log.v(TAG, "Sending " + upload.mPath + " as a delta of " + delta.getEncodedSize()
+                        + " bytes rather than " + delta.mLength + ", worked out in " + elapsed
+                        + " ms");
+                mBackend.applyDelta(upload.mPath, entry, delta, lastModified);
+                // The delta's signatures are of exactly the bytes the server built.
+                delta.mSignatures.write(signatureFile);
+                return;
+            }
+        }
+
+        final CloudBackend.Entry stored = mBackend.write(upload.mPath, upload.mFile);
+        // Only keep signatures of the file if it is still what was sent.
+        if (isVersion(upload.mFile, stored)) {
+            final BlockSignatures signatures =
+                    BlockSignatures.compute(upload.mFile, stored.mLastModified);
+            if (isVersion(upload.mFile, stored) && signatures.describes(stored)) {
+                signatures.write(signatureFile);
+                return;
+            }
+        }
+        signatureFile.delete();
+    }
+
+    private static boolean isVersion(File file, CloudBackend.Entry entry) {
+        return file.length() == entry.mLength && file.lastModified() == entry.mLastModified;
+    }
+
+    /**
+     * @return where the block signatures of the server's copy of a document are kept
+     */
+    private File getSignatureFile(String path) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            final byte[] hash = digest.digest(path.getBytes("UTF-8"));
+            final StringBuilder name = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16));
+                name.append(Character.forDigit(b & 0xf, 16));
+            }
+            return new File(mSignatureDir, name.toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Clears or reschedules the rows of a batch.  Runs on the queue's thread.
+     */
+    private void onUploadFinished(Batch batch, IOException failure) {
+        mActiveBatches--;
+        final long now = System.currentTimeMillis();
+        for (Upload upload : batch.mUploads) {
+            mInFlight.remove(upload.mPath);
+            if (failure == null) {
+                remove(upload.mPath, upload.mSequence);
+            } else {
+                final int attempts = upload.mAttempts + 1;
+                getWritableDatabase().execSQL("UPDATE " + TABLE_UPLOADS + " SET "
+                        + COLUMN_ATTEMPTS + " = ?, " + COLUMN_NEXT_ATTEMPT + " = ? WHERE "
+                        + COLUMN_PATH + " = ? AND " + COLUMN_SEQUENCE + " = ?",
+                        new Object[]{attempts, now + getBackoff(attempts), upload.mPath,
+                                upload.mSequence});
+            }
+        }
+        if (failure == null) {
+            Log.v(TAG, "Uploaded " + batch.mUploads.size() + " documents, " + batch.mBytes
+                    + " bytes");
+        } else {
+            Log.w(TAG, "Failed to upload " + batch.mUploads.size() + " documents: "
+                    + failure.getMessage());
+        }
+        schedule();
+    }
+
+    /**
+     * Drops a row, unless the document has been written again since the row was read.
+     */
+    private void remove(String path, long sequence) {
+        getWritableDatabase().delete(TABLE_UPLOADS,
+                COLUMN_PATH + " = ? AND " + COLUMN_SEQUENCE + " = ?",
+                new String[]{path, Long.toString(sequence)});
+    }
+
+    /**
+     * @return how long to wait before the next attempt: doubling with each failure, up to a
+     * limit, and spread out a little so that a batch of failures doesn't come back all at once.
+     */
+    private long getBackoff(int attempts) {
+        final long backoff = Math.min(MAX_BACKOFF_MILLIS,
+                INITIAL_BACKOFF_MILLIS << Math.min(attempts - 1, 16));
+        return backoff + (long) (mRandom.nextDouble() * backoff / 4);
+    }
+
+    /**
+     * One document waiting to be uploaded.
+     */
+    private static class Upload {
+        final String mPath;
+        final File mFile;
+        final long mSequence;
+        final int mAttempts;
+        final FileAttributes mAttributes;
+
+        Upload(String path, File file, long sequence, int attempts, FileAttributes attributes) {
+            mPath = path;
+            mFile = file;
+            mSequence = sequence;
+            mAttempts = attempts;
+            mAttributes = attributes;
+        }
+    }
+
+    /**
+     * Documents sent to the server in one request.
+     */
+    private static class Batch {
+        final List<Upload> mUploads = new ArrayList<Upload>();
+        long mBytes;
+
+        Batch(Upload first) {
+            mUploads.add(first);
+            mBytes = first.mAttributes.mSize;
+        }
+
+        boolean canAdd(Upload upload) {
+            return mUploads.size() < MAX_BATCH_FILES
+                    && mBytes + upload.mAttributes.mSize <= MAX_BATCH_BYTES;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.storageprovider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+public class BlockSignaturesTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void rollingChecksumMatchesComputedOne() {
+        final byte[] data = new byte[4096];
+        new Random(1).nextBytes(data);
+        final int length = 1000;
+        int weak = BlockSignatures.getWeakChecksum(data, 0, length);
+        for (int pos = 0; pos + length < data.length; pos++) {
+            weak = BlockSignatures.rollWeakChecksum(weak, data[pos], data[pos + length], length);
+            assertEquals(BlockSignatures.getWeakChecksum(data, pos + 1, length), weak);
+        }
+    }
+
+    @Test
+    public void savedSignaturesReadBack() throws IOException {
+        final File data = new File(mFolder.getRoot(), "data");
+        final byte[] contents = new byte[3 * BlockSignatures.BLOCK_SIZE + 5];
+        new Random(1).nextBytes(contents);
+        final FileOutputStream out = new FileOutputStream(data);
+        try {
+            out.write(contents);
+        } finally {
+            out.close();
+        }
+        final BlockSignatures signatures = BlockSignatures.compute(data, 7);
+        assertEquals(4, signatures.getBlockCount());
+        assertEquals(5, signatures.getBlockLength(3));
+
+        final File saved = new File(mFolder.getRoot(), "signatures");
+        signatures.write(saved);
+        final BlockSignatures read = BlockSignatures.read(saved);
+        assertNotNull(read);
+        assertEquals(contents.length, read.mLength);
+        assertEquals(7, read.mLastModified);
+        assertEquals(4, read.getBlockCount());
+        final int weak = BlockSignatures.getWeakChecksum(contents, BlockSignatures.BLOCK_SIZE,
+                BlockSignatures.BLOCK_SIZE);
+        assertEquals(1, read.find(weak, contents, BlockSignatures.BLOCK_SIZE,
+                BlockSignatures.BLOCK_SIZE, BlockSignatures.newDigest()));
+    }
+
+    @Test
+    public void missingFileReadsAsNone() {
+        assertNull(BlockSignatures.read(new File(mFolder.getRoot(), "missing")));
+    }
+
+    @Test
+    public void hugeBlockCountIsRejectedAndDeleted() throws IOException {
+        // A damaged header claiming two billion blocks must not be allocated for.
+        final File saved = writeHeader(0x53494753, 16L * 1024 * 1024 * 1024, Integer.MAX_VALUE);
+        assertNull(BlockSignatures.read(saved));
+        assertFalse(saved.exists());
+    }
+
+    @Test
+    public void negativeBlockCountIsRejectedAndDeleted() throws IOException {
+        final File saved = writeHeader(0x53494753, 100, -1);
+        assertNull(BlockSignatures.read(saved));
+        assertFalse(saved.exists());
+    }
+
+    private File writeHeader(int magic, long length, int count) throws IOException {
+        final File file = new File(mFolder.getRoot(), "signatures");
+        final DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.writeInt(magic);
+            out.writeLong(length);
+            out.writeLong(0);
+            out.writeInt(count);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.storageprovider;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Measures time to first byte and throughput of documents streamed through {@link ChunkFetcher}
+ * from a {@link LocalCloudBackend} with injected latency, against downloading each document in
+ * one request.  Not run as part of the tests; run it by hand with
+ * <pre>
+ * java -cp ... com.example.android.storageprovider.ChunkFetcherBenchmark [dir] [MiB] [bytes/s]
+ * </pre>
+ * Every run starts with an empty chunk cache, so every chunk comes from the stand-in server.
+ */
+public class ChunkFetcherBenchmark {
+    private static final int DEFAULT_MEGABYTES = 32;
+    private static final long DEFAULT_BYTES_PER_SECOND = 4 * 1024 * 1024;
+    private static final long[] LATENCIES_MILLIS = {0, 20, 50, 100, 200};
+    private static final long MAX_CACHE_BYTES = 1024L * 1024 * 1024;
+    private static final String PATH = "document";
+
+    /**
+     * When the first byte of a stream arrived, and when the last one did.
+     */
+    static class Timing {
+        final long mFirstByteNanos;
+        final long mTotalNanos;
+        final long mBytes;
+
+        Timing(long firstByteNanos, long totalNanos, long bytes) {
+            mFirstByteNanos = firstByteNanos;
+            mTotalNanos = totalNanos;
+            mBytes = bytes;
+        }
+
+        double getMegabytesPerSecond() {
+            return mBytes / (1024.0 * 1024) / (mTotalNanos / 1e9);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        final File dir = args.length > 0 ? new File(args[0])
+                : new File(System.getProperty("java.io.tmpdir"), "fetcher-benchmark");
+        final int megabytes = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_MEGABYTES;
+        final long bytesPerSecond =
+                args.length > 2 ? Long.parseLong(args[2]) : DEFAULT_BYTES_PER_SECOND;
+        final File serverDir = new File(dir, "server");
+        if (!serverDir.isDirectory() && !serverDir.mkdirs()) {
+            throw new IOException("Unable to create " + serverDir);
+        }
+        writeRandom(new File(serverDir, PATH), (long) megabytes * 1024 * 1024);
+
+        System.out.printf("%d MiB at %d bytes/s%n", megabytes, bytesPerSecond);
+        System.out.printf("%10s %16s %16s %16s %16s%n", "latency ms", "whole TTFB ms",
+                "whole MiB/s", "chunked TTFB ms", "chunked MiB/s");
+        try {
+            for (long latency : LATENCIES_MILLIS) {
+                final LocalCloudBackend backend =
+                        new LocalCloudBackend(serverDir, latency, bytesPerSecond);
+                final CloudBackend.Entry entry = backend.stat(PATH);
+                final Timing whole = measureWhole(backend, entry);
+                final File cacheDir = new File(dir, "cache-" + latency);
+                final Timing chunked = measure(
+                        new ChunkFetcher(backend, new ChunkCache(cacheDir, MAX_CACHE_BYTES)),
+                        PATH, entry);
+                deleteTree(cacheDir);
+                System.out.printf("%10d %16.1f %16.2f %16.1f %16.2f%n", latency,
+                        whole.mFirstByteNanos / 1e6, whole.getMegabytesPerSecond(),
+                        chunked.mFirstByteNanos / 1e6, chunked.getMegabytesPerSecond());
+            }
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    /**
+     * Streams a document and times it.
+     */
+    static Timing measure(ChunkFetcher fetcher, String path, CloudBackend.Entry entry)
+            throws IOException {
+        final TimingOutputStream out = new TimingOutputStream();
+        fetcher.stream(path, entry, out);
+        return out.finish();
+    }
+
+    /**
+     * Downloads a document in one request, as openDocument did before documents were chunked,
+     * and times it.  The first byte is only there once the whole document is.
+     */
+    private static Timing measureWhole(CloudBackend backend, CloudBackend.Entry entry)
+            throws IOException {
+        final TimingOutputStream out = new TimingOutputStream();
+        out.write(backend.read(PATH, 0, (int) entry.mLength));
+        return out.finish();
+    }
+
+    /**
+     * Discards what is written, noting when the first bytes came.
+     */
+    private static class TimingOutputStream extends OutputStream {
+        private final long mStart = System.nanoTime();
+        private long mFirstByte = -1;
+        private long mBytes;
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (mFirstByte < 0 && len > 0) {
+                mFirstByte = System.nanoTime() - mStart;
+            }
+            mBytes += len;
+        }
+
+        Timing finish() {
+            final long total = System.nanoTime() - mStart;
+            return new Timing(mFirstByte < 0 ? total : mFirstByte, total, mBytes);
+        }
+    }
+
+    private static void writeRandom(File file, long size) throws IOException {
+        final Random random = new Random(size);
+        final byte[] block = new byte[1024 * 1024];
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            long remaining = size;
+            while (remaining > 0) {
+                random.nextBytes(block);
+                final int len = (int) Math.min(block.length, remaining);
+                out.write(block, 0, len);
+                remaining -= len;
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void deleteTree(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.storageprovider;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+public class ChunkFetcherTest {
+    private static final long LATENCY_MILLIS = 30;
+    private static final long UNTHROTTLED = 0;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mServerDir;
+    private File mCacheDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mServerDir = mFolder.newFolder("server");
+        mCacheDir = mFolder.newFolder("cache");
+    }
+
+    @Test
+    public void streamsWholeDocument() throws IOException {
+        final ChunkFetcher fetcher = newFetcher(0);
+        // Empty, part of a chunk, and several chunks with a short one at the end.
+        for (int size : new int[]{0, 1000, 3 * ChunkFetcher.CHUNK_SIZE + 17}) {
+            final byte[] data = write("document-" + size, size);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            fetcher.stream("document-" + size, new CloudBackend.Entry(size, 0), out);
+            assertArrayEquals(data, out.toByteArray());
+        }
+    }
+
+    @Test
+    public void firstBytesArriveBeforeLastChunk() throws IOException {
+        final int count = 8;
+        write("document", count * ChunkFetcher.CHUNK_SIZE);
+        final ChunkFetcher fetcher = newFetcher(0);
+        final CloudBackend.Entry entry = new CloudBackend.Entry(count * ChunkFetcher.CHUNK_SIZE, 0);
+        final boolean[] lastCachedAtFirstWrite = new boolean[]{true};
+        fetcher.stream("document", entry, new OutputStream() {
+            private boolean mWritten;
+
+            @Override
+            public void write(int b) {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                if (!mWritten) {
+                    mWritten = true;
+                    lastCachedAtFirstWrite[0] = fetcher.isCached("document", entry, count - 1);
+                }
+            }
+        });
+        assertFalse(lastCachedAtFirstWrite[0]);
+        assertTrue(fetcher.isCached("document", entry, count - 1));
+    }
+
+    @Test
+    public void measuresInjectedLatency() throws IOException {
+        final int size = 2 * ChunkFetcher.CHUNK_SIZE;
+        write("document", size);
+        final ChunkFetcherBenchmark.Timing timing = ChunkFetcherBenchmark.measure(
+                newFetcher(LATENCY_MILLIS), "document", new CloudBackend.Entry(size, 0));
+        assertEquals(size, timing.mBytes);
+        assertTrue(timing.mFirstByteNanos >= LATENCY_MILLIS * 1000000);
+        assertTrue(timing.mTotalNanos >= timing.mFirstByteNanos);
+    }
+
+    private ChunkFetcher newFetcher(long latencyMillis) {
+        return new ChunkFetcher(new LocalCloudBackend(mServerDir, latencyMillis, UNTHROTTLED),
+                new ChunkCache(mCacheDir, Long.MAX_VALUE));
+    }
+
+    private byte[] write(String name, int size) throws IOException {
+        final byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        final OutputStream out = new FileOutputStream(new File(mServerDir, name));
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return data;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.storageprovider;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+public class ContentDefinedChunkerTest {
+    @Test
+    public void chunksPutBackTogetherGiveTheInput() throws IOException {
+        final byte[] data = randomBytes(3 * 1024 * 1024 + 5, 1);
+        final ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        for (byte[] chunk : split(data)) {
+            joined.write(chunk);
+        }
+        assertArrayEquals(data, joined.toByteArray());
+    }
+
+    @Test
+    public void chunksStayWithinBounds() throws IOException {
+        final List<byte[]> chunks = split(randomBytes(8 * 1024 * 1024, 1));
+        for (int i = 0; i < chunks.size(); i++) {
+            final int length = chunks.get(i).length;
+            assertTrue(length <= ContentDefinedChunker.MAX_SIZE);
+            // Only the last chunk may be cut short by the end of the input.
+            if (i < chunks.size() - 1) {
+                assertTrue(length >= ContentDefinedChunker.MIN_SIZE);
+            }
+        }
+        final int average = 8 * 1024 * 1024 / chunks.size();
+        assertTrue(average > ContentDefinedChunker.AVERAGE_SIZE / 2);
+        assertTrue(average < ContentDefinedChunker.AVERAGE_SIZE * 2);
+    }
+
+    @Test
+    public void zerosAreCutAtTheMaximumSize() throws IOException {
+        final List<byte[]> chunks = split(new byte[ContentDefinedChunker.MAX_SIZE * 3]);
+        assertEquals(3, chunks.size());
+    }
+
+    @Test
+    public void emptyInputHasNoChunks() throws IOException {
+        assertEquals(0, split(new byte[0]).size());
+    }
+
+    @Test
+    public void insertOnlyChangesChunksNearIt() throws IOException {
+        final byte[] data = randomBytes(4 * 1024 * 1024, 1);
+        final byte[] edited = new byte[data.length + 10];
+        final int at = data.length / 2;
+        System.arraycopy(data, 0, edited, 0, at);
+        System.arraycopy(randomBytes(10, 2), 0, edited, at, 10);
+        System.arraycopy(data, at, edited, at + 10, data.length - at);
+
+        final Set<String> before = new HashSet<String>();
+        for (byte[] chunk : split(data)) {
+            before.add(new String(chunk, "ISO-8859-1"));
+        }
+        final List<byte[]> after = split(edited);
+        int changed = 0;
+        for (byte[] chunk : after) {
+            if (!before.contains(new String(chunk, "ISO-8859-1"))) {
+                changed++;
+            }
+        }
+        assertTrue("changed " + changed + " of " + after.size(), changed <= 2);
+    }
+
+    private static List<byte[]> split(byte[] data) throws IOException {
+        final ContentDefinedChunker chunker =
+                new ContentDefinedChunker(new ByteArrayInputStream(data));
+        final List<byte[]> chunks = new ArrayList<byte[]>();
+        int count;
+        while ((count = chunker.next()) >= 0) {
+            final byte[] chunk = new byte[count];
+            System.arraycopy(chunker.getBuffer(), chunker.getOffset(), chunk, 0, count);
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    private static byte[] randomBytes(int size, long seed) {
+        final byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
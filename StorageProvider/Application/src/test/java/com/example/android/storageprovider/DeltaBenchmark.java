@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.storageprovider;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+/**
+ * Reports the size of the delta and the CPU time taken to work it out, for documents edited in
+ * a few typical ways.  Not run as part of the tests; run it by hand with
+ * <pre>
+ * java -cp ... com.example.android.storageprovider.DeltaBenchmark [dir] [document bytes]
+ * </pre>
+ */
+public class DeltaBenchmark {
+    private static final int DEFAULT_SIZE = 64 * 1024 * 1024;
+    private static final int RUNS = 3;
+
+    /**
+     * Makes a new version of a document out of the old one.
+     */
+    private interface Edit {
+        byte[] apply(byte[] old, Random random);
+    }
+
+    public static void main(String[] args) throws IOException {
+        final File dir = args.length > 0 ? new File(args[0])
+                : new File(System.getProperty("java.io.tmpdir"));
+        final int size = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SIZE;
+        final byte[] old = new byte[size];
+        new Random(1).nextBytes(old);
+        final File oldFile = new File(dir, "delta-old");
+        final File newFile = new File(dir, "delta-new");
+        write(oldFile, old);
+        final BlockSignatures base = BlockSignatures.compute(oldFile, 1);
+
+        System.out.printf("%-24s %14s %14s %10s%n", "edit", "document", "delta", "cpu ms");
+        try {
+            run("unchanged", old, new Edit() {
+                @Override
+                public byte[] apply(byte[] old, Random random) {
+                    return old;
+                }
+            }, base, newFile);
+            run("append 64 KiB", old, new Edit() {
+                @Override
+                public byte[] apply(byte[] old, Random random) {
+                    return splice(old, old.length, 0, randomBytes(random, 64 * 1024));
+                }
+            }, base, newFile);
+            run("prepend 100 bytes", old, new Edit() {
+                @Override
+                public byte[] apply(byte[] old, Random random) {
+                    return splice(old, 0, 0, randomBytes(random, 100));
+                }
+            }, base, newFile);
+            run("insert 1 byte midway", old, new Edit() {
+                @Override
+                public byte[] apply(byte[] old, Random random) {
+                    return splice(old, old.length / 2, 0, randomBytes(random, 1));
+                }
+            }, base, newFile);
+            run("100 scattered edits", old, new Edit() {
+                @Override
+                public byte[] apply(byte[] old, Random random) {
+                    final byte[] edited = old.clone();
+                    for (int i = 0; i < 100; i++) {
+                        edited[random.nextInt(edited.length)] ^= 1;
+                    }
+                    return edited;
+                }
+            }, base, newFile);
+            run("delete 1 MiB midway", old, new Edit() {
+                @Override
+                public byte[] apply(byte[] old, Random random) {
+                    return splice(old, old.length / 2,
+                            Math.min(1024 * 1024, old.length / 4), new byte[0]);
+                }
+            }, base, newFile);
+            run("rewritten", old, new Edit() {
+                @Override
+                public byte[] apply(byte[] old, Random random) {
+                    return randomBytes(random, old.length);
+                }
+            }, base, newFile);
+        } finally {
+            oldFile.delete();
+            newFile.delete();
+        }
+    }
+
+    private static void run(String name, byte[] old, Edit edit, BlockSignatures base,
+                            File newFile) throws IOException {
+        final byte[] edited = edit.apply(old, new Random(2));
+        write(newFile, edited);
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        long cpuNanos = Long.MAX_VALUE;
+        Delta delta = null;
+        for (int run = 0; run < RUNS; run++) {
+            final long start = bean.getCurrentThreadCpuTime();
+            delta = Delta.compute(newFile, base, 2);
+            cpuNanos = Math.min(cpuNanos, bean.getCurrentThreadCpuTime() - start);
+        }
+        System.out.printf("%-24s %14d %14s %10.1f%n", name, edited.length,
+                delta != null ? Long.toString(delta.getEncodedSize()) : "sent whole",
+                cpuNanos / 1e6);
+    }
+
+    private static byte[] splice(byte[] data, int at, int remove, byte[] insert) {
+        final byte[] result = new byte[data.length - remove + insert.length];
+        System.arraycopy(data, 0, result, 0, at);
+        System.arraycopy(insert, 0, result, at, insert.length);
+        System.arraycopy(data, at + remove, result, at + insert.length,
+                data.length - at - remove);
+        return result;
+    }
+
+    private static byte[] randomBytes(Random random, int size) {
+        final byte[] data = new byte[size];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+}
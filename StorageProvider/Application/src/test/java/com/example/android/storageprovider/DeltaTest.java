@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.storageprovider;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+public class DeltaTest {
+    private static final int SIZE = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void unchangedDocumentHasNoNewBytes() throws IOException {
+        final byte[] data = randomBytes(SIZE, 1);
+        final Delta delta = computeAndCheck(data, data);
+        assertEquals(1, delta.mOps.size());
+        assertEquals(delta.mOps.size() * 13L, delta.getEncodedSize());
+    }
+
+    @Test
+    public void appendSendsOnlyTheAppendedBytes() throws IOException {
+        final byte[] old = randomBytes(SIZE, 1);
+        final byte[] appended = concat(old, randomBytes(5000, 2));
+        final Delta delta = computeAndCheck(old, appended);
+        assertTrue(delta.getEncodedSize() < 5000 + 100);
+    }
+
+    @Test
+    public void insertInTheMiddleIsFoundAtAnyOffset() throws IOException {
+        final byte[] old = randomBytes(SIZE, 1);
+        final byte[] inserted = concat(concat(slice(old, 0, 300001), randomBytes(7, 2)),
+                slice(old, 300001, old.length));
+        final Delta delta = computeAndCheck(old, inserted);
+        // The inserted bytes plus the rest of the block they landed in.
+        assertTrue(delta.getEncodedSize() < 2 * BlockSignatures.BLOCK_SIZE + 100);
+    }
+
+    @Test
+    public void shortLastBlockMatchesExactly() throws IOException {
+        final byte[] old = randomBytes(3 * BlockSignatures.BLOCK_SIZE + 123, 1);
+        final byte[] edited = old.clone();
+        edited[10] ^= 1;
+        final Delta delta = computeAndCheck(old, edited);
+        assertTrue(delta.getEncodedSize() < BlockSignatures.BLOCK_SIZE + 100);
+    }
+
+    @Test
+    public void rewrittenDocumentIsSentWhole() throws IOException {
+        final File file = write("new", randomBytes(SIZE, 2));
+        final BlockSignatures base = signaturesOf(randomBytes(SIZE, 1));
+        assertNull(Delta.compute(file, base, 1));
+    }
+
+    @Test
+    public void signaturesDescribeTheNewVersion() throws IOException {
+        final byte[] old = randomBytes(SIZE, 1);
+        final byte[] edited = old.clone();
+        edited[SIZE / 2] ^= 1;
+        final File file = write("new", edited);
+        final Delta delta = Delta.compute(file, signaturesOf(old), 42);
+        assertNotNull(delta);
+
+        final BlockSignatures expected = BlockSignatures.compute(file, 42);
+        assertEquals(expected.mLength, delta.mSignatures.mLength);
+        assertEquals(42, delta.mSignatures.mLastModified);
+        assertEquals(expected.getBlockCount(), delta.mSignatures.getBlockCount());
+    }
+
+    /**
+     * Works out the delta from one version to another, and checks that applying it to the old
+     * version builds the new one.
+     */
+    private Delta computeAndCheck(byte[] oldData, byte[] newData) throws IOException {
+        final File oldFile = write("old", oldData);
+        final File newFile = write("new", newData);
+        final Delta delta = Delta.compute(newFile, BlockSignatures.compute(oldFile, 1), 2);
+        assertNotNull(delta);
+        assertEquals(newData.length, delta.mLength);
+
+        final ByteArrayOutputStream built = new ByteArrayOutputStream();
+        final RandomAccessFile base = new RandomAccessFile(oldFile, "r");
+        try {
+            delta.apply(base, built);
+        } finally {
+            base.close();
+        }
+        assertArrayEquals(newData, built.toByteArray());
+        return delta;
+    }
+
+    private BlockSignatures signaturesOf(byte[] data) throws IOException {
+        return BlockSignatures.compute(write("old", data), 1);
+    }
+
+    private File write(String name, byte[] data) throws IOException {
+        final File file = new File(mFolder.getRoot(), name);
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] randomBytes(int size, long seed) {
+        final byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] slice(byte[] data, int from, int to) {
+        final byte[] slice = new byte[to - from];
+        System.arraycopy(data, from, slice, 0, slice.length);
+        return slice;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        final byte[] joined = new byte[a.length + b.length];
+        System.arraycopy(a, 0, joined, 0, a.length);
+        System.arraycopy(b, 0, joined, a.length, b.length);
+        return joined;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.storageprovider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class DocumentLocksTest {
+    // How long a second operation is given to get its locks before it counts as blocked.
+    private static final long BLOCKED_MILLIS = 200;
+
+    // Documents are named like paths, "root:dir/file", and sit below their root, "root:", and
+    // every directory on the way.
+    private final DocumentLocks mLocks = new DocumentLocks(new DocumentLocks.Ancestry() {
+        @Override
+        public List<String> getAncestors(String docId) {
+            final List<String> ancestors = new ArrayList<String>();
+            for (int i = 0; i < docId.length() - 1; i++) {
+                if (docId.charAt(i) == ':') {
+                    ancestors.add(docId.substring(0, i + 1));
+                } else if (docId.charAt(i) == '/') {
+                    ancestors.add(docId.substring(0, i));
+                }
+            }
+            return ancestors;
+        }
+    });
+
+    @Test
+    public void readersShareADocument() throws InterruptedException {
+        assertCompatible(true, false, "root:a", false, "root:a");
+    }
+
+    @Test
+    public void writerExcludesReadersAndWriters() throws InterruptedException {
+        assertCompatible(false, true, "root:a", false, "root:a");
+        assertCompatible(false, false, "root:a", true, "root:a");
+        assertCompatible(false, true, "root:a", true, "root:a");
+    }
+
+    @Test
+    public void unrelatedDocumentsDontWait() throws InterruptedException {
+        assertCompatible(true, true, "root:a", true, "root:b");
+        assertCompatible(true, true, "root:a/x", true, "root:b/x");
+        assertCompatible(true, true, "root:a", true, "other:a");
+    }
+
+    @Test
+    public void siblingsBelowTheSameDirectoryDontWait() throws InterruptedException {
+        assertCompatible(true, true, "root:a/x", true, "root:a/y");
+        assertCompatible(true, false, "root:a/x", true, "root:a/y");
+    }
+
+    @Test
+    public void writingADirectoryExcludesEverythingBelowIt() throws InterruptedException {
+        assertCompatible(false, true, "root:a", false, "root:a/x");
+        assertCompatible(false, true, "root:a", true, "root:a/x/y");
+        assertCompatible(false, false, "root:a/x", true, "root:a");
+        assertCompatible(false, true, "root:a/x/y", true, "root:a");
+    }
+
+    @Test
+    public void readingADirectoryExcludesWritesBelowIt() throws InterruptedException {
+        assertCompatible(true, false, "root:a", false, "root:a/x");
+        assertCompatible(false, false, "root:a", true, "root:a/x");
+        assertCompatible(false, true, "root:a/x", false, "root:a");
+    }
+
+    @Test
+    public void readingAndWritingBelowInOneRequestIsExclusive() throws InterruptedException {
+        final DocumentLocks.Held first = mLocks.newRequest("first")
+                .read("root:a").write("root:a/x").acquire();
+        final boolean blocked = !tryAcquire(mLocks.newRequest("second").read("root:a"));
+        first.release();
+        assertTrue(blocked);
+    }
+
+    @Test
+    public void waiterProceedsOnceReleased() throws InterruptedException {
+        final DocumentLocks.Held first = mLocks.newRequest("first").write("root:a").acquire();
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                mLocks.newRequest("second").write("root:a/x").acquire().release();
+                acquired.countDown();
+            }
+        };
+        waiter.start();
+        assertFalse(acquired.await(BLOCKED_MILLIS, TimeUnit.MILLISECONDS));
+        first.release();
+        assertTrue(acquired.await(10, TimeUnit.SECONDS));
+        waiter.join();
+    }
+
+    @Test
+    public void releasingTwiceReleasesOnce() throws InterruptedException {
+        final DocumentLocks.Held reader = mLocks.newRequest("reader").read("root:a").acquire();
+        final DocumentLocks.Held other = mLocks.newRequest("other").read("root:a").acquire();
+        reader.release();
+        reader.release();
+        final boolean blocked = !tryAcquire(mLocks.newRequest("writer").write("root:a"));
+        other.release();
+        assertTrue(blocked);
+        assertTrue(tryAcquire(mLocks.newRequest("writer").write("root:a")));
+    }
+
+    @Test
+    public void reportCountsEachOperation() {
+        mLocks.newRequest("open").read("root:a").acquire().release();
+        mLocks.newRequest("open").read("root:b").acquire().release();
+        mLocks.newRequest("delete").write("root:a").acquire().release();
+        final String report = mLocks.getReport();
+        assertTrue(report, report.contains("open: 2 locked"));
+        assertTrue(report, report.contains("delete: 1 locked"));
+        assertEquals(2, report.split("\n").length);
+    }
+
+    /**
+     * Holds the first lock while a second thread asks for the other, and checks whether the
+     * second one got it without waiting.
+     */
+    private void assertCompatible(boolean expected, boolean firstWrites, String first,
+            boolean secondWrites, String second) throws InterruptedException {
+        final DocumentLocks.Held held = request("first", firstWrites, first).acquire();
+        try {
+            assertEquals((firstWrites ? "write " : "read ") + first + " then "
+                    + (secondWrites ? "write " : "read ") + second, expected,
+                    tryAcquire(request("second", secondWrites, second)));
+        } finally {
+            held.release();
+        }
+    }
+
+    private DocumentLocks.Request request(String operation, boolean write, String docId) {
+        final DocumentLocks.Request request = mLocks.newRequest(operation);
+        return write ? request.write(docId) : request.read(docId);
+    }
+
+    /**
+     * Acquires a request on another thread.
+     *
+     * @return whether it got its locks within {@link #BLOCKED_MILLIS}; if it did, they are
+     * released again right away
+     */
+    private boolean tryAcquire(final DocumentLocks.Request request)
+            throws InterruptedException {
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final Thread thread = new Thread() {
+            @Override
+            public void run() {
+                final DocumentLocks.Held held = request.acquire();
+                acquired.countDown();
+                held.release();
+            }
+        };
+        thread.start();
+        // A thread that is still waiting finishes once the caller releases what it holds.
+        return acquired.await(BLOCKED_MILLIS, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.storageprovider;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+public class FileCopierTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mStagingDir;
+    private FileCopier mCopier;
+
+    @Before
+    public void setUp() throws IOException {
+        mStagingDir = mFolder.newFolder("staging");
+        mCopier = new FileCopier(mStagingDir);
+    }
+
+    @Test
+    public void copiesContents() throws IOException {
+        // Empty, smaller than a buffer, and spanning several buffers.
+        for (int size : new int[]{0, 1000, 3 * 1024 * 1024 + 17}) {
+            final byte[] data = randomBytes(size);
+            final File source = write("source-" + size, data);
+            final File target = new File(mFolder.getRoot(), "target-" + size);
+
+            assertEquals(size, mCopier.copy(source, target, null, null));
+            assertArrayEquals(data, read(target));
+        }
+        assertEquals(0, mStagingDir.list().length);
+    }
+
+    @Test
+    public void reportsProgressUpToTotal() throws IOException {
+        final File source = write("source", randomBytes(100000));
+        final long[] last = new long[2];
+        mCopier.copy(source, new File(mFolder.getRoot(), "target"),
+                new FileCopier.ProgressListener() {
+                    @Override
+                    public void onProgress(long bytesCopied, long totalBytes) {
+                        assertTrue(bytesCopied >= last[0]);
+                        last[0] = bytesCopied;
+                        last[1] = totalBytes;
+                    }
+                }, null);
+        assertEquals(100000, last[0]);
+        assertEquals(100000, last[1]);
+    }
+
+    @Test
+    public void refusesExistingTarget() throws IOException {
+        final File source = write("source", randomBytes(10));
+        final byte[] existing = randomBytes(20);
+        final File target = write("target", existing);
+        try {
+            mCopier.copy(source, target, null, null);
+            fail("Copied over an existing file");
+        } catch (IOException expected) {
+        }
+        assertArrayEquals(existing, read(target));
+        assertEquals(0, mStagingDir.list().length);
+    }
+
+    @Test
+    public void failedCopyLeavesNothingBehind() throws IOException {
+        final File target = new File(mFolder.getRoot(), "target");
+        try {
+            mCopier.copy(new File(mFolder.getRoot(), "missing"), target, null, null);
+            fail("Copied a missing file");
+        } catch (IOException expected) {
+        }
+        assertFalse(target.exists());
+        assertEquals(0, mStagingDir.list().length);
+    }
+
+    @Test
+    public void removesLeftoverStagingFiles() throws IOException {
+        final File leftover = new File(mStagingDir, "copy-123.tmp");
+        final File other = new File(mStagingDir, "keep");
+        assertTrue(leftover.createNewFile());
+        assertTrue(other.createNewFile());
+
+        new FileCopier(mStagingDir);
+        assertFalse(leftover.exists());
+        assertTrue(other.exists());
+    }
+
+    private File write(String name, byte[] data) throws IOException {
+        final File file = new File(mFolder.getRoot(), name);
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        final RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            final byte[] data = new byte[(int) in.length()];
+            in.readFully(data);
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] randomBytes(int size) {
+        final byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.storageprovider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Random;
+
+public class ProviderMetricsTest {
+    @Test
+    public void smallValuesGetABucketEach() {
+        for (int micros = 0; micros < 8; micros++) {
+            assertEquals(micros, ProviderMetrics.getBucket(micros));
+            assertEquals(micros, ProviderMetrics.getUpperBound(micros));
+        }
+        assertEquals(0, ProviderMetrics.getBucket(-5));
+    }
+
+    @Test
+    public void bucketsAreContiguous() {
+        assertEquals(8, ProviderMetrics.getBucket(8));
+        for (int bucket = 1; bucket < ProviderMetrics.BUCKETS; bucket++) {
+            final long lower = ProviderMetrics.getUpperBound(bucket - 1) + 1;
+            final long upper = ProviderMetrics.getUpperBound(bucket);
+            assertTrue("bucket " + bucket, lower <= upper);
+            assertEquals(bucket, ProviderMetrics.getBucket(lower));
+            assertEquals(bucket, ProviderMetrics.getBucket(upper));
+        }
+    }
+
+    @Test
+    public void upperBoundIsWithinAQuarter() {
+        final Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            final long micros = 8 + (random.nextLong() >>> (24 + random.nextInt(40)));
+            final int bucket = ProviderMetrics.getBucket(micros);
+            final long upper = ProviderMetrics.getUpperBound(bucket);
+            assertTrue(micros + " above " + upper, micros <= upper);
+            assertTrue(micros + " far below " + upper, upper <= micros + micros / 4);
+            assertTrue(micros + " below bucket " + bucket,
+                    ProviderMetrics.getUpperBound(bucket - 1) < micros);
+        }
+    }
+
+    @Test
+    public void hugeValuesGoInTheLastBucket() {
+        final int last = ProviderMetrics.BUCKETS - 1;
+        assertEquals(last, ProviderMetrics.getBucket(1L << 41));
+        assertEquals(last, ProviderMetrics.getBucket(Long.MAX_VALUE));
+        assertEquals(last, ProviderMetrics.getBucket(ProviderMetrics.getUpperBound(last)));
+    }
+
+    @Test
+    public void dumpShowsRecordedOperationsUntilReset() {
+        final ProviderMetrics metrics = new ProviderMetrics();
+        for (int i = 0; i < 10; i++) {
+            metrics.record(ProviderMetrics.OP_QUERY_DOCUMENT, ProviderMetrics.start());
+        }
+        metrics.count(ProviderMetrics.COUNTER_ROWS, 42);
+        String dump = dump(metrics);
+        assertTrue(dump, dump.matches("(?s).*queryDocument +10 .*"));
+        assertTrue(dump, dump.contains("rows: 42"));
+        assertFalse(dump, dump.contains("openDocument "));
+
+        metrics.reset();
+        dump = dump(metrics);
+        assertFalse(dump, dump.contains("queryDocument"));
+        assertTrue(dump, dump.contains("rows: 0"));
+    }
+
+    private static String dump(ProviderMetrics metrics) {
+        final StringWriter out = new StringWriter();
+        final PrintWriter writer = new PrintWriter(out);
+        metrics.dump(writer);
+        writer.flush();
+        return out.toString();
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.storageprovider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.TreeMap;
+
+public class SyntheticTreeTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mStaging;
+    private SyntheticTree mTree;
+
+    @Before
+    public void setUp() throws IOException {
+        mStaging = mFolder.newFolder("staging");
+        mTree = new SyntheticTree(mStaging);
+    }
+
+    @Test
+    public void sameSpecGivesTheSameTree() throws Exception {
+        final SyntheticTree.Spec spec = smallSpec();
+        final long bytes = mTree.generate(spec, new File(mFolder.getRoot(), "a"));
+        spec.mThreads = 1;
+        assertEquals(bytes, mTree.generate(spec, new File(mFolder.getRoot(), "b")));
+        final TreeMap<String, String> first = describe(new File(mFolder.getRoot(), "a"));
+        assertEquals(first, describe(new File(mFolder.getRoot(), "b")));
+        // Three levels of two directories, each with three files.
+        assertEquals(2 + 4 + 8 + 15 * 3, first.size());
+    }
+
+    @Test
+    public void otherSeedGivesAnotherTree() throws Exception {
+        final SyntheticTree.Spec spec = smallSpec();
+        mTree.generate(spec, new File(mFolder.getRoot(), "a"));
+        spec.mSeed = 2;
+        mTree.generate(spec, new File(mFolder.getRoot(), "b"));
+        assertFalse(describe(new File(mFolder.getRoot(), "a"))
+                .equals(describe(new File(mFolder.getRoot(), "b"))));
+    }
+
+    @Test
+    public void sizesAndDocumentsStayInBounds() throws Exception {
+        final SyntheticTree.Spec spec = smallSpec();
+        spec.mMaxDocuments = 10;
+        final File target = new File(mFolder.getRoot(), "a");
+        long total = 0;
+        mTree.generate(spec, target);
+        final TreeMap<String, String> tree = describe(target);
+        assertEquals(10, tree.size());
+        for (String path : tree.keySet()) {
+            final File file = new File(target, path);
+            if (file.isFile()) {
+                assertTrue(path, file.length() >= spec.mMinFileBytes);
+                assertTrue(path, file.length() <= spec.mMaxFileBytes);
+                total += file.length();
+            }
+        }
+        assertTrue(total > 0);
+        assertEquals(0, mStaging.list().length);
+    }
+
+    @Test
+    public void existingTargetIsLeftAlone() throws Exception {
+        final File target = mFolder.newFolder("a");
+        try {
+            mTree.generate(smallSpec(), target);
+            fail();
+        } catch (IOException expected) {
+        }
+        assertEquals(0, target.list().length);
+        assertEquals(0, mStaging.list().length);
+    }
+
+    @Test
+    public void badWeightsAreRejected() throws Exception {
+        final SyntheticTree.Spec spec = smallSpec();
+        spec.mWeights = new int[] {1, -1, 1, 1, 1, 1, 1};
+        assertRejected(spec);
+        Arrays.fill(spec.mWeights, 0);
+        assertRejected(spec);
+        Arrays.fill(spec.mWeights, Integer.MAX_VALUE);
+        assertRejected(spec);
+        spec.mWeights = new int[] {1};
+        assertRejected(spec);
+    }
+
+    private void assertRejected(SyntheticTree.Spec spec) throws IOException {
+        try {
+            mTree.generate(spec, new File(mFolder.getRoot(), "a"));
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        assertFalse(new File(mFolder.getRoot(), "a").exists());
+    }
+
+    private static SyntheticTree.Spec smallSpec() {
+        final SyntheticTree.Spec spec = new SyntheticTree.Spec();
+        spec.mDepth = 3;
+        spec.mFanOut = 2;
+        spec.mFilesPerDirectory = 3;
+        spec.mMinFileBytes = 0;
+        spec.mMaxFileBytes = 200 * 1024;
+        return spec;
+    }
+
+    /**
+     * @return the digest of each file and "dir" for each directory, by path below the root
+     */
+    private static TreeMap<String, String> describe(File root)
+            throws IOException, NoSuchAlgorithmException {
+        final TreeMap<String, String> tree = new TreeMap<String, String>();
+        describe(root, "", tree);
+        return tree;
+    }
+
+    private static void describe(File dir, String prefix, TreeMap<String, String> tree)
+            throws IOException, NoSuchAlgorithmException {
+        for (File child : dir.listFiles()) {
+            final String path = prefix + child.getName();
+            if (child.isDirectory()) {
+                tree.put(path, "dir");
+                describe(child, path + "/", tree);
+            } else {
+                tree.put(path, digest(child));
+            }
+        }
+    }
+
+    private static String digest(File file) throws IOException, NoSuchAlgorithmException {
+        final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            final byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        return file.length() + ":" + Arrays.toString(digest.digest());
+    }
+}